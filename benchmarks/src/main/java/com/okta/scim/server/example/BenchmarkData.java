@@ -0,0 +1,109 @@
+package com.okta.scim.server.example;
+
+import com.okta.scim.util.model.Email;
+import com.okta.scim.util.model.Membership;
+import com.okta.scim.util.model.Name;
+import com.okta.scim.util.model.SCIMGroup;
+import com.okta.scim.util.model.SCIMUser;
+import org.keycloak.representations.idm.GroupRepresentation;
+import org.keycloak.representations.idm.UserRepresentation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Generates users and groups shaped like the payloads in <code>tester/data</code>, with unique
+ * ids and names so nothing is shared between entities.
+ */
+final class BenchmarkData {
+
+  private BenchmarkData() {
+  }
+
+  static SCIMUser scimUser(int i) {
+    SCIMUser user = new SCIMUser();
+    user.setId(id("user", i));
+    user.setUserName("user" + i + "@example.com");
+    user.setName(new Name("John" + i + " Smith" + i, "Smith" + i, "John" + i));
+    user.setEmails(Collections.singletonList(new Email("user" + i + "@example.com", "work", true)));
+    user.setPassword("inSecure" + i);
+    user.setActive(true);
+    return user;
+  }
+
+  static UserRepresentation userRepresentation(int i) {
+    UserRepresentation user = new UserRepresentation();
+    user.setId(id("user", i));
+    user.setUsername("user" + i + "@example.com");
+    user.setFirstName("John" + i);
+    user.setLastName("Smith" + i);
+    user.setEmail("user" + i + "@example.com");
+    user.setEnabled(true);
+    return user;
+  }
+
+  static GroupRepresentation groupRepresentation(int i) {
+    GroupRepresentation group = new GroupRepresentation();
+    group.setId(id("group", i));
+    group.setName("group" + i);
+    group.setPath("/group" + i);
+    return group;
+  }
+
+  /**
+   * @param membersPerGroup members of each group, taken round-robin from the first
+   *                        <code>users</code> users
+   */
+  static SCIMGroup scimGroup(int i, int membersPerGroup, int users) {
+    SCIMGroup group = new SCIMGroup();
+    group.setId(id("group", i));
+    group.setDisplayName("group" + i);
+    List<Membership> members = new ArrayList<>(membersPerGroup);
+    for (int m = 0; m < membersPerGroup; m++) {
+      int user = (i * membersPerGroup + m) % Math.max(1, users);
+      members.add(new Membership(id("user", user), "user" + user + "@example.com"));
+    }
+    group.setMembers(members);
+    return group;
+  }
+
+  static List<UserRepresentation> userRepresentations(int count) {
+    List<UserRepresentation> users = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      users.add(userRepresentation(i));
+    }
+    return users;
+  }
+
+  static Map<String, SCIMUser> scimUserMap(int count) {
+    Map<String, SCIMUser> users = new LinkedHashMap<>(count * 2);
+    for (int i = 0; i < count; i++) {
+      SCIMUser user = scimUser(i);
+      users.put(user.getId(), user);
+    }
+    return users;
+  }
+
+  static Map<String, SCIMGroup> scimGroupMap(int count, int membersPerGroup, int users) {
+    Map<String, SCIMGroup> groups = new LinkedHashMap<>(count * 2);
+    for (int i = 0; i < count; i++) {
+      SCIMGroup group = scimGroup(i, membersPerGroup, users);
+      groups.put(group.getId(), group);
+    }
+    return groups;
+  }
+
+  // Keycloak ids are UUIDs; keep the same length so strings and JSON have realistic sizes
+  private static String id(String kind, int i) {
+    String suffix = Integer.toHexString(i);
+    StringBuilder id = new StringBuilder(36).append(kind.equals("user") ? "00000000" : "11111111")
+      .append("-0000-4000-8000-");
+    for (int pad = suffix.length(); pad < 12; pad++) {
+      id.append('0');
+    }
+    return id.append(suffix).toString();
+  }
+}
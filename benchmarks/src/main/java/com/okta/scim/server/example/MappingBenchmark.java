@@ -0,0 +1,67 @@
+package com.okta.scim.server.example;
+
+import com.okta.scim.util.model.SCIMGroup;
+import com.okta.scim.util.model.SCIMUser;
+import org.keycloak.representations.idm.GroupRepresentation;
+import org.keycloak.representations.idm.UserRepresentation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the per-entity conversions in {@link KeycloakMapper}. Each invocation converts
+ * the next entity of a pre-built pool, so the JIT cannot fold the work into a constant.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MappingBenchmark {
+  // A power of two, so the next index is a mask and not a modulo
+  private static final int POOL_SIZE = 4096;
+
+  private final SCIMUser[] scimUsers = new SCIMUser[POOL_SIZE];
+  private final UserRepresentation[] userRepresentations = new UserRepresentation[POOL_SIZE];
+  private final GroupRepresentation[] groupRepresentations = new GroupRepresentation[POOL_SIZE];
+  private int next;
+
+  @Setup
+  public void setUp() {
+    for (int i = 0; i < POOL_SIZE; i++) {
+      scimUsers[i] = BenchmarkData.scimUser(i);
+      userRepresentations[i] = BenchmarkData.userRepresentation(i);
+      groupRepresentations[i] = BenchmarkData.groupRepresentation(i);
+    }
+  }
+
+  @Benchmark
+  public SCIMUser createSCIMUserFromKeycloakRepresentation() {
+    return KeycloakMapper.createSCIMUserFromKeycloakRepresentation(userRepresentations[nextIndex()]);
+  }
+
+  @Benchmark
+  public UserRepresentation updateKeycloakUser() {
+    return KeycloakMapper.updateKeycloakUser(scimUsers[nextIndex()], new UserRepresentation());
+  }
+
+  @Benchmark
+  public SCIMGroup createSCIMGroupFromKeycloakGroup() {
+    return KeycloakMapper.createSCIMGroupFromKeycloakGroup(groupRepresentations[nextIndex()]);
+  }
+
+  private int nextIndex() {
+    next = (next + 1) & (POOL_SIZE - 1);
+    return next;
+  }
+}
@@ -0,0 +1,60 @@
+package com.okta.scim.server.example;
+
+import com.okta.scim.util.model.PaginationProperties;
+import com.okta.scim.util.model.SCIMUserQueryResponse;
+import org.keycloak.representations.idm.UserRepresentation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The in-memory pagination of <code>SCIMServiceImpl.getScimUsersToReturn</code>, used when
+ * Keycloak pagination is off or a filter cannot be pushed down. Pages are taken from the start,
+ * the middle and the end of a realm of <code>users</code> users.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class PaginationBenchmark {
+
+  @Param({"10000", "100000", "1000000"})
+  private int users;
+
+  @Param({"100"})
+  private int pageSize;
+
+  private List<UserRepresentation> allUsers;
+  private PaginationProperties[] pages;
+  private int next;
+
+  @Setup
+  public void setUp() {
+    allUsers = BenchmarkData.userRepresentations(users);
+    // SCIM startIndex is 1-based
+    pages = new PaginationProperties[]{
+      new PaginationProperties(1, pageSize),
+      new PaginationProperties(users / 2 + 1, pageSize),
+      new PaginationProperties(Math.max(1, users - pageSize + 1), pageSize)
+    };
+  }
+
+  @Benchmark
+  public SCIMUserQueryResponse getScimUsersToReturn() {
+    next = (next + 1) % pages.length;
+    return SCIMServiceImpl.getScimUsersToReturn(pages[next], allUsers);
+  }
+}
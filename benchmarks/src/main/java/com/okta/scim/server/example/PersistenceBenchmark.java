@@ -0,0 +1,176 @@
+package com.okta.scim.server.example;
+
+import com.okta.scim.util.model.SCIMGroup;
+import com.okta.scim.util.model.SCIMUser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading and saving users.json and groups.json with {@link SCIMConnectorUtil}.
+ * <p>
+ * There are <code>entities</code> users, and one group per 100 users with 100 members each. The
+ * files are written once during setup for the read benchmarks; the save benchmarks write to
+ * separate files. Each invocation handles a whole file, so the scores are per file. The parallel
+ * reads convert records on one thread per available processor.
+ * <p>
+ * The journal benchmarks save one updated user with {@link SCIMConnectorUtil#saveUserToFile}
+ * into a file of the same users, which is what a change costs instead of a <code>saveUsers</code>;
+ * they are scored per update. <code>journalUpdateUser</code> forces the journal to disk every
+ * {@value #JOURNAL_FSYNC_BATCH} updates and <code>journalUpdateUserSynced</code> forces every
+ * update.
+ * <p>
+ * The binary snapshot benchmarks use a {@link BinarySnapshot} of the same users:
+ * <code>binaryLookupUser</code> opens it and finds one user, which is the cold start cost before
+ * the first lookup, and <code>binaryReadUsers</code> opens it and decodes every user.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class PersistenceBenchmark {
+  private static final int MEMBERS_PER_GROUP = 100;
+  private static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+  private static final int JOURNAL_FSYNC_BATCH = 64;
+
+  @Param({"10000", "100000", "1000000"})
+  private int entities;
+
+  private Path directory;
+  private Map<String, SCIMUser> users;
+  private Map<String, SCIMGroup> groups;
+  private String usersFile;
+  private String groupsFile;
+  private String savedUsersFile;
+  private String savedGroupsFile;
+  private Path usersSnapshot;
+  private String lookedUpId;
+  private SCIMUser[] userArray;
+  private int nextUser;
+  private String journaledUsersFile;
+  private String syncedUsersFile;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    directory = Files.createTempDirectory("scim-benchmark");
+    usersFile = directory.resolve("users.json").toString();
+    groupsFile = directory.resolve("groups.json").toString();
+    savedUsersFile = directory.resolve("users-saved.json").toString();
+    savedGroupsFile = directory.resolve("groups-saved.json").toString();
+
+    users = BenchmarkData.scimUserMap(entities);
+    groups = BenchmarkData.scimGroupMap(Math.max(1, entities / MEMBERS_PER_GROUP), MEMBERS_PER_GROUP, entities);
+    SCIMConnectorUtil.saveUsersToFile(users, usersFile);
+    SCIMConnectorUtil.saveGroupsToFile(groups, groupsFile);
+
+    userArray = users.values().toArray(new SCIMUser[0]);
+    usersSnapshot = directory.resolve("users.snap");
+    BinarySnapshot.writeUsers(users, usersSnapshot);
+    lookedUpId = userArray[userArray.length / 2].getId();
+    // Each journal keeps the settings it was opened with, on its first save
+    journaledUsersFile = directory.resolve("users-journal.json").toString();
+    SCIMConnectorUtil.saveUsersToFile(users, journaledUsersFile);
+    SCIMConnectorUtil.configureJournals(JOURNAL_FSYNC_BATCH, 0, 0);
+    SCIMConnectorUtil.saveUserToFile(nextUser(), journaledUsersFile);
+    syncedUsersFile = directory.resolve("users-synced.json").toString();
+    SCIMConnectorUtil.saveUsersToFile(users, syncedUsersFile);
+    SCIMConnectorUtil.configureJournals(1, 0, 0);
+    SCIMConnectorUtil.saveUserToFile(nextUser(), syncedUsersFile);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    SCIMConnectorUtil.closeJournals();
+    for (File file : directory.toFile().listFiles()) {
+      Files.delete(file.toPath());
+    }
+    Files.delete(directory);
+  }
+
+  @Benchmark
+  public Map<String, SCIMUser> readUsers() throws Exception {
+    Map<String, SCIMUser> read = new HashMap<>();
+    SCIMConnectorUtil.readUsersFromFile(read, usersFile);
+    return read;
+  }
+
+  @Benchmark
+  public Map<String, SCIMGroup> readGroups() throws Exception {
+    Map<String, SCIMGroup> read = new HashMap<>();
+    SCIMConnectorUtil.readGroupsFromFile(read, groupsFile);
+    return read;
+  }
+
+  @Benchmark
+  public Map<String, SCIMUser> readUsersParallel() throws Exception {
+    Map<String, SCIMUser> read = new HashMap<>();
+    SCIMConnectorUtil.readUsersFromFile(read, usersFile, PARALLELISM);
+    return read;
+  }
+
+  @Benchmark
+  public Map<String, SCIMGroup> readGroupsParallel() throws Exception {
+    Map<String, SCIMGroup> read = new HashMap<>();
+    SCIMConnectorUtil.readGroupsFromFile(read, groupsFile, PARALLELISM);
+    return read;
+  }
+
+  @Benchmark
+  public void saveUsers() throws Exception {
+    SCIMConnectorUtil.saveUsersToFile(users, savedUsersFile);
+  }
+
+  @Benchmark
+  public void saveGroups() throws Exception {
+    SCIMConnectorUtil.saveGroupsToFile(groups, savedGroupsFile);
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public void journalUpdateUser() throws Exception {
+    SCIMConnectorUtil.saveUserToFile(nextUser(), journaledUsersFile);
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public void journalUpdateUserSynced() throws Exception {
+    SCIMConnectorUtil.saveUserToFile(nextUser(), syncedUsersFile);
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public SCIMUser binaryLookupUser() throws Exception {
+    return BinarySnapshot.openUsers(usersSnapshot).get(lookedUpId);
+  }
+
+  @Benchmark
+  public Map<String, SCIMUser> binaryReadUsers() throws Exception {
+    return BinarySnapshot.openUsers(usersSnapshot).toMap();
+  }
+
+  private SCIMUser nextUser() {
+    SCIMUser user = userArray[nextUser];
+    nextUser = (nextUser + 1) % userArray.length;
+    return user;
+  }
+}
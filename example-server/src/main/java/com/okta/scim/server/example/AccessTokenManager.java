@@ -0,0 +1,276 @@
+package com.okta.scim.server.example;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.keycloak.OAuth2Constants;
+import org.keycloak.admin.client.token.TokenService;
+import org.keycloak.jose.jws.JWSInput;
+import org.keycloak.jose.jws.JWSInputException;
+import org.keycloak.representations.AccessTokenResponse;
+import org.keycloak.representations.JsonWebToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.NotAuthorizedException;
+import javax.ws.rs.client.ClientRequestContext;
+import javax.ws.rs.client.ClientRequestFilter;
+import javax.ws.rs.client.ClientResponseContext;
+import javax.ws.rs.client.ClientResponseFilter;
+import javax.ws.rs.core.Form;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response.Status;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Keeps a valid admin access token ready for every Keycloak call.
+ * <p>
+ * The admin client's own <code>TokenManager</code> refreshes lazily and under a lock, so when the
+ * token lapses every concurrent request waits for the re-authentication. Here the token is
+ * refreshed in the background once <code>refreshRatio</code> of its lifetime has passed, and the
+ * request path only reads the current token. A request only waits if there is no usable token at
+ * all (at startup, or after Keycloak was unreachable for longer than the token lifetime); all the
+ * requests that wait share one token request.
+ * <p>
+ * The manager is also the request filter that adds the bearer header. A 401 for the token that is
+ * current triggers a refresh, so a token revoked on the server is replaced once and not once per
+ * failing request.
+ * <p>
+ * Two grants are supported: <code>password</code> (the admin user, with an optional client secret
+ * for confidential clients) and <code>client_credentials</code> (a service account client).
+ */
+final class AccessTokenManager implements ClientRequestFilter, ClientResponseFilter {
+  private static final Logger LOGGER = LoggerFactory.getLogger(AccessTokenManager.class);
+
+  // A token this close to its expiry is not used any more
+  private static final long EXPIRY_MARGIN_MILLIS = 5000;
+  // Delay before retrying a failed background refresh, doubled on each failure
+  private static final long MIN_RETRY_MILLIS = 1000;
+  private static final long MAX_RETRY_MILLIS = 60000;
+
+  private final TokenService tokenService;
+  private final String realm;
+  private final String grantType;
+  private final String clientId;
+  private final String clientSecret;
+  private final String username;
+  private final String password;
+  private final double refreshRatio;
+  private final ScheduledExecutorService refresher;
+
+  private volatile Token current;
+  private final AtomicReference<CompletableFuture<Token>> inFlight = new AtomicReference<>();
+  // Only touched on the refresher thread
+  private ScheduledFuture<?> nextRefresh;
+  private long retryMillis = MIN_RETRY_MILLIS;
+
+  /**
+   * @param tokenService the token endpoint proxy; it must not go through this filter
+   * @param grantType    <code>password</code> or <code>client_credentials</code>
+   * @param refreshRatio part of the token lifetime after which it is refreshed, between 0.1 and 0.95
+   */
+  AccessTokenManager(TokenService tokenService, String realm, String grantType, String clientId, String clientSecret,
+                     String username, String password, double refreshRatio) {
+    if (!OAuth2Constants.PASSWORD.equals(grantType) && !OAuth2Constants.CLIENT_CREDENTIALS.equals(grantType)) {
+      throw new IllegalArgumentException("Unsupported grant type " + grantType + ", expected "
+        + OAuth2Constants.PASSWORD + " or " + OAuth2Constants.CLIENT_CREDENTIALS);
+    }
+    if (OAuth2Constants.CLIENT_CREDENTIALS.equals(grantType) && isEmpty(clientSecret)) {
+      throw new IllegalArgumentException("The " + OAuth2Constants.CLIENT_CREDENTIALS + " grant needs a client secret");
+    }
+    this.tokenService = tokenService;
+    this.realm = realm;
+    this.grantType = grantType;
+    this.clientId = clientId;
+    this.clientSecret = clientSecret;
+    this.username = username;
+    this.password = password;
+    this.refreshRatio = Math.min(0.95, Math.max(0.1, refreshRatio));
+    this.refresher = Executors.newSingleThreadScheduledExecutor(
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("keycloak-token-%d").build());
+  }
+
+  /**
+   * Request the first token in the background. Failures are retried, so the connector starts even
+   * if Keycloak is not reachable yet.
+   */
+  void start() {
+    refresh();
+  }
+
+  void shutdown() {
+    refresher.shutdownNow();
+  }
+
+  /**
+   * @return a valid access token, waiting for a token request only if none is usable
+   */
+  String getAccessTokenString() {
+    Token token = current;
+    if (token != null && token.isUsable(System.currentTimeMillis())) {
+      return token.accessToken;
+    }
+    return KeycloakGateway.await(refresh()).accessToken;
+  }
+
+  /**
+   * @return the id of the Keycloak user the connector acts as, the subject of the current token:
+   * the admin user, or the service account user of the client. Null until there is a token, or if
+   * the token is not a JWT.
+   */
+  String getSubject() {
+    Token token = current;
+    return token == null ? null : token.subject;
+  }
+
+  /**
+   * @return seconds until the current token expires, or -1 if there is none
+   */
+  long getSecondsToExpiry() {
+    Token token = current;
+    return token == null ? -1 : Math.max(0, (token.expiresAtMillis - System.currentTimeMillis()) / 1000);
+  }
+
+  @Override
+  public void filter(ClientRequestContext requestContext) {
+    requestContext.getHeaders().putSingle(HttpHeaders.AUTHORIZATION, "Bearer " + getAccessTokenString());
+  }
+
+  @Override
+  public void filter(ClientRequestContext requestContext, ClientResponseContext responseContext) {
+    if (responseContext.getStatus() != Status.UNAUTHORIZED.getStatusCode()) {
+      return;
+    }
+    Token token = current;
+    String sent = requestContext.getHeaderString(HttpHeaders.AUTHORIZATION);
+    if (token != null && sent != null && sent.endsWith(token.accessToken)) {
+      LOGGER.info("Keycloak rejected the current access token, requesting a new one");
+      current = null;
+      refresh();
+    }
+  }
+
+  /**
+   * Start a token request unless one is already running, and return the running one.
+   */
+  private CompletableFuture<Token> refresh() {
+    CompletableFuture<Token> started = new CompletableFuture<>();
+    CompletableFuture<Token> running = inFlight.compareAndExchange(null, started);
+    if (running != null) {
+      return running;
+    }
+    try {
+      refresher.execute(() -> complete(started));
+    } catch (RuntimeException e) {
+      inFlight.set(null);
+      started.completeExceptionally(e);
+    }
+    return started;
+  }
+
+  private void complete(CompletableFuture<Token> started) {
+    try {
+      Token token = requestToken();
+      current = token;
+      retryMillis = MIN_RETRY_MILLIS;
+      long delayMillis = Math.max(MIN_RETRY_MILLIS, (long) (token.lifetimeMillis * refreshRatio));
+      scheduleRefresh(delayMillis);
+      LOGGER.debug("Keycloak access token valid for " + token.lifetimeMillis / 1000 + "s, refreshing in "
+        + delayMillis / 1000 + "s");
+      inFlight.set(null);
+      started.complete(token);
+    } catch (RuntimeException e) {
+      LOGGER.warn("Could not get a Keycloak access token, retrying in " + retryMillis + "ms: " + e.getMessage());
+      scheduleRefresh(retryMillis);
+      retryMillis = Math.min(retryMillis * 2, MAX_RETRY_MILLIS);
+      inFlight.set(null);
+      started.completeExceptionally(e);
+    }
+  }
+
+  private void scheduleRefresh(long delayMillis) {
+    if (nextRefresh != null) {
+      nextRefresh.cancel(false);
+    }
+    nextRefresh = refresher.schedule(this::refresh, delayMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Use the refresh token while it is valid, and fall back to a full grant when there is none or
+   * Keycloak no longer accepts it.
+   */
+  private Token requestToken() {
+    long now = System.currentTimeMillis();
+    Token token = current;
+    if (token != null && token.refreshToken != null && now + EXPIRY_MARGIN_MILLIS < token.refreshExpiresAtMillis) {
+      Form form = new Form()
+        .param(OAuth2Constants.GRANT_TYPE, OAuth2Constants.REFRESH_TOKEN)
+        .param(OAuth2Constants.REFRESH_TOKEN, token.refreshToken);
+      addClient(form);
+      try {
+        return new Token(tokenService.refreshToken(realm, form.asMap()), now);
+      } catch (BadRequestException | NotAuthorizedException e) {
+        LOGGER.debug("Keycloak refused the refresh token, requesting a new grant");
+      }
+    }
+
+    Form form = new Form().param(OAuth2Constants.GRANT_TYPE, grantType);
+    if (OAuth2Constants.PASSWORD.equals(grantType)) {
+      form.param("username", username).param("password", password);
+    }
+    addClient(form);
+    return new Token(tokenService.grantToken(realm, form.asMap()), now);
+  }
+
+  private void addClient(Form form) {
+    form.param(OAuth2Constants.CLIENT_ID, clientId);
+    if (!isEmpty(clientSecret)) {
+      form.param(OAuth2Constants.CLIENT_SECRET, clientSecret);
+    }
+  }
+
+  private static boolean isEmpty(String value) {
+    return value == null || value.isEmpty();
+  }
+
+  /**
+   * An access token and when it, and its refresh token, expire.
+   */
+  private static final class Token {
+    private final String accessToken;
+    private final String refreshToken;
+    private final String subject;
+    private final long lifetimeMillis;
+    private final long expiresAtMillis;
+    private final long refreshExpiresAtMillis;
+
+    Token(AccessTokenResponse response, long requestedAtMillis) {
+      accessToken = response.getToken();
+      refreshToken = response.getRefreshToken();
+      subject = readSubject(accessToken);
+      lifetimeMillis = TimeUnit.SECONDS.toMillis(response.getExpiresIn());
+      expiresAtMillis = requestedAtMillis + lifetimeMillis;
+      refreshExpiresAtMillis = response.getRefreshExpiresIn() > 0
+        ? requestedAtMillis + TimeUnit.SECONDS.toMillis(response.getRefreshExpiresIn())
+        : Long.MAX_VALUE;
+    }
+
+    boolean isUsable(long nowMillis) {
+      return nowMillis + EXPIRY_MARGIN_MILLIS < expiresAtMillis;
+    }
+
+    // The token came straight from Keycloak's token endpoint, so its signature is not checked
+    private static String readSubject(String accessToken) {
+      try {
+        return new JWSInput(accessToken).readJsonContent(JsonWebToken.class).getSubject();
+      } catch (JWSInputException | RuntimeException e) {
+        LOGGER.debug("Cannot read the subject of the Keycloak access token", e);
+        return null;
+      }
+    }
+  }
+}
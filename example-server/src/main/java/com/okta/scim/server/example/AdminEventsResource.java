@@ -0,0 +1,34 @@
+package com.okta.scim.server.example;
+
+import org.keycloak.representations.idm.AdminEventRepresentation;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
+import java.util.List;
+
+/**
+ * <code>GET /admin/realms/{realm}/admin-events</code>, filtered by resource type.
+ * <p>
+ * The Keycloak server filters admin events by <code>resourceTypes</code>, but the 8.x admin
+ * client's <code>getAdminEvents</code> does not expose that parameter. Like
+ * {@link UsersCountResource}, this interface is proxied onto the realm's
+ * <code>admin-events</code> path so it shares the connection pool and bearer token. Events come
+ * back newest first.
+ */
+public interface AdminEventsResource {
+
+  /**
+   * @param resourceTypes for example <code>USER</code>, <code>GROUP</code> and
+   *                      <code>GROUP_MEMBERSHIP</code>
+   * @param dateFrom      the first day to return events of, as <code>yyyy-MM-dd</code> in the
+   *                      server's time zone
+   */
+  @GET
+  @Produces(MediaType.APPLICATION_JSON)
+  List<AdminEventRepresentation> list(@QueryParam("resourceTypes") List<String> resourceTypes,
+                                      @QueryParam("dateFrom") String dateFrom,
+                                      @QueryParam("first") Integer first,
+                                      @QueryParam("max") Integer max);
+}
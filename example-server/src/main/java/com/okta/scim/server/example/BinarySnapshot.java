@@ -0,0 +1,706 @@
+package com.okta.scim.server.example;
+
+import com.okta.scim.util.SCIMUtil;
+import com.okta.scim.util.exception.SCIMSerializationException;
+import com.okta.scim.util.model.SCIMGroup;
+import com.okta.scim.util.model.SCIMUser;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+
+/**
+ * Users or groups in a binary snapshot file, memory mapped and decoded one record at a time, on
+ * first access.
+ * <p>
+ * Opening a snapshot maps the file, checks its header and reads the symbol table, without reading
+ * the records, so lookups can be answered as soon as it is open. A lookup binary searches the id
+ * index and decodes only the record it finds; decoded records are kept for later lookups.
+ * <p>
+ * The file is laid out as follows, with big-endian fixed-size numbers and unsigned LEB128 varints:
+ * <pre>
+ * header   "SCIMSNAP", int version, int kind (1 users, 2 groups), int count, int symbol count,
+ *          long index offset, long symbol table offset
+ * records  count times: varint length, then the record: varint id length, UTF-8 id, tokens
+ * index    count times: long record offset, ordered by the UTF-8 bytes of the record ids
+ * symbols  symbol count times: varint length, UTF-8 symbol
+ * </pre>
+ * The tokens are the resource's SCIM JSON, as the SDK writes it, in binary: a tag byte for each
+ * token, followed by a symbol number, a zigzag varint for whole numbers, or a varint length and
+ * UTF-8 bytes for text. Field names and the values of the <code>schemas</code> array, which
+ * repeat in every record, are symbols written once for the whole file; the resource's id is not
+ * repeated after the record's. Every attribute the SDK knows, including custom extensions,
+ * therefore survives a conversion in either direction. The file is mapped in overlapping
+ * segments, so it is not limited to 2GB; a record is at most {@value #MAX_RECORD_SIZE} bytes.
+ */
+final class BinarySnapshot<T> {
+  private static final Logger LOGGER = LoggerFactory.getLogger(BinarySnapshot.class);
+
+  private static final byte[] MAGIC = "SCIMSNAP".getBytes(StandardCharsets.US_ASCII);
+  private static final int VERSION = 2;
+  private static final int HEADER_SIZE = 40;
+  private static final int INDEX_ENTRY_SIZE = Long.BYTES;
+  private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+  private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+  // Every read starts in one segment and ends in it: a record and its length varint fit in the overlap
+  private static final int SEGMENT_OVERLAP = MAX_RECORD_SIZE + 16;
+  private static final int DEFAULT_SEGMENT_SIZE = 1 << 30;
+  private static final int MAX_SYMBOLS = 1 << 16;
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+  // Token tags
+  private static final byte START_OBJECT = 1;
+  private static final byte END_OBJECT = 2;
+  private static final byte START_ARRAY = 3;
+  private static final byte END_ARRAY = 4;
+  private static final byte FIELD_SYMBOL = 5;
+  private static final byte FIELD_TEXT = 6;
+  private static final byte STRING_SYMBOL = 7;
+  private static final byte STRING_TEXT = 8;
+  private static final byte RECORD_ID = 9;
+  private static final byte TRUE = 10;
+  private static final byte FALSE = 11;
+  private static final byte NULL = 12;
+  private static final byte WHOLE_NUMBER = 13;
+  private static final byte NUMBER_TEXT = 14;
+
+  private final Path file;
+  private final Format<T> format;
+  private final long segmentSize;
+  private final MappedByteBuffer[] segments;
+  private final int count;
+  private final long indexOffset;
+  private final String[] symbols;
+  private final AtomicReferenceArray<T> decoded;
+
+  private BinarySnapshot(Path file, Format<T> format, int segmentSize) throws IOException {
+    this.file = file;
+    this.format = format;
+    this.segmentSize = segmentSize;
+    long size;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      size = channel.size();
+      if (size < HEADER_SIZE) {
+        throw new IOException("The snapshot " + file + " is too short");
+      }
+      segments = new MappedByteBuffer[(int) ((size + segmentSize - 1) / segmentSize)];
+      for (int i = 0; i < segments.length; i++) {
+        long start = (long) i * segmentSize;
+        segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+          Math.min(size - start, (long) segmentSize + SEGMENT_OVERLAP));
+      }
+    }
+
+    ByteBuffer header = at(0);
+    byte[] magic = new byte[MAGIC.length];
+    header.get(magic);
+    if (!Arrays.equals(magic, MAGIC)) {
+      throw new IOException(file + " is not a SCIM snapshot");
+    }
+    int version = header.getInt();
+    if (version != VERSION) {
+      throw new IOException("The snapshot " + file + " has the unsupported version " + version);
+    }
+    int kind = header.getInt();
+    if (kind != format.kind) {
+      throw new IOException("The snapshot " + file + " does not hold " + format.resourceType + "s");
+    }
+    count = header.getInt();
+    int symbolCount = header.getInt();
+    indexOffset = header.getLong();
+    long symbolsOffset = header.getLong();
+    if (count < 0 || symbolCount < 0 || symbolCount > MAX_SYMBOLS || indexOffset < HEADER_SIZE
+      || indexOffset + (long) count * INDEX_ENTRY_SIZE != symbolsOffset || symbolsOffset > size) {
+      throw new IOException("The snapshot " + file + " is truncated or corrupt");
+    }
+
+    symbols = new String[symbolCount];
+    long position = symbolsOffset;
+    try {
+      for (int i = 0; i < symbolCount; i++) {
+        ByteBuffer symbol = at(position);
+        symbols[i] = readText(symbol);
+        position += symbol.position() - (int) (position % segmentSize);
+      }
+    } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+      throw new IOException("The snapshot " + file + " is truncated or corrupt");
+    }
+    if (position != size) {
+      throw new IOException("The snapshot " + file + " is truncated or corrupt");
+    }
+    decoded = new AtomicReferenceArray<>(count);
+  }
+
+  /**
+   * Map a users snapshot written by {@link #writeUsers(Map, Path)}.
+   */
+  static BinarySnapshot<SCIMUser> openUsers(Path file) throws IOException {
+    return openUsers(file, DEFAULT_SEGMENT_SIZE);
+  }
+
+  /**
+   * Map a users snapshot in segments of <code>segmentSize</code> bytes.
+   */
+  static BinarySnapshot<SCIMUser> openUsers(Path file, int segmentSize) throws IOException {
+    return new BinarySnapshot<>(file, Format.USERS, segmentSize);
+  }
+
+  /**
+   * Map a groups snapshot written by {@link #writeGroups(Map, Path)}.
+   */
+  static BinarySnapshot<SCIMGroup> openGroups(Path file) throws IOException {
+    return new BinarySnapshot<>(file, Format.GROUPS, DEFAULT_SEGMENT_SIZE);
+  }
+
+  static void writeUsers(Map<String, SCIMUser> users, Path file) throws IOException, SCIMSerializationException {
+    write(users.values(), file, Format.USERS);
+  }
+
+  static void writeGroups(Map<String, SCIMGroup> groups, Path file) throws IOException, SCIMSerializationException {
+    write(groups.values(), file, Format.GROUPS);
+  }
+
+  /**
+   * Convert users.json, with its journal, into a binary users snapshot.
+   */
+  static void convertUsersFromJson(String usersFilePath, Path file) throws IOException, SCIMSerializationException {
+    Map<String, SCIMUser> users = new LinkedHashMap<>();
+    SCIMConnectorUtil.readUsersFromFile(users, usersFilePath, Runtime.getRuntime().availableProcessors());
+    writeUsers(users, file);
+  }
+
+  /**
+   * Convert groups.json, with its journal, into a binary groups snapshot.
+   */
+  static void convertGroupsFromJson(String groupsFilePath, Path file) throws IOException, SCIMSerializationException {
+    Map<String, SCIMGroup> groups = new LinkedHashMap<>();
+    SCIMConnectorUtil.readGroupsFromFile(groups, groupsFilePath, Runtime.getRuntime().availableProcessors());
+    writeGroups(groups, file);
+  }
+
+  /**
+   * Convert a binary users snapshot back into users.json.
+   */
+  static void convertUsersToJson(Path file, String usersFilePath) throws IOException, SCIMSerializationException {
+    SCIMConnectorUtil.saveUsersToFile(openUsers(file).toMap(), usersFilePath);
+  }
+
+  /**
+   * Convert a binary groups snapshot back into groups.json.
+   */
+  static void convertGroupsToJson(Path file, String groupsFilePath) throws IOException, SCIMSerializationException {
+    SCIMConnectorUtil.saveGroupsToFile(openGroups(file).toMap(), groupsFilePath);
+  }
+
+  int size() {
+    return count;
+  }
+
+  boolean contains(String id) {
+    return find(id) >= 0;
+  }
+
+  /**
+   * @return the resource with this id, decoded on first access, or null
+   */
+  T get(String id) throws SCIMSerializationException {
+    int position = find(id);
+    return position < 0 ? null : get(position);
+  }
+
+  /**
+   * @param position from 0 to {@link #size()}, in id order
+   */
+  T get(int position) throws SCIMSerializationException {
+    T resource = decoded.get(position);
+    if (resource != null) {
+      return resource;
+    }
+
+    String marshalled;
+    try {
+      ByteBuffer record = at(recordOffset(position));
+      int end = readVarint(record);
+      end += record.position();
+      String id = readText(record);
+      marshalled = toJson(record, end, id);
+    } catch (IOException | BufferUnderflowException | IndexOutOfBoundsException e) {
+      throw new SCIMSerializationException("The " + format.resourceType + " at position " + position
+        + " of the snapshot " + file + " is corrupt", e);
+    }
+    try {
+      resource = format.unmarshaller.unmarshal(marshalled);
+    } catch (SCIMSerializationException e) {
+      LOGGER.error("Cannot convert the " + format.resourceType + " [" + marshalled + "] of the snapshot " + file, e);
+      throw e;
+    }
+    // Another thread may have decoded the same record meanwhile; keep a single instance
+    return decoded.compareAndSet(position, null, resource) ? resource : decoded.get(position);
+  }
+
+  /**
+   * @param position from 0 to {@link #size()}, in id order
+   */
+  String getId(int position) {
+    ByteBuffer record = at(recordOffset(position));
+    readVarint(record);
+    return readText(record);
+  }
+
+  /**
+   * Decode every resource.
+   *
+   * @return the resources in id order
+   */
+  List<T> values() throws SCIMSerializationException {
+    List<T> values = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      values.add(get(i));
+    }
+    return values;
+  }
+
+  /**
+   * Decode every resource.
+   *
+   * @return the resources by id, in id order
+   */
+  Map<String, T> toMap() throws SCIMSerializationException {
+    Map<String, T> resources = new LinkedHashMap<>(count * 4 / 3 + 1);
+    for (int i = 0; i < count; i++) {
+      T resource = get(i);
+      resources.put(format.id.apply(resource), resource);
+    }
+    return resources;
+  }
+
+  /**
+   * Binary search the index for an id.
+   *
+   * @return the position of the record, or -1
+   */
+  private int find(String id) {
+    byte[] key = id.getBytes(StandardCharsets.UTF_8);
+    int low = 0;
+    int high = count - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      int comparison = compareId(at(recordOffset(middle)), key);
+      if (comparison < 0) {
+        low = middle + 1;
+      } else if (comparison > 0) {
+        high = middle - 1;
+      } else {
+        return middle;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Compare the id of the record at the buffer's position with <code>key</code>, byte by byte, as
+   * unsigned values, like {@link Arrays#compareUnsigned(byte[], byte[])} does when writing.
+   */
+  private static int compareId(ByteBuffer record, byte[] key) {
+    readVarint(record);
+    int idLength = readVarint(record);
+    int common = Math.min(idLength, key.length);
+    for (int i = 0; i < common; i++) {
+      int comparison = Byte.compareUnsigned(record.get(), key[i]);
+      if (comparison != 0) {
+        return comparison;
+      }
+    }
+    return idLength - key.length;
+  }
+
+  private long recordOffset(int position) {
+    return at(indexOffset + (long) position * INDEX_ENTRY_SIZE).getLong();
+  }
+
+  /**
+   * @return a view of the file from <code>position</code> on, good for at least a whole record
+   */
+  private ByteBuffer at(long position) {
+    ByteBuffer view = segments[(int) (position / segmentSize)].duplicate();
+    view.position((int) (position % segmentSize));
+    return view;
+  }
+
+  /**
+   * Turn the tokens of a record back into the SDK's JSON.
+   */
+  private String toJson(ByteBuffer record, int end, String id) throws IOException {
+    StringWriter json = new StringWriter(Math.max(16, (end - record.position()) * 2));
+    JsonGenerator generator = JSON_FACTORY.createJsonGenerator(json);
+    while (record.position() < end) {
+      byte tag = record.get();
+      switch (tag) {
+        case START_OBJECT:
+          generator.writeStartObject();
+          break;
+        case END_OBJECT:
+          generator.writeEndObject();
+          break;
+        case START_ARRAY:
+          generator.writeStartArray();
+          break;
+        case END_ARRAY:
+          generator.writeEndArray();
+          break;
+        case FIELD_SYMBOL:
+          generator.writeFieldName(symbol(readVarint(record)));
+          break;
+        case FIELD_TEXT:
+          generator.writeFieldName(readText(record));
+          break;
+        case STRING_SYMBOL:
+          generator.writeString(symbol(readVarint(record)));
+          break;
+        case STRING_TEXT:
+          generator.writeString(readText(record));
+          break;
+        case RECORD_ID:
+          generator.writeString(id);
+          break;
+        case TRUE:
+          generator.writeBoolean(true);
+          break;
+        case FALSE:
+          generator.writeBoolean(false);
+          break;
+        case NULL:
+          generator.writeNull();
+          break;
+        case WHOLE_NUMBER:
+          long zigzag = readVarLong(record);
+          generator.writeNumber((zigzag >>> 1) ^ -(zigzag & 1));
+          break;
+        case NUMBER_TEXT:
+          generator.writeNumber(readText(record));
+          break;
+        default:
+          throw new IOException("Unknown token " + tag);
+      }
+    }
+    generator.close();
+    return json.toString();
+  }
+
+  private String symbol(int number) throws IOException {
+    if (number >= symbols.length) {
+      throw new IOException("Unknown symbol " + number);
+    }
+    return symbols[number];
+  }
+
+  private static String readText(ByteBuffer buffer) {
+    byte[] text = new byte[readVarint(buffer)];
+    buffer.get(text);
+    return new String(text, StandardCharsets.UTF_8);
+  }
+
+  private static int readVarint(ByteBuffer buffer) {
+    long value = readVarLong(buffer);
+    if (value > Integer.MAX_VALUE) {
+      throw new IndexOutOfBoundsException("A length of " + value + " bytes");
+    }
+    return (int) value;
+  }
+
+  private static long readVarLong(ByteBuffer buffer) {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      byte b = buffer.get();
+      value |= (long) (b & 0x7F) << shift;
+      if (b >= 0) {
+        return value;
+      }
+    }
+    throw new IndexOutOfBoundsException("A varint longer than 64 bits");
+  }
+
+  /**
+   * Write a snapshot to a temporary file next to <code>file</code> and move it over it, as
+   * {@link SCIMConnectorUtil} does for the JSON files.
+   */
+  private static <T> void write(Collection<T> resources, Path file, Format<T> format)
+    throws IOException, SCIMSerializationException {
+    long start = System.nanoTime();
+    Path target = file.toAbsolutePath();
+    Path temp = target.resolveSibling(target.getFileName() + "." + UUID.randomUUID() + ".tmp");
+    int count = resources.size();
+    byte[][] ids = new byte[count][];
+    long[] offsets = new long[count];
+    Encoder encoder = new Encoder();
+    boolean moved = false;
+    try {
+      try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+        SCIMConnectorUtil.copyPermissions(target, temp);
+        OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), WRITE_BUFFER_SIZE);
+        out.write(new byte[HEADER_SIZE]);
+
+        long offset = HEADER_SIZE;
+        int written = 0;
+        for (T resource : resources) {
+          if (written == count) {
+            throw new IOException("The " + format.resourceType + "s changed while the snapshot " + file
+              + " was written");
+          }
+          String id = format.id.apply(resource);
+          String json;
+          try {
+            json = format.marshaller.marshal(resource);
+          } catch (SCIMSerializationException e) {
+            LOGGER.error("Cannot serialize [" + resource + "]", e);
+            throw e;
+          }
+          ids[written] = id.getBytes(StandardCharsets.UTF_8);
+          offsets[written] = offset;
+          offset += encoder.writeRecord(ids[written], json, out);
+          written++;
+        }
+        if (written != count) {
+          throw new IOException("The " + format.resourceType + "s changed while the snapshot " + file
+            + " was written");
+        }
+        long indexOffset = offset;
+
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+          order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Arrays.compareUnsigned(ids[a], ids[b]));
+        ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+        for (int i = 0; i < count; i++) {
+          if (i > 0 && Arrays.equals(ids[order[i]], ids[order[i - 1]])) {
+            throw new IOException("The " + format.resourceType + " id ["
+              + new String(ids[order[i]], StandardCharsets.UTF_8) + "] appears twice");
+          }
+          entry.clear();
+          out.write(entry.putLong(offsets[order[i]]).array());
+        }
+        long symbolsOffset = indexOffset + (long) count * INDEX_ENTRY_SIZE;
+        encoder.writeSymbols(out);
+        out.flush();
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put(MAGIC).putInt(VERSION).putInt(format.kind).putInt(count).putInt(encoder.symbols.size())
+          .putLong(indexOffset).putLong(symbolsOffset);
+        header.flip();
+        while (header.hasRemaining()) {
+          channel.write(header, header.position());
+        }
+        channel.force(false);
+      }
+      SCIMConnectorUtil.moveAtomically(temp, target);
+      moved = true;
+    } catch (IOException e) {
+      LOGGER.error("Cannot write the snapshot [" + file + "]", e);
+      throw e;
+    } finally {
+      if (!moved) {
+        Files.deleteIfExists(temp);
+      }
+    }
+    LOGGER.info("Wrote " + count + " " + format.resourceType + "s to the snapshot " + file + " in "
+      + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+  }
+
+  /**
+   * Encodes records as tokens and collects the symbols they use, for one snapshot.
+   */
+  private static final class Encoder {
+    private final Map<String, Integer> symbols = new HashMap<>();
+    private final List<String> symbolList = new ArrayList<>();
+    private final Buffer record = new Buffer();
+    private final Buffer prefix = new Buffer();
+
+    /**
+     * @return the bytes written
+     */
+    long writeRecord(byte[] id, String json, OutputStream out) throws IOException {
+      record.reset();
+      record.writeVarint(id.length);
+      record.write(id, 0, id.length);
+      try (JsonParser parser = JSON_FACTORY.createJsonParser(json)) {
+        String recordId = new String(id, StandardCharsets.UTF_8);
+        int depth = 0;
+        boolean inSchemas = false;
+        JsonToken token;
+        while ((token = parser.nextToken()) != null) {
+          switch (token) {
+            case START_OBJECT:
+              depth++;
+              record.write(START_OBJECT);
+              break;
+            case END_OBJECT:
+              depth--;
+              record.write(END_OBJECT);
+              break;
+            case START_ARRAY:
+              inSchemas = depth == 1 && "schemas".equals(parser.getCurrentName());
+              record.write(START_ARRAY);
+              break;
+            case END_ARRAY:
+              inSchemas = false;
+              record.write(END_ARRAY);
+              break;
+            case FIELD_NAME:
+              writeSymbolOrText(parser.getCurrentName(), FIELD_SYMBOL, FIELD_TEXT);
+              break;
+            case VALUE_STRING:
+              String text = parser.getText();
+              if (depth == 1 && "id".equals(parser.getCurrentName()) && text.equals(recordId)) {
+                record.write(RECORD_ID);
+              } else if (inSchemas) {
+                writeSymbolOrText(text, STRING_SYMBOL, STRING_TEXT);
+              } else {
+                record.write(STRING_TEXT);
+                record.writeText(text);
+              }
+              break;
+            case VALUE_TRUE:
+              record.write(TRUE);
+              break;
+            case VALUE_FALSE:
+              record.write(FALSE);
+              break;
+            case VALUE_NULL:
+              record.write(NULL);
+              break;
+            case VALUE_NUMBER_INT:
+              if (parser.getNumberType() != JsonParser.NumberType.BIG_INTEGER) {
+                long value = parser.getLongValue();
+                record.write(WHOLE_NUMBER);
+                record.writeVarint((value << 1) ^ (value >> 63));
+                break;
+              }
+              record.write(NUMBER_TEXT);
+              record.writeText(parser.getText());
+              break;
+            case VALUE_NUMBER_FLOAT:
+              record.write(NUMBER_TEXT);
+              record.writeText(parser.getText());
+              break;
+            default:
+              throw new IOException("Unexpected " + token + " in the resource " + recordId);
+          }
+        }
+      }
+      if (record.size() > MAX_RECORD_SIZE) {
+        throw new IOException("The resource [" + new String(id, StandardCharsets.UTF_8) + "] takes "
+          + record.size() + " bytes, more than a snapshot record can hold");
+      }
+      prefix.reset();
+      prefix.writeVarint(record.size());
+      prefix.writeTo(out);
+      record.writeTo(out);
+      return prefix.size() + record.size();
+    }
+
+    void writeSymbols(OutputStream out) throws IOException {
+      Buffer symbol = new Buffer();
+      for (String text : symbolList) {
+        symbol.reset();
+        symbol.writeText(text);
+        symbol.writeTo(out);
+      }
+    }
+
+    private void writeSymbolOrText(String text, byte symbolTag, byte textTag) {
+      Integer number = symbols.get(text);
+      if (number == null && symbolList.size() < MAX_SYMBOLS) {
+        number = symbolList.size();
+        symbols.put(text, number);
+        symbolList.add(text);
+      }
+      if (number == null) {
+        record.write(textTag);
+        record.writeText(text);
+      } else {
+        record.write(symbolTag);
+        record.writeVarint(number);
+      }
+    }
+  }
+
+  /**
+   * A growable byte buffer with varint and text writers, reused across records.
+   */
+  private static final class Buffer extends java.io.ByteArrayOutputStream {
+    void writeVarint(long value) {
+      while ((value & ~0x7FL) != 0) {
+        write((int) ((value & 0x7F) | 0x80));
+        value >>>= 7;
+      }
+      write((int) value);
+    }
+
+    void writeText(String text) {
+      byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+      writeVarint(bytes.length);
+      write(bytes, 0, bytes.length);
+    }
+  }
+
+  private interface Marshaller<T> {
+    String marshal(T resource) throws SCIMSerializationException;
+  }
+
+  private interface Unmarshaller<T> {
+    T unmarshal(String json) throws SCIMSerializationException;
+  }
+
+  /**
+   * How one kind of resource is identified and converted.
+   */
+  private static final class Format<T> {
+    private static final Format<SCIMUser> USERS = new Format<>(1, "user", SCIMUser::getId,
+      SCIMUtil::marshalSCIMUser, SCIMUtil::unMarshalSCIMUser);
+    private static final Format<SCIMGroup> GROUPS = new Format<>(2, "group", SCIMGroup::getId,
+      SCIMUtil::marshalSCIMGroup, SCIMUtil::unMarshalSCIMGroup);
+
+    private final int kind;
+    private final String resourceType;
+    private final Function<T, String> id;
+    private final Marshaller<T> marshaller;
+    private final Unmarshaller<T> unmarshaller;
+
+    private Format(int kind, String resourceType, Function<T, String> id, Marshaller<T> marshaller,
+                   Unmarshaller<T> unmarshaller) {
+      this.kind = kind;
+      this.resourceType = resourceType;
+      this.id = id;
+      this.marshaller = marshaller;
+      this.unmarshaller = unmarshaller;
+    }
+  }
+}
@@ -0,0 +1,263 @@
+package com.okta.scim.server.example;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.keycloak.representations.idm.UserRepresentation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.ClientErrorException;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response.Status;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Creates users in windows, each sent to Keycloak as one partial import of the realm instead of
+ * one create request per user.
+ * <p>
+ * Concurrent {@link #create(UserRepresentation)} calls join the open window. It is sent when it
+ * holds <code>windowSize</code> users or <code>windowMillis</code> after its first user, whichever
+ * comes first, and every caller gets the id of its own user back from the import results. A
+ * username that is already taken fails that caller's future with a 409, as a single create would.
+ * <p>
+ * Keycloak imports a window in one transaction, so one user it rejects fails the whole import.
+ * When Keycloak refuses the import with a 400, 403 or 404, the window is created again one user at
+ * a time, and each caller gets the outcome of its own create. Any other failure, such as a timeout,
+ * a 429 or 5xx, or an open circuit, fails every caller of the window with it: the import may have
+ * been committed, and Keycloak should not get one more write per user while it is struggling.
+ * When a window holds the same username more than once, the repeats are left out of the import,
+ * which would fail on them, and created one at a time once it completed.
+ */
+final class BulkUserImporter {
+  private static final Logger LOGGER = LoggerFactory.getLogger(BulkUserImporter.class);
+
+  private final KeycloakGateway gateway;
+  private final int windowSize;
+  private final long windowMillis;
+  private final ScheduledExecutorService timer;
+
+  private final AtomicLong imports = new AtomicLong();
+  private final AtomicLong importedUsers = new AtomicLong();
+  private final AtomicLong fallbackUsers = new AtomicLong();
+
+  // Guarded by this
+  private List<Pending> window = new ArrayList<>();
+  private ScheduledFuture<?> windowTimeout;
+
+  BulkUserImporter(KeycloakGateway gateway, int windowSize, long windowMillis) {
+    this.gateway = gateway;
+    this.windowSize = Math.max(1, windowSize);
+    this.windowMillis = Math.max(0, windowMillis);
+    this.timer = Executors.newSingleThreadScheduledExecutor(
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("scim-bulk-import-%d").build());
+  }
+
+  /**
+   * Add the user to the open window.
+   *
+   * @return the Keycloak id of the created user; a taken username fails the future with a
+   * <code>WebApplicationException</code> carrying a 409
+   */
+  CompletableFuture<String> create(UserRepresentation user) {
+    Pending pending = new Pending(user);
+    List<Pending> full = null;
+    synchronized (this) {
+      window.add(pending);
+      if (window.size() >= windowSize) {
+        full = takeWindow();
+      } else if (window.size() == 1) {
+        windowTimeout = timer.schedule(this::sendOnTimeout, windowMillis, TimeUnit.MILLISECONDS);
+      }
+    }
+    if (full != null) {
+      send(full);
+    }
+    return pending.result;
+  }
+
+  /**
+   * Send the open window now and stop the timer. Windows already sent still complete.
+   */
+  void shutdown() {
+    List<Pending> last;
+    synchronized (this) {
+      last = takeWindow();
+    }
+    send(last);
+    timer.shutdownNow();
+  }
+
+  /**
+   * @return partial imports sent
+   */
+  long getImports() {
+    return imports.get();
+  }
+
+  /**
+   * @return users created by partial imports
+   */
+  long getImportedUsers() {
+    return importedUsers.get();
+  }
+
+  /**
+   * @return users created one at a time after their window could not be imported
+   */
+  long getFallbackUsers() {
+    return fallbackUsers.get();
+  }
+
+  private void sendOnTimeout() {
+    List<Pending> due;
+    synchronized (this) {
+      due = takeWindow();
+    }
+    send(due);
+  }
+
+  // Must hold the monitor of this importer
+  private List<Pending> takeWindow() {
+    List<Pending> taken = window;
+    window = new ArrayList<>();
+    if (windowTimeout != null) {
+      windowTimeout.cancel(false);
+      windowTimeout = null;
+    }
+    return taken;
+  }
+
+  private void send(List<Pending> users) {
+    if (users.isEmpty()) {
+      return;
+    }
+    List<Pending> unique = new ArrayList<>(users.size());
+    List<Pending> repeats = new ArrayList<>();
+    Set<String> userNames = new HashSet<>();
+    for (Pending pending : users) {
+      (userNames.add(userName(pending.user)) ? unique : repeats).add(pending);
+    }
+    CompletableFuture<Void> imported = importWindow(unique);
+    if (!repeats.isEmpty()) {
+      imported.whenComplete((ignored, failure) -> {
+        if (failure != null) {
+          fail(repeats, failure);
+        } else {
+          createOneByOne(repeats);
+        }
+      });
+    }
+  }
+
+  /**
+   * @return completes once every user of the window has its outcome, or is being created on its own;
+   * fails with the failure of the import when it was not retried one user at a time
+   */
+  private CompletableFuture<Void> importWindow(List<Pending> users) {
+    List<UserRepresentation> representations = new ArrayList<>(users.size());
+    for (Pending pending : users) {
+      representations.add(pending.user);
+    }
+    imports.incrementAndGet();
+    CompletableFuture<Map<String, String>> imported;
+    try {
+      imported = gateway.importUsers(representations);
+    } catch (RuntimeException e) {
+      fail(users, e);
+      CompletableFuture<Void> failed = new CompletableFuture<>();
+      failed.completeExceptionally(e);
+      return failed;
+    }
+    return imported.thenApply(ids -> {
+      int created = 0;
+      for (Pending pending : users) {
+        String userName = userName(pending.user);
+        if (!ids.containsKey(userName)) {
+          pending.result.completeExceptionally(new IllegalStateException(
+            "The partial import reported no result for user " + pending.user.getUsername()));
+        } else if (ids.get(userName) == null) {
+          pending.result.completeExceptionally(new ClientErrorException("User exists with same username",
+            Status.CONFLICT));
+        } else {
+          pending.result.complete(ids.get(userName));
+          created++;
+        }
+      }
+      importedUsers.addAndGet(created);
+      LOGGER.debug("partial import created " + created + " of " + users.size() + " users");
+      return (Void) null;
+    }).exceptionally(failure -> {
+      RuntimeException cause = KeycloakGateway.unwrap(failure);
+      if (!isRefused(cause)) {
+        LOGGER.warn("Partial import of " + users.size() + " users failed: " + cause.getMessage());
+        fail(users, cause);
+        throw cause;
+      }
+      LOGGER.warn("Partial import of " + users.size() + " users was refused, creating them one at a time: "
+        + cause.getMessage());
+      createOneByOne(users);
+      return null;
+    });
+  }
+
+  /**
+   * @return whether Keycloak refused the import itself, so that single creates may still succeed
+   */
+  private static boolean isRefused(RuntimeException failure) {
+    if (!(failure instanceof WebApplicationException)) {
+      return false;
+    }
+    int status = ((WebApplicationException) failure).getResponse().getStatus();
+    return status == 400 || status == 403 || status == 404;
+  }
+
+  private static void fail(List<Pending> users, Throwable failure) {
+    RuntimeException cause = KeycloakGateway.unwrap(failure);
+    for (Pending pending : users) {
+      pending.result.completeExceptionally(cause);
+    }
+  }
+
+  private void createOneByOne(List<Pending> users) {
+    fallbackUsers.addAndGet(users.size());
+    for (Pending pending : users) {
+      CompletableFuture<String> created;
+      try {
+        created = gateway.createUser(pending.user);
+      } catch (RuntimeException e) {
+        pending.result.completeExceptionally(e);
+        continue;
+      }
+      created.whenComplete((id, failure) -> {
+        if (failure != null) {
+          pending.result.completeExceptionally(KeycloakGateway.unwrap(failure));
+        } else {
+          pending.result.complete(id);
+        }
+      });
+    }
+  }
+
+  private static String userName(UserRepresentation user) {
+    return user.getUsername() != null ? user.getUsername().toLowerCase(Locale.ROOT) : "";
+  }
+
+  private static final class Pending {
+    private final UserRepresentation user;
+    private final CompletableFuture<String> result = new CompletableFuture<>();
+
+    Pending(UserRepresentation user) {
+      this.user = user;
+    }
+  }
+}
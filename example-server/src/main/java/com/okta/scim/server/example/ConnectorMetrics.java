@@ -0,0 +1,248 @@
+package com.okta.scim.server.example;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Latency and Keycloak round-trip metrics for the connector.
+ * <p>
+ * Every SCIMService method runs inside a {@link Request} opened with {@link #startRequest(String)}.
+ * The request records the operation latency when it is closed, and counts the Keycloak calls the
+ * {@link KeycloakGateway} makes on its behalf. The gateway captures the request when a call is
+ * submitted, on the caller's thread, so calls that complete on the gateway's executor are still
+ * counted for the request that made them.
+ * <p>
+ * The metrics are read over JMX (see {@link ConnectorMetricsMXBean}) or as Prometheus text from
+ * the <code>/metrics</code> endpoint.
+ */
+final class ConnectorMetrics implements ConnectorMetricsMXBean {
+  private static final Logger LOGGER = LoggerFactory.getLogger(ConnectorMetrics.class);
+
+  static final String OBJECT_NAME = "com.okta.scim.server.example:type=ConnectorMetrics";
+
+  // Latency buckets from 0.25ms doubling to about 65s
+  private static final long FIRST_LATENCY_BOUND_NANOS = TimeUnit.MICROSECONDS.toNanos(250);
+  private static final int LATENCY_BUCKETS = 19;
+  // Round-trip buckets from 1 doubling to 16384 calls
+  private static final int ROUND_TRIP_BUCKETS = 15;
+  private static final double NANOS_PER_MILLI = 1e6;
+  private static final double NANOS_PER_SECOND = 1e9;
+
+  private static final ThreadLocal<Request> CURRENT_REQUEST = new ThreadLocal<>();
+
+  private final ConcurrentMap<String, Histogram> operationLatency = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, Histogram> operationRoundTrips = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, Histogram> keycloakLatency = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, LongAdder> keycloakErrors = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+  /**
+   * Start timing a SCIM operation on the current thread. Close the returned request when the
+   * operation ends, typically with try-with-resources.
+   */
+  Request startRequest(String operation) {
+    Request request = new Request(operation, CURRENT_REQUEST.get());
+    CURRENT_REQUEST.set(request);
+    return request;
+  }
+
+  /**
+   * @return the SCIM request running on the current thread, or null outside of one
+   */
+  Request currentRequest() {
+    return CURRENT_REQUEST.get();
+  }
+
+  /**
+   * Record one Keycloak call.
+   *
+   * @param endpoint the endpoint name, for example <code>users.search</code>
+   * @param nanos    how long the call took
+   * @param failed   whether the call failed
+   */
+  void recordKeycloakCall(String endpoint, long nanos, boolean failed) {
+    histogram(keycloakLatency, endpoint, FIRST_LATENCY_BOUND_NANOS, LATENCY_BUCKETS).record(nanos);
+    if (failed) {
+      keycloakErrors.computeIfAbsent(endpoint, name -> new LongAdder()).increment();
+    }
+  }
+
+  /**
+   * Publish a value that is read when the metrics are, such as a connection pool count.
+   */
+  void registerGauge(String name, LongSupplier value) {
+    gauges.put(name, value);
+  }
+
+  /**
+   * Register the metrics with the platform MBean server, replacing an earlier registration.
+   */
+  void registerMBean() {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(OBJECT_NAME);
+      if (server.isRegistered(name)) {
+        server.unregisterMBean(name);
+      }
+      server.registerMBean(this, name);
+    } catch (JMException e) {
+      LOGGER.warn("Could not register the connector metrics with JMX", e);
+    }
+  }
+
+  void unregisterMBean() {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(OBJECT_NAME);
+      if (server.isRegistered(name)) {
+        server.unregisterMBean(name);
+      }
+    } catch (JMException e) {
+      LOGGER.warn("Could not unregister the connector metrics from JMX", e);
+    }
+  }
+
+  @Override
+  public Map<String, HistogramSnapshot> getOperationLatencyMillis() {
+    return snapshot(operationLatency, NANOS_PER_MILLI);
+  }
+
+  @Override
+  public Map<String, HistogramSnapshot> getOperationKeycloakCalls() {
+    return snapshot(operationRoundTrips, 1);
+  }
+
+  @Override
+  public Map<String, HistogramSnapshot> getKeycloakCallLatencyMillis() {
+    return snapshot(keycloakLatency, NANOS_PER_MILLI);
+  }
+
+  @Override
+  public Map<String, Long> getKeycloakCallErrors() {
+    Map<String, Long> errors = new TreeMap<>();
+    for (Map.Entry<String, LongAdder> entry : keycloakErrors.entrySet()) {
+      errors.put(entry.getKey(), entry.getValue().sum());
+    }
+    return errors;
+  }
+
+  @Override
+  public Map<String, Long> getGauges() {
+    Map<String, Long> values = new TreeMap<>();
+    for (Map.Entry<String, LongSupplier> entry : gauges.entrySet()) {
+      values.put(entry.getKey(), entry.getValue().getAsLong());
+    }
+    return values;
+  }
+
+  @Override
+  public String getText() {
+    StringBuilder text = new StringBuilder();
+    appendHistograms(text, "scim_operation_duration_seconds", "Latency of SCIM operations", "operation",
+      operationLatency, NANOS_PER_SECOND);
+    appendHistograms(text, "scim_operation_keycloak_calls", "Keycloak calls made per SCIM operation", "operation",
+      operationRoundTrips, 1);
+    appendHistograms(text, "keycloak_request_duration_seconds", "Latency of Keycloak admin calls", "endpoint",
+      keycloakLatency, NANOS_PER_SECOND);
+
+    text.append("# HELP keycloak_request_errors_total Failed Keycloak admin calls\n");
+    text.append("# TYPE keycloak_request_errors_total counter\n");
+    for (Map.Entry<String, Long> entry : getKeycloakCallErrors().entrySet()) {
+      text.append("keycloak_request_errors_total{endpoint=\"").append(entry.getKey()).append("\"} ")
+        .append(entry.getValue()).append('\n');
+    }
+
+    for (Map.Entry<String, Long> entry : getGauges().entrySet()) {
+      text.append("# TYPE ").append(entry.getKey()).append(" gauge\n");
+      text.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+    }
+    return text.toString();
+  }
+
+  private static void appendHistograms(StringBuilder text, String metric, String help, String label,
+                                       Map<String, Histogram> histograms, double unit) {
+    text.append("# HELP ").append(metric).append(' ').append(help).append('\n');
+    text.append("# TYPE ").append(metric).append(" histogram\n");
+    for (Map.Entry<String, Histogram> entry : new TreeMap<>(histograms).entrySet()) {
+      String labels = label + "=\"" + entry.getKey() + "\"";
+      Histogram histogram = entry.getValue();
+      long[] bounds = histogram.getUpperBounds();
+      long[] cumulative = histogram.getCumulativeCounts();
+      for (int i = 0; i < bounds.length; i++) {
+        text.append(metric).append("_bucket{").append(labels).append(",le=\"").append(bounds[i] / unit)
+          .append("\"} ").append(cumulative[i]).append('\n');
+      }
+      text.append(metric).append("_bucket{").append(labels).append(",le=\"+Inf\"} ")
+        .append(cumulative[bounds.length]).append('\n');
+      text.append(metric).append("_sum{").append(labels).append("} ").append(histogram.getSum() / unit).append('\n');
+      text.append(metric).append("_count{").append(labels).append("} ").append(histogram.getCount()).append('\n');
+    }
+  }
+
+  private static Map<String, HistogramSnapshot> snapshot(Map<String, Histogram> histograms, double unit) {
+    Map<String, HistogramSnapshot> snapshots = new TreeMap<>();
+    for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+      snapshots.put(entry.getKey(), new HistogramSnapshot(entry.getValue(), unit));
+    }
+    return snapshots;
+  }
+
+  private static Histogram histogram(ConcurrentMap<String, Histogram> histograms, String name, long firstBound,
+                                     int buckets) {
+    Histogram histogram = histograms.get(name);
+    return histogram != null
+      ? histogram
+      : histograms.computeIfAbsent(name, key -> Histogram.exponential(firstBound, buckets));
+  }
+
+  /**
+   * One SCIM operation in progress. The call counter is atomic because a request may be handed to
+   * other threads, such as the gateway's executor.
+   */
+  final class Request implements AutoCloseable {
+    private final String operation;
+    private final Request outer;
+    private final long startNanos = System.nanoTime();
+    private final AtomicInteger keycloakCalls = new AtomicInteger();
+
+    private Request(String operation, Request outer) {
+      this.operation = operation;
+      this.outer = outer;
+    }
+
+    void countKeycloakCall() {
+      keycloakCalls.incrementAndGet();
+    }
+
+    int getKeycloakCalls() {
+      return keycloakCalls.get();
+    }
+
+    @Override
+    public void close() {
+      long nanos = System.nanoTime() - startNanos;
+      histogram(operationLatency, operation, FIRST_LATENCY_BOUND_NANOS, LATENCY_BUCKETS).record(nanos);
+      histogram(operationRoundTrips, operation, 1, ROUND_TRIP_BUCKETS).record(keycloakCalls.get());
+      if (outer != null) {
+        CURRENT_REQUEST.set(outer);
+      } else {
+        CURRENT_REQUEST.remove();
+      }
+      LOGGER.debug(operation + " took " + TimeUnit.NANOSECONDS.toMillis(nanos) + "ms and " + keycloakCalls.get()
+        + " Keycloak call(s)");
+    }
+  }
+}
@@ -0,0 +1,40 @@
+package com.okta.scim.server.example;
+
+import java.util.Map;
+
+/**
+ * JMX view of the {@link ConnectorMetrics}, registered as
+ * <code>com.okta.scim.server.example:type=ConnectorMetrics</code>.
+ */
+public interface ConnectorMetricsMXBean {
+
+  /**
+   * @return latency of each SCIM operation in milliseconds, keyed by SCIMService method name
+   */
+  Map<String, HistogramSnapshot> getOperationLatencyMillis();
+
+  /**
+   * @return Keycloak calls made per SCIM request, keyed by SCIMService method name
+   */
+  Map<String, HistogramSnapshot> getOperationKeycloakCalls();
+
+  /**
+   * @return latency of each Keycloak endpoint in milliseconds, keyed by endpoint name
+   */
+  Map<String, HistogramSnapshot> getKeycloakCallLatencyMillis();
+
+  /**
+   * @return failed calls per Keycloak endpoint
+   */
+  Map<String, Long> getKeycloakCallErrors();
+
+  /**
+   * @return the current value of every gauge, such as the connection pool counts
+   */
+  Map<String, Long> getGauges();
+
+  /**
+   * @return every metric in the Prometheus text exposition format
+   */
+  String getText();
+}
@@ -0,0 +1,174 @@
+package com.okta.scim.server.example;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.okta.scim.util.model.Membership;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded, read-through cache of group members keyed by Keycloak group id, so getGroups can return
+ * the members of a page of groups without paging through every group's members on every call.
+ * <p>
+ * {@link #getAll(Collection)} reads the members of every group that is not cached, at most
+ * <code>parallelism</code> groups at a time, each group page by page. Entries expire a fixed time
+ * after they were written and the least recently used are evicted once <code>maxSize</code> groups
+ * are held.
+ * <p>
+ * The connector invalidates a group when it changes its members or deletes it. As a
+ * {@link KeycloakChangeFeed.Listener}, a membership change made outside the connector drops the
+ * group; a deleted user or a reconcile drops every group, as the groups a user was in are not known.
+ * A read that started before an invalidation does not store what it read, so members read before a
+ * change are never cached after it. A renamed user keeps its old display name in cached groups
+ * until they expire.
+ */
+final class GroupMemberCache implements KeycloakChangeFeed.Listener {
+  private static final Logger LOGGER = LoggerFactory.getLogger(GroupMemberCache.class);
+
+  private final GroupMemberPager pager;
+  private final int parallelism;
+  private final Cache<String, List<Membership>> members;
+
+  // Guarded by this; bumped by every invalidation
+  private long generation;
+
+  GroupMemberCache(GroupMemberPager pager, int parallelism, long maxSize, long ttlSeconds) {
+    this.pager = pager;
+    this.parallelism = Math.max(1, parallelism);
+    this.members = CacheBuilder.newBuilder()
+      .maximumSize(Math.max(0, maxSize))
+      .expireAfterWrite(Math.max(0, ttlSeconds), TimeUnit.SECONDS)
+      .recordStats()
+      .build();
+  }
+
+  /**
+   * Return the members of every group, reading the groups that are not cached from Keycloak.
+   * A group that no longer exists has no members.
+   *
+   * @param groupIds the Keycloak ids of the groups
+   * @return the members of each group, in the order of <code>groupIds</code>; the lists must not be
+   * modified
+   */
+  Map<String, List<Membership>> getAll(Collection<String> groupIds) {
+    Map<String, List<Membership>> result = new LinkedHashMap<>();
+    List<String> misses = new ArrayList<>();
+    for (String groupId : groupIds) {
+      List<Membership> cached = members.getIfPresent(groupId);
+      result.put(groupId, cached);
+      if (cached == null) {
+        misses.add(groupId);
+      }
+    }
+    if (misses.isEmpty()) {
+      return result;
+    }
+
+    long readGeneration = generation();
+    Semaphore permits = new Semaphore(parallelism);
+    Map<String, CompletableFuture<List<Membership>>> reads = new LinkedHashMap<>();
+    for (String groupId : misses) {
+      permits.acquireUninterruptibly();
+      reads.put(groupId, read(groupId).whenComplete((ignored, failure) -> permits.release()));
+    }
+    for (Map.Entry<String, CompletableFuture<List<Membership>>> read : reads.entrySet()) {
+      String groupId = read.getKey();
+      try {
+        List<Membership> groupMembers = KeycloakGateway.await(read.getValue());
+        put(groupId, groupMembers, readGeneration);
+        result.put(groupId, groupMembers);
+      } catch (javax.ws.rs.NotFoundException e) {
+        LOGGER.debug("  group " + groupId + " was deleted while its members were read");
+        result.put(groupId, Collections.<Membership>emptyList());
+      }
+    }
+    LOGGER.debug("  read the members of " + misses.size() + " of " + groupIds.size() + " groups from Keycloak");
+    return result;
+  }
+
+  /**
+   * @return the current generation, to pass to {@link #put(String, List, long)} for members read
+   * after this call
+   */
+  synchronized long generation() {
+    return generation;
+  }
+
+  /**
+   * Cache the members of a group, unless the cache was invalidated since <code>readGeneration</code>.
+   *
+   * @param groupMembers an unmodifiable list, which every later reader of the group shares
+   */
+  synchronized void put(String groupId, List<Membership> groupMembers, long readGeneration) {
+    if (readGeneration == generation) {
+      members.put(groupId, groupMembers);
+    }
+  }
+
+  synchronized void invalidate(String groupId) {
+    generation++;
+    members.invalidate(groupId);
+  }
+
+  synchronized void invalidateAll() {
+    generation++;
+    members.invalidateAll();
+  }
+
+  @Override
+  public void userChanged(String userId, boolean deleted) {
+    if (deleted) {
+      invalidateAll();
+    }
+  }
+
+  @Override
+  public void groupChanged(String groupId, String name, boolean deleted) {
+    if (deleted) {
+      invalidate(groupId);
+    }
+  }
+
+  @Override
+  public void membershipChanged(String userId, String groupId, boolean joined) {
+    invalidate(groupId);
+  }
+
+  @Override
+  public void reconcile() {
+    invalidateAll();
+  }
+
+  long size() {
+    return members.size();
+  }
+
+  CacheStats stats() {
+    return members.stats();
+  }
+
+  private CompletableFuture<List<Membership>> read(String groupId) {
+    // The pages of a group are read one after the other, so only one thread adds to the list at a time
+    List<Membership> groupMembers = new ArrayList<>();
+    try {
+      return pager.forEachMemberAsync(groupId,
+        user -> groupMembers.add(new Membership(user.getId(), user.getUsername())))
+        .thenApply(pages -> Collections.unmodifiableList(groupMembers));
+    } catch (RuntimeException e) {
+      CompletableFuture<List<Membership>> failed = new CompletableFuture<>();
+      failed.completeExceptionally(e);
+      return failed;
+    }
+  }
+}
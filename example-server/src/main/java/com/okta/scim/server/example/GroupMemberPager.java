@@ -0,0 +1,79 @@
+package com.okta.scim.server.example;
+
+import org.keycloak.representations.idm.UserRepresentation;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * Streams the members of a Keycloak group page by page.
+ * <p>
+ * <code>GroupResource.members()</code> without bounds is silently capped by Keycloak's default
+ * page size, so large groups come back truncated. The pager keeps requesting pages of
+ * <code>pageSize</code> brief representations until a short page marks the end, and only one page is
+ * held at a time. {@link #forEachMemberAsync(String, Consumer)} does the same without blocking, so
+ * the members of several groups can be read at once.
+ */
+final class GroupMemberPager {
+  private final KeycloakGateway gateway;
+  private final int pageSize;
+
+  GroupMemberPager(KeycloakGateway gateway, int pageSize) {
+    this.gateway = gateway;
+    this.pageSize = Math.max(1, pageSize);
+  }
+
+  int getPageSize() {
+    return pageSize;
+  }
+
+  /**
+   * Hand every member of the group to <code>consumer</code>.
+   *
+   * @param groupId the Keycloak id of the group
+   * @param consumer receives each member
+   * @return the number of member pages requested from Keycloak
+   * @throws javax.ws.rs.NotFoundException if the group does not exist
+   */
+  int forEachMember(String groupId, Consumer<UserRepresentation> consumer) {
+    int first = 0;
+    int pages = 0;
+    while (true) {
+      List<UserRepresentation> page = KeycloakGateway.await(gateway.groupMembers(groupId, first, pageSize));
+      pages++;
+      for (UserRepresentation member : page) {
+        consumer.accept(member);
+      }
+      if (page.size() < pageSize) {
+        return pages;
+      }
+      first += pageSize;
+    }
+  }
+
+  /**
+   * Hand every member of the group to <code>consumer</code> without blocking the caller. Each page
+   * is requested once the previous one has been handed over, on the thread that completed it.
+   *
+   * @param groupId the Keycloak id of the group
+   * @param consumer receives each member
+   * @return completes with the number of member pages requested from Keycloak, or fails with a
+   * <code>javax.ws.rs.NotFoundException</code> if the group does not exist
+   */
+  CompletableFuture<Integer> forEachMemberAsync(String groupId, Consumer<UserRepresentation> consumer) {
+    return nextPage(groupId, consumer, 0, 1);
+  }
+
+  private CompletableFuture<Integer> nextPage(String groupId, Consumer<UserRepresentation> consumer, int first,
+                                              int pages) {
+    return gateway.groupMembers(groupId, first, pageSize).thenCompose(page -> {
+      for (UserRepresentation member : page) {
+        consumer.accept(member);
+      }
+      return page.size() < pageSize
+        ? CompletableFuture.completedFuture(pages)
+        : nextPage(groupId, consumer, first + pageSize, pages + 1);
+    });
+  }
+}
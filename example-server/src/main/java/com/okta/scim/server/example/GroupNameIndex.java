@@ -0,0 +1,194 @@
+package com.okta.scim.server.example;
+
+import org.keycloak.representations.idm.GroupRepresentation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An in-memory name to id index of every Keycloak group in the realm, including subgroups.
+ * <p>
+ * The index is loaded from one group listing the first time it is used. After that it is kept
+ * current by {@link #put(String, String)} and {@link #remove(String)}, which callers invoke after
+ * they have created or deleted a group, and by a periodic {@link #reconcile()} that catches
+ * changes made outside this connector. A lookup is a map read and makes no HTTP request.
+ * <p>
+ * As a {@link KeycloakChangeFeed.Listener}, groups created, renamed or deleted outside this
+ * connector are applied as the feed reports them, without waiting for the next reconcile.
+ * <p>
+ * If two groups share a name, the one closest to the top of the hierarchy wins, so top-level
+ * groups take precedence over subgroups. Every group with the name is kept, so when the winner is
+ * deleted or renamed the next one is found without waiting for a reconcile.
+ */
+final class GroupNameIndex implements KeycloakChangeFeed.Listener {
+  private static final Logger LOGGER = LoggerFactory.getLogger(GroupNameIndex.class);
+
+  private final KeycloakGateway gateway;
+  // Serializes reconciles so the first load is never raced by a scheduled one
+  private final Object reconcileLock = new Object();
+
+  // Both maps are only replaced or modified while holding the monitor of this index. The ids of a
+  // name are in order of precedence.
+  private Map<String, List<String>> idsByName = new HashMap<>();
+  private Map<String, String> namesById = new HashMap<>();
+  private boolean loaded;
+
+  // Changes made while a reconcile is listing groups, replayed on top of the new snapshot
+  private List<String[]> changesDuringReconcile;
+
+  GroupNameIndex(KeycloakGateway gateway) {
+    this.gateway = gateway;
+  }
+
+  /**
+   * @param name the group name
+   * @return the id of the group with that name, or null if there is none
+   */
+  String findId(String name) {
+    ensureLoaded();
+    synchronized (this) {
+      List<String> ids = idsByName.get(name);
+      return ids != null ? ids.get(0) : null;
+    }
+  }
+
+  synchronized void put(String id, String name) {
+    if (changesDuringReconcile != null) {
+      changesDuringReconcile.add(new String[]{id, name});
+    }
+    apply(id, name);
+  }
+
+  synchronized void remove(String id) {
+    if (changesDuringReconcile != null) {
+      changesDuringReconcile.add(new String[]{id, null});
+    }
+    apply(id, null);
+  }
+
+  synchronized int size() {
+    return namesById.size();
+  }
+
+  /**
+   * Apply a group change reported by the change feed. When the event does not carry the name, the
+   * group is read from Keycloak.
+   */
+  @Override
+  public void groupChanged(String groupId, String name, boolean deleted) {
+    if (deleted) {
+      remove(groupId);
+      return;
+    }
+    if (name == null) {
+      try {
+        name = KeycloakGateway.await(gateway.getGroup(groupId)).getName();
+      } catch (javax.ws.rs.NotFoundException e) {
+        // Deleted since; the deletion is a later event
+        remove(groupId);
+        return;
+      }
+    }
+    put(groupId, name);
+  }
+
+  /**
+   * Rebuild the index from a full listing of the group hierarchy. The listing is done without
+   * holding the index lock so lookups keep being served from the previous snapshot.
+   */
+  @Override
+  public void reconcile() {
+    synchronized (reconcileLock) {
+      reload();
+    }
+  }
+
+  private void reload() {
+    synchronized (this) {
+      changesDuringReconcile = new ArrayList<>();
+    }
+
+    Map<String, List<String>> newIdsByName = new HashMap<>();
+    Map<String, String> newNamesById = new HashMap<>();
+    try {
+      Deque<GroupRepresentation> pending = new ArrayDeque<>(KeycloakGateway.await(gateway.listGroups()));
+      while (!pending.isEmpty()) {
+        GroupRepresentation group = pending.removeFirst();
+        newNamesById.put(group.getId(), group.getName());
+        newIdsByName.computeIfAbsent(group.getName(), ignored -> new ArrayList<>(1)).add(group.getId());
+        if (group.getSubGroups() != null) {
+          pending.addAll(group.getSubGroups());
+        }
+      }
+    } catch (RuntimeException e) {
+      synchronized (this) {
+        changesDuringReconcile = null;
+      }
+      throw e;
+    }
+
+    synchronized (this) {
+      List<String[]> changes = changesDuringReconcile;
+      changesDuringReconcile = null;
+      idsByName = newIdsByName;
+      namesById = newNamesById;
+      for (String[] change : changes) {
+        apply(change[0], change[1]);
+      }
+      loaded = true;
+      LOGGER.debug("group name index reconciled with " + namesById.size() + " groups");
+    }
+  }
+
+  /**
+   * {@link #reconcile()} for use from a scheduler, where an exception would cancel the task.
+   */
+  void reconcileQuietly() {
+    try {
+      reconcile();
+    } catch (RuntimeException e) {
+      LOGGER.warn("Cannot reconcile the group name index", e);
+    }
+  }
+
+  private void ensureLoaded() {
+    if (isLoaded()) {
+      return;
+    }
+    synchronized (reconcileLock) {
+      if (!isLoaded()) {
+        reload();
+      }
+    }
+  }
+
+  private synchronized boolean isLoaded() {
+    return loaded;
+  }
+
+  // Must be called while holding the monitor of this index; a null name removes the id
+  private void apply(String id, String name) {
+    String previousName = name != null ? namesById.put(id, name) : namesById.remove(id);
+    if (previousName != null && !previousName.equals(name)) {
+      List<String> ids = idsByName.get(previousName);
+      if (ids != null) {
+        ids.remove(id);
+        if (ids.isEmpty()) {
+          idsByName.remove(previousName);
+        }
+      }
+    }
+    if (name != null) {
+      List<String> ids = idsByName.computeIfAbsent(name, ignored -> new ArrayList<>(1));
+      if (!ids.contains(id)) {
+        ids.add(id);
+      }
+    }
+  }
+}
@@ -0,0 +1,105 @@
+package com.okta.scim.server.example;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram with fixed, exponentially growing bucket bounds.
+ * <p>
+ * Recording a value is a bucket search over a small array and a few <code>LongAdder</code>
+ * increments, so it is cheap enough for every request. Percentiles are read from the buckets and
+ * are therefore approximations: the reported value is the upper bound of the bucket the
+ * percentile falls in.
+ */
+final class Histogram {
+  private final long[] upperBounds;
+  // One counter per bound, plus one for the values above the last bound
+  private final LongAdder[] buckets;
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+  private Histogram(long[] upperBounds) {
+    this.upperBounds = upperBounds;
+    this.buckets = new LongAdder[upperBounds.length + 1];
+    for (int i = 0; i < buckets.length; i++) {
+      buckets[i] = new LongAdder();
+    }
+  }
+
+  /**
+   * @return a histogram whose bounds are <code>first</code>, <code>2 * first</code>, ... up to
+   * <code>first * 2^(bucketCount - 1)</code>
+   */
+  static Histogram exponential(long first, int bucketCount) {
+    long[] bounds = new long[bucketCount];
+    long bound = Math.max(1, first);
+    for (int i = 0; i < bucketCount; i++) {
+      bounds[i] = bound;
+      bound *= 2;
+    }
+    return new Histogram(bounds);
+  }
+
+  void record(long value) {
+    int bucket = 0;
+    while (bucket < upperBounds.length && value > upperBounds[bucket]) {
+      bucket++;
+    }
+    buckets[bucket].increment();
+    count.increment();
+    sum.add(value);
+    max.accumulate(value);
+  }
+
+  long getCount() {
+    return count.sum();
+  }
+
+  long getSum() {
+    return sum.sum();
+  }
+
+  long getMax() {
+    return max.get();
+  }
+
+  long[] getUpperBounds() {
+    return upperBounds.clone();
+  }
+
+  /**
+   * @return for each bound, the number of values less than or equal to it; the last element is
+   * the number of all values
+   */
+  long[] getCumulativeCounts() {
+    long[] cumulative = new long[buckets.length];
+    long total = 0;
+    for (int i = 0; i < buckets.length; i++) {
+      total += buckets[i].sum();
+      cumulative[i] = total;
+    }
+    return cumulative;
+  }
+
+  /**
+   * @param quantile between 0 and 1
+   * @return the upper bound of the bucket the quantile falls in, or the maximum recorded value if
+   * that is smaller or the quantile is above the last bound
+   */
+  long getPercentile(double quantile) {
+    long[] cumulative = getCumulativeCounts();
+    long total = cumulative[cumulative.length - 1];
+    if (total == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(quantile * total);
+    long maxValue = getMax();
+    for (int i = 0; i < upperBounds.length; i++) {
+      if (cumulative[i] >= rank) {
+        return Math.min(upperBounds[i], maxValue);
+      }
+    }
+    return maxValue;
+  }
+}
@@ -0,0 +1,47 @@
+package com.okta.scim.server.example;
+
+/**
+ * A point-in-time summary of a {@link Histogram}, in the unit chosen by the caller. Exposed over
+ * JMX as a composite value, so it only has getters.
+ */
+public final class HistogramSnapshot {
+  private final long count;
+  private final double mean;
+  private final double p50;
+  private final double p90;
+  private final double p99;
+  private final double max;
+
+  HistogramSnapshot(Histogram histogram, double unit) {
+    count = histogram.getCount();
+    mean = count == 0 ? 0 : histogram.getSum() / unit / count;
+    p50 = histogram.getPercentile(0.50) / unit;
+    p90 = histogram.getPercentile(0.90) / unit;
+    p99 = histogram.getPercentile(0.99) / unit;
+    max = histogram.getMax() / unit;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  public double getMean() {
+    return mean;
+  }
+
+  public double getP50() {
+    return p50;
+  }
+
+  public double getP90() {
+    return p90;
+  }
+
+  public double getP99() {
+    return p99;
+  }
+
+  public double getMax() {
+    return max;
+  }
+}
@@ -0,0 +1,348 @@
+package com.okta.scim.server.example;
+
+import org.keycloak.representations.idm.AdminEventRepresentation;
+import org.keycloak.representations.idm.GroupRepresentation;
+import org.keycloak.util.JsonSerialization;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Keeps the connector's caches and indexes current from Keycloak's admin events.
+ * <p>
+ * Every {@link #poll()} reads the USER, GROUP and GROUP_MEMBERSHIP admin events newer than the
+ * high-water mark, the time of the newest event already applied, and hands them to the
+ * {@link Listener}s oldest first. Keycloak returns events newest first, so a poll pages from the
+ * newest event down to the mark and stops there: its cost depends on the number of changes since
+ * the last poll, not on the size of the realm.
+ * <p>
+ * When the feed cannot tell what changed, listeners get a full {@link Listener#reconcile()}
+ * instead, and the mark moves to the newest event. That happens when a poll would read more
+ * than <code>maxPagesPerPoll</code> pages, when the event at the mark is gone (events expired or
+ * were cleared), when an event cannot be understood, and when a listener fails to apply one.
+ * <p>
+ * Events of the connector's own changes are read but not applied, as the connector updated its
+ * caches when it made them. An event is the connector's own when it was made by the Keycloak user
+ * the connector authenticates as, so that user should not be shared with administrators: their
+ * changes would be skipped too. Own events still fill the pages, so the pages of a poll must
+ * cover every admin event Keycloak records between two polls, pushes from Okta included.
+ * <p>
+ * The realm must save admin events (Realm Settings, Events, Admin Events Settings). Without them
+ * the feed sees no changes and the caches only refresh through their own expiry and reconciles.
+ */
+final class KeycloakChangeFeed {
+  private static final Logger LOGGER = LoggerFactory.getLogger(KeycloakChangeFeed.class);
+
+  static final String USER = "USER";
+  static final String GROUP = "GROUP";
+  static final String GROUP_MEMBERSHIP = "GROUP_MEMBERSHIP";
+  private static final List<String> RESOURCE_TYPES = Arrays.asList(USER, GROUP, GROUP_MEMBERSHIP);
+  private static final String DELETE = "DELETE";
+
+  /**
+   * Receives the changes of the feed, oldest first, on the polling thread. Methods that are not
+   * implemented ignore the change.
+   */
+  interface Listener {
+    /**
+     * A user was created, updated, deleted or had an action such as a password reset applied.
+     */
+    default void userChanged(String userId, boolean deleted) {
+    }
+
+    /**
+     * A group was created, renamed, moved or deleted.
+     *
+     * @param name the group name when the event carries the representation, otherwise null
+     */
+    default void groupChanged(String groupId, String name, boolean deleted) {
+    }
+
+    default void membershipChanged(String userId, String groupId, boolean joined) {
+    }
+
+    /**
+     * Changes were missed; reload everything from Keycloak.
+     */
+    default void reconcile() {
+    }
+  }
+
+  private final KeycloakGateway gateway;
+  private final int pageSize;
+  private final int maxPagesPerPoll;
+  private final Supplier<String> connectorUserId;
+  private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+  private final AtomicLong eventsApplied = new AtomicLong();
+  private final AtomicLong ownEventsSkipped = new AtomicLong();
+  private final AtomicLong reconciles = new AtomicLong();
+  private final AtomicLong keycloakCalls = new AtomicLong();
+
+  // Guarded by this
+  private boolean started;
+  private long highWaterMark;
+  // Keys of the applied events at the high-water mark, as several events can share a millisecond
+  private Set<String> appliedAtMark = Collections.emptySet();
+  // False while the mark is not the time of an event that Keycloak still holds
+  private boolean markIsEvent;
+  private boolean reconcileRequested;
+
+  /**
+   * @param connectorUserId supplies the id of the Keycloak user the connector acts as, or null
+   *                        while it is not known, when every event is applied
+   */
+  KeycloakChangeFeed(KeycloakGateway gateway, int pageSize, int maxPagesPerPoll, Supplier<String> connectorUserId) {
+    this.gateway = gateway;
+    this.pageSize = Math.max(1, pageSize);
+    this.maxPagesPerPoll = Math.max(1, maxPagesPerPoll);
+    this.connectorUserId = connectorUserId;
+  }
+
+  void addListener(Listener listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * Apply the changes since the last poll. The first poll only sets the high-water mark to the
+   * newest event, as the listeners load what they need on first use.
+   */
+  synchronized void poll() {
+    if (!started) {
+      List<AdminEventRepresentation> newest = fetch(null, 0, 1);
+      moveMark(newest);
+      started = true;
+      LOGGER.info("Keycloak change feed started at " + (markIsEvent ? Instant.ofEpochMilli(highWaterMark) : "the first event"));
+      return;
+    }
+
+    List<AdminEventRepresentation> newEvents = new ArrayList<>();
+    Set<String> seen = new HashSet<>();
+    List<AdminEventRepresentation> firstPage = null;
+    boolean reachedMark = false;
+    boolean exhausted = false;
+    String dateFrom = markIsEvent ? dateFrom(highWaterMark) : null;
+    for (int pageNumber = 0; pageNumber < maxPagesPerPoll && !reachedMark && !exhausted; pageNumber++) {
+      List<AdminEventRepresentation> page = fetch(dateFrom, pageNumber * pageSize, pageSize);
+      if (firstPage == null) {
+        firstPage = page;
+      }
+      for (AdminEventRepresentation event : page) {
+        if (event.getTime() < highWaterMark
+          || (event.getTime() == highWaterMark && appliedAtMark.contains(key(event)))) {
+          reachedMark = true;
+          break;
+        }
+        // Events added while paging shift the pages, so one may be read twice
+        if (seen.add(key(event))) {
+          newEvents.add(event);
+        }
+      }
+      exhausted = page.size() < pageSize;
+    }
+
+    if (!reachedMark && !(exhausted && !markIsEvent)) {
+      LOGGER.warn("Keycloak change feed has a gap: " + (exhausted
+        ? "the events since " + Instant.ofEpochMilli(highWaterMark) + " are no longer stored"
+        : "more than " + maxPagesPerPoll * pageSize + " changes since the last poll"));
+      reconcile(firstPage);
+      return;
+    }
+    if (reconcileRequested) {
+      reconcile(firstPage);
+      return;
+    }
+    if (newEvents.isEmpty()) {
+      return;
+    }
+
+    Collections.reverse(newEvents);
+    String ownUserId = connectorUserId.get();
+    for (AdminEventRepresentation event : newEvents) {
+      if (ownUserId != null && event.getAuthDetails() != null
+        && ownUserId.equals(event.getAuthDetails().getUserId())) {
+        ownEventsSkipped.incrementAndGet();
+        continue;
+      }
+      if (!apply(event)) {
+        reconcile(firstPage);
+        return;
+      }
+      eventsApplied.incrementAndGet();
+    }
+    long previousMark = highWaterMark;
+    Set<String> atMark = new HashSet<>();
+    highWaterMark = newEvents.get(newEvents.size() - 1).getTime();
+    if (highWaterMark == previousMark) {
+      atMark.addAll(appliedAtMark);
+    }
+    for (AdminEventRepresentation event : newEvents) {
+      if (event.getTime() == highWaterMark) {
+        atMark.add(key(event));
+      }
+    }
+    appliedAtMark = atMark;
+    markIsEvent = true;
+    LOGGER.debug("Keycloak change feed applied " + newEvents.size() + " event(s)");
+  }
+
+  /**
+   * {@link #poll()} for use from a scheduler, where an exception would cancel the task. A failed
+   * poll is retried from the same mark on the next one.
+   */
+  void pollQuietly() {
+    try {
+      poll();
+    } catch (RuntimeException e) {
+      LOGGER.warn("Cannot poll the Keycloak admin events", e);
+    }
+  }
+
+  /**
+   * @return the time of the newest applied event in epoch milliseconds, or 0 if there is none
+   */
+  synchronized long getHighWaterMark() {
+    return highWaterMark;
+  }
+
+  long getEventsApplied() {
+    return eventsApplied.get();
+  }
+
+  /**
+   * @return events of the connector's own changes, which were not applied
+   */
+  long getOwnEventsSkipped() {
+    return ownEventsSkipped.get();
+  }
+
+  long getReconciles() {
+    return reconciles.get();
+  }
+
+  /**
+   * @return admin event pages read since the feed was created
+   */
+  long getKeycloakCalls() {
+    return keycloakCalls.get();
+  }
+
+  // Must hold the monitor of this feed
+  private void reconcile(List<AdminEventRepresentation> newestFirst) {
+    // Moved first, so changes made while the listeners reload are applied again by the next poll
+    moveMark(newestFirst);
+    reconcileRequested = false;
+    reconciles.incrementAndGet();
+    for (Listener listener : listeners) {
+      try {
+        listener.reconcile();
+      } catch (RuntimeException e) {
+        LOGGER.warn("Cannot reconcile " + listener + " after a Keycloak change feed gap", e);
+        reconcileRequested = true;
+      }
+    }
+  }
+
+  // Must hold the monitor of this feed; the first event of the list is the newest
+  private void moveMark(List<AdminEventRepresentation> newestFirst) {
+    if (newestFirst == null || newestFirst.isEmpty()) {
+      // No event left to stop at; every later event is newer than the mark
+      appliedAtMark = Collections.emptySet();
+      markIsEvent = false;
+      return;
+    }
+    AdminEventRepresentation newest = newestFirst.get(0);
+    highWaterMark = newest.getTime();
+    appliedAtMark = Collections.singleton(key(newest));
+    markIsEvent = true;
+  }
+
+  /**
+   * Hand one event to every listener.
+   *
+   * @return false if the event could not be understood or a listener failed to apply it
+   */
+  private boolean apply(AdminEventRepresentation event) {
+    String[] path = event.getResourcePath() != null ? event.getResourcePath().split("/") : new String[0];
+    boolean deleted = DELETE.equals(event.getOperationType());
+    try {
+      if (USER.equals(event.getResourceType()) && path.length >= 2 && path[0].equals("users")) {
+        for (Listener listener : listeners) {
+          listener.userChanged(path[1], deleted && path.length == 2);
+        }
+        return true;
+      }
+      if (GROUP_MEMBERSHIP.equals(event.getResourceType()) && path.length == 4 && path[0].equals("users")
+        && path[2].equals("groups")) {
+        for (Listener listener : listeners) {
+          listener.membershipChanged(path[1], path[3], !deleted);
+        }
+        return true;
+      }
+      if (GROUP.equals(event.getResourceType()) && path.length >= 2 && path[0].equals("groups")) {
+        // A subgroup created or moved under groups/{parent}/children is only identified by the representation
+        GroupRepresentation group = readGroup(event);
+        String groupId = path.length == 2 ? path[1] : group != null ? group.getId() : null;
+        if (groupId == null) {
+          LOGGER.warn("Cannot tell which group changed from the admin event on " + event.getResourcePath());
+          return false;
+        }
+        String name = group != null && groupId.equals(group.getId()) ? group.getName() : null;
+        for (Listener listener : listeners) {
+          listener.groupChanged(groupId, name, deleted && path.length == 2);
+        }
+        return true;
+      }
+    } catch (RuntimeException e) {
+      LOGGER.warn("Cannot apply the admin event " + event.getOperationType() + " " + event.getResourcePath(), e);
+      return false;
+    }
+    LOGGER.warn("Ignoring the unexpected admin event " + event.getResourceType() + " " + event.getOperationType()
+      + " " + event.getResourcePath());
+    return true;
+  }
+
+  private static GroupRepresentation readGroup(AdminEventRepresentation event) {
+    if (event.getRepresentation() == null || event.getRepresentation().isEmpty()) {
+      return null;
+    }
+    try {
+      return JsonSerialization.readValue(event.getRepresentation(), GroupRepresentation.class);
+    } catch (IOException e) {
+      LOGGER.debug("Cannot read the group representation of the admin event on " + event.getResourcePath(), e);
+      return null;
+    }
+  }
+
+  private List<AdminEventRepresentation> fetch(String dateFrom, int first, int max) {
+    keycloakCalls.incrementAndGet();
+    List<AdminEventRepresentation> events = KeycloakGateway.await(gateway.adminEvents(RESOURCE_TYPES, dateFrom, first, max));
+    return events != null ? events : Collections.<AdminEventRepresentation>emptyList();
+  }
+
+  /**
+   * Keycloak filters on whole days in its own time zone, so the day before the mark in UTC
+   * covers the mark whatever that zone is. The pages stop at the mark, not at this date.
+   */
+  private static String dateFrom(long time) {
+    return LocalDate.ofInstant(Instant.ofEpochMilli(time), ZoneOffset.UTC).minusDays(1).toString();
+  }
+
+  private static String key(AdminEventRepresentation event) {
+    return event.getTime() + " " + event.getOperationType() + " " + event.getResourceType() + " "
+      + event.getResourcePath();
+  }
+}
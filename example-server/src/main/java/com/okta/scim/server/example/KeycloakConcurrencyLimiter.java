@@ -0,0 +1,335 @@
+package com.okta.scim.server.example;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.WebApplicationException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Limits the Keycloak calls in flight, and adapts the limit to the latency Keycloak shows.
+ * <p>
+ * Every endpoint keeps a baseline latency for each size of page it is asked for: the lowest latency
+ * seen, drifting slowly towards the latency of later calls. Page sizes are rounded up to a power of
+ * two, and listings without a page size, which may return everything, have a baseline of their own,
+ * so a page of 500 users is not compared with a search for one. A call's latency runs from the
+ * moment it is sent, so time spent waiting for a thread to send it does not count. A call slower
+ * than <code>latencyTolerance</code> times its baseline, or one that fails with a 429, 503 or 504
+ * or without a response, lowers the limit by a quarter, down to <code>minLimit</code>. Calls sent
+ * before the last decrease do not lower it again, so one slow burst counts once. Any other call
+ * that completes while at least half the limit is in use raises it by one over the limit, about
+ * one call per window, up to <code>maxLimit</code>.
+ * <p>
+ * Calls over the limit wait in one of two lanes: writes, which Okta pushes make, and reads, which
+ * imports and the background maintenance make. A free slot goes to a waiting write first, but to
+ * no more than four writes in a row while a read is waiting. A call that waited
+ * <code>queueTimeoutMillis</code> is not sent, and its future fails with a
+ * <code>RejectedExecutionException</code>.
+ */
+final class KeycloakConcurrencyLimiter {
+  private static final Logger LOGGER = LoggerFactory.getLogger(KeycloakConcurrencyLimiter.class);
+
+  // Part of the limit kept after a slow or overloaded call
+  private static final double BACKOFF_RATIO = 0.75;
+  // Weight of a new call in an endpoint's baseline when it is slower than the baseline
+  private static final double BASELINE_DRIFT = 0.01;
+  // A call is never slow if it takes less than this much longer than the baseline
+  private static final long MIN_SLOWDOWN_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+  // Most writes started in a row while a read is waiting
+  private static final int WRITES_PER_READ = 4;
+
+  enum Lane {
+    READ, WRITE
+  }
+
+  // Rows of a call that does not return a page: a single resource, a count or a write
+  static final int NOT_PAGED = 0;
+  // Rows of a listing without a page size
+  static final int UNBOUNDED = Integer.MAX_VALUE;
+
+  // Sent time of a call that has not been sent
+  private static final long NOT_SENT = Long.MIN_VALUE;
+
+  private final int minLimit;
+  private final int maxLimit;
+  private final double latencyTolerance;
+  private final long queueTimeoutMillis;
+  private final ScheduledExecutorService timer;
+
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong decreases = new AtomicLong();
+
+  // Guarded by this
+  private double limit;
+  private int inFlight;
+  private long lastDecrease;
+  private int writesInARow;
+  private final Deque<Waiter<?>> reads = new ArrayDeque<>();
+  private final Deque<Waiter<?>> writes = new ArrayDeque<>();
+  private final Map<String, Double> baselineNanos = new HashMap<>();
+
+  KeycloakConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, double latencyTolerance,
+                             long queueTimeoutMillis) {
+    this.minLimit = Math.max(1, minLimit);
+    this.maxLimit = Math.max(this.minLimit, maxLimit);
+    this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+    this.latencyTolerance = Math.max(1, latencyTolerance);
+    this.queueTimeoutMillis = Math.max(1, queueTimeoutMillis);
+    this.lastDecrease = System.nanoTime();
+    this.timer = Executors.newSingleThreadScheduledExecutor(
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("keycloak-limiter-%d").build());
+    // Waiters also expire whenever a call completes; the sweep covers the time no call does
+    long sweepMillis = Math.max(10, this.queueTimeoutMillis / 10);
+    timer.scheduleWithFixedDelay(this::expireWaiting, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Start the call now if the limit allows it, otherwise once a slot is free for its lane.
+   *
+   * @param endpoint the endpoint whose baseline latency the call is compared with
+   * @param rows     the page size the call asks for, {@link #UNBOUNDED} or {@link #NOT_PAGED}
+   * @param call     starts the Keycloak call, and runs the runnable it is given just before the request
+   *                 is sent; it must not block
+   * @return the outcome of the call, or a <code>RejectedExecutionException</code> if it waited too
+   * long for a slot
+   */
+  <T> CompletableFuture<T> submit(Lane lane, String endpoint, int rows, Function<Runnable, CompletableFuture<T>> call) {
+    Waiter<T> waiter = new Waiter<>(endpoint, baselineKey(endpoint, rows), call,
+      System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(queueTimeoutMillis));
+    boolean startNow;
+    synchronized (this) {
+      startNow = inFlight < (int) limit && reads.isEmpty() && writes.isEmpty();
+      if (startNow) {
+        inFlight++;
+      } else {
+        (lane == Lane.WRITE ? writes : reads).addLast(waiter);
+      }
+    }
+    if (startNow) {
+      start(waiter);
+    }
+    return waiter.result;
+  }
+
+  /**
+   * Fail every waiting call and stop the sweep.
+   */
+  void shutdown() {
+    timer.shutdownNow();
+    List<Waiter<?>> waiting;
+    synchronized (this) {
+      waiting = new ArrayList<>(writes);
+      waiting.addAll(reads);
+      writes.clear();
+      reads.clear();
+    }
+    for (Waiter<?> waiter : waiting) {
+      waiter.result.completeExceptionally(new RejectedExecutionException("Keycloak calls are shut down"));
+    }
+  }
+
+  /**
+   * @return the current limit on calls in flight
+   */
+  synchronized long getLimit() {
+    return (long) limit;
+  }
+
+  synchronized long getInFlight() {
+    return inFlight;
+  }
+
+  synchronized long getQueued(Lane lane) {
+    return (lane == Lane.WRITE ? writes : reads).size();
+  }
+
+  /**
+   * @return calls failed because they waited too long for a slot
+   */
+  long getRejected() {
+    return rejected.get();
+  }
+
+  /**
+   * @return times the limit was lowered
+   */
+  long getDecreases() {
+    return decreases.get();
+  }
+
+  private <T> void start(Waiter<T> waiter) {
+    CompletableFuture<T> call;
+    try {
+      call = waiter.call.apply(() -> waiter.sent = System.nanoTime());
+    } catch (RuntimeException e) {
+      // Never reached Keycloak, so it says nothing about its latency
+      release(null, NOT_SENT, false);
+      waiter.result.completeExceptionally(e);
+      return;
+    }
+    call.whenComplete((value, failure) -> {
+      // A call that failed before it was sent leaves the limit as it is too
+      long sent = waiter.sent;
+      release(sent != NOT_SENT ? waiter : null, sent, isOverload(failure));
+      if (failure != null) {
+        waiter.result.completeExceptionally(failure);
+      } else {
+        waiter.result.complete(value);
+      }
+    });
+  }
+
+  /**
+   * Free the slot of a call, adjust the limit to how it went and start the calls that fit.
+   *
+   * @param waiter the call, or null to leave the limit as it is
+   */
+  private void release(Waiter<?> waiter, long sent, boolean overloaded) {
+    long now = System.nanoTime();
+    List<Waiter<?>> ready = new ArrayList<>();
+    List<Waiter<?>> expired = new ArrayList<>();
+    synchronized (this) {
+      if (waiter != null) {
+        adjust(waiter, sent, now, overloaded);
+      }
+      inFlight--;
+      drain(now, ready, expired);
+    }
+    dispatch(ready, expired);
+  }
+
+  // Called holding the lock, before the call's slot is freed
+  private void adjust(Waiter<?> waiter, long sent, long now, boolean overloaded) {
+    double latency = now - sent;
+    Double baseline = baselineNanos.get(waiter.baselineKey);
+    boolean slow = baseline != null && latency > baseline * latencyTolerance
+      && latency - baseline > MIN_SLOWDOWN_NANOS;
+    baselineNanos.put(waiter.baselineKey, baseline == null || latency < baseline
+      ? latency
+      : baseline + (latency - baseline) * BASELINE_DRIFT);
+
+    if (slow || overloaded) {
+      if (sent - lastDecrease >= 0) {
+        double previous = limit;
+        limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+        lastDecrease = now;
+        decreases.incrementAndGet();
+        LOGGER.debug("Keycloak concurrency limit lowered from " + (int) previous + " to " + (int) limit + " after a "
+          + (overloaded ? "failed" : "slow") + " " + waiter.baselineKey + " call ("
+          + TimeUnit.NANOSECONDS.toMillis((long) latency) + " ms)");
+      }
+    } else if (inFlight >= limit / 2) {
+      limit = Math.min(maxLimit, limit + 1 / limit);
+    }
+  }
+
+  private void expireWaiting() {
+    List<Waiter<?>> ready = new ArrayList<>();
+    List<Waiter<?>> expired = new ArrayList<>();
+    synchronized (this) {
+      drain(System.nanoTime(), ready, expired);
+    }
+    dispatch(ready, expired);
+  }
+
+  // Called holding the lock
+  private void drain(long now, List<Waiter<?>> ready, List<Waiter<?>> expired) {
+    expire(writes, now, expired);
+    expire(reads, now, expired);
+    while (inFlight < (int) limit) {
+      Waiter<?> next;
+      if (!writes.isEmpty() && (reads.isEmpty() || writesInARow < WRITES_PER_READ)) {
+        next = writes.pollFirst();
+        writesInARow++;
+      } else if (!reads.isEmpty()) {
+        next = reads.pollFirst();
+        writesInARow = 0;
+      } else {
+        break;
+      }
+      inFlight++;
+      ready.add(next);
+    }
+  }
+
+  private static void expire(Deque<Waiter<?>> lane, long now, List<Waiter<?>> expired) {
+    // Every waiter gets the same timeout, so the oldest of a lane expire first
+    while (!lane.isEmpty() && now - lane.peekFirst().deadline >= 0) {
+      expired.add(lane.pollFirst());
+    }
+  }
+
+  private void dispatch(List<Waiter<?>> ready, List<Waiter<?>> expired) {
+    for (Waiter<?> waiter : expired) {
+      rejected.incrementAndGet();
+      LOGGER.debug("Keycloak " + waiter.endpoint + " call waited more than " + queueTimeoutMillis + " ms for a slot");
+      waiter.result.completeExceptionally(new RejectedExecutionException("Keycloak " + waiter.endpoint
+        + " call waited more than " + queueTimeoutMillis + " ms for a slot"));
+    }
+    for (Waiter<?> waiter : ready) {
+      start(waiter);
+    }
+  }
+
+  /**
+   * @return the endpoint, with the page size rounded up to a power of two for a paged call
+   */
+  static String baselineKey(String endpoint, int rows) {
+    if (rows == NOT_PAGED) {
+      return endpoint;
+    }
+    if (rows == UNBOUNDED || rows > 1 << 30) {
+      return endpoint + "[unbounded]";
+    }
+    int pageSize = rows <= 1 ? 1 : Integer.highestOneBit(rows - 1) << 1;
+    return endpoint + "[max<=" + pageSize + "]";
+  }
+
+  /**
+   * @return whether the failure shows Keycloak, or the way to it, is overloaded: a 429, 503 or
+   * 504, or no response at all
+   */
+  private static boolean isOverload(Throwable failure) {
+    Throwable cause = failure;
+    while ((cause instanceof CompletionException || cause instanceof ExecutionException) && cause.getCause() != null) {
+      cause = cause.getCause();
+    }
+    if (cause instanceof WebApplicationException) {
+      int status = ((WebApplicationException) cause).getResponse().getStatus();
+      return status == 429 || status == 503 || status == 504;
+    }
+    return cause instanceof ProcessingException;
+  }
+
+  private static final class Waiter<T> {
+    private final String endpoint;
+    private final String baselineKey;
+    private final Function<Runnable, CompletableFuture<T>> call;
+    private final long deadline;
+    private final CompletableFuture<T> result = new CompletableFuture<>();
+    private volatile long sent = NOT_SENT;
+
+    Waiter(String endpoint, String baselineKey, Function<Runnable, CompletableFuture<T>> call, long deadline) {
+      this.endpoint = endpoint;
+      this.baselineKey = baselineKey;
+      this.call = call;
+      this.deadline = deadline;
+    }
+  }
+}
@@ -0,0 +1,120 @@
+package com.okta.scim.server.example;
+
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+import org.jboss.resteasy.client.jaxrs.ResteasyClient;
+import org.jboss.resteasy.client.jaxrs.ResteasyClientBuilder;
+import org.jboss.resteasy.client.jaxrs.engines.ApacheHttpClient43Engine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The HTTP connection pool shared by every Keycloak admin call.
+ * <p>
+ * The pool is an Apache HttpClient <code>PoolingHttpClientConnectionManager</code> with a total
+ * limit, a per-route limit and a time to live for each connection. Connections are reused for the
+ * keep-alive time the server advertises, falling back to <code>keepAliveSeconds</code> if it does
+ * not advertise one. {@link #getStats()} reports how many connections are leased, idle and
+ * pending, which is what the pool should be sized on.
+ */
+final class KeycloakConnectionPool {
+  private static final Logger LOGGER = LoggerFactory.getLogger(KeycloakConnectionPool.class);
+
+  private final PoolingHttpClientConnectionManager connectionManager;
+  private final CloseableHttpClient httpClient;
+
+  /**
+   * @param maxTotal             maximum connections in the pool
+   * @param maxPerRoute          maximum connections to a single Keycloak host
+   * @param connectTimeoutMillis time allowed to establish a connection
+   * @param socketTimeoutMillis  time allowed between two packets of a response
+   * @param checkoutTimeoutMillis time a request waits for a free pooled connection
+   * @param keepAliveSeconds     how long an idle connection is kept if Keycloak does not say
+   * @param ttlSeconds           maximum lifetime of a connection, 0 for no limit
+   */
+  KeycloakConnectionPool(int maxTotal, int maxPerRoute, int connectTimeoutMillis, int socketTimeoutMillis,
+                         int checkoutTimeoutMillis, long keepAliveSeconds, long ttlSeconds) {
+    connectionManager = new PoolingHttpClientConnectionManager(ttlSeconds > 0 ? ttlSeconds : -1, TimeUnit.SECONDS);
+    connectionManager.setMaxTotal(Math.max(1, maxTotal));
+    connectionManager.setDefaultMaxPerRoute(Math.max(1, Math.min(maxPerRoute, maxTotal)));
+
+    RequestConfig requestConfig = RequestConfig.custom()
+      .setConnectTimeout(connectTimeoutMillis)
+      .setSocketTimeout(socketTimeoutMillis)
+      .setConnectionRequestTimeout(checkoutTimeoutMillis)
+      .build();
+
+    httpClient = HttpClientBuilder.create()
+      .setConnectionManager(connectionManager)
+      .setDefaultRequestConfig(requestConfig)
+      .setKeepAliveStrategy(new AdvertisedKeepAliveStrategy(TimeUnit.SECONDS.toMillis(keepAliveSeconds)))
+      .build();
+  }
+
+  /**
+   * @return a RESTEasy client that sends every request through this pool
+   */
+  ResteasyClient newResteasyClient() {
+    return new ResteasyClientBuilder().httpEngine(new ApacheHttpClient43Engine(httpClient, true)).build();
+  }
+
+  /**
+   * @return the leased, available (idle), pending and maximum connection counts of the pool
+   */
+  PoolStats getStats() {
+    return connectionManager.getTotalStats();
+  }
+
+  /**
+   * Close connections that are past their time to live or have been idle for longer than
+   * <code>idleSeconds</code>. Meant to be called periodically.
+   */
+  void evictConnections(long idleSeconds) {
+    connectionManager.closeExpiredConnections();
+    connectionManager.closeIdleConnections(idleSeconds, TimeUnit.SECONDS);
+    LOGGER.debug("Keycloak connection pool: " + getStats());
+  }
+
+  void shutdown() {
+    connectionManager.shutdown();
+  }
+
+  /**
+   * Honours the <code>timeout</code> of a <code>Keep-Alive</code> response header and otherwise
+   * keeps the connection for the configured default.
+   */
+  private static final class AdvertisedKeepAliveStrategy implements ConnectionKeepAliveStrategy {
+    private final long defaultKeepAliveMillis;
+
+    AdvertisedKeepAliveStrategy(long defaultKeepAliveMillis) {
+      this.defaultKeepAliveMillis = defaultKeepAliveMillis;
+    }
+
+    @Override
+    public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+      BasicHeaderElementIterator it = new BasicHeaderElementIterator(response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+      while (it.hasNext()) {
+        HeaderElement element = it.nextElement();
+        if ("timeout".equalsIgnoreCase(element.getName()) && element.getValue() != null) {
+          try {
+            return Long.parseLong(element.getValue()) * 1000;
+          } catch (NumberFormatException ignored) {
+            // fall through to the default
+          }
+        }
+      }
+      return defaultKeepAliveMillis;
+    }
+  }
+}
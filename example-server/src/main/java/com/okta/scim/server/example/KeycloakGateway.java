@@ -0,0 +1,386 @@
+package com.okta.scim.server.example;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.okta.scim.server.example.KeycloakConcurrencyLimiter.Lane;
+import org.keycloak.admin.client.resource.GroupsResource;
+import org.keycloak.admin.client.resource.RealmResource;
+import org.keycloak.admin.client.resource.UsersResource;
+import org.keycloak.representations.idm.AdminEventRepresentation;
+import org.keycloak.representations.idm.GroupRepresentation;
+import org.keycloak.representations.idm.PartialImportRepresentation;
+import org.keycloak.representations.idm.UserRepresentation;
+import org.keycloak.util.JsonSerialization;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.Response.StatusType;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+/**
+ * Asynchronous access to the Keycloak admin endpoints used by this connector.
+ * <p>
+ * The admin client proxies are blocking, so each call here runs on the gateway's executor and
+ * comes back as a <code>CompletableFuture</code>. Callers that need several independent calls
+ * start them all and then wait, so the calls overlap and are not made one after the other.
+ * Every Keycloak call made by the connector goes through this class.
+ * <p>
+ * Failures complete the future exceptionally with the admin client's exception, for example a
+ * <code>javax.ws.rs.NotFoundException</code> for a 404. {@link #await(CompletableFuture)} rethrows
+ * that exception unwrapped, so blocking callers can handle it as if they had called the proxy
+ * directly.
+ * <p>
+ * Each call is timed per endpoint in the {@link ConnectorMetrics}, and counted for the SCIM
+ * request that submitted it.
+ * <p>
+ * Calls that return a raw <code>Response</code> (the creates and the partial import) read what they need from it and
+ * close it before the future completes, so no pooled connection is left leased.
+ * <p>
+ * With a {@link KeycloakConcurrencyLimiter}, each call waits for a slot before it is sent: the
+ * creates, updates, deletes, membership changes and the partial import in the write lane, every
+ * other call in the read lane.
+ * <p>
+ * Every call goes through the {@link KeycloakResilience} first: reads are retried after transient
+ * failures, and the reads of a single user, group or page of members may be hedged. Every call
+ * fails at once while its circuit breaker is open.
+ */
+final class KeycloakGateway {
+  private static final Logger LOGGER = LoggerFactory.getLogger(KeycloakGateway.class);
+
+  private final RealmResource realmResource;
+  private final UsersResource usersResource;
+  private final GroupsResource groupsResource;
+  private final UsersCountResource usersCountResource;
+  private final AdminEventsResource adminEventsResource;
+  private final ExecutorService executor;
+  // Null when the calls in flight are not limited
+  private final KeycloakConcurrencyLimiter limiter;
+  private final KeycloakResilience resilience;
+  private final ConnectorMetrics metrics;
+
+  KeycloakGateway(RealmResource realmResource, UsersCountResource usersCountResource,
+                  AdminEventsResource adminEventsResource, ExecutorService executor,
+                  KeycloakConcurrencyLimiter limiter, KeycloakResilience resilience, ConnectorMetrics metrics) {
+    this.realmResource = realmResource;
+    this.usersResource = realmResource.users();
+    this.groupsResource = realmResource.groups();
+    this.usersCountResource = usersCountResource;
+    this.adminEventsResource = adminEventsResource;
+    this.executor = executor;
+    this.limiter = limiter;
+    this.resilience = resilience;
+    this.metrics = metrics;
+  }
+
+  /**
+   * Create the executor Keycloak calls run on. Virtual threads are used when
+   * <code>preferVirtualThreads</code> is set and the runtime provides them (Java 21 and later).
+   * Otherwise the calls run on a fixed pool of <code>threads</code> daemon threads.
+   */
+  static ExecutorService newExecutor(int threads, boolean preferVirtualThreads) {
+    if (preferVirtualThreads) {
+      try {
+        Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        ExecutorService executor = (ExecutorService) factory.invoke(null);
+        LOGGER.info("Keycloak calls run on virtual threads");
+        return executor;
+      } catch (ReflectiveOperationException | RuntimeException e) {
+        LOGGER.info("Virtual threads are not available on this runtime, Keycloak calls run on " + threads + " threads");
+      }
+    }
+    return Executors.newFixedThreadPool(Math.max(1, threads),
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("keycloak-io-%d").build());
+  }
+
+  /**
+   * Wait for a Keycloak call and return its result. If the call failed, its exception is
+   * rethrown as is, without the <code>CompletionException</code> wrapper.
+   */
+  static <T> T await(CompletableFuture<T> future) {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      throw unwrap(e);
+    }
+  }
+
+  /**
+   * @return the exception a Keycloak call failed with, without any future wrapper
+   */
+  static RuntimeException unwrap(Throwable failure) {
+    Throwable cause = failure;
+    while ((cause instanceof CompletionException || cause instanceof ExecutionException) && cause.getCause() != null) {
+      cause = cause.getCause();
+    }
+    if (cause instanceof RuntimeException) {
+      return (RuntimeException) cause;
+    }
+    if (cause instanceof Error) {
+      throw (Error) cause;
+    }
+    return new CompletionException(cause);
+  }
+
+  void shutdown() {
+    resilience.shutdown();
+    if (limiter != null) {
+      limiter.shutdown();
+    }
+    executor.shutdownNow();
+  }
+
+  // Users
+
+  CompletableFuture<UserRepresentation> getUser(String id) {
+    return hedgedCall("users.get", KeycloakConcurrencyLimiter.NOT_PAGED,
+      () -> usersResource.get(id).toRepresentation());
+  }
+
+  /**
+   * @return the Keycloak id of the created user; a status other than 201 fails the future with a
+   * <code>WebApplicationException</code> carrying that status
+   */
+  CompletableFuture<String> createUser(UserRepresentation user) {
+    return call(Lane.WRITE, "users.create", () -> getCreatedId(usersResource.create(user)));
+  }
+
+  /**
+   * Create all the users in one partial import of the realm. Users whose username is taken are
+   * skipped, not overwritten. Keycloak imports the users in one transaction, so a user it rejects
+   * fails the whole call and none of the users is created.
+   *
+   * @return each username, in lower case, mapped to the Keycloak id of the created user, or to
+   * null if a user with that username already existed
+   */
+  CompletableFuture<Map<String, String>> importUsers(List<UserRepresentation> users) {
+    PartialImportRepresentation partialImport = new PartialImportRepresentation();
+    partialImport.setIfResourceExists(PartialImportRepresentation.Policy.SKIP.name());
+    partialImport.setUsers(users);
+    return call(Lane.WRITE, "realm.partialImport", users.size(), false,
+      () -> getImportedUserIds(realmResource.partialImport(partialImport)));
+  }
+
+  CompletableFuture<Void> updateUser(String id, UserRepresentation user) {
+    return run("users.update", () -> usersResource.get(id).update(user));
+  }
+
+  CompletableFuture<List<UserRepresentation>> listUsers() {
+    return pagedCall("users.list", KeycloakConcurrencyLimiter.UNBOUNDED, () -> usersResource.list());
+  }
+
+  CompletableFuture<List<UserRepresentation>> listUsers(int first, int max) {
+    return pagedCall("users.list", max, () -> usersResource.list(first, max));
+  }
+
+  CompletableFuture<Integer> countUsers() {
+    return call(Lane.READ, "users.count", () -> usersResource.count());
+  }
+
+  CompletableFuture<List<UserRepresentation>> searchUsers(String search) {
+    return pagedCall("users.search", KeycloakConcurrencyLimiter.UNBOUNDED, () -> usersResource.search(search));
+  }
+
+  /**
+   * Search users by attribute; each non-null attribute is a substring match. Brief
+   * representations are requested.
+   */
+  CompletableFuture<List<UserRepresentation>> searchUsers(String username, String firstName, String lastName,
+                                                          String email, int first, int max) {
+    return pagedCall("users.search", max,
+      () -> usersResource.search(username, firstName, lastName, email, first, max, true));
+  }
+
+  CompletableFuture<Integer> countUsers(String username, String firstName, String lastName, String email) {
+    return call(Lane.READ, "users.count", () -> usersCountResource.count(username, firstName, lastName, email));
+  }
+
+  CompletableFuture<Void> joinGroup(String userId, String groupId) {
+    return run("users.joinGroup", () -> usersResource.get(userId).joinGroup(groupId));
+  }
+
+  CompletableFuture<Void> leaveGroup(String userId, String groupId) {
+    return run("users.leaveGroup", () -> usersResource.get(userId).leaveGroup(groupId));
+  }
+
+  // Groups
+
+  CompletableFuture<List<GroupRepresentation>> listGroups() {
+    return pagedCall("groups.list", KeycloakConcurrencyLimiter.UNBOUNDED, () -> groupsResource.groups());
+  }
+
+  CompletableFuture<List<GroupRepresentation>> listGroups(int first, int max) {
+    return pagedCall("groups.list", max, () -> groupsResource.groups(first, max));
+  }
+
+  CompletableFuture<Long> countGroups() {
+    return call(Lane.READ, "groups.count", () -> groupsResource.count(true).getOrDefault("count", 0L));
+  }
+
+  CompletableFuture<GroupRepresentation> getGroup(String id) {
+    return hedgedCall("groups.get", KeycloakConcurrencyLimiter.NOT_PAGED,
+      () -> groupsResource.group(id).toRepresentation());
+  }
+
+  CompletableFuture<List<UserRepresentation>> groupMembers(String id, int first, int max) {
+    return hedgedCall("groups.members", max, () -> groupsResource.group(id).members(first, max, true));
+  }
+
+  /**
+   * @return the Keycloak id of the created group; a status other than 201 fails the future with a
+   * <code>WebApplicationException</code> carrying that status
+   */
+  CompletableFuture<String> createGroup(GroupRepresentation group) {
+    return call(Lane.WRITE, "groups.create", () -> getCreatedId(groupsResource.add(group)));
+  }
+
+  CompletableFuture<Void> removeGroup(String id) {
+    return run("groups.remove", () -> groupsResource.group(id).remove());
+  }
+
+  // Admin events
+
+  /**
+   * @return admin events of the given resource types from <code>dateFrom</code> on, newest first
+   */
+  CompletableFuture<List<AdminEventRepresentation>> adminEvents(List<String> resourceTypes, String dateFrom,
+                                                                int first, int max) {
+    return pagedCall("adminEvents.list", max, () -> adminEventsResource.list(resourceTypes, dateFrom, first, max));
+  }
+
+  /**
+   * Read the id of a created resource from the <code>Location</code> header and close the
+   * response whatever the outcome.
+   */
+  private static String getCreatedId(Response response) {
+    try {
+      StatusType statusInfo = response.getStatusInfo();
+      if (statusInfo.getStatusCode() != Status.CREATED.getStatusCode()) {
+        response.bufferEntity();
+        String body = response.hasEntity() ? response.readEntity(String.class) : "";
+        throw new WebApplicationException("Create method returned status " + statusInfo.getReasonPhrase() + " (Code: "
+          + statusInfo.getStatusCode() + "); expected status: Created (201). Response body: " + body, response);
+      }
+      URI location = response.getLocation();
+      if (location == null) {
+        return null;
+      }
+      String path = location.getPath();
+      return path.substring(path.lastIndexOf('/') + 1);
+    } finally {
+      response.close();
+    }
+  }
+
+  /**
+   * Read the results of a partial import, <code>{"results": [{"action": "ADDED", "resourceType":
+   * "USER", "resourceName": ..., "id": ...}, ...]}</code>, and close the response whatever the
+   * outcome.
+   */
+  private static Map<String, String> getImportedUserIds(Response response) {
+    try {
+      StatusType statusInfo = response.getStatusInfo();
+      response.bufferEntity();
+      String body = response.hasEntity() ? response.readEntity(String.class) : "";
+      if (statusInfo.getFamily() != Status.Family.SUCCESSFUL) {
+        throw new WebApplicationException("Partial import returned status " + statusInfo.getReasonPhrase() + " (Code: "
+          + statusInfo.getStatusCode() + "). Response body: " + body, response);
+      }
+      Map<String, String> ids = new HashMap<>();
+      for (JsonNode result : JsonSerialization.mapper.readTree(body).path("results")) {
+        if ("USER".equals(result.path("resourceType").asText())) {
+          String userName = result.path("resourceName").asText().toLowerCase(Locale.ROOT);
+          ids.put(userName, "ADDED".equals(result.path("action").asText()) ? result.path("id").asText(null) : null);
+        }
+      }
+      return ids;
+    } catch (IOException e) {
+      throw new UncheckedIOException("Cannot read the partial import results", e);
+    } finally {
+      response.close();
+    }
+  }
+
+  /**
+   * Run <code>request</code> on the executor once the limiter has a slot for it in
+   * <code>lane</code>, timing it as <code>endpoint</code> and counting every send of it for the
+   * SCIM request of the calling thread. Reads are retried.
+   */
+  private <T> CompletableFuture<T> call(Lane lane, String endpoint, Supplier<T> request) {
+    return call(lane, endpoint, KeycloakConcurrencyLimiter.NOT_PAGED, false, request);
+  }
+
+  /**
+   * Like {@link #call(Lane, String, Supplier)} for a read of up to <code>rows</code> resources, which
+   * the limiter compares with reads of pages of about the same size.
+   */
+  private <T> CompletableFuture<T> pagedCall(String endpoint, int rows, Supplier<T> request) {
+    return call(Lane.READ, endpoint, rows, false, request);
+  }
+
+  /**
+   * Like {@link #pagedCall(String, int, Supplier)}, hedged unless reads are already waiting for the
+   * limiter, where a second send would only add to the queue.
+   */
+  private <T> CompletableFuture<T> hedgedCall(String endpoint, int rows, Supplier<T> request) {
+    return call(Lane.READ, endpoint, rows, limiter == null || limiter.getQueued(Lane.READ) == 0, request);
+  }
+
+  private <T> CompletableFuture<T> call(Lane lane, String endpoint, int rows, boolean hedged, Supplier<T> request) {
+    // Retries and hedges run on other threads, so the SCIM request is looked up here
+    ConnectorMetrics.Request scimRequest = metrics.currentRequest();
+    Supplier<CompletableFuture<T>> send = limiter == null
+      ? () -> send(endpoint, scimRequest, request, () -> {
+      })
+      : () -> limiter.submit(lane, endpoint, rows, sent -> send(endpoint, scimRequest, request, sent));
+    return lane == Lane.READ ? resilience.read(endpoint, hedged, send) : resilience.write(send);
+  }
+
+  /**
+   * Send the request once, counting it for <code>scimRequest</code>: every retry and hedge is a
+   * round trip of its own.
+   *
+   * @param scimRequest the SCIM request the call is made for, or null
+   * @param sent run on the executor just before the request is sent
+   */
+  private <T> CompletableFuture<T> send(String endpoint, ConnectorMetrics.Request scimRequest, Supplier<T> request,
+                                        Runnable sent) {
+    return CompletableFuture.supplyAsync(() -> {
+      sent.run();
+      if (scimRequest != null) {
+        scimRequest.countKeycloakCall();
+      }
+      long start = System.nanoTime();
+      boolean failed = true;
+      try {
+        T result = request.get();
+        failed = false;
+        return result;
+      } finally {
+        metrics.recordKeycloakCall(endpoint, System.nanoTime() - start, failed);
+      }
+    }, executor);
+  }
+
+  private CompletableFuture<Void> run(String endpoint, Runnable request) {
+    return call(Lane.WRITE, endpoint, () -> {
+      request.run();
+      return null;
+    });
+  }
+}
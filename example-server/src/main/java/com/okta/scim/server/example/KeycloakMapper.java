@@ -0,0 +1,81 @@
+package com.okta.scim.server.example;
+
+import com.okta.scim.util.model.Name;
+import com.okta.scim.util.model.SCIMGroup;
+import com.okta.scim.util.model.SCIMUser;
+import org.keycloak.representations.idm.CredentialRepresentation;
+import org.keycloak.representations.idm.GroupRepresentation;
+import org.keycloak.representations.idm.UserRepresentation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Converts between the SDK's SCIM model and Keycloak representations.
+ * <p>
+ * The conversions hold no state, so they are static and can be exercised on their own, for
+ * example by the benchmarks module.
+ */
+final class KeycloakMapper {
+
+  private KeycloakMapper() {
+  }
+
+  /**
+   * Copy the SCIM user onto <code>userRepresentation</code>. A non-empty password is set as a
+   * password credential.
+   *
+   * @return <code>userRepresentation</code>
+   */
+  static UserRepresentation updateKeycloakUser(SCIMUser scimUser, UserRepresentation userRepresentation) {
+    // TODO: Log here
+    userRepresentation.setId(scimUser.getId());
+    userRepresentation.setUsername(scimUser.getUserName());
+    userRepresentation.setFirstName(scimUser.getName().getFirstName());
+    userRepresentation.setLastName(scimUser.getName().getLastName());
+    userRepresentation.setEnabled(true);
+
+    String newPassword = scimUser.getPassword();
+    if (newPassword != null && !newPassword.isEmpty()) {
+      CredentialRepresentation credentialRepresentation = new CredentialRepresentation();
+      credentialRepresentation.setType(CredentialRepresentation.PASSWORD);
+      credentialRepresentation.setValue(newPassword);
+
+      userRepresentation.setCredentials(Collections.singletonList(credentialRepresentation));
+    }
+
+    return userRepresentation;
+  }
+
+  static List<SCIMUser> createSCIMUsersFromKeycloakRepresentations(List<UserRepresentation> representations) {
+    List<SCIMUser> users = new ArrayList<>(representations.size());
+    for (UserRepresentation representation : representations) {
+      users.add(createSCIMUserFromKeycloakRepresentation(representation));
+    }
+    return users;
+  }
+
+  static SCIMUser createSCIMUserFromKeycloakRepresentation(UserRepresentation keycloakUser) {
+    SCIMUser user = new SCIMUser();
+    user.setUserName(keycloakUser.getUsername());
+    user.setName(new Name(keycloakUser.getFirstName() + keycloakUser.getLastName(), keycloakUser.getLastName(),
+      keycloakUser.getFirstName()));
+    user.setId(keycloakUser.getId());
+    user.setActive(true);
+
+    return user;
+  }
+
+  /**
+   * Map the name and id of a group. Members are not included; they are read separately, page by
+   * page.
+   */
+  static SCIMGroup createSCIMGroupFromKeycloakGroup(GroupRepresentation keycloakGroup) {
+    SCIMGroup scimGroup = new SCIMGroup();
+    scimGroup.setDisplayName(keycloakGroup.getName());
+    scimGroup.setId(keycloakGroup.getId());
+
+    return scimGroup;
+  }
+}
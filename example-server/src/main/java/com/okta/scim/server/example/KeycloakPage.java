@@ -0,0 +1,71 @@
+package com.okta.scim.server.example;
+
+import com.okta.scim.util.model.PaginationProperties;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A window into a Keycloak admin listing.
+ * <p>
+ * SCIM pagination is 1-based (<code>startIndex=1</code> is the first resource) while the
+ * Keycloak admin API takes a 0-based <code>first</code> offset and a <code>max</code> page size.
+ * This class does the translation in one place so that every paged call agrees on where a
+ * page starts and ends.
+ */
+final class KeycloakPage {
+  private final int first;
+  private final int max;
+
+  private KeycloakPage(int first, int max) {
+    this.first = first;
+    this.max = max;
+  }
+
+  /**
+   * Build the Keycloak window for the given SCIM pagination properties. A start index below 1
+   * is treated as 1 and a negative count as 0.
+   *
+   * @param pageProperties the SCIM pagination properties, never null
+   * @return the equivalent Keycloak window
+   */
+  static KeycloakPage from(PaginationProperties pageProperties) {
+    long startIndex = Math.max(1L, pageProperties.getStartIndex());
+    int count = Math.max(0, pageProperties.getCount());
+    return new KeycloakPage(Math.toIntExact(startIndex - 1), count);
+  }
+
+  static KeycloakPage of(int first, int max) {
+    return new KeycloakPage(first, max);
+  }
+
+  int getFirst() {
+    return first;
+  }
+
+  int getMax() {
+    return max;
+  }
+
+  boolean isEmpty() {
+    return max == 0;
+  }
+
+  /**
+   * Apply this window to a list that is already in memory.
+   *
+   * @param all the full result list
+   * @return the part of the list that falls inside this window
+   */
+  <T> List<T> slice(List<T> all) {
+    if (first >= all.size()) {
+      return Collections.emptyList();
+    }
+    return all.subList(first, Math.min(all.size(), first + max));
+  }
+
+  @Override
+  public String toString() {
+    return "first=" + first + ", max=" + max;
+  }
+}
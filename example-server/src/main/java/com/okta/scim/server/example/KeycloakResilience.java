@@ -0,0 +1,304 @@
+package com.okta.scim.server.example;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.WebApplicationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Retries, circuit breaking and hedging for Keycloak calls.
+ * <p>
+ * A read that fails because Keycloak did not answer, or answered 429 or a 5xx, is sent again up to
+ * <code>maxRetries</code> times. Before each retry it waits a random time between 0 and
+ * <code>retryBaseMillis</code> doubled for every earlier retry, at most
+ * <code>retryMaxMillis</code>. Writes are sent once: a create that timed out may have been made.
+ * <p>
+ * After <code>breakerFailureThreshold</code> such failures in a row, reads or writes, the circuit
+ * opens and every call fails at once with a <code>RejectedExecutionException</code>, without
+ * reaching Keycloak. After <code>breakerOpenMillis</code> one call is let through: if it gets an
+ * answer the circuit closes, otherwise it stays open for another period. Calls that were never
+ * sent, because the concurrency limiter or the open circuit refused them, are not retried and
+ * do not count as failures.
+ * <p>
+ * A hedged read that has no answer after <code>hedgeDelayMillis</code> is sent a second time, and
+ * the first answer of the two is used. The caller decides which reads are hedged.
+ */
+final class KeycloakResilience {
+  private static final Logger LOGGER = LoggerFactory.getLogger(KeycloakResilience.class);
+
+  enum CircuitState {
+    CLOSED, HALF_OPEN, OPEN
+  }
+
+  private final int maxRetries;
+  private final long retryBaseMillis;
+  private final long retryMaxMillis;
+  // 0 when the circuit never opens
+  private final int breakerFailureThreshold;
+  private final long breakerOpenNanos;
+  // 0 when no read is hedged
+  private final long hedgeDelayMillis;
+  private final ScheduledThreadPoolExecutor timer;
+
+  private final AtomicLong retries = new AtomicLong();
+  private final AtomicLong hedges = new AtomicLong();
+  private final AtomicLong hedgeWins = new AtomicLong();
+  private final AtomicLong circuitOpens = new AtomicLong();
+  private final AtomicLong circuitRejected = new AtomicLong();
+
+  // Guarded by this
+  private CircuitState state = CircuitState.CLOSED;
+  private int consecutiveFailures;
+  private long openedAt;
+  private boolean trialInFlight;
+
+  KeycloakResilience(int maxRetries, long retryBaseMillis, long retryMaxMillis, int breakerFailureThreshold,
+                     long breakerOpenMillis, long hedgeDelayMillis) {
+    this.maxRetries = Math.max(0, maxRetries);
+    this.retryBaseMillis = Math.max(1, retryBaseMillis);
+    this.retryMaxMillis = Math.max(this.retryBaseMillis, retryMaxMillis);
+    this.breakerFailureThreshold = Math.max(0, breakerFailureThreshold);
+    this.breakerOpenNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, breakerOpenMillis));
+    this.hedgeDelayMillis = Math.max(0, hedgeDelayMillis);
+    this.timer = new ScheduledThreadPoolExecutor(1,
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("keycloak-resilience-%d").build());
+    // Hedges are scheduled for every hedged read, and most are cancelled
+    timer.setRemoveOnCancelPolicy(true);
+  }
+
+  /**
+   * Send an idempotent read, retried and, if <code>hedged</code>, hedged.
+   *
+   * @param send sends the read once; it must not block
+   */
+  <T> CompletableFuture<T> read(String endpoint, boolean hedged, Supplier<CompletableFuture<T>> send) {
+    CompletableFuture<T> result = new CompletableFuture<>();
+    Supplier<CompletableFuture<T>> attempt = hedged && hedgeDelayMillis > 0
+      ? () -> hedge(endpoint, send)
+      : () -> guard(send);
+    retry(endpoint, attempt, 0, result);
+    return result;
+  }
+
+  /**
+   * Send a write once, unless the circuit is open.
+   *
+   * @param send sends the write; it must not block
+   */
+  <T> CompletableFuture<T> write(Supplier<CompletableFuture<T>> send) {
+    return guard(send);
+  }
+
+  void shutdown() {
+    timer.shutdownNow();
+  }
+
+  synchronized CircuitState getCircuitState() {
+    return state;
+  }
+
+  /**
+   * @return reads sent again after a transient failure
+   */
+  long getRetries() {
+    return retries.get();
+  }
+
+  /**
+   * @return reads sent a second time because the first had no answer yet
+   */
+  long getHedges() {
+    return hedges.get();
+  }
+
+  /**
+   * @return hedged reads answered by the second send first
+   */
+  long getHedgeWins() {
+    return hedgeWins.get();
+  }
+
+  long getCircuitOpens() {
+    return circuitOpens.get();
+  }
+
+  /**
+   * @return calls failed at once because the circuit was open
+   */
+  long getCircuitRejected() {
+    return circuitRejected.get();
+  }
+
+  private <T> void retry(String endpoint, Supplier<CompletableFuture<T>> attempt, int retry,
+                         CompletableFuture<T> result) {
+    attempt.get().whenComplete((value, failure) -> {
+      if (failure == null) {
+        result.complete(value);
+      } else if (retry >= maxRetries || !isKeycloakFailure(failure)) {
+        result.completeExceptionally(failure);
+      } else {
+        long delay = ThreadLocalRandom.current()
+          .nextLong(Math.min(retryMaxMillis, retryBaseMillis << Math.min(retry, 20)) + 1);
+        retries.incrementAndGet();
+        LOGGER.debug("Retrying a Keycloak " + endpoint + " call in " + delay + " ms after: " + cause(failure));
+        try {
+          timer.schedule(() -> retry(endpoint, attempt, retry + 1, result), delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+          // Shutting down
+          result.completeExceptionally(failure);
+        }
+      }
+    });
+  }
+
+  /**
+   * Send the read, and send it again if it has no answer after the hedge delay. The first answer
+   * wins; the read fails only if every send failed.
+   */
+  private <T> CompletableFuture<T> hedge(String endpoint, Supplier<CompletableFuture<T>> send) {
+    CompletableFuture<T> result = new CompletableFuture<>();
+    AtomicInteger pending = new AtomicInteger(1);
+    guard(send).whenComplete((value, failure) -> settle(result, pending, value, failure, false));
+    ScheduledFuture<?> second;
+    try {
+      second = timer.schedule(() -> {
+        if (!result.isDone()) {
+          pending.incrementAndGet();
+          hedges.incrementAndGet();
+          LOGGER.debug("Hedging a Keycloak " + endpoint + " call after " + hedgeDelayMillis + " ms");
+          guard(send).whenComplete((value, failure) -> settle(result, pending, value, failure, true));
+        }
+      }, hedgeDelayMillis, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      // Shutting down, the first send is all there is
+      return result;
+    }
+    result.whenComplete((value, failure) -> second.cancel(false));
+    return result;
+  }
+
+  private <T> void settle(CompletableFuture<T> result, AtomicInteger pending, T value, Throwable failure,
+                          boolean hedge) {
+    if (failure == null) {
+      if (result.complete(value) && hedge) {
+        hedgeWins.incrementAndGet();
+      }
+    } else if (pending.decrementAndGet() == 0) {
+      result.completeExceptionally(failure);
+    }
+  }
+
+  /**
+   * Send the call through the circuit breaker and record how it went.
+   */
+  private <T> CompletableFuture<T> guard(Supplier<CompletableFuture<T>> send) {
+    boolean trial;
+    synchronized (this) {
+      if (!allow()) {
+        circuitRejected.incrementAndGet();
+        CompletableFuture<T> rejected = new CompletableFuture<>();
+        rejected.completeExceptionally(new RejectedExecutionException("Keycloak is not answering; calls are refused"
+          + " until the circuit breaker lets one through"));
+        return rejected;
+      }
+      trial = state == CircuitState.HALF_OPEN;
+    }
+    CompletableFuture<T> sent;
+    try {
+      sent = send.get();
+    } catch (RuntimeException e) {
+      sent = new CompletableFuture<>();
+      sent.completeExceptionally(e);
+    }
+    return sent.whenComplete((value, failure) -> record(failure, trial));
+  }
+
+  // Called holding the lock
+  private boolean allow() {
+    if (breakerFailureThreshold == 0 || state == CircuitState.CLOSED) {
+      return true;
+    }
+    if (state == CircuitState.OPEN && System.nanoTime() - openedAt >= breakerOpenNanos) {
+      state = CircuitState.HALF_OPEN;
+      trialInFlight = false;
+    }
+    if (state == CircuitState.HALF_OPEN && !trialInFlight) {
+      trialInFlight = true;
+      return true;
+    }
+    return false;
+  }
+
+  private synchronized void record(Throwable failure, boolean trial) {
+    if (breakerFailureThreshold == 0) {
+      return;
+    }
+    if (failure != null && cause(failure) instanceof RejectedExecutionException) {
+      // Never sent: says nothing about Keycloak, and lets another call try
+      if (trial) {
+        trialInFlight = false;
+      }
+      return;
+    }
+    if (failure == null || !isKeycloakFailure(failure)) {
+      if (state != CircuitState.CLOSED) {
+        LOGGER.info("Keycloak is answering again, circuit breaker closed");
+      }
+      state = CircuitState.CLOSED;
+      consecutiveFailures = 0;
+      return;
+    }
+    consecutiveFailures++;
+    if (trial || (state == CircuitState.CLOSED && consecutiveFailures >= breakerFailureThreshold)) {
+      if (state != CircuitState.OPEN) {
+        circuitOpens.incrementAndGet();
+        LOGGER.warn("Circuit breaker opened after " + consecutiveFailures + " failed Keycloak calls in a row, last: "
+          + cause(failure));
+      }
+      state = CircuitState.OPEN;
+      openedAt = System.nanoTime();
+      trialInFlight = false;
+    }
+  }
+
+  /**
+   * @return whether the call failed because Keycloak could not take it: it did not answer, answered
+   * 429 or a 5xx, or the call was refused by the open circuit or the concurrency limiter
+   */
+  static boolean isUnavailable(Throwable failure) {
+    return cause(failure) instanceof RejectedExecutionException || isKeycloakFailure(failure);
+  }
+
+  /**
+   * @return whether the call failed because Keycloak did not answer, or answered 429 or a 5xx
+   */
+  private static boolean isKeycloakFailure(Throwable failure) {
+    Throwable cause = cause(failure);
+    if (cause instanceof WebApplicationException) {
+      int status = ((WebApplicationException) cause).getResponse().getStatus();
+      return status == 429 || status >= 500;
+    }
+    return cause instanceof ProcessingException;
+  }
+
+  private static Throwable cause(Throwable failure) {
+    Throwable cause = failure;
+    while ((cause instanceof CompletionException || cause instanceof ExecutionException) && cause.getCause() != null) {
+      cause = cause.getCause();
+    }
+    return cause;
+  }
+}
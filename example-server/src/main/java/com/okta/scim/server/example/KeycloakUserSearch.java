@@ -0,0 +1,113 @@
+package com.okta.scim.server.example;
+
+import org.keycloak.representations.idm.UserRepresentation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Predicate;
+
+/**
+ * Bounded user searches against Keycloak.
+ * <p>
+ * Keycloak's <code>username</code> search parameter is a substring match, so an unbounded search
+ * for a short userName can return a large part of the realm. Every search here is windowed:
+ * exact lookups read small, growing windows and stop at the first exact hit, and substring
+ * searches fetch a single page and get their total from the filtered count endpoint. Scans for
+ * every user matching a search read growing windows too, up to 500 users per request.
+ */
+final class KeycloakUserSearch {
+  private static final Logger LOGGER = LoggerFactory.getLogger(KeycloakUserSearch.class);
+
+  // Upper bound for the window size while scanning for an exact userName match
+  private static final int MAX_EXACT_MATCH_WINDOW = 100;
+  // Upper bound for the window size while reading every user that matches a search
+  private static final int MAX_SCAN_WINDOW = 500;
+
+  private final KeycloakGateway gateway;
+  private final int exactMatchWindow;
+
+  KeycloakUserSearch(KeycloakGateway gateway, int exactMatchWindow) {
+    this.gateway = gateway;
+    this.exactMatchWindow = Math.max(1, exactMatchWindow);
+  }
+
+  /**
+   * Find the user whose userName is exactly <code>userName</code>. Keycloak stores usernames in
+   * lower case, so the comparison ignores case.
+   * <p>
+   * The first request asks for <code>exactMatchWindow</code> results, which is enough for nearly
+   * every lookup. If the window is full and has no exact hit, the window doubles (up to 100) and
+   * the scan continues.
+   *
+   * @param userName the userName to look for
+   * @return the matching user, or null if there is none
+   */
+  UserRepresentation findByUserName(String userName) {
+    int first = 0;
+    int window = exactMatchWindow;
+    while (true) {
+      List<UserRepresentation> candidates =
+        KeycloakGateway.await(gateway.searchUsers(userName, null, null, null, first, window));
+      for (UserRepresentation candidate : candidates) {
+        if (userName.equalsIgnoreCase(candidate.getUsername())) {
+          return candidate;
+        }
+      }
+
+      if (candidates.size() < window) {
+        return null;
+      }
+
+      LOGGER.debug("  no exact match for " + userName + " in window (first=" + first + ", max=" + window + ")");
+      first += window;
+      window = Math.min(window * 2, MAX_EXACT_MATCH_WINDOW);
+    }
+  }
+
+  /**
+   * Find every user matching the search that <code>matches</code> accepts. Each non-null attribute
+   * is a substring match in Keycloak, so <code>matches</code> applies the exact conditions.
+   * <p>
+   * Windows start at <code>exactMatchWindow</code> users and double, up to 500, until Keycloak
+   * returns a window that is not full.
+   *
+   * @return the accepted users, in Keycloak's order
+   */
+  List<UserRepresentation> findAll(String username, String firstName, String lastName, String email,
+                                   Predicate<UserRepresentation> matches) {
+    List<UserRepresentation> found = new ArrayList<>();
+    int first = 0;
+    int window = exactMatchWindow;
+    while (true) {
+      List<UserRepresentation> candidates =
+        KeycloakGateway.await(gateway.searchUsers(username, firstName, lastName, email, first, window));
+      for (UserRepresentation candidate : candidates) {
+        if (matches.test(candidate)) {
+          found.add(candidate);
+        }
+      }
+      if (candidates.size() < window) {
+        return found;
+      }
+      first += window;
+      window = Math.min(window * 2, MAX_SCAN_WINDOW);
+    }
+  }
+
+  /**
+   * Fetch one page of users whose userName contains <code>userName</code>.
+   */
+  CompletableFuture<List<UserRepresentation>> searchByUserName(String userName, KeycloakPage page) {
+    return gateway.searchUsers(userName, null, null, null, page.getFirst(), page.getMax());
+  }
+
+  /**
+   * Count the users whose userName contains <code>userName</code>.
+   */
+  CompletableFuture<Integer> countByUserName(String userName) {
+    return gateway.countUsers(userName, null, null, null).thenApply(count -> count != null ? count : 0);
+  }
+}
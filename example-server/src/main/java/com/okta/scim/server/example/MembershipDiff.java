@@ -0,0 +1,102 @@
+package com.okta.scim.server.example;
+
+import com.okta.scim.util.model.Membership;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Makes the members of a Keycloak group match the members of a pushed <code>SCIMGroup</code>.
+ * <p>
+ * The existing members are streamed page by page into a set of ids, so only ids are held and
+ * never full representations. The adds and removes are computed once from that set and applied
+ * together through the {@link MembershipExecutor}.
+ */
+final class MembershipDiff {
+  private static final Logger LOGGER = LoggerFactory.getLogger(MembershipDiff.class);
+
+  private final GroupMemberPager memberPager;
+  private final MembershipExecutor membershipExecutor;
+
+  MembershipDiff(GroupMemberPager memberPager, MembershipExecutor membershipExecutor) {
+    this.memberPager = memberPager;
+    this.membershipExecutor = membershipExecutor;
+  }
+
+  /**
+   * Add the requested members that are missing and remove the existing members that were not
+   * requested.
+   *
+   * @param groupId the Keycloak id of the group
+   * @param groupName the group name, used for logging
+   * @param requestedMembers the members the group should have after the call
+   * @return what was changed and how many Keycloak round trips it took
+   * @throws javax.ws.rs.NotFoundException if the group does not exist
+   */
+  Result apply(String groupId, String groupName, Collection<Membership> requestedMembers) {
+    Set<String> existingIds = new HashSet<>();
+    int pageReads = memberPager.forEachMember(groupId, member -> existingIds.add(member.getId()));
+
+    Set<String> requestedIds = new HashSet<>();
+    for (Membership membership : requestedMembers) {
+      requestedIds.add(membership.getId());
+    }
+
+    List<String> idsToAdd = new ArrayList<>();
+    for (String id : requestedIds) {
+      if (!existingIds.contains(id)) {
+        idsToAdd.add(id);
+      }
+    }
+    List<String> idsToRemove = new ArrayList<>();
+    for (String id : existingIds) {
+      if (!requestedIds.contains(id)) {
+        idsToRemove.add(id);
+      }
+    }
+
+    LOGGER.debug("  group " + groupName + " has " + existingIds.size() + " members, adding " + idsToAdd.size()
+      + " and removing " + idsToRemove.size());
+
+    List<MembershipResult> results = membershipExecutor.apply(groupId, idsToAdd, idsToRemove);
+    return new Result(pageReads, results);
+  }
+
+  /**
+   * The outcome of one membership diff.
+   */
+  static final class Result {
+    private final int pageReads;
+    private final List<MembershipResult> changes;
+
+    Result(int pageReads, List<MembershipResult> changes) {
+      this.pageReads = pageReads;
+      this.changes = changes;
+    }
+
+    /**
+     * @return one result per member that was added or removed
+     */
+    List<MembershipResult> getChanges() {
+      return changes;
+    }
+
+    /**
+     * @return the Keycloak calls made: one per member page plus one per membership change
+     */
+    int getRoundTrips() {
+      return pageReads + changes.size();
+    }
+
+    @Override
+    public String toString() {
+      return pageReads + " member page(s) read, " + changes.size() + " membership change(s), "
+        + getRoundTrips() + " Keycloak round trips";
+    }
+  }
+}
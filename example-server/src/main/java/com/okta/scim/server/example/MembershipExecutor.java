@@ -0,0 +1,148 @@
+package com.okta.scim.server.example;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.NotFoundException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Applies group membership changes to Keycloak concurrently.
+ * <p>
+ * Every change is a single <code>PUT</code> or <code>DELETE</code> on
+ * <code>/users/{id}/groups/{groupId}</code>. There is no existence check beforehand: a user that
+ * does not exist makes Keycloak answer 404, and that member is reported as failed. Any other
+ * failure is reported too, and {@link #throwFailure(List)} then fails the push with it.
+ * <p>
+ * The changes are issued through the {@link KeycloakGateway}. At most <code>parallelism</code> changes
+ * are in flight across all groups. A single call to {@link #apply(String, Collection, Collection)}
+ * never has more than <code>perGroupConcurrency</code> of them, so one large group cannot use up
+ * the whole budget.
+ */
+final class MembershipExecutor {
+  private static final Logger LOGGER = LoggerFactory.getLogger(MembershipExecutor.class);
+
+  enum Operation {
+    JOIN, LEAVE
+  }
+
+  private final KeycloakGateway gateway;
+  private final Semaphore globalPermits;
+  private final int perGroupConcurrency;
+
+  MembershipExecutor(KeycloakGateway gateway, int parallelism, int perGroupConcurrency) {
+    this.gateway = gateway;
+    this.globalPermits = new Semaphore(Math.max(1, parallelism));
+    this.perGroupConcurrency = Math.max(1, perGroupConcurrency);
+  }
+
+  /**
+   * Add the users to, or remove them from, the group and wait for every change to finish.
+   *
+   * @param groupId the Keycloak id of the group
+   * @param userIds the Keycloak ids of the users
+   * @param operation whether the users join or leave the group
+   * @return one result per user, in the order of <code>userIds</code>
+   */
+  List<MembershipResult> apply(String groupId, Collection<String> userIds, Operation operation) {
+    return operation == Operation.JOIN
+      ? apply(groupId, userIds, Collections.<String>emptyList())
+      : apply(groupId, Collections.<String>emptyList(), userIds);
+  }
+
+  /**
+   * Add some users to the group and remove others, sharing one concurrency cap, and wait for
+   * every change to finish.
+   *
+   * @param groupId the Keycloak id of the group
+   * @param joiningUserIds the Keycloak ids of the users to add
+   * @param leavingUserIds the Keycloak ids of the users to remove
+   * @return one result per user, the joins first, then the leaves
+   */
+  List<MembershipResult> apply(String groupId, Collection<String> joiningUserIds, Collection<String> leavingUserIds) {
+    Semaphore groupPermits = new Semaphore(perGroupConcurrency);
+    List<CompletableFuture<MembershipResult>> pending =
+      new ArrayList<>(joiningUserIds.size() + leavingUserIds.size());
+    submit(groupId, joiningUserIds, Operation.JOIN, groupPermits, pending);
+    submit(groupId, leavingUserIds, Operation.LEAVE, groupPermits, pending);
+
+    List<MembershipResult> results = new ArrayList<>(pending.size());
+    for (CompletableFuture<MembershipResult> future : pending) {
+      results.add(future.join());
+    }
+    return results;
+  }
+
+  private void submit(String groupId, Collection<String> userIds, Operation operation, Semaphore groupPermits,
+                      List<CompletableFuture<MembershipResult>> pending) {
+    for (String userId : userIds) {
+      // Always the group permit first, then the global one, so two pushes cannot deadlock
+      groupPermits.acquireUninterruptibly();
+      globalPermits.acquireUninterruptibly();
+      CompletableFuture<Void> change;
+      try {
+        change = operation == Operation.JOIN ? gateway.joinGroup(userId, groupId) : gateway.leaveGroup(userId, groupId);
+      } catch (RuntimeException e) {
+        globalPermits.release();
+        groupPermits.release();
+        throw e;
+      }
+      pending.add(change.handle((ignored, failure) -> {
+        globalPermits.release();
+        groupPermits.release();
+        return toResult(groupId, userId, operation, failure);
+      }));
+    }
+  }
+
+  /**
+   * Log how many changes succeeded and which failed.
+   */
+  static void report(String groupName, List<MembershipResult> results) {
+    int failed = 0;
+    for (MembershipResult result : results) {
+      if (!result.isSuccess()) {
+        failed++;
+        LOGGER.warn("  " + result + " (group " + groupName + ")");
+      }
+    }
+    LOGGER.info("Membership changes for group " + groupName + ": " + (results.size() - failed) + " succeeded, "
+      + failed + " failed");
+  }
+
+  /**
+   * Throw why a change failed, unless every failed change was for a user or group that does not
+   * exist. A failure because Keycloak was unavailable is thrown before any other.
+   */
+  static void throwFailure(List<MembershipResult> results) {
+    RuntimeException error = null;
+    for (MembershipResult result : results) {
+      if (result.getError() != null && KeycloakResilience.isUnavailable(result.getError())) {
+        throw result.getError();
+      }
+      if (error == null) {
+        error = result.getError();
+      }
+    }
+    if (error != null) {
+      throw error;
+    }
+  }
+
+  private static MembershipResult toResult(String groupId, String userId, Operation operation, Throwable failure) {
+    if (failure == null) {
+      return MembershipResult.succeeded(userId, operation);
+    }
+    RuntimeException cause = KeycloakGateway.unwrap(failure);
+    if (cause instanceof NotFoundException) {
+      return MembershipResult.notFound(userId, operation);
+    }
+    LOGGER.debug("  " + operation + " of user " + userId + " in group " + groupId + " failed", cause);
+    return MembershipResult.failed(userId, operation, cause);
+  }
+}
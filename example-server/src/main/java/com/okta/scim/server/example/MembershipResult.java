@@ -0,0 +1,69 @@
+package com.okta.scim.server.example;
+
+/**
+ * The outcome of adding one user to, or removing one user from, a Keycloak group.
+ */
+final class MembershipResult {
+  private final String userId;
+  private final MembershipExecutor.Operation operation;
+  private final String failure;
+  private final RuntimeException error;
+
+  private MembershipResult(String userId, MembershipExecutor.Operation operation, String failure,
+                           RuntimeException error) {
+    this.userId = userId;
+    this.operation = operation;
+    this.failure = failure;
+    this.error = error;
+  }
+
+  static MembershipResult succeeded(String userId, MembershipExecutor.Operation operation) {
+    return new MembershipResult(userId, operation, null, null);
+  }
+
+  /**
+   * @return a change that failed because the user or the group does not exist
+   */
+  static MembershipResult notFound(String userId, MembershipExecutor.Operation operation) {
+    return new MembershipResult(userId, operation, "user or group not found", null);
+  }
+
+  /**
+   * @return a change that failed for any other reason, which fails the whole push
+   */
+  static MembershipResult failed(String userId, MembershipExecutor.Operation operation, RuntimeException error) {
+    return new MembershipResult(userId, operation, String.valueOf(error), error);
+  }
+
+  String getUserId() {
+    return userId;
+  }
+
+  MembershipExecutor.Operation getOperation() {
+    return operation;
+  }
+
+  boolean isSuccess() {
+    return failure == null;
+  }
+
+  /**
+   * @return why the membership change failed, or null if it succeeded
+   */
+  String getFailure() {
+    return failure;
+  }
+
+  /**
+   * @return why the change failed if it was not because the user or the group does not exist,
+   * otherwise null
+   */
+  RuntimeException getError() {
+    return error;
+  }
+
+  @Override
+  public String toString() {
+    return operation + " " + userId + (failure == null ? " succeeded" : " failed: " + failure);
+  }
+}
@@ -0,0 +1,26 @@
+package com.okta.scim.server.example;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+/**
+ * Serves the connector metrics as Prometheus text on <code>GET /metrics</code>.
+ * <p>
+ * Picked up by the component scan of <code>com.okta.scim.server</code> in the SDK's
+ * <code>opp-sdk-config.xml</code>.
+ */
+@Controller
+public class MetricsController {
+
+  @Autowired
+  private SCIMServiceImpl service;
+
+  @RequestMapping(value = "/metrics", method = RequestMethod.GET, produces = "text/plain; version=0.0.4")
+  @ResponseBody
+  public String getMetrics() {
+    return service.getMetrics().getText();
+  }
+}
@@ -0,0 +1,732 @@
+package com.okta.scim.server.example;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.okta.scim.util.model.Membership;
+import com.okta.scim.util.model.PaginationProperties;
+import com.okta.scim.util.model.SCIMGroup;
+import com.okta.scim.util.model.SCIMGroupQueryResponse;
+import com.okta.scim.util.model.SCIMUser;
+import com.okta.scim.util.model.SCIMUserQueryResponse;
+import org.keycloak.representations.idm.GroupRepresentation;
+import org.keycloak.representations.idm.UserRepresentation;
+import org.roaringbitmap.IntIterator;
+import org.roaringbitmap.PeekableIntIterator;
+import org.roaringbitmap.RoaringBitmap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.IntFunction;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+
+/**
+ * An in-memory copy of the users, groups and group memberships of the realm, from which user and
+ * group reads are answered without calling Keycloak.
+ * <p>
+ * Every user and group gets an int surrogate id when it is loaded, and its attributes are kept in
+ * column arrays indexed by it: the Keycloak id, the username, and the first and last names, which
+ * repeat across users and are interned so each distinct name is held once. Ids and usernames are
+ * found through open-addressing tables of surrogates, and the members of a group are a compressed
+ * bitmap of user surrogates. The surrogates of deleted users and groups are not reused, so their
+ * slots stay empty until the next reload.
+ * <p>
+ * Pages are cut from the bitmap of live users, in load order: the Keycloak listing order for the
+ * users that were there at the last reload, then creation order. A page costs the users it returns,
+ * whatever its start index.
+ * <p>
+ * The replica is loaded by {@link #reload()}, which reads the realm without blocking readers; they
+ * keep seeing the previous copy until the new one is complete. Writes made by this connector are
+ * applied through {@link #putUser(UserRepresentation)} and the other update methods after Keycloak
+ * accepted them, and writes made elsewhere arrive through the {@link KeycloakChangeFeed}. Without
+ * the change feed, the replica does not see changes made outside this connector until the next
+ * reload.
+ * <p>
+ * As a heap budget, plan for about 450MB per million users, plus about 2 bytes per group
+ * membership, and twice that while a reload builds the next copy next to the current one. That is
+ * what the load harness measures, where every user has a distinct first and last name; when names
+ * repeat, as they do in real directories, each distinct name is held once and less is needed.
+ */
+final class RealmReplica implements KeycloakChangeFeed.Listener {
+  private static final Logger LOGGER = LoggerFactory.getLogger(RealmReplica.class);
+
+  private final KeycloakGateway gateway;
+  private final int userPageSize;
+  private final int memberPageSize;
+  private final int loadParallelism;
+  // Serializes reloads so two never build a copy at the same time
+  private final Object reloadLock = new Object();
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+  private final AtomicLong reloads = new AtomicLong();
+
+  // Guarded by lock; null until the first reload completed
+  private Realm realm;
+  // Changes made while a reload is reading the realm, replayed on top of the new copy
+  private List<Consumer<Realm>> changesDuringReload;
+
+  /**
+   * @param userPageSize users requested per Keycloak page while loading
+   * @param memberPageSize members requested per Keycloak page while loading
+   * @param loadParallelism groups whose members are read concurrently while loading
+   */
+  RealmReplica(KeycloakGateway gateway, int userPageSize, int memberPageSize, int loadParallelism) {
+    this.gateway = gateway;
+    this.userPageSize = Math.max(1, userPageSize);
+    this.memberPageSize = Math.max(1, memberPageSize);
+    this.loadParallelism = Math.max(1, loadParallelism);
+  }
+
+  /**
+   * @return true once the replica has been loaded and can answer reads
+   */
+  boolean isLoaded() {
+    lock.readLock().lock();
+    try {
+      return realm != null;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * A page of users, or every user when <code>pageProperties</code> is null.
+   */
+  SCIMUserQueryResponse getUsers(PaginationProperties pageProperties) {
+    lock.readLock().lock();
+    try {
+      Realm current = loadedRealm();
+      SCIMUserQueryResponse response = new SCIMUserQueryResponse();
+      List<SCIMUser> users = new ArrayList<>();
+      if (pageProperties == null) {
+        current.liveUsers.forEach((int user) -> users.add(current.toScimUser(user)));
+      } else {
+        response.setStartIndex(pageProperties.getStartIndex());
+        KeycloakPage page = KeycloakPage.from(pageProperties);
+        forEachInPage(current.liveUsers, page, user -> users.add(current.toScimUser(user)));
+      }
+      response.setTotalResults(current.liveUsers.getCardinality());
+      response.setScimUsers(users);
+      return response;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Users whose username equals <code>userName</code>, or contains it when <code>exact</code> is
+   * false. Both ignore case, as Keycloak does.
+   */
+  SCIMUserQueryResponse findUsersByUserName(String userName, boolean exact, PaginationProperties pageProperties) {
+    String key = userName.toLowerCase(Locale.ROOT);
+    List<UserRepresentation> matches = new ArrayList<>();
+    lock.readLock().lock();
+    try {
+      Realm current = loadedRealm();
+      if (exact) {
+        int user = current.usersByName.get(key);
+        if (user >= 0) {
+          matches.add(current.toRepresentation(user));
+        }
+      } else {
+        current.liveUsers.forEach((int user) -> {
+          if (current.userNames[user].contains(key)) {
+            matches.add(current.toRepresentation(user));
+          }
+        });
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    return SCIMServiceImpl.getScimUsersToReturn(pageProperties, matches);
+  }
+
+  /**
+   * Users that <code>matches</code> accepts. When <code>exactUserName</code> is given, only the user
+   * with that username is tested, found through the username table; otherwise every user is.
+   *
+   * @param exactUserName a username the users must have, ignoring case, or null
+   */
+  List<UserRepresentation> findUsers(String exactUserName, Predicate<UserRepresentation> matches) {
+    List<UserRepresentation> found = new ArrayList<>();
+    lock.readLock().lock();
+    try {
+      Realm current = loadedRealm();
+      if (exactUserName != null) {
+        int user = current.usersByName.get(exactUserName.toLowerCase(Locale.ROOT));
+        if (user >= 0 && matches.test(current.toRepresentation(user))) {
+          found.add(current.toRepresentation(user));
+        }
+      } else {
+        current.liveUsers.forEach((int user) -> {
+          UserRepresentation representation = current.toRepresentation(user);
+          if (matches.test(representation)) {
+            found.add(representation);
+          }
+        });
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    return found;
+  }
+
+  /**
+   * A page of the top-level groups, or all of them when <code>pageProperties</code> is null, as
+   * Keycloak lists them.
+   *
+   * @param includeMembers whether each group carries its members, as from {@link #getGroup(String)}
+   */
+  SCIMGroupQueryResponse getGroups(PaginationProperties pageProperties, boolean includeMembers) {
+    lock.readLock().lock();
+    try {
+      Realm current = loadedRealm();
+      SCIMGroupQueryResponse response = new SCIMGroupQueryResponse();
+      List<SCIMGroup> groups = new ArrayList<>();
+      if (pageProperties == null) {
+        current.topLevelGroups.forEach((int group) -> groups.add(current.toScimGroup(group, includeMembers)));
+      } else {
+        response.setStartIndex(pageProperties.getStartIndex());
+        forEachInPage(current.topLevelGroups, KeycloakPage.from(pageProperties),
+          group -> groups.add(current.toScimGroup(group, includeMembers)));
+      }
+      response.setTotalResults(current.topLevelGroups.getCardinality());
+      response.setScimGroups(groups);
+      return response;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @param id the Keycloak id of the group
+   * @return the group with its members, or null if the replica does not hold it
+   */
+  SCIMGroup getGroup(String id) {
+    lock.readLock().lock();
+    try {
+      Realm current = loadedRealm();
+      int group = current.groupsById.get(id);
+      if (group < 0) {
+        return null;
+      }
+      return current.toScimGroup(group, true);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  int userCount() {
+    return count(current -> current.liveUsers.getCardinality());
+  }
+
+  int groupCount() {
+    return count(current -> current.liveGroups.getCardinality());
+  }
+
+  int membershipCount() {
+    return count(current -> {
+      long memberships = 0;
+      for (IntIterator groups = current.liveGroups.getIntIterator(); groups.hasNext(); ) {
+        memberships += current.members[groups.next()].getLongCardinality();
+      }
+      return Math.toIntExact(memberships);
+    });
+  }
+
+  long getReloads() {
+    return reloads.get();
+  }
+
+  /**
+   * Record a user that was created or updated in Keycloak.
+   */
+  void putUser(UserRepresentation user) {
+    apply(current -> current.putUser(user));
+  }
+
+  void removeUser(String id) {
+    apply(current -> current.removeUser(id));
+  }
+
+  /**
+   * Record a group that was created, renamed or moved in Keycloak. The members of a known group
+   * are kept.
+   */
+  void putGroup(String id, String name, boolean topLevel) {
+    apply(current -> current.putGroup(id, name, topLevel));
+  }
+
+  void removeGroup(String id) {
+    apply(current -> current.removeGroup(id));
+  }
+
+  /**
+   * Record the membership changes that Keycloak accepted for a group; failed changes are ignored.
+   */
+  void applyMemberships(String groupId, Collection<MembershipResult> results) {
+    apply(current -> {
+      for (MembershipResult result : results) {
+        if (result.isSuccess()) {
+          current.setMember(result.getUserId(), groupId, result.getOperation() == MembershipExecutor.Operation.JOIN);
+        }
+      }
+    });
+  }
+
+  @Override
+  public void userChanged(String userId, boolean deleted) {
+    if (deleted) {
+      removeUser(userId);
+      return;
+    }
+    if (!isTracking()) {
+      return;
+    }
+    try {
+      putUser(KeycloakGateway.await(gateway.getUser(userId)));
+    } catch (javax.ws.rs.NotFoundException e) {
+      // Deleted since; the deletion is a later event
+      removeUser(userId);
+    }
+  }
+
+  /**
+   * Apply a group change reported by the change feed. The group is read from Keycloak, as the event
+   * does not tell whether it is a top-level group.
+   */
+  @Override
+  public void groupChanged(String groupId, String name, boolean deleted) {
+    if (deleted) {
+      removeGroup(groupId);
+      return;
+    }
+    if (!isTracking()) {
+      return;
+    }
+    try {
+      GroupRepresentation group = KeycloakGateway.await(gateway.getGroup(groupId));
+      putGroup(groupId, group.getName(), isTopLevel(group));
+    } catch (javax.ws.rs.NotFoundException e) {
+      removeGroup(groupId);
+    }
+  }
+
+  @Override
+  public void membershipChanged(String userId, String groupId, boolean joined) {
+    apply(current -> current.setMember(userId, groupId, joined));
+  }
+
+  @Override
+  public void reconcile() {
+    reload();
+  }
+
+  /**
+   * Read the whole realm into a new copy and replace the current one with it: the users page by
+   * page, then the group hierarchy, then the members of up to <code>loadParallelism</code> groups at
+   * a time. Reads are answered from the previous copy until the new one is complete.
+   */
+  void reload() {
+    synchronized (reloadLock) {
+      long start = System.nanoTime();
+      lock.writeLock().lock();
+      try {
+        changesDuringReload = new ArrayList<>();
+      } finally {
+        lock.writeLock().unlock();
+      }
+
+      Realm loaded = new Realm();
+      try {
+        load(loaded);
+      } catch (RuntimeException e) {
+        lock.writeLock().lock();
+        try {
+          changesDuringReload = null;
+        } finally {
+          lock.writeLock().unlock();
+        }
+        throw e;
+      }
+
+      lock.writeLock().lock();
+      try {
+        for (Consumer<Realm> change : changesDuringReload) {
+          change.accept(loaded);
+        }
+        changesDuringReload = null;
+        realm = loaded;
+      } finally {
+        lock.writeLock().unlock();
+      }
+      reloads.incrementAndGet();
+      LOGGER.info("realm replica loaded " + loaded.liveUsers.getCardinality() + " users and "
+        + loaded.liveGroups.getCardinality() + " groups in "
+        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+    }
+  }
+
+  /**
+   * {@link #reload()} for use from a scheduler, where an exception would cancel the task.
+   */
+  void reloadQuietly() {
+    try {
+      reload();
+    } catch (RuntimeException e) {
+      LOGGER.warn("Cannot load the realm replica", e);
+    }
+  }
+
+  private void load(Realm loaded) {
+    for (int first = 0; ; first += userPageSize) {
+      List<UserRepresentation> page = KeycloakGateway.await(gateway.listUsers(first, userPageSize));
+      for (UserRepresentation user : page) {
+        loaded.putUser(user);
+      }
+      if (page.size() < userPageSize) {
+        break;
+      }
+    }
+
+    Deque<GroupRepresentation> pending = new ArrayDeque<>(KeycloakGateway.await(gateway.listGroups()));
+    int topLevel = pending.size();
+    while (!pending.isEmpty()) {
+      GroupRepresentation group = pending.removeFirst();
+      loaded.putGroup(group.getId(), group.getName(), topLevel-- > 0);
+      if (group.getSubGroups() != null) {
+        pending.addAll(group.getSubGroups());
+      }
+    }
+
+    Semaphore permits = new Semaphore(loadParallelism);
+    List<CompletableFuture<Void>> members = new ArrayList<>();
+    for (IntIterator groups = loaded.liveGroups.getIntIterator(); groups.hasNext(); ) {
+      int group = groups.next();
+      permits.acquireUninterruptibly();
+      members.add(loadMembers(loaded, group, 0).whenComplete((ignored, failure) -> permits.release()));
+    }
+    for (CompletableFuture<Void> future : members) {
+      KeycloakGateway.await(future);
+    }
+  }
+
+  // Pages of one group are read one after the other, so only one thread updates its bitmap at a time
+  private CompletableFuture<Void> loadMembers(Realm loaded, int group, int first) {
+    return gateway.groupMembers(loaded.groupIds[group], first, memberPageSize)
+      .handle((page, failure) -> {
+        if (failure != null) {
+          RuntimeException cause = KeycloakGateway.unwrap(failure);
+          if (cause instanceof javax.ws.rs.NotFoundException) {
+            // Deleted while loading; the deletion is replayed after the load
+            return CompletableFuture.<Void>completedFuture(null);
+          }
+          throw cause;
+        }
+        for (UserRepresentation member : page) {
+          int user = loaded.usersById.get(member.getId());
+          if (user >= 0) {
+            loaded.members[group].add(user);
+          }
+        }
+        return page.size() < memberPageSize
+          ? CompletableFuture.<Void>completedFuture(null)
+          : loadMembers(loaded, group, first + memberPageSize);
+      })
+      .thenCompose(next -> next);
+  }
+
+  private void apply(Consumer<Realm> change) {
+    lock.writeLock().lock();
+    try {
+      if (changesDuringReload != null) {
+        changesDuringReload.add(change);
+      }
+      if (realm != null) {
+        change.accept(realm);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  // False before the first reload started, when there is nothing to apply a change to
+  private boolean isTracking() {
+    lock.readLock().lock();
+    try {
+      return realm != null || changesDuringReload != null;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private int count(ToIntFunction<Realm> counter) {
+    lock.readLock().lock();
+    try {
+      return realm != null ? counter.applyAsInt(realm) : 0;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  // Must hold the read lock
+  private Realm loadedRealm() {
+    if (realm == null) {
+      throw new IllegalStateException("the realm replica is not loaded yet");
+    }
+    return realm;
+  }
+
+  private static void forEachInPage(RoaringBitmap bitmap, KeycloakPage page, IntConsumer consumer) {
+    if (page.isEmpty() || page.getFirst() >= bitmap.getCardinality()) {
+      return;
+    }
+    PeekableIntIterator values = bitmap.getIntIterator();
+    values.advanceIfNeeded(bitmap.select(page.getFirst()));
+    for (int i = 0; i < page.getMax() && values.hasNext(); i++) {
+      consumer.accept(values.next());
+    }
+  }
+
+  private static boolean isTopLevel(GroupRepresentation group) {
+    return group.getPath() == null || group.getPath().lastIndexOf('/') <= 0;
+  }
+
+  /**
+   * One copy of the realm. Not thread-safe; the replica guards it with its lock.
+   */
+  private static final class Realm {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final Interner<String> names = Interners.newStrongInterner();
+
+    private String[] userIds = new String[INITIAL_CAPACITY];
+    // Lower case, as Keycloak stores them
+    private String[] userNames = new String[INITIAL_CAPACITY];
+    private String[] firstNames = new String[INITIAL_CAPACITY];
+    private String[] lastNames = new String[INITIAL_CAPACITY];
+    private int userSurrogates;
+    private final RoaringBitmap liveUsers = new RoaringBitmap();
+    private final IdTable usersById = new IdTable(user -> userIds[user]);
+    private final IdTable usersByName = new IdTable(user -> userNames[user]);
+
+    private String[] groupIds = new String[INITIAL_CAPACITY];
+    private String[] groupNames = new String[INITIAL_CAPACITY];
+    private RoaringBitmap[] members = new RoaringBitmap[INITIAL_CAPACITY];
+    private int groupSurrogates;
+    private final RoaringBitmap liveGroups = new RoaringBitmap();
+    private final RoaringBitmap topLevelGroups = new RoaringBitmap();
+    private final IdTable groupsById = new IdTable(group -> groupIds[group]);
+
+    void putUser(UserRepresentation representation) {
+      int user = usersById.get(representation.getId());
+      if (user < 0) {
+        user = userSurrogates++;
+        if (user == userIds.length) {
+          int capacity = user + (user >> 1);
+          userIds = Arrays.copyOf(userIds, capacity);
+          userNames = Arrays.copyOf(userNames, capacity);
+          firstNames = Arrays.copyOf(firstNames, capacity);
+          lastNames = Arrays.copyOf(lastNames, capacity);
+        }
+        userIds[user] = representation.getId();
+        usersById.put(user);
+      } else {
+        usersByName.remove(user);
+      }
+      String userName = representation.getUsername() != null ? representation.getUsername() : "";
+      userNames[user] = userName.toLowerCase(Locale.ROOT);
+      firstNames[user] = intern(representation.getFirstName());
+      lastNames[user] = intern(representation.getLastName());
+      usersByName.put(user);
+      liveUsers.add(user);
+    }
+
+    void removeUser(String id) {
+      int user = usersById.get(id);
+      if (user < 0) {
+        return;
+      }
+      usersByName.remove(user);
+      usersById.remove(user);
+      liveUsers.remove(user);
+      for (IntIterator groups = liveGroups.getIntIterator(); groups.hasNext(); ) {
+        members[groups.next()].remove(user);
+      }
+      userIds[user] = null;
+      userNames[user] = null;
+      firstNames[user] = null;
+      lastNames[user] = null;
+    }
+
+    void putGroup(String id, String name, boolean topLevel) {
+      int group = groupsById.get(id);
+      if (group < 0) {
+        group = groupSurrogates++;
+        if (group == groupIds.length) {
+          int capacity = group + (group >> 1);
+          groupIds = Arrays.copyOf(groupIds, capacity);
+          groupNames = Arrays.copyOf(groupNames, capacity);
+          members = Arrays.copyOf(members, capacity);
+        }
+        groupIds[group] = id;
+        members[group] = new RoaringBitmap();
+        groupsById.put(group);
+        liveGroups.add(group);
+      }
+      groupNames[group] = name;
+      if (topLevel) {
+        topLevelGroups.add(group);
+      } else {
+        topLevelGroups.remove(group);
+      }
+    }
+
+    void removeGroup(String id) {
+      int group = groupsById.get(id);
+      if (group < 0) {
+        return;
+      }
+      groupsById.remove(group);
+      liveGroups.remove(group);
+      topLevelGroups.remove(group);
+      groupIds[group] = null;
+      groupNames[group] = null;
+      members[group] = null;
+    }
+
+    void setMember(String userId, String groupId, boolean member) {
+      int user = usersById.get(userId);
+      int group = groupsById.get(groupId);
+      if (user < 0 || group < 0) {
+        return;
+      }
+      if (member) {
+        members[group].add(user);
+      } else {
+        members[group].remove(user);
+      }
+    }
+
+    UserRepresentation toRepresentation(int user) {
+      UserRepresentation representation = new UserRepresentation();
+      representation.setId(userIds[user]);
+      representation.setUsername(userNames[user]);
+      representation.setFirstName(firstNames[user]);
+      representation.setLastName(lastNames[user]);
+      return representation;
+    }
+
+    SCIMUser toScimUser(int user) {
+      return KeycloakMapper.createSCIMUserFromKeycloakRepresentation(toRepresentation(user));
+    }
+
+    SCIMGroup toScimGroup(int group, boolean includeMembers) {
+      GroupRepresentation representation = new GroupRepresentation();
+      representation.setId(groupIds[group]);
+      representation.setName(groupNames[group]);
+      SCIMGroup scimGroup = KeycloakMapper.createSCIMGroupFromKeycloakGroup(representation);
+      if (includeMembers) {
+        List<Membership> groupMembers = new ArrayList<>(members[group].getCardinality());
+        members[group].forEach((int user) -> groupMembers.add(new Membership(userIds[user], userNames[user])));
+        scimGroup.setMembers(groupMembers);
+      }
+      return scimGroup;
+    }
+
+    private String intern(String name) {
+      return name != null ? names.intern(name) : null;
+    }
+  }
+
+  /**
+   * A hash table from a string key to the surrogate it belongs to, with linear probing. Only the
+   * surrogates are stored; their keys are read from the column they index, so a key must not change
+   * while its surrogate is in the table.
+   */
+  static final class IdTable {
+    private final IntFunction<String> keys;
+    // Surrogate + 1, 0 for an empty slot
+    private int[] slots = new int[16];
+    private int size;
+
+    IdTable(IntFunction<String> keys) {
+      this.keys = keys;
+    }
+
+    /**
+     * @return the surrogate with that key, or -1 if there is none
+     */
+    int get(String key) {
+      int mask = slots.length - 1;
+      for (int i = index(key, mask); slots[i] != 0; i = (i + 1) & mask) {
+        if (key.equals(keys.apply(slots[i] - 1))) {
+          return slots[i] - 1;
+        }
+      }
+      return -1;
+    }
+
+    void put(int surrogate) {
+      if (++size > slots.length - (slots.length >> 2)) {
+        int[] old = slots;
+        slots = new int[old.length * 2];
+        for (int slot : old) {
+          if (slot != 0) {
+            insert(slot);
+          }
+        }
+      }
+      insert(surrogate + 1);
+    }
+
+    void remove(int surrogate) {
+      int mask = slots.length - 1;
+      int i = index(keys.apply(surrogate), mask);
+      while (slots[i] != surrogate + 1) {
+        if (slots[i] == 0) {
+          return;
+        }
+        i = (i + 1) & mask;
+      }
+      size--;
+      // Shift back the entries that probed past the freed slot, so lookups never stop early
+      for (int j = (i + 1) & mask; slots[j] != 0; j = (j + 1) & mask) {
+        int home = index(keys.apply(slots[j] - 1), mask);
+        boolean reachable = i <= j ? i < home && home <= j : i < home || home <= j;
+        if (!reachable) {
+          slots[i] = slots[j];
+          i = j;
+        }
+      }
+      slots[i] = 0;
+    }
+
+    private void insert(int slot) {
+      int mask = slots.length - 1;
+      int i = index(keys.apply(slot - 1), mask);
+      while (slots[i] != 0) {
+        i = (i + 1) & mask;
+      }
+      slots[i] = slot;
+    }
+
+    static int index(String key, int mask) {
+      int hash = key.hashCode() * 0x9E3779B9;
+      return (hash ^ (hash >>> 16)) & mask;
+    }
+  }
+}
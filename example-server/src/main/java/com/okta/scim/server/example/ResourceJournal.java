@@ -0,0 +1,516 @@
+package com.okta.scim.server.example;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.okta.scim.util.SCIMUtil;
+import com.okta.scim.util.exception.SCIMSerializationException;
+import com.okta.scim.util.model.SCIMGroup;
+import com.okta.scim.util.model.SCIMUser;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Users or groups kept in memory and persisted as a snapshot plus an append-only journal, so that
+ * a single change costs one append instead of a rewrite of the whole file.
+ * <p>
+ * The snapshot is the users.json or groups.json file written by {@link SCIMConnectorUtil}. Every
+ * create, update and delete is appended to a journal next to it, one JSON record per line, named
+ * after the snapshot with a generation number (<code>users.json.journal.3</code>). Opening the
+ * journal reads the snapshot and replays every journal generation on top of it.
+ * <p>
+ * Appends reach the operating system immediately and are forced to disk in batches: after
+ * <code>fsyncEveryRecords</code> records, and every <code>fsyncIntervalMillis</code> when there
+ * are unforced records. Set <code>fsyncEveryRecords</code> to 1 to force every append.
+ * <p>
+ * After <code>compactAfterRecords</code> appends the journal is compacted in the background:
+ * appends move to a new generation, the current resources are written as the new snapshot, and
+ * the older generations are deleted. Replaying a generation over a snapshot that already contains
+ * it gives the same result, so a crash at any point of a compaction loses nothing.
+ * <p>
+ * {@link SCIMConnectorUtil} keeps one journal open per file for its single-resource saves and
+ * deletes, replays the journal of a file it reads, and compacts it on a full save. Resources are
+ * kept by reference; do not change one after it has been put.
+ */
+final class ResourceJournal<T> implements Closeable {
+  private static final Logger LOGGER = LoggerFactory.getLogger(ResourceJournal.class);
+
+  private static final String JOURNAL_SUFFIX = ".journal.";
+  private static final String CREATE = "create";
+  private static final String UPDATE = "update";
+  private static final String DELETE = "delete";
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+  private static final Codec<SCIMUser> USERS = new Codec<>(SCIMUser::getId, SCIMUtil::marshalSCIMUser,
+    SCIMUtil::unMarshalSCIMUser, (users, file) -> SCIMConnectorUtil.readUsersSnapshot(users, file, 1),
+    SCIMConnectorUtil::writeUsersSnapshot);
+  private static final Codec<SCIMGroup> GROUPS = new Codec<>(SCIMGroup::getId, SCIMUtil::marshalSCIMGroup,
+    SCIMUtil::unMarshalSCIMGroup, (groups, file) -> SCIMConnectorUtil.readGroupsSnapshot(groups, file, 1),
+    SCIMConnectorUtil::writeGroupsSnapshot);
+
+  private final Path snapshotFile;
+  private final Codec<T> codec;
+  private final int fsyncEveryRecords;
+  private final int compactAfterRecords;
+  private final ScheduledExecutorService background;
+  private final ScheduledFuture<?> periodicSync;
+  private final Object compactionLock = new Object();
+  private final ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream();
+
+  // Guarded by this
+  private final Map<String, T> resources = new LinkedHashMap<>();
+  private FileChannel journal;
+  private long generation;
+  private int unsyncedRecords;
+  private int recordsSinceCompaction;
+  private boolean compactionQueued;
+  private boolean closed;
+
+  private ResourceJournal(Path snapshotFile, Codec<T> codec, int fsyncEveryRecords, long fsyncIntervalMillis,
+                          int compactAfterRecords) throws IOException, SCIMSerializationException {
+    this.snapshotFile = snapshotFile.toAbsolutePath();
+    this.codec = codec;
+    this.fsyncEveryRecords = fsyncEveryRecords;
+    this.compactAfterRecords = compactAfterRecords;
+
+    load();
+
+    background = Executors.newSingleThreadScheduledExecutor(
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("scim-journal-%d").build());
+    periodicSync = fsyncIntervalMillis > 0
+      ? background.scheduleWithFixedDelay(this::syncQuietly, fsyncIntervalMillis, fsyncIntervalMillis,
+      TimeUnit.MILLISECONDS)
+      : null;
+  }
+
+  /**
+   * Open the users journal of <code>usersFile</code>, reading the snapshot and replaying the
+   * journal.
+   *
+   * @param fsyncEveryRecords   force the journal to disk after this many records; 0 to only force
+   *                            it periodically
+   * @param fsyncIntervalMillis force unforced records to disk this often; 0 to never force on a
+   *                            timer
+   * @param compactAfterRecords compact after this many records; 0 to only compact on request
+   */
+  static ResourceJournal<SCIMUser> openUsers(Path usersFile, int fsyncEveryRecords, long fsyncIntervalMillis,
+                                            int compactAfterRecords) throws IOException, SCIMSerializationException {
+    return new ResourceJournal<>(usersFile, USERS, fsyncEveryRecords, fsyncIntervalMillis, compactAfterRecords);
+  }
+
+  /**
+   * Open the groups journal of <code>groupsFile</code>. See
+   * {@link #openUsers(Path, int, long, int)}.
+   */
+  static ResourceJournal<SCIMGroup> openGroups(Path groupsFile, int fsyncEveryRecords, long fsyncIntervalMillis,
+                                              int compactAfterRecords) throws IOException, SCIMSerializationException {
+    return new ResourceJournal<>(groupsFile, GROUPS, fsyncEveryRecords, fsyncIntervalMillis, compactAfterRecords);
+  }
+
+  /**
+   * Apply the journal of <code>usersFile</code>, if it has one, to users read from its snapshot.
+   * The journal is only read: an incomplete last record is skipped, not cut off.
+   */
+  static void replayUsers(Map<String, SCIMUser> users, Path usersFile) throws IOException, SCIMSerializationException {
+    replayAll(users, usersFile.toAbsolutePath(), USERS);
+  }
+
+  /**
+   * Apply the journal of <code>groupsFile</code> to groups read from its snapshot. See
+   * {@link #replayUsers(Map, Path)}.
+   */
+  static void replayGroups(Map<String, SCIMGroup> groups, Path groupsFile)
+    throws IOException, SCIMSerializationException {
+    replayAll(groups, groupsFile.toAbsolutePath(), GROUPS);
+  }
+
+  /**
+   * Delete every journal generation of a snapshot that was just written in full without an open
+   * journal, so they are not replayed over it.
+   */
+  static void deleteJournals(Path snapshotFile) throws IOException {
+    for (Path journalFile : journalFiles(snapshotFile.toAbsolutePath()).values()) {
+      Files.delete(journalFile);
+    }
+  }
+
+  synchronized T get(String id) {
+    return resources.get(id);
+  }
+
+  synchronized List<T> values() {
+    return new ArrayList<>(resources.values());
+  }
+
+  /**
+   * @return a copy of the resources by id, in the order they were first put
+   */
+  synchronized Map<String, T> toMap() {
+    return new LinkedHashMap<>(resources);
+  }
+
+  synchronized int size() {
+    return resources.size();
+  }
+
+  /**
+   * @return the generation appends currently go to
+   */
+  synchronized long getGeneration() {
+    return generation;
+  }
+
+  /**
+   * Add or replace a resource, keyed by its id.
+   */
+  void put(T resource) throws IOException, SCIMSerializationException {
+    String id = codec.id.apply(resource);
+    String json = codec.marshaller.marshal(resource);
+    synchronized (this) {
+      append(resources.containsKey(id) ? UPDATE : CREATE, null, json);
+      resources.put(id, resource);
+    }
+  }
+
+  /**
+   * Remove a resource. Removing one that does not exist is not journaled.
+   *
+   * @return the removed resource, or null
+   */
+  synchronized T remove(String id) throws IOException {
+    if (!resources.containsKey(id)) {
+      return null;
+    }
+    append(DELETE, id, null);
+    return resources.remove(id);
+  }
+
+  /**
+   * Replace every resource and compact, so the snapshot holds exactly <code>replacement</code>.
+   */
+  void replaceAll(Map<String, T> replacement) throws IOException, SCIMSerializationException {
+    synchronized (compactionLock) {
+      synchronized (this) {
+        ensureOpen();
+        resources.clear();
+        resources.putAll(replacement);
+      }
+      compact();
+    }
+  }
+
+  /**
+   * Force every appended record to disk.
+   */
+  synchronized void sync() throws IOException {
+    ensureOpen();
+    if (unsyncedRecords > 0) {
+      journal.force(false);
+      unsyncedRecords = 0;
+    }
+  }
+
+  /**
+   * Write the current resources as the snapshot and delete the journal generations it replaces.
+   * Appends continue, to a new generation, while the snapshot is written.
+   */
+  void compact() throws IOException, SCIMSerializationException {
+    synchronized (compactionLock) {
+      Map<String, T> snapshot;
+      long replacedGeneration;
+      synchronized (this) {
+        compactionQueued = false;
+        sync();
+        replacedGeneration = generation;
+        journal.close();
+        generation++;
+        journal = openJournal(generation);
+        recordsSinceCompaction = 0;
+        snapshot = new LinkedHashMap<>(resources);
+      }
+
+      long start = System.nanoTime();
+      codec.snapshotWriter.write(snapshot, snapshotFile.toString());
+      for (Map.Entry<Long, Path> journalFile : journalFiles(snapshotFile).entrySet()) {
+        if (journalFile.getKey() <= replacedGeneration) {
+          Files.delete(journalFile.getValue());
+        }
+      }
+      LOGGER.info("Compacted " + snapshot.size() + " resources into " + snapshotFile + " in "
+        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+    }
+  }
+
+  /**
+   * Wait for a running compaction, force the journal to disk and close it.
+   */
+  @Override
+  public void close() throws IOException {
+    if (periodicSync != null) {
+      periodicSync.cancel(false);
+    }
+    background.shutdown();
+    try {
+      background.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      sync();
+      journal.close();
+      closed = true;
+    }
+  }
+
+  private void append(String operation, String id, String resourceJson) throws IOException {
+    ensureOpen();
+    recordBuffer.reset();
+    JsonGenerator generator = JSON_FACTORY.createJsonGenerator(recordBuffer, JsonEncoding.UTF8);
+    generator.writeStartObject();
+    generator.writeStringField("op", operation);
+    if (id != null) {
+      generator.writeStringField("id", id);
+    }
+    if (resourceJson != null) {
+      generator.writeFieldName("resource");
+      generator.writeRawValue(resourceJson);
+    }
+    generator.writeEndObject();
+    generator.close();
+    recordBuffer.write('\n');
+
+    ByteBuffer record = ByteBuffer.wrap(recordBuffer.toByteArray());
+    while (record.hasRemaining()) {
+      journal.write(record);
+    }
+
+    unsyncedRecords++;
+    if (fsyncEveryRecords > 0 && unsyncedRecords >= fsyncEveryRecords) {
+      journal.force(false);
+      unsyncedRecords = 0;
+    }
+
+    recordsSinceCompaction++;
+    if (compactAfterRecords > 0 && recordsSinceCompaction >= compactAfterRecords && !compactionQueued
+      && !background.isShutdown()) {
+      compactionQueued = true;
+      background.execute(this::compactQuietly);
+    }
+  }
+
+  private void ensureOpen() throws IOException {
+    if (closed) {
+      throw new IOException("The journal of " + snapshotFile + " is closed");
+    }
+  }
+
+  private void syncQuietly() {
+    try {
+      sync();
+    } catch (IOException e) {
+      LOGGER.error("Cannot force the journal of " + snapshotFile + " to disk", e);
+    }
+  }
+
+  private void compactQuietly() {
+    try {
+      compact();
+    } catch (IOException | SCIMSerializationException e) {
+      LOGGER.error("Cannot compact the journal of " + snapshotFile + ", it will be replayed at the next start", e);
+    }
+  }
+
+  private synchronized void load() throws IOException, SCIMSerializationException {
+    if (Files.exists(snapshotFile)) {
+      codec.snapshotReader.read(resources, snapshotFile.toString());
+    }
+    int snapshotSize = resources.size();
+
+    TreeMap<Long, Path> journals = journalFiles(snapshotFile);
+    long replayed = 0;
+    for (Path journalFile : journals.values()) {
+      replayed += replay(journalFile, resources, codec, true);
+    }
+    generation = journals.isEmpty() ? 1 : journals.lastKey();
+    journal = openJournal(generation);
+    recordsSinceCompaction = (int) Math.min(Integer.MAX_VALUE, replayed);
+    LOGGER.info("Loaded " + snapshotSize + " resources from " + snapshotFile + " and replayed " + replayed
+      + " journal records from " + journals.size() + " generation(s)");
+  }
+
+  private static <T> void replayAll(Map<String, T> resources, Path snapshotFile, Codec<T> codec)
+    throws IOException, SCIMSerializationException {
+    for (Path journalFile : journalFiles(snapshotFile).values()) {
+      replay(journalFile, resources, codec, false);
+    }
+  }
+
+  /**
+   * Apply every complete record of a journal file. A record cut short by a crash can only be the
+   * last one; it is dropped and, if <code>repair</code> is set, cut off the file, so appends
+   * continue after the last complete record.
+   *
+   * @return the number of records applied
+   */
+  private static <T> long replay(Path journalFile, Map<String, T> resources, Codec<T> codec, boolean repair)
+    throws IOException, SCIMSerializationException {
+    long records = 0;
+    long completeBytes = 0;
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    try (InputStream in = new BufferedInputStream(Files.newInputStream(journalFile), 64 * 1024)) {
+      int b;
+      while ((b = in.read()) != -1) {
+        if (b != '\n') {
+          line.write(b);
+          continue;
+        }
+        apply(line.toByteArray(), journalFile, completeBytes, resources, codec);
+        completeBytes += line.size() + 1;
+        line.reset();
+        records++;
+      }
+    }
+
+    if (line.size() > 0 && repair) {
+      LOGGER.warn("Dropping an incomplete record of " + line.size() + " bytes at the end of " + journalFile);
+      try (FileChannel channel = FileChannel.open(journalFile, StandardOpenOption.WRITE)) {
+        channel.truncate(completeBytes);
+        channel.force(false);
+      }
+    }
+    return records;
+  }
+
+  private static <T> void apply(byte[] record, Path journalFile, long offset, Map<String, T> resources,
+                                Codec<T> codec) throws IOException, SCIMSerializationException {
+    String operation = null;
+    String id = null;
+    String resourceJson = null;
+    try (JsonParser parser = JSON_FACTORY.createJsonParser(record)) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new IOException("Malformed journal record at offset " + offset + " of " + journalFile);
+      }
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String field = parser.getCurrentName();
+        parser.nextToken();
+        if ("op".equals(field)) {
+          operation = parser.getText();
+        } else if ("id".equals(field)) {
+          id = parser.getText();
+        } else if ("resource".equals(field)) {
+          StringWriter json = new StringWriter(record.length);
+          JsonGenerator generator = JSON_FACTORY.createJsonGenerator(json);
+          generator.copyCurrentStructure(parser);
+          generator.close();
+          resourceJson = json.toString();
+        } else {
+          parser.skipChildren();
+        }
+      }
+    }
+
+    if (DELETE.equals(operation) && id != null) {
+      resources.remove(id);
+    } else if ((CREATE.equals(operation) || UPDATE.equals(operation)) && resourceJson != null) {
+      T resource = codec.unmarshaller.unmarshal(resourceJson);
+      resources.put(codec.id.apply(resource), resource);
+    } else {
+      throw new IOException("Malformed journal record at offset " + offset + " of " + journalFile);
+    }
+  }
+
+  private FileChannel openJournal(long journalGeneration) throws IOException {
+    return FileChannel.open(journalFile(journalGeneration), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+      StandardOpenOption.APPEND);
+  }
+
+  private Path journalFile(long journalGeneration) {
+    return snapshotFile.resolveSibling(snapshotFile.getFileName() + JOURNAL_SUFFIX + journalGeneration);
+  }
+
+  /**
+   * @return the journal files of the snapshot, by generation
+   */
+  private static TreeMap<Long, Path> journalFiles(Path snapshotFile) throws IOException {
+    TreeMap<Long, Path> journals = new TreeMap<>();
+    if (!Files.isDirectory(snapshotFile.getParent())) {
+      return journals;
+    }
+    String prefix = snapshotFile.getFileName() + JOURNAL_SUFFIX;
+    try (DirectoryStream<Path> siblings = Files.newDirectoryStream(snapshotFile.getParent(), prefix + "*")) {
+      for (Path sibling : siblings) {
+        String suffix = sibling.getFileName().toString().substring(prefix.length());
+        try {
+          journals.put(Long.parseLong(suffix), sibling);
+        } catch (NumberFormatException e) {
+          LOGGER.warn("Ignoring " + sibling + ", which is not a journal generation");
+        }
+      }
+    }
+    return journals;
+  }
+
+  private interface Marshaller<T> {
+    String marshal(T resource) throws SCIMSerializationException;
+  }
+
+  private interface Unmarshaller<T> {
+    T unmarshal(String json) throws SCIMSerializationException;
+  }
+
+  private interface SnapshotReader<T> {
+    void read(Map<String, T> resources, String file) throws IOException, SCIMSerializationException;
+  }
+
+  private interface SnapshotWriter<T> {
+    void write(Map<String, T> resources, String file) throws IOException, SCIMSerializationException;
+  }
+
+  /**
+   * How one kind of resource is identified, converted and snapshotted.
+   */
+  private static final class Codec<T> {
+    private final Function<T, String> id;
+    private final Marshaller<T> marshaller;
+    private final Unmarshaller<T> unmarshaller;
+    private final SnapshotReader<T> snapshotReader;
+    private final SnapshotWriter<T> snapshotWriter;
+
+    private Codec(Function<T, String> id, Marshaller<T> marshaller, Unmarshaller<T> unmarshaller,
+                  SnapshotReader<T> snapshotReader, SnapshotWriter<T> snapshotWriter) {
+      this.id = id;
+      this.marshaller = marshaller;
+      this.unmarshaller = unmarshaller;
+      this.snapshotReader = snapshotReader;
+      this.snapshotWriter = snapshotWriter;
+    }
+  }
+}
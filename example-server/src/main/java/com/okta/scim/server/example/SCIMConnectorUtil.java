@@ -1,24 +1,45 @@
 package com.okta.scim.server.example;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.okta.scim.util.SCIMUtil;
 import com.okta.scim.util.exception.SCIMSerializationException;
 import com.okta.scim.util.model.SCIMGroup;
-import com.okta.scim.util.model.SCIMGroupQueryResponse;
 import com.okta.scim.util.model.SCIMUser;
-import com.okta.scim.util.model.SCIMUserQueryResponse;
-import org.apache.commons.io.FileUtils;
-import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.util.StringUtils;
 
-import java.io.File;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Consumer;
 
 /**
  * @author rpamidimarri
@@ -28,31 +49,140 @@ public class SCIMConnectorUtil {
     private static ObjectMapper mapper = new ObjectMapper();
     private static final Logger LOGGER = LoggerFactory.getLogger(SCIMConnectorUtil.class);
 
+    private static final String SCIM_CORE_SCHEMA = "urn:scim:schemas:core:1.0";
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    // Records read ahead of the conversions, per converter thread, when reading in parallel
+    private static final int RECORDS_IN_FLIGHT_PER_THREAD = 64;
+    private static final ThreadFactory CONVERTER_THREADS = new ThreadFactoryBuilder()
+            .setDaemon(true).setNameFormat("scim-file-reader-%d").build();
+
+    // Journals of the files saved one resource at a time, by absolute path; guarded by the class
+    private static final Map<Path, ResourceJournal<SCIMUser>> USER_JOURNALS = new HashMap<>();
+    private static final Map<Path, ResourceJournal<SCIMGroup>> GROUP_JOURNALS = new HashMap<>();
+    private static int journalFsyncEveryRecords = 64;
+    private static long journalFsyncIntervalMillis = 1000;
+    private static int journalCompactAfterRecords = 10000;
+
+    /**
+     * Set how the journals opened from now on force records to disk and compact. See
+     * {@link ResourceJournal#openUsers(Path, int, long, int)}.
+     *
+     * @param fsyncEveryRecords   force a journal to disk after this many records; 1 forces every save
+     * @param fsyncIntervalMillis force unforced records to disk this often
+     * @param compactAfterRecords rewrite the file and start a new journal after this many records
+     */
+    public static synchronized void configureJournals(int fsyncEveryRecords, long fsyncIntervalMillis,
+                                                      int compactAfterRecords) {
+        journalFsyncEveryRecords = fsyncEveryRecords;
+        journalFsyncIntervalMillis = fsyncIntervalMillis;
+        journalCompactAfterRecords = compactAfterRecords;
+    }
+
+    /**
+     * Save one user, created or updated, without rewriting the users file
+     * <p>
+     * The user is appended to the journal of the file, which is opened on the first save and kept
+     * open until {@link #closeJournals()}. Reads of the file include it; the file itself is
+     * rewritten by the journal's compactions and by {@link #saveUsersToFile}.
+     *
+     * @param user
+     * @param usersFilePath
+     * @throws java.io.IOException
+     */
+    public static void saveUserToFile(SCIMUser user, String usersFilePath) throws IOException, SCIMSerializationException {
+        usersJournal(usersFilePath, true).put(user);
+    }
+
+    /**
+     * Delete one user without rewriting the users file. Journaled like
+     * {@link #saveUserToFile(SCIMUser, String)}.
+     *
+     * @param userId
+     * @param usersFilePath
+     * @throws java.io.IOException
+     */
+    public static void deleteUserFromFile(String userId, String usersFilePath) throws IOException, SCIMSerializationException {
+        usersJournal(usersFilePath, true).remove(userId);
+    }
+
+    /**
+     * Save one group, created or updated, without rewriting the groups file. Journaled like
+     * {@link #saveUserToFile(SCIMUser, String)}.
+     *
+     * @param group
+     * @param groupsFilePath
+     * @throws java.io.IOException
+     */
+    public static void saveGroupToFile(SCIMGroup group, String groupsFilePath) throws IOException, SCIMSerializationException {
+        groupsJournal(groupsFilePath, true).put(group);
+    }
+
+    /**
+     * Delete one group without rewriting the groups file. Journaled like
+     * {@link #saveUserToFile(SCIMUser, String)}.
+     *
+     * @param groupId
+     * @param groupsFilePath
+     * @throws java.io.IOException
+     */
+    public static void deleteGroupFromFile(String groupId, String groupsFilePath) throws IOException, SCIMSerializationException {
+        groupsJournal(groupsFilePath, true).remove(groupId);
+    }
+
+    /**
+     * Force every open journal to disk and close it. The next single-resource save of a file opens
+     * its journal again.
+     *
+     * @throws java.io.IOException if a journal could not be closed; the others are closed anyway
+     */
+    public static synchronized void closeJournals() throws IOException {
+        List<ResourceJournal<?>> journals = new ArrayList<>(USER_JOURNALS.values());
+        journals.addAll(GROUP_JOURNALS.values());
+        USER_JOURNALS.clear();
+        GROUP_JOURNALS.clear();
+        IOException failure = null;
+        for (ResourceJournal<?> journal : journals) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                LOGGER.error("Cannot close a journal", e);
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
     /**
      * Save users to file
+     * <p>
+     * The users are written one at a time in the same <code>Resources</code> envelope that
+     * {@link SCIMUtil#marshalSCIMUserQueryResponse} produces, so only one marshalled user is held in
+     * memory at a time. The file is replaced atomically once it is completely written, and replaces
+     * its journal: an open journal is compacted with these users, otherwise the journal files are
+     * deleted.
      *
      * @param userMap
      * @param usersFilePath
      * @throws java.io.IOException
      */
     public static void saveUsersToFile(Map<String, SCIMUser> userMap, String usersFilePath) throws IOException, SCIMSerializationException {
-        SCIMUserQueryResponse allUsers = new SCIMUserQueryResponse();
-        allUsers.setTotalResults(userMap.size());
-        List<SCIMUser> users = new ArrayList<SCIMUser>();
-        for (String key : userMap.keySet()) {
-            users.add(userMap.get(key));
-        }
-        //Set the actual results
-        allUsers.setScimUsers(users);
-        String usersString = null;
-        try {
-            usersString = SCIMUtil.marshalSCIMUserQueryResponse(allUsers, false);
-        } catch (SCIMSerializationException e) {
-            LOGGER.error("Cannot serialize the users [" + allUsers + "]", e);
-            throw e;
+        ResourceJournal<SCIMUser> journal = usersJournal(usersFilePath, false);
+        if (journal != null) {
+            journal.replaceAll(userMap);
+            return;
         }
+        writeUsersSnapshot(userMap, usersFilePath);
+        ResourceJournal.deleteJournals(Paths.get(usersFilePath));
+    }
 
-        writeStringToFile(usersFilePath, usersString);
+    /**
+     * Write the users file alone, leaving its journal as it is
+     */
+    static void writeUsersSnapshot(Map<String, SCIMUser> userMap, String usersFilePath) throws IOException, SCIMSerializationException {
+        writeResourcesToFile(usersFilePath, userMap.size(), userMap.values(), SCIMUtil::marshalSCIMUser);
     }
 
     /**
@@ -63,22 +193,40 @@ public class SCIMConnectorUtil {
      * @throws java.io.IOException
      */
     public static void readUsersFromFile(Map<String, SCIMUser> userMap, String usersFilePath) throws IOException, SCIMSerializationException {
-        JsonNode usersNode = parseFile(usersFilePath);
-        if (usersNode == null) {
+        readUsersFromFile(userMap, usersFilePath, 1);
+    }
+
+    /**
+     * Read the users from a file into a users map, converting up to <code>parallelism</code> users
+     * at a time.
+     * <p>
+     * The file is read with a streaming parser, one element of the <code>Resources</code> array at
+     * a time, so memory use does not grow with the size of the file. The users are put into the map
+     * on the calling thread, in file order, and the saves and deletes journaled since the file was
+     * written are applied on top.
+     *
+     * @param userMap
+     * @param usersFilePath
+     * @param parallelism   threads converting users; 1 converts them on the calling thread
+     * @throws java.io.IOException
+     */
+    public static void readUsersFromFile(Map<String, SCIMUser> userMap, String usersFilePath, int parallelism)
+            throws IOException, SCIMSerializationException {
+        ResourceJournal<SCIMUser> journal = usersJournal(usersFilePath, false);
+        if (journal != null) {
+            userMap.putAll(journal.toMap());
             return;
         }
-        Iterator<JsonNode> it = usersNode.iterator();
+        readUsersSnapshot(userMap, usersFilePath, parallelism);
+        ResourceJournal.replayUsers(userMap, Paths.get(usersFilePath));
+    }
 
-        while (it.hasNext()) {
-            JsonNode userNode = it.next();
-            try {
-                SCIMUser user = SCIMUtil.unMarshalSCIMUser(userNode.toString());
-                userMap.put(user.getId(), user);
-            } catch (SCIMSerializationException e) {
-                LOGGER.error("Exception in converting the user [" + userNode.toString() + "] into a string", e);
-                throw e;
-            }
-        }
+    /**
+     * Read the users file alone, without its journal
+     */
+    static void readUsersSnapshot(Map<String, SCIMUser> userMap, String usersFilePath, int parallelism)
+            throws IOException, SCIMSerializationException {
+        readResourcesFromFile(usersFilePath, parallelism, "user", SCIMUtil::unMarshalSCIMUser, user -> userMap.put(user.getId(), user));
     }
 
     /**
@@ -89,86 +237,277 @@ public class SCIMConnectorUtil {
      * @throws Exception
      */
     public static void readGroupsFromFile(Map<String, SCIMGroup> groupMap, String groupsFilePath) throws Exception {
-        JsonNode groupsNode = parseFile(groupsFilePath);
-        if (groupsNode == null) {
+        readGroupsFromFile(groupMap, groupsFilePath, 1);
+    }
+
+    /**
+     * Read the groups from a file into a groups map. Read the same way as
+     * {@link #readUsersFromFile(Map, String, int)}.
+     *
+     * @param groupMap
+     * @param groupsFilePath
+     * @param parallelism    threads converting groups; 1 converts them on the calling thread
+     * @throws java.io.IOException
+     */
+    public static void readGroupsFromFile(Map<String, SCIMGroup> groupMap, String groupsFilePath, int parallelism)
+            throws IOException, SCIMSerializationException {
+        ResourceJournal<SCIMGroup> journal = groupsJournal(groupsFilePath, false);
+        if (journal != null) {
+            groupMap.putAll(journal.toMap());
             return;
         }
-        Iterator<JsonNode> it = groupsNode.iterator();
+        readGroupsSnapshot(groupMap, groupsFilePath, parallelism);
+        ResourceJournal.replayGroups(groupMap, Paths.get(groupsFilePath));
+    }
 
-        while (it.hasNext()) {
-            JsonNode groupNode = it.next();
-            try {
-                SCIMGroup group = SCIMUtil.unMarshalSCIMGroup(groupNode.toString());
-                groupMap.put(group.getId(), group);
-            } catch (SCIMSerializationException e) {
-                LOGGER.error("Exception in converting the group [" + groupNode.toString() + "] into a string", e);
-                throw e;
+    /**
+     * Read the groups file alone, without its journal
+     */
+    static void readGroupsSnapshot(Map<String, SCIMGroup> groupMap, String groupsFilePath, int parallelism)
+            throws IOException, SCIMSerializationException {
+        readResourcesFromFile(groupsFilePath, parallelism, "group", SCIMUtil::unMarshalSCIMGroup, group -> groupMap.put(group.getId(), group));
+    }
+
+    /**
+     * Walk the <code>Resources</code> array of a query response file and hand every resource to
+     * <code>sink</code>, in file order.
+     * <p>
+     * The SDK only converts resources from a String, so each element is copied token by token from
+     * the parser into a String, without building a tree, and converted from there. With more than
+     * one thread the conversions run on a pool while the file is read; at most
+     * {@link #RECORDS_IN_FLIGHT_PER_THREAD} records per thread are waiting to be converted or put.
+     * <p>
+     * A missing or empty file, or one without <code>Resources</code>, is logged and read as empty.
+     */
+    private static <T> void readResourcesFromFile(String filePath, int parallelism, String resourceType,
+                                                  ResourceUnmarshaller<T> unmarshaller, Consumer<T> sink)
+            throws IOException, SCIMSerializationException {
+        Path path = Paths.get(filePath);
+        if (!Files.isRegularFile(path) || Files.size(path) == 0) {
+            LOGGER.error("Nothing to read from the file [" + filePath + "]");
+            return;
+        }
+
+        ExecutorService converters = parallelism > 1 ? Executors.newFixedThreadPool(parallelism, CONVERTER_THREADS) : null;
+        Deque<Future<T>> inFlight = new ArrayDeque<>();
+        try (JsonParser parser = mapper.getJsonFactory().createJsonParser(
+                new BufferedInputStream(Files.newInputStream(path), READ_BUFFER_SIZE))) {
+            if (!moveToResources(parser)) {
+                LOGGER.error("No Resources found in the file [" + filePath + "]");
+                return;
+            }
+
+            StringWriter record = new StringWriter();
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                record.getBuffer().setLength(0);
+                JsonGenerator generator = mapper.getJsonFactory().createJsonGenerator(record);
+                generator.copyCurrentStructure(parser);
+                generator.close();
+                String json = record.toString();
+
+                if (converters == null) {
+                    sink.accept(unmarshal(unmarshaller, json, resourceType));
+                    continue;
+                }
+                inFlight.add(converters.submit(() -> unmarshal(unmarshaller, json, resourceType)));
+                if (inFlight.size() >= parallelism * RECORDS_IN_FLIGHT_PER_THREAD) {
+                    sink.accept(awaitConversion(inFlight.remove()));
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                sink.accept(awaitConversion(inFlight.remove()));
+            }
+        } catch (IOException e) {
+            LOGGER.error("Cannot read from the file [" + filePath + "]", e);
+            throw e;
+        } finally {
+            if (converters != null) {
+                converters.shutdownNow();
             }
         }
     }
 
     /**
-     * Parse a file into a json node
+     * Advance the parser to the start of the <code>Resources</code> array of the top level object.
      *
-     * @param filePath
-     * @return
-     * @throws Exception
+     * @return false when there is no <code>Resources</code> array
      */
-    private static JsonNode parseFile(String filePath) throws IOException {
-        String usersString = readFromFile(filePath);
-
-        if (StringUtils.isEmpty(usersString)) {
-            LOGGER.error("Empty string found after parsing the file [" + filePath + "]");
-            return null;
+    private static boolean moveToResources(JsonParser parser) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            return false;
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if ("Resources".equals(field) && value == JsonToken.START_ARRAY) {
+                return true;
+            }
+            parser.skipChildren();
         }
+        return false;
+    }
 
-        JsonNode node = mapper.readTree(usersString);
+    private static <T> T unmarshal(ResourceUnmarshaller<T> unmarshaller, String json, String resourceType)
+            throws SCIMSerializationException {
+        try {
+            return unmarshaller.unmarshal(json);
+        } catch (SCIMSerializationException e) {
+            LOGGER.error("Exception in converting the " + resourceType + " [" + json + "] into a string", e);
+            throw e;
+        }
+    }
 
-        return node.get("Resources");
+    private static <T> T awaitConversion(Future<T> conversion) throws SCIMSerializationException {
+        try {
+            return conversion.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SCIMSerializationException("Interrupted while reading the file", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SCIMSerializationException) {
+                throw (SCIMSerializationException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
     }
 
     /**
      * Save groups to a file
+     * <p>
+     * Written the same way as {@link #saveUsersToFile}.
      *
      * @param groupMap
      * @param groupsFilePath
      * @throws java.io.IOException
      */
     public static void saveGroupsToFile(Map<String, SCIMGroup> groupMap, String groupsFilePath) throws IOException, SCIMSerializationException {
-        SCIMGroupQueryResponse allGroups = new SCIMGroupQueryResponse();
-        allGroups.setTotalResults(groupMap.size());
-        List<SCIMGroup> groups = new ArrayList<SCIMGroup>();
-        for (String key : groupMap.keySet()) {
-            groups.add(groupMap.get(key));
-        }
-        //Set the actual results
-        allGroups.setScimGroups(groups);
-        String groupsString = null;
-        try {
-            groupsString = SCIMUtil.marshalSCIMGroupQueryResponse(allGroups, false);
-        } catch (SCIMSerializationException e) {
-            LOGGER.error("Cannot serialize the groups [" + allGroups + "]", e);
+        ResourceJournal<SCIMGroup> journal = groupsJournal(groupsFilePath, false);
+        if (journal != null) {
+            journal.replaceAll(groupMap);
+            return;
         }
+        writeGroupsSnapshot(groupMap, groupsFilePath);
+        ResourceJournal.deleteJournals(Paths.get(groupsFilePath));
+    }
 
-        writeStringToFile(groupsFilePath, groupsString);
+    /**
+     * Write the groups file alone, leaving its journal as it is
+     */
+    static void writeGroupsSnapshot(Map<String, SCIMGroup> groupMap, String groupsFilePath) throws IOException, SCIMSerializationException {
+        writeResourcesToFile(groupsFilePath, groupMap.size(), groupMap.values(), SCIMUtil::marshalSCIMGroup);
     }
 
-    private static void writeStringToFile(String filePath, String stringToWrite) throws IOException {
+    /**
+     * @return the open journal of the users file; if there is none, a newly opened one when
+     * <code>open</code> is set and otherwise null
+     */
+    private static synchronized ResourceJournal<SCIMUser> usersJournal(String usersFilePath, boolean open)
+            throws IOException, SCIMSerializationException {
+        Path path = Paths.get(usersFilePath).toAbsolutePath().normalize();
+        ResourceJournal<SCIMUser> journal = USER_JOURNALS.get(path);
+        if (journal == null && open) {
+            journal = ResourceJournal.openUsers(path, journalFsyncEveryRecords, journalFsyncIntervalMillis,
+                    journalCompactAfterRecords);
+            USER_JOURNALS.put(path, journal);
+        }
+        return journal;
+    }
+
+    private static synchronized ResourceJournal<SCIMGroup> groupsJournal(String groupsFilePath, boolean open)
+            throws IOException, SCIMSerializationException {
+        Path path = Paths.get(groupsFilePath).toAbsolutePath().normalize();
+        ResourceJournal<SCIMGroup> journal = GROUP_JOURNALS.get(path);
+        if (journal == null && open) {
+            journal = ResourceJournal.openGroups(path, journalFsyncEveryRecords, journalFsyncIntervalMillis,
+                    journalCompactAfterRecords);
+            GROUP_JOURNALS.put(path, journal);
+        }
+        return journal;
+    }
+
+    /**
+     * Stream resources into a query response envelope, in a temporary file next to
+     * <code>filePath</code> that is then moved over it. A failure leaves the previous file as it
+     * was.
+     */
+    private static <T> void writeResourcesToFile(String filePath, int totalResults, Collection<T> resources,
+                                                 ResourceMarshaller<T> marshaller) throws IOException, SCIMSerializationException {
+        Path target = Paths.get(filePath).toAbsolutePath();
+        Path temp = target.resolveSibling(target.getFileName() + "." + UUID.randomUUID() + ".tmp");
+        boolean moved = false;
         try {
-            FileUtils.writeStringToFile(new File(filePath), stringToWrite);
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                copyPermissions(target, temp);
+                OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), WRITE_BUFFER_SIZE);
+                JsonGenerator generator = mapper.getJsonFactory().createJsonGenerator(out, JsonEncoding.UTF8);
+                generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+                generator.writeStartObject();
+                generator.writeNumberField("totalResults", totalResults);
+                generator.writeArrayFieldStart("schemas");
+                generator.writeString(SCIM_CORE_SCHEMA);
+                generator.writeEndArray();
+                generator.writeArrayFieldStart("Resources");
+                for (T resource : resources) {
+                    String marshalled;
+                    try {
+                        marshalled = marshaller.marshal(resource);
+                    } catch (SCIMSerializationException e) {
+                        LOGGER.error("Cannot serialize [" + resource + "]", e);
+                        throw e;
+                    }
+                    generator.writeRawValue(marshalled);
+                }
+                generator.writeEndArray();
+                generator.writeEndObject();
+                generator.close();
+                out.flush();
+                channel.force(false);
+            }
+            moveAtomically(temp, target);
+            moved = true;
         } catch (IOException e) {
             LOGGER.error("Cannot write to the file [" + filePath + "]", e);
             throw e;
+        } finally {
+            if (!moved) {
+                Files.deleteIfExists(temp);
+            }
         }
     }
 
-    private static String readFromFile(String filePath) throws IOException {
+    static void moveAtomically(Path source, Path target) throws IOException {
         try {
-            return FileUtils.readFileToString(new File(filePath));
-        } catch (IOException e) {
-            LOGGER.error("Cannot read from the file [" + filePath + "]", e);
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            LOGGER.warn("Atomic rename is not supported for [" + target + "], replacing it non-atomically");
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
         }
+    }
+
+    /**
+     * Keep the permissions of the file being replaced, as writing it in place would.
+     */
+    static void copyPermissions(Path from, Path to) throws IOException {
+        if (!Files.exists(from)) {
+            return;
+        }
+        try {
+            Files.setPosixFilePermissions(to, Files.getPosixFilePermissions(from));
+        } catch (UnsupportedOperationException e) {
+            // Not a POSIX file system
+        }
+    }
+
+    private interface ResourceMarshaller<T> {
+        String marshal(T resource) throws SCIMSerializationException;
+    }
 
-        return null;
+    private interface ResourceUnmarshaller<T> {
+        T unmarshal(String json) throws SCIMSerializationException;
     }
 }
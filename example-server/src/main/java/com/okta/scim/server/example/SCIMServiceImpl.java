@@ -1,37 +1,37 @@
 package com.okta.scim.server.example;
 
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.Collections2;
-import com.google.common.collect.Iterables;
-import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.okta.scim.server.capabilities.UserManagementCapabilities;
 import com.okta.scim.server.exception.DuplicateGroupException;
 import com.okta.scim.server.exception.EntityNotFoundException;
 import com.okta.scim.server.exception.OnPremUserManagementException;
 import com.okta.scim.server.service.SCIMService;
 import com.okta.scim.util.model.*;
-import org.jboss.resteasy.client.jaxrs.ResteasyClientBuilder;
-import org.keycloak.admin.client.Keycloak;
-import org.keycloak.admin.client.KeycloakBuilder;
-import org.keycloak.admin.client.resource.GroupResource;
-import org.keycloak.admin.client.resource.GroupsResource;
+import org.apache.http.pool.PoolStats;
+import org.jboss.resteasy.client.jaxrs.ResteasyClient;
+import org.jboss.resteasy.client.jaxrs.ResteasyWebTarget;
 import org.keycloak.admin.client.resource.RealmResource;
-import org.keycloak.admin.client.resource.UserResource;
-import org.keycloak.admin.client.resource.UsersResource;
-import org.keycloak.representations.idm.CredentialRepresentation;
+import org.keycloak.admin.client.resource.RealmsResource;
+import org.keycloak.admin.client.token.TokenService;
 import org.keycloak.representations.idm.GroupRepresentation;
 import org.keycloak.representations.idm.UserRepresentation;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.ws.rs.WebApplicationException;
-import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
-import javax.ws.rs.core.Response.StatusType;
 
 import java.net.URI;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 /**
  * An example to show how to integrate with Okta using the SCIM SDK.
@@ -262,9 +262,131 @@ public class SCIMServiceImpl implements SCIMService {
   // Absolute path for groups.json set in the dispatcher-servlet.xml
   private String groupsFilePath;
 
-  private Keycloak keycloak;
-  private UsersResource usersResource;
-  private GroupsResource groupsResource;
+  // When true, paged getUsers calls are translated into Keycloak first/max queries instead of
+  // listing the whole realm and paging in memory
+  private boolean keycloakPagination = true;
+  // Size of the first Keycloak window read while looking for an exact userName match
+  private int exactMatchWindow = 5;
+  // Maximum number of mapped users held by the getUser cache
+  private long userCacheMaxSize = 10000;
+  // Seconds a cached user is served before it is read from Keycloak again
+  private long userCacheTtlSeconds = 300;
+  // Seconds between full reconciles of the group name index, 0 to only reconcile on first use
+  private long groupIndexReconcileSeconds = 300;
+  // Seconds between polls of the Keycloak admin events that keep the caches current, 0 to disable
+  private long changeFeedPollSeconds = 0;
+  // Admin events read per Keycloak request, and the most requests in one poll before it falls back
+  // to a full reconcile
+  private int changeFeedPageSize = 100;
+  private int changeFeedMaxPages = 20;
+  // When true, getUsers, getGroups and getGroup are answered from an in-memory replica of the realm
+  // that the change feed keeps current, instead of calling Keycloak
+  private boolean realmReplica = false;
+  // Users read per Keycloak request, and groups whose members are read concurrently, while the
+  // replica loads
+  private int replicaUserPageSize = 1000;
+  private int replicaLoadParallelism = 8;
+  // When true, concurrent createUser calls are sent to Keycloak together as partial imports of up to
+  // bulkCreateWindowSize users, each sent at the latest bulkCreateWindowMillis after its first user
+  private boolean bulkCreateUsers = false;
+  private int bulkCreateWindowSize = 500;
+  private long bulkCreateWindowMillis = 50;
+  // When true, concurrent getUser, getGroup and identical getGroups calls share one Keycloak read
+  private boolean singleFlightReads = true;
+  // Maximum group membership writes in flight across all groups
+  private int membershipParallelism = 16;
+  // Maximum membership writes in flight for a single group push
+  private int membershipPerGroupConcurrency = 8;
+  // Number of members requested per Keycloak page when reading group members
+  private int memberPageSize = 500;
+  // When true, getGroups returns the members of every group on the page, read from Keycloak for
+  // groupMemberFetchParallelism groups at a time and cached per group
+  private boolean groupsIncludeMembers = false;
+  private int groupMemberFetchParallelism = 8;
+  // Bounds of the group member cache: maximum groups held and seconds an entry is served
+  private long groupMemberCacheMaxSize = 1000;
+  private long groupMemberCacheTtlSeconds = 300;
+  // Threads that run Keycloak calls when virtual threads are not used
+  private int keycloakThreads = 32;
+  // Run Keycloak calls on virtual threads when the runtime supports them
+  private boolean keycloakVirtualThreads = true;
+  // Base URL of the Keycloak server, including the /auth context
+  private String keycloakServerUrl = "http://localhost:9090/auth";
+  // Realm the users and groups are provisioned into; the admin account authenticates against it too
+  private String keycloakRealm = "master";
+  // OAuth2 grant used for the admin token: password (admin user) or client_credentials (service account)
+  private String keycloakGrantType = "password";
+  private String keycloakClientId = "admin-cli";
+  // Only needed for confidential clients, and always for the client_credentials grant
+  private String keycloakClientSecret = "";
+  private String keycloakUsername = "admin";
+  private String keycloakPassword = "admin";
+  // Part of the access token lifetime after which it is refreshed in the background
+  private double keycloakTokenRefreshRatio = 0.7;
+  // Maximum HTTP connections to Keycloak, in total and per route
+  private int keycloakPoolMaxTotal = 64;
+  private int keycloakPoolMaxPerRoute = 64;
+  // Milliseconds allowed to connect, to wait between response packets and to wait for a pooled connection
+  private int keycloakConnectTimeoutMillis = 5000;
+  private int keycloakSocketTimeoutMillis = 30000;
+  private int keycloakCheckoutTimeoutMillis = 10000;
+  // Seconds an idle connection is kept when Keycloak does not advertise a keep-alive timeout
+  private long keycloakKeepAliveSeconds = 30;
+  // Maximum lifetime of a pooled connection in seconds, 0 for no limit
+  private long keycloakConnectionTtlSeconds = 300;
+  // Seconds between sweeps that close expired and idle connections
+  private long keycloakIdleEvictionSeconds = 30;
+  // When true, the Keycloak calls in flight are limited, and the limit adapts to Keycloak's latency
+  private boolean keycloakAdaptiveConcurrency = true;
+  // Limit on Keycloak calls in flight at start, and its bounds
+  private int keycloakConcurrencyInitialLimit = 16;
+  private int keycloakConcurrencyMinLimit = 2;
+  private int keycloakConcurrencyMaxLimit = 64;
+  // A call slower than this many times the usual latency of its endpoint lowers the limit
+  private double keycloakConcurrencyLatencyTolerance = 2.0;
+  // Milliseconds a Keycloak call may wait for a slot before it fails
+  private long keycloakConcurrencyQueueTimeoutMillis = 10000;
+  // Times a read is sent again after Keycloak did not answer or answered 429 or 5xx, and the bounds
+  // in milliseconds of the jittered exponential wait before each retry
+  private int keycloakRetries = 2;
+  private long keycloakRetryBaseMillis = 50;
+  private long keycloakRetryMaxMillis = 1000;
+  // Failed Keycloak calls in a row that open the circuit breaker (0 disables it), and milliseconds
+  // calls are refused before one is let through
+  private int keycloakCircuitFailureThreshold = 10;
+  private long keycloakCircuitOpenMillis = 5000;
+  // Milliseconds after which a read of a user, a group or a page of members is sent a second time,
+  // 0 to never hedge
+  private long keycloakHedgeDelayMillis = 0;
+
+  // Latency and Keycloak call metrics, exposed over JMX and on /metrics
+  private final ConnectorMetrics metrics = new ConnectorMetrics();
+  // Keycloak reads in flight, keyed by user id, group id and groups page
+  private final SingleFlight<String, UserRepresentation> userReads = new SingleFlight<>();
+  private final SingleFlight<String, SCIMGroup> groupReads = new SingleFlight<>();
+  private final SingleFlight<String, SCIMGroupQueryResponse> groupPageReads = new SingleFlight<>();
+  private KeycloakConnectionPool connectionPool;
+  private ResteasyClient keycloakClient;
+  private AccessTokenManager tokenManager;
+  // Null unless keycloakAdaptiveConcurrency is set
+  private KeycloakConcurrencyLimiter limiter;
+  private KeycloakResilience resilience;
+  private KeycloakGateway gateway;
+  private KeycloakUserSearch userSearch;
+  private UserFilterEngine userFilter;
+  private UserCache userCache;
+  private GroupNameIndex groupNameIndex;
+  private MembershipExecutor membershipExecutor;
+  private GroupMemberPager memberPager;
+  private GroupMemberCache memberCache;
+  private MembershipDiff membershipDiff;
+  private KeycloakChangeFeed changeFeed;
+  // Null unless bulkCreateUsers is set
+  private BulkUserImporter bulkUserImporter;
+  // Null unless realmReplica is set
+  private RealmReplica replica;
+  // Runs background maintenance such as the group name index reconcile and the change feed polls
+  private ScheduledExecutorService scheduler;
 
   public String getUsersFilePath() {
     return usersFilePath;
@@ -282,20 +404,595 @@ public class SCIMServiceImpl implements SCIMService {
     this.groupsFilePath = groupsFilePath;
   }
 
+  public boolean isKeycloakPagination() {
+    return keycloakPagination;
+  }
+
+  public void setKeycloakPagination(boolean keycloakPagination) {
+    this.keycloakPagination = keycloakPagination;
+  }
+
+  public int getExactMatchWindow() {
+    return exactMatchWindow;
+  }
+
+  public void setExactMatchWindow(int exactMatchWindow) {
+    this.exactMatchWindow = exactMatchWindow;
+  }
+
+  public long getUserCacheMaxSize() {
+    return userCacheMaxSize;
+  }
+
+  public void setUserCacheMaxSize(long userCacheMaxSize) {
+    this.userCacheMaxSize = userCacheMaxSize;
+  }
+
+  public long getUserCacheTtlSeconds() {
+    return userCacheTtlSeconds;
+  }
+
+  public void setUserCacheTtlSeconds(long userCacheTtlSeconds) {
+    this.userCacheTtlSeconds = userCacheTtlSeconds;
+  }
+
+  public long getGroupIndexReconcileSeconds() {
+    return groupIndexReconcileSeconds;
+  }
+
+  public void setGroupIndexReconcileSeconds(long groupIndexReconcileSeconds) {
+    this.groupIndexReconcileSeconds = groupIndexReconcileSeconds;
+  }
+
+  public long getChangeFeedPollSeconds() {
+    return changeFeedPollSeconds;
+  }
+
+  public void setChangeFeedPollSeconds(long changeFeedPollSeconds) {
+    this.changeFeedPollSeconds = changeFeedPollSeconds;
+  }
+
+  public int getChangeFeedPageSize() {
+    return changeFeedPageSize;
+  }
+
+  public void setChangeFeedPageSize(int changeFeedPageSize) {
+    this.changeFeedPageSize = changeFeedPageSize;
+  }
+
+  public int getChangeFeedMaxPages() {
+    return changeFeedMaxPages;
+  }
+
+  public void setChangeFeedMaxPages(int changeFeedMaxPages) {
+    this.changeFeedMaxPages = changeFeedMaxPages;
+  }
+
+  public boolean isRealmReplica() {
+    return realmReplica;
+  }
+
+  public void setRealmReplica(boolean realmReplica) {
+    this.realmReplica = realmReplica;
+  }
+
+  public int getReplicaUserPageSize() {
+    return replicaUserPageSize;
+  }
+
+  public void setReplicaUserPageSize(int replicaUserPageSize) {
+    this.replicaUserPageSize = replicaUserPageSize;
+  }
+
+  public int getReplicaLoadParallelism() {
+    return replicaLoadParallelism;
+  }
+
+  public void setReplicaLoadParallelism(int replicaLoadParallelism) {
+    this.replicaLoadParallelism = replicaLoadParallelism;
+  }
+
+  public boolean isBulkCreateUsers() {
+    return bulkCreateUsers;
+  }
+
+  public void setBulkCreateUsers(boolean bulkCreateUsers) {
+    this.bulkCreateUsers = bulkCreateUsers;
+  }
+
+  public int getBulkCreateWindowSize() {
+    return bulkCreateWindowSize;
+  }
+
+  public void setBulkCreateWindowSize(int bulkCreateWindowSize) {
+    this.bulkCreateWindowSize = bulkCreateWindowSize;
+  }
+
+  public long getBulkCreateWindowMillis() {
+    return bulkCreateWindowMillis;
+  }
+
+  public void setBulkCreateWindowMillis(long bulkCreateWindowMillis) {
+    this.bulkCreateWindowMillis = bulkCreateWindowMillis;
+  }
+
+  public boolean isSingleFlightReads() {
+    return singleFlightReads;
+  }
+
+  public void setSingleFlightReads(boolean singleFlightReads) {
+    this.singleFlightReads = singleFlightReads;
+  }
+
+  public int getMembershipParallelism() {
+    return membershipParallelism;
+  }
+
+  public void setMembershipParallelism(int membershipParallelism) {
+    this.membershipParallelism = membershipParallelism;
+  }
+
+  public int getMembershipPerGroupConcurrency() {
+    return membershipPerGroupConcurrency;
+  }
+
+  public void setMembershipPerGroupConcurrency(int membershipPerGroupConcurrency) {
+    this.membershipPerGroupConcurrency = membershipPerGroupConcurrency;
+  }
+
+  public int getMemberPageSize() {
+    return memberPageSize;
+  }
+
+  public void setMemberPageSize(int memberPageSize) {
+    this.memberPageSize = memberPageSize;
+  }
+
+  public boolean isGroupsIncludeMembers() {
+    return groupsIncludeMembers;
+  }
+
+  public void setGroupsIncludeMembers(boolean groupsIncludeMembers) {
+    this.groupsIncludeMembers = groupsIncludeMembers;
+  }
+
+  public int getGroupMemberFetchParallelism() {
+    return groupMemberFetchParallelism;
+  }
+
+  public void setGroupMemberFetchParallelism(int groupMemberFetchParallelism) {
+    this.groupMemberFetchParallelism = groupMemberFetchParallelism;
+  }
+
+  public long getGroupMemberCacheMaxSize() {
+    return groupMemberCacheMaxSize;
+  }
+
+  public void setGroupMemberCacheMaxSize(long groupMemberCacheMaxSize) {
+    this.groupMemberCacheMaxSize = groupMemberCacheMaxSize;
+  }
+
+  public long getGroupMemberCacheTtlSeconds() {
+    return groupMemberCacheTtlSeconds;
+  }
+
+  public void setGroupMemberCacheTtlSeconds(long groupMemberCacheTtlSeconds) {
+    this.groupMemberCacheTtlSeconds = groupMemberCacheTtlSeconds;
+  }
+
+  public int getKeycloakThreads() {
+    return keycloakThreads;
+  }
+
+  public void setKeycloakThreads(int keycloakThreads) {
+    this.keycloakThreads = keycloakThreads;
+  }
+
+  public boolean isKeycloakVirtualThreads() {
+    return keycloakVirtualThreads;
+  }
+
+  public void setKeycloakVirtualThreads(boolean keycloakVirtualThreads) {
+    this.keycloakVirtualThreads = keycloakVirtualThreads;
+  }
+
+  public String getKeycloakServerUrl() {
+    return keycloakServerUrl;
+  }
+
+  public void setKeycloakServerUrl(String keycloakServerUrl) {
+    this.keycloakServerUrl = keycloakServerUrl;
+  }
+
+  public String getKeycloakRealm() {
+    return keycloakRealm;
+  }
+
+  public void setKeycloakRealm(String keycloakRealm) {
+    this.keycloakRealm = keycloakRealm;
+  }
+
+  public String getKeycloakClientId() {
+    return keycloakClientId;
+  }
+
+  public void setKeycloakClientId(String keycloakClientId) {
+    this.keycloakClientId = keycloakClientId;
+  }
+
+  public String getKeycloakGrantType() {
+    return keycloakGrantType;
+  }
+
+  public void setKeycloakGrantType(String keycloakGrantType) {
+    this.keycloakGrantType = keycloakGrantType;
+  }
+
+  public String getKeycloakClientSecret() {
+    return keycloakClientSecret;
+  }
+
+  public void setKeycloakClientSecret(String keycloakClientSecret) {
+    this.keycloakClientSecret = keycloakClientSecret;
+  }
+
+  public double getKeycloakTokenRefreshRatio() {
+    return keycloakTokenRefreshRatio;
+  }
+
+  public void setKeycloakTokenRefreshRatio(double keycloakTokenRefreshRatio) {
+    this.keycloakTokenRefreshRatio = keycloakTokenRefreshRatio;
+  }
+
+  public String getKeycloakUsername() {
+    return keycloakUsername;
+  }
+
+  public void setKeycloakUsername(String keycloakUsername) {
+    this.keycloakUsername = keycloakUsername;
+  }
+
+  public String getKeycloakPassword() {
+    return keycloakPassword;
+  }
+
+  public void setKeycloakPassword(String keycloakPassword) {
+    this.keycloakPassword = keycloakPassword;
+  }
+
+  public int getKeycloakPoolMaxTotal() {
+    return keycloakPoolMaxTotal;
+  }
+
+  public void setKeycloakPoolMaxTotal(int keycloakPoolMaxTotal) {
+    this.keycloakPoolMaxTotal = keycloakPoolMaxTotal;
+  }
+
+  public int getKeycloakPoolMaxPerRoute() {
+    return keycloakPoolMaxPerRoute;
+  }
+
+  public void setKeycloakPoolMaxPerRoute(int keycloakPoolMaxPerRoute) {
+    this.keycloakPoolMaxPerRoute = keycloakPoolMaxPerRoute;
+  }
+
+  public int getKeycloakConnectTimeoutMillis() {
+    return keycloakConnectTimeoutMillis;
+  }
+
+  public void setKeycloakConnectTimeoutMillis(int keycloakConnectTimeoutMillis) {
+    this.keycloakConnectTimeoutMillis = keycloakConnectTimeoutMillis;
+  }
+
+  public int getKeycloakSocketTimeoutMillis() {
+    return keycloakSocketTimeoutMillis;
+  }
+
+  public void setKeycloakSocketTimeoutMillis(int keycloakSocketTimeoutMillis) {
+    this.keycloakSocketTimeoutMillis = keycloakSocketTimeoutMillis;
+  }
+
+  public int getKeycloakCheckoutTimeoutMillis() {
+    return keycloakCheckoutTimeoutMillis;
+  }
+
+  public void setKeycloakCheckoutTimeoutMillis(int keycloakCheckoutTimeoutMillis) {
+    this.keycloakCheckoutTimeoutMillis = keycloakCheckoutTimeoutMillis;
+  }
+
+  public long getKeycloakKeepAliveSeconds() {
+    return keycloakKeepAliveSeconds;
+  }
+
+  public void setKeycloakKeepAliveSeconds(long keycloakKeepAliveSeconds) {
+    this.keycloakKeepAliveSeconds = keycloakKeepAliveSeconds;
+  }
+
+  public long getKeycloakConnectionTtlSeconds() {
+    return keycloakConnectionTtlSeconds;
+  }
+
+  public void setKeycloakConnectionTtlSeconds(long keycloakConnectionTtlSeconds) {
+    this.keycloakConnectionTtlSeconds = keycloakConnectionTtlSeconds;
+  }
+
+  public long getKeycloakIdleEvictionSeconds() {
+    return keycloakIdleEvictionSeconds;
+  }
+
+  public void setKeycloakIdleEvictionSeconds(long keycloakIdleEvictionSeconds) {
+    this.keycloakIdleEvictionSeconds = keycloakIdleEvictionSeconds;
+  }
+
+  public boolean isKeycloakAdaptiveConcurrency() {
+    return keycloakAdaptiveConcurrency;
+  }
+
+  public void setKeycloakAdaptiveConcurrency(boolean keycloakAdaptiveConcurrency) {
+    this.keycloakAdaptiveConcurrency = keycloakAdaptiveConcurrency;
+  }
+
+  public int getKeycloakConcurrencyInitialLimit() {
+    return keycloakConcurrencyInitialLimit;
+  }
+
+  public void setKeycloakConcurrencyInitialLimit(int keycloakConcurrencyInitialLimit) {
+    this.keycloakConcurrencyInitialLimit = keycloakConcurrencyInitialLimit;
+  }
+
+  public int getKeycloakConcurrencyMinLimit() {
+    return keycloakConcurrencyMinLimit;
+  }
+
+  public void setKeycloakConcurrencyMinLimit(int keycloakConcurrencyMinLimit) {
+    this.keycloakConcurrencyMinLimit = keycloakConcurrencyMinLimit;
+  }
+
+  public int getKeycloakConcurrencyMaxLimit() {
+    return keycloakConcurrencyMaxLimit;
+  }
+
+  public void setKeycloakConcurrencyMaxLimit(int keycloakConcurrencyMaxLimit) {
+    this.keycloakConcurrencyMaxLimit = keycloakConcurrencyMaxLimit;
+  }
+
+  public double getKeycloakConcurrencyLatencyTolerance() {
+    return keycloakConcurrencyLatencyTolerance;
+  }
+
+  public void setKeycloakConcurrencyLatencyTolerance(double keycloakConcurrencyLatencyTolerance) {
+    this.keycloakConcurrencyLatencyTolerance = keycloakConcurrencyLatencyTolerance;
+  }
+
+  public long getKeycloakConcurrencyQueueTimeoutMillis() {
+    return keycloakConcurrencyQueueTimeoutMillis;
+  }
+
+  public void setKeycloakConcurrencyQueueTimeoutMillis(long keycloakConcurrencyQueueTimeoutMillis) {
+    this.keycloakConcurrencyQueueTimeoutMillis = keycloakConcurrencyQueueTimeoutMillis;
+  }
+
+  public int getKeycloakRetries() {
+    return keycloakRetries;
+  }
+
+  public void setKeycloakRetries(int keycloakRetries) {
+    this.keycloakRetries = keycloakRetries;
+  }
+
+  public long getKeycloakRetryBaseMillis() {
+    return keycloakRetryBaseMillis;
+  }
+
+  public void setKeycloakRetryBaseMillis(long keycloakRetryBaseMillis) {
+    this.keycloakRetryBaseMillis = keycloakRetryBaseMillis;
+  }
+
+  public long getKeycloakRetryMaxMillis() {
+    return keycloakRetryMaxMillis;
+  }
+
+  public void setKeycloakRetryMaxMillis(long keycloakRetryMaxMillis) {
+    this.keycloakRetryMaxMillis = keycloakRetryMaxMillis;
+  }
+
+  public int getKeycloakCircuitFailureThreshold() {
+    return keycloakCircuitFailureThreshold;
+  }
+
+  public void setKeycloakCircuitFailureThreshold(int keycloakCircuitFailureThreshold) {
+    this.keycloakCircuitFailureThreshold = keycloakCircuitFailureThreshold;
+  }
+
+  public long getKeycloakCircuitOpenMillis() {
+    return keycloakCircuitOpenMillis;
+  }
+
+  public void setKeycloakCircuitOpenMillis(long keycloakCircuitOpenMillis) {
+    this.keycloakCircuitOpenMillis = keycloakCircuitOpenMillis;
+  }
+
+  public long getKeycloakHedgeDelayMillis() {
+    return keycloakHedgeDelayMillis;
+  }
+
+  public void setKeycloakHedgeDelayMillis(long keycloakHedgeDelayMillis) {
+    this.keycloakHedgeDelayMillis = keycloakHedgeDelayMillis;
+  }
+
+  /**
+   * @return the metrics served by {@link MetricsController}
+   */
+  ConnectorMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * @return the gateway every Keycloak call goes through, once {@link #afterCreation()} has run
+   */
+  KeycloakGateway getGateway() {
+    return gateway;
+  }
+
+  /**
+   * @return hit, miss and eviction counters of the getUser cache
+   */
+  public CacheStats getUserCacheStats() {
+    return userCache.stats();
+  }
+
+  /**
+   * @return leased, available (idle), pending and maximum connections of the Keycloak HTTP pool
+   */
+  public PoolStats getConnectionPoolStats() {
+    return connectionPool.getStats();
+  }
+
+  /**
+   * @return seconds until the current Keycloak access token expires, or -1 if there is none yet
+   */
+  public long getAccessTokenSecondsToExpiry() {
+    return tokenManager.getSecondsToExpiry();
+  }
+
   @PostConstruct
   public void afterCreation() {
-    String KEYCLOAK_ADMIN_URL = "http://localhost:9090/auth";
-    String REALM_NAME = "master";
-    keycloak = KeycloakBuilder.builder().serverUrl(KEYCLOAK_ADMIN_URL).realm(REALM_NAME).clientId("admin-cli")
-      .username("admin").password("admin")
-      // .clientSecret("42533ef8-fe84-4090-9751-08d3e4b29ac3") // Don't need this if
-      // we use a "user" - but we were trying to get it to work with an machine auth
-      // client credentials flow instead of user flow - should investigate this more
-      .resteasyClient(new ResteasyClientBuilder().connectionPoolSize(10).build()).build();
+    connectionPool = new KeycloakConnectionPool(keycloakPoolMaxTotal, keycloakPoolMaxPerRoute,
+      keycloakConnectTimeoutMillis, keycloakSocketTimeoutMillis, keycloakCheckoutTimeoutMillis,
+      keycloakKeepAliveSeconds, keycloakConnectionTtlSeconds);
+    keycloakClient = connectionPool.newResteasyClient();
+    // The admin resources are built the same way the Keycloak admin client builds them, but with
+    // our token manager as the bearer filter so tokens are refreshed ahead of expiry
+    tokenManager = new AccessTokenManager(keycloakClient.target(keycloakServerUrl).proxy(TokenService.class),
+      keycloakRealm, keycloakGrantType, keycloakClientId, keycloakClientSecret, keycloakUsername, keycloakPassword,
+      keycloakTokenRefreshRatio);
+    tokenManager.start();
+
+    ResteasyWebTarget adminTarget = keycloakClient.target(keycloakServerUrl).register(tokenManager);
+    RealmResource masterRealm = adminTarget.proxy(RealmsResource.class).realm(keycloakRealm);
+    UsersCountResource usersCountResource = keycloakClient
+      .target(URI.create(keycloakServerUrl + "/admin/realms/" + keycloakRealm + "/users"))
+      .register(tokenManager).proxy(UsersCountResource.class);
+    AdminEventsResource adminEventsResource = keycloakClient
+      .target(URI.create(keycloakServerUrl + "/admin/realms/" + keycloakRealm + "/admin-events"))
+      .register(tokenManager).proxy(AdminEventsResource.class);
+    if (keycloakAdaptiveConcurrency) {
+      limiter = new KeycloakConcurrencyLimiter(keycloakConcurrencyInitialLimit, keycloakConcurrencyMinLimit,
+        keycloakConcurrencyMaxLimit, keycloakConcurrencyLatencyTolerance, keycloakConcurrencyQueueTimeoutMillis);
+    }
+    resilience = new KeycloakResilience(keycloakRetries, keycloakRetryBaseMillis, keycloakRetryMaxMillis,
+      keycloakCircuitFailureThreshold, keycloakCircuitOpenMillis, keycloakHedgeDelayMillis);
+    gateway = new KeycloakGateway(masterRealm, usersCountResource, adminEventsResource,
+      KeycloakGateway.newExecutor(keycloakThreads, keycloakVirtualThreads), limiter, resilience, metrics);
+
+    userSearch = new KeycloakUserSearch(gateway, exactMatchWindow);
+    userCache = new UserCache(userCacheMaxSize, userCacheTtlSeconds);
+    groupNameIndex = new GroupNameIndex(gateway);
+    if (bulkCreateUsers) {
+      bulkUserImporter = new BulkUserImporter(gateway, bulkCreateWindowSize, bulkCreateWindowMillis);
+    }
+    membershipExecutor = new MembershipExecutor(gateway, membershipParallelism, membershipPerGroupConcurrency);
+    memberPager = new GroupMemberPager(gateway, memberPageSize);
+    memberCache = new GroupMemberCache(memberPager, groupMemberFetchParallelism, groupMemberCacheMaxSize,
+      groupMemberCacheTtlSeconds);
+    membershipDiff = new MembershipDiff(memberPager, membershipExecutor);
+    changeFeed = new KeycloakChangeFeed(gateway, changeFeedPageSize, changeFeedMaxPages, tokenManager::getSubject);
+    changeFeed.addListener(userCache);
+    changeFeed.addListener(groupNameIndex);
+    changeFeed.addListener(memberCache);
+    if (realmReplica) {
+      replica = new RealmReplica(gateway, replicaUserPageSize, memberPageSize, replicaLoadParallelism);
+      changeFeed.addListener(replica);
+    }
+    userFilter = new UserFilterEngine(gateway, userSearch, replica);
+
+    metrics.registerGauge("keycloak_pool_leased_connections", () -> connectionPool.getStats().getLeased());
+    metrics.registerGauge("keycloak_pool_available_connections", () -> connectionPool.getStats().getAvailable());
+    metrics.registerGauge("keycloak_pool_pending_requests", () -> connectionPool.getStats().getPending());
+    metrics.registerGauge("keycloak_pool_max_connections", () -> connectionPool.getStats().getMax());
+    metrics.registerGauge("keycloak_access_token_seconds_to_expiry", tokenManager::getSecondsToExpiry);
+    if (limiter != null) {
+      metrics.registerGauge("keycloak_concurrency_limit", limiter::getLimit);
+      metrics.registerGauge("keycloak_concurrency_in_flight", limiter::getInFlight);
+      metrics.registerGauge("keycloak_concurrency_queued_reads",
+        () -> limiter.getQueued(KeycloakConcurrencyLimiter.Lane.READ));
+      metrics.registerGauge("keycloak_concurrency_queued_writes",
+        () -> limiter.getQueued(KeycloakConcurrencyLimiter.Lane.WRITE));
+      metrics.registerGauge("keycloak_concurrency_rejected", limiter::getRejected);
+      metrics.registerGauge("keycloak_concurrency_decreases", limiter::getDecreases);
+    }
+    // 0 closed, 1 half open (one call let through), 2 open
+    metrics.registerGauge("keycloak_circuit_state", () -> resilience.getCircuitState().ordinal());
+    metrics.registerGauge("keycloak_circuit_opens", resilience::getCircuitOpens);
+    metrics.registerGauge("keycloak_circuit_rejected", resilience::getCircuitRejected);
+    metrics.registerGauge("keycloak_retries", resilience::getRetries);
+    metrics.registerGauge("keycloak_hedged_reads", resilience::getHedges);
+    metrics.registerGauge("keycloak_hedge_wins", resilience::getHedgeWins);
+    metrics.registerGauge("user_cache_size", userCache::size);
+    metrics.registerGauge("single_flight_get_user_reads", userReads::getReads);
+    metrics.registerGauge("single_flight_get_user_collapsed", userReads::getCollapsed);
+    metrics.registerGauge("single_flight_get_group_reads", groupReads::getReads);
+    metrics.registerGauge("single_flight_get_group_collapsed", groupReads::getCollapsed);
+    metrics.registerGauge("single_flight_get_groups_reads", groupPageReads::getReads);
+    metrics.registerGauge("single_flight_get_groups_collapsed", groupPageReads::getCollapsed);
+    metrics.registerGauge("user_filter_predicates_pushed_down", userFilter::getPushedDown);
+    metrics.registerGauge("user_filter_predicates_evaluated_locally", userFilter::getEvaluatedLocally);
+    metrics.registerGauge("group_name_index_size", groupNameIndex::size);
+    metrics.registerGauge("group_member_cache_size", memberCache::size);
+    metrics.registerGauge("group_member_cache_hits", () -> memberCache.stats().hitCount());
+    metrics.registerGauge("group_member_cache_misses", () -> memberCache.stats().missCount());
+    metrics.registerGauge("keycloak_change_feed_events_applied", changeFeed::getEventsApplied);
+    metrics.registerGauge("keycloak_change_feed_own_events_skipped", changeFeed::getOwnEventsSkipped);
+    metrics.registerGauge("keycloak_change_feed_reconciles", changeFeed::getReconciles);
+    metrics.registerGauge("keycloak_change_feed_high_water_mark_millis", changeFeed::getHighWaterMark);
+    if (bulkUserImporter != null) {
+      metrics.registerGauge("bulk_create_imports", bulkUserImporter::getImports);
+      metrics.registerGauge("bulk_create_imported_users", bulkUserImporter::getImportedUsers);
+      metrics.registerGauge("bulk_create_fallback_users", bulkUserImporter::getFallbackUsers);
+    }
+    if (replica != null) {
+      metrics.registerGauge("realm_replica_users", replica::userCount);
+      metrics.registerGauge("realm_replica_groups", replica::groupCount);
+      metrics.registerGauge("realm_replica_memberships", replica::membershipCount);
+      metrics.registerGauge("realm_replica_reloads", replica::getReloads);
+    }
+    metrics.registerMBean();
+
+    scheduler = Executors.newSingleThreadScheduledExecutor(
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("scim-maintenance-%d").build());
+    if (groupIndexReconcileSeconds > 0) {
+      scheduler.scheduleWithFixedDelay(groupNameIndex::reconcileQuietly, groupIndexReconcileSeconds,
+        groupIndexReconcileSeconds, TimeUnit.SECONDS);
+    }
+    if (changeFeedPollSeconds > 0) {
+      scheduler.scheduleWithFixedDelay(changeFeed::pollQuietly, 0, changeFeedPollSeconds, TimeUnit.SECONDS);
+    }
+    if (replica != null) {
+      // Queued after the first poll, so the feed's mark is set before the realm is read and no
+      // change made during the load is missed. Until the load completes, reads go to Keycloak.
+      scheduler.execute(replica::reloadQuietly);
+      if (changeFeedPollSeconds <= 0) {
+        LOGGER.warn("The realm replica is enabled without the change feed; changes made outside this connector"
+          + " will not be seen");
+      }
+    }
+    if (keycloakIdleEvictionSeconds > 0) {
+      scheduler.scheduleWithFixedDelay(() -> connectionPool.evictConnections(keycloakKeepAliveSeconds),
+        keycloakIdleEvictionSeconds, keycloakIdleEvictionSeconds, TimeUnit.SECONDS);
+    }
+  }
 
-    RealmResource masterRealm = keycloak.realm(REALM_NAME);
-    groupsResource = masterRealm.groups();
-    usersResource = masterRealm.users();
+  @PreDestroy
+  public void beforeDestruction() {
+    metrics.unregisterMBean();
+    scheduler.shutdownNow();
+    if (bulkUserImporter != null) {
+      bulkUserImporter.shutdown();
+    }
+    gateway.shutdown();
+    tokenManager.shutdown();
+    keycloakClient.close();
+    connectionPool.shutdown();
   }
 
   /**
@@ -324,42 +1021,36 @@ public class SCIMServiceImpl implements SCIMService {
    */
   @Override
   public SCIMUser createUser(SCIMUser user) throws OnPremUserManagementException {
-    LOGGER.debug("Entering createUser: " + user.getUserName());
-
-    UserRepresentation userRepresentation = updateKeycloakUser(user, new UserRepresentation());
-
-    Response response = usersResource.create(userRepresentation);
+    try (ConnectorMetrics.Request ignored = metrics.startRequest("createUser")) {
+      LOGGER.debug("Entering createUser: " + user.getUserName());
+
+      UserRepresentation userRepresentation = KeycloakMapper.updateKeycloakUser(user, new UserRepresentation());
+
+      String createdUserId;
+      try {
+        // Waits for the window the user joined when creates are bulked
+        createdUserId = KeycloakGateway.await(bulkUserImporter != null
+          ? bulkUserImporter.create(userRepresentation)
+          : gateway.createUser(userRepresentation));
+      } catch (WebApplicationException ex) {
+        if (ex.getResponse() == null || ex.getResponse().getStatus() != Status.CONFLICT.getStatusCode()) {
+          throw ex;
+        }
+        LOGGER.debug("  User already exists, throwing OnPremUserManagementException");
+        throw new OnPremUserManagementException("409", "User Already Exists");
+      }
 
-    if (response.getStatusInfo().equals(Response.Status.CREATED)) {
-      // TODO: Log here
-      String path = response.getLocation().getPath();
-      user.setId(path.substring(path.lastIndexOf('/') + 1));
       // TODO: Log here
+      user.setId(createdUserId);
+      userRepresentation.setId(createdUserId);
+      userCache.put(KeycloakMapper.createSCIMUserFromKeycloakRepresentation(userRepresentation));
+      if (replica != null) {
+        replica.putUser(userRepresentation);
+      }
       return user;
-    } else {
-      LOGGER.debug("  User already exists, throwing OnPremUserManagementException");
-      throw new OnPremUserManagementException("409", "User Already Exists");
-    }
-  }
-
-  private UserRepresentation updateKeycloakUser(SCIMUser scimUser, UserRepresentation userRepresentation) {
-    // TODO: Log here
-    userRepresentation.setId(scimUser.getId());
-    userRepresentation.setUsername(scimUser.getUserName());
-    userRepresentation.setFirstName(scimUser.getName().getFirstName());
-    userRepresentation.setLastName(scimUser.getName().getLastName());
-    userRepresentation.setEnabled(true);
-
-    String newPassword = scimUser.getPassword();
-    if (newPassword != null && !newPassword.isEmpty()) {
-      CredentialRepresentation credentialRepresentation = new CredentialRepresentation();
-      credentialRepresentation.setType(CredentialRepresentation.PASSWORD);
-      credentialRepresentation.setValue(newPassword);
-
-      userRepresentation.setCredentials(Collections.singletonList(credentialRepresentation));
+    } catch (RuntimeException e) {
+      throw toScimFailure(e);
     }
-
-    return userRepresentation;
   }
 
   /**
@@ -382,19 +1073,32 @@ public class SCIMServiceImpl implements SCIMService {
    */
   @Override
   public SCIMUser updateUser(String id, SCIMUser user) throws OnPremUserManagementException, EntityNotFoundException {
-    LOGGER.debug("Entering updateUser: " + user.getUserName());
-    UserResource keycloakUserResource = usersResource.get(id);
-    UserRepresentation keycloakUser = keycloakUserResource.toRepresentation();
+    try (ConnectorMetrics.Request ignored = metrics.startRequest("updateUser")) {
+      LOGGER.debug("Entering updateUser: " + user.getUserName());
+      UserRepresentation keycloakUser;
+      try {
+        keycloakUser = KeycloakGateway.await(gateway.getUser(id));
+      } catch (javax.ws.rs.NotFoundException ex) {
+        keycloakUser = null;
+      }
 
-    if (keycloakUser != null) {
-      UserRepresentation userRepresentation = updateKeycloakUser(user, keycloakUser);
-      // TODO: Log here
-      keycloakUserResource.update(userRepresentation);
+      if (keycloakUser != null) {
+        UserRepresentation userRepresentation = KeycloakMapper.updateKeycloakUser(user, keycloakUser);
+        // TODO: Log here
+        KeycloakGateway.await(gateway.updateUser(id, userRepresentation));
+        userRepresentation.setId(id);
+        userCache.put(KeycloakMapper.createSCIMUserFromKeycloakRepresentation(userRepresentation));
+        if (replica != null) {
+          replica.putUser(userRepresentation);
+        }
 
-      return user;
-    } else {
-      LOGGER.debug("  Could not find user to update in KeyCloak");
-      throw new EntityNotFoundException();
+        return user;
+      } else {
+        LOGGER.debug("  Could not find user to update in KeyCloak");
+        throw new EntityNotFoundException();
+      }
+    } catch (RuntimeException e) {
+      throw toScimFailure(e);
     }
   }
 
@@ -416,75 +1120,113 @@ public class SCIMServiceImpl implements SCIMService {
   @Override
   public SCIMUserQueryResponse getUsers(PaginationProperties pageProperties, SCIMFilter filter)
     throws OnPremUserManagementException {
-    LOGGER.info("getUsers Called");
-    if (filter != null) {
-      return getFilteredUsers(pageProperties, filter);
-    } else {
-      return getScimUsersToReturn(pageProperties, usersResource.list());
+    try (ConnectorMetrics.Request ignored = metrics.startRequest("getUsers")) {
+      LOGGER.info("getUsers Called");
+      if (filter != null) {
+        return getFilteredUsers(pageProperties, filter);
+      } else if (isReplicaLoaded()) {
+        return replica.getUsers(pageProperties);
+      } else if (pageProperties != null && keycloakPagination) {
+        return getPagedUsers(pageProperties);
+      } else {
+        return getScimUsersToReturn(pageProperties, KeycloakGateway.await(gateway.listUsers()));
+      }
+    } catch (RuntimeException e) {
+      throw toScimFailure(e);
     }
   }
 
+  /**
+   * Fetch a single page of users from Keycloak. The page itself is one bounded
+   * <code>first</code>/<code>max</code> query and <code>totalResults</code> comes from a separate
+   * count call, so the cost of a page does not depend on the size of the realm. Both calls are
+   * made concurrently.
+   */
+  private SCIMUserQueryResponse getPagedUsers(PaginationProperties pageProperties) {
+    KeycloakPage page = KeycloakPage.from(pageProperties);
+    LOGGER.debug("fetching users page from Keycloak (" + page + ")");
+
+    CompletableFuture<Integer> totalResults = gateway.countUsers();
+    CompletableFuture<List<UserRepresentation>> pageOfUsers = page.isEmpty()
+      ? CompletableFuture.completedFuture(Collections.<UserRepresentation>emptyList())
+      : gateway.listUsers(page.getFirst(), page.getMax());
+
+    return createPagedSCIMUserQueryResponse(pageProperties, totalResults, pageOfUsers);
+  }
+
+  private SCIMUserQueryResponse createPagedSCIMUserQueryResponse(PaginationProperties pageProperties,
+                                                                 CompletableFuture<Integer> totalResults,
+                                                                 CompletableFuture<List<UserRepresentation>> pageOfUsers) {
+    SCIMUserQueryResponse response = new SCIMUserQueryResponse();
+    response.setStartIndex(pageProperties.getStartIndex());
+
+    List<UserRepresentation> representations = KeycloakGateway.await(pageOfUsers);
+    LOGGER.debug("  received " + representations.size() + " users from Keycloak");
+    response.setTotalResults(KeycloakGateway.await(totalResults));
+
+    response.setScimUsers(KeycloakMapper.createSCIMUsersFromKeycloakRepresentations(representations));
+    return response;
+  }
+
   private SCIMUserQueryResponse getFilteredUsers(PaginationProperties pageProperties, SCIMFilter filter) {
     LOGGER.debug("getFilteredUsers with filter: " + filter.toString());
 
-    LOGGER.info("Checking Keycloak for users with username" + filter.getFilterValue());
-    if (filter.getFilterAttribute().getAttributeName().equals("userName")) {
+    List<List<UserFilterEngine.Predicate>> terms = UserFilterEngine.parse(filter);
+    UserFilterEngine.Predicate first = terms.get(0).get(0);
+    if (terms.size() > 1 || terms.get(0).size() > 1 || first.getAttribute() != UserFilterEngine.Attribute.USER_NAME
+      || first.isExact()) {
+      LOGGER.info("Finding the users matching " + filter);
+      return getScimUsersToReturn(pageProperties, userFilter.find(terms));
+    }
 
-      LOGGER.info("Calling Keycloak to get all users matching filter");
-      List<UserRepresentation> allMatchingUsers = usersResource.search(filter.getFilterValue());
-      LOGGER.debug("  received " + allMatchingUsers.size() + " users from Keycloak");
+    // A userName substring can match much of the realm, so it is read one page at a time
+    String userName = filter.getFilterValue();
+    LOGGER.info("Checking Keycloak for users with username containing " + userName);
+    if (isReplicaLoaded()) {
+      LOGGER.debug("Searching the realm replica for users with username " + userName);
+      return replica.findUsersByUserName(userName, false, pageProperties);
+    }
 
-      return getScimUsersToReturn(pageProperties, allMatchingUsers);
-    } else {
-      String attributeName = filter.getFilterAttribute().getAttributeName();
-      LOGGER.error("only supported filter is Okta userName, received: " + attributeName);
-      throw new OnPremUserManagementException("filter not supported", "Filter Name: " + attributeName);
+    if (pageProperties != null) {
+      KeycloakPage page = KeycloakPage.from(pageProperties);
+      LOGGER.info("Calling Keycloak to get a page of users matching filter (" + page + ")");
+
+      CompletableFuture<Integer> totalResults = userSearch.countByUserName(userName);
+      CompletableFuture<List<UserRepresentation>> pageOfUsers = page.isEmpty()
+        ? CompletableFuture.completedFuture(Collections.<UserRepresentation>emptyList())
+        : userSearch.searchByUserName(userName, page);
+
+      return createPagedSCIMUserQueryResponse(pageProperties, totalResults, pageOfUsers);
     }
 
+    LOGGER.info("Calling Keycloak to get all users matching filter");
+    List<UserRepresentation> allMatchingUsers = KeycloakGateway.await(gateway.searchUsers(userName));
+    LOGGER.debug("  received " + allMatchingUsers.size() + " users from Keycloak");
+
+    return getScimUsersToReturn(pageProperties, allMatchingUsers);
   }
 
-  private SCIMUserQueryResponse getScimUsersToReturn(PaginationProperties pageProperties, List<UserRepresentation> allMatchingUsers) {
+  static SCIMUserQueryResponse getScimUsersToReturn(PaginationProperties pageProperties, List<UserRepresentation> allMatchingUsers) {
     List<UserRepresentation> returnUsers;
     SCIMUserQueryResponse response = new SCIMUserQueryResponse();
     LOGGER.info("getScimUsersToReturns");
 
     if (pageProperties != null) {
       LOGGER.debug("applying pagination logic to all filtered users returned from Keycloak");
-      int count = Math.toIntExact(pageProperties.getCount());
-      int startIndex = Math.toIntExact(pageProperties.getStartIndex());
-      int matchingSize = allMatchingUsers.size();
-      int proposedEndIndex = count + startIndex;
-      int endIndex = proposedEndIndex > matchingSize ? matchingSize : proposedEndIndex;
-
-      response.setTotalResults(matchingSize);
+      response.setTotalResults(allMatchingUsers.size());
+      response.setStartIndex(pageProperties.getStartIndex());
 
-      returnUsers = allMatchingUsers.subList(startIndex - 1, endIndex);
+      returnUsers = KeycloakPage.from(pageProperties).slice(allMatchingUsers);
       LOGGER.debug("filtered users collection down to " + returnUsers.size() + " users");
     } else {
       LOGGER.debug("no pagination params passed, so returning all users");
       returnUsers = allMatchingUsers;
     }
 
-    List<SCIMUser> users = new ArrayList<>();
-    for (UserRepresentation representation : returnUsers) {
-      users.add(createSCIMUserFromKeycloakRepresentation(representation));
-    }
-
-    response.setScimUsers(users);
+    response.setScimUsers(KeycloakMapper.createSCIMUsersFromKeycloakRepresentations(returnUsers));
     return response;
   }
 
-  private SCIMUser createSCIMUserFromKeycloakRepresentation(UserRepresentation keycloakUser) {
-    SCIMUser user = new SCIMUser();
-    user.setUserName(keycloakUser.getUsername());
-    user.setName(new Name(keycloakUser.getFirstName() + keycloakUser.getLastName(), keycloakUser.getLastName(),
-      keycloakUser.getFirstName()));
-    user.setId(keycloakUser.getId());
-    user.setActive(true);
-
-    return user;
-  }
-
   /**
    * Get a particular user.
    * <p>
@@ -496,22 +1238,40 @@ public class SCIMServiceImpl implements SCIMService {
    */
   @Override
   public SCIMUser getUser(String id) throws OnPremUserManagementException, EntityNotFoundException {
-    LOGGER.debug("Entering getUser: " + id);
+    try (ConnectorMetrics.Request ignored = metrics.startRequest("getUser")) {
+      LOGGER.debug("Entering getUser: " + id);
+
+      SCIMUser cachedUser = userCache.get(id);
+      if (cachedUser != null) {
+        LOGGER.debug("  returning cached user " + id);
+        return cachedUser;
+      }
 
-    // TODO: litter this thing with some good debug logs
-    try {
-      UserRepresentation keycloakUser = usersResource.get(id).toRepresentation();
+      // TODO: litter this thing with some good debug logs
+      UserRepresentation keycloakUser;
+      try {
+        // The representation may be shared with concurrent callers, so it is only read
+        keycloakUser = KeycloakGateway.await(read(userReads, id, () -> gateway.getUser(id)));
+      } catch (javax.ws.rs.NotFoundException ex) {
+        throw new EntityNotFoundException();
+      } catch (RuntimeException ex) {
+        if (KeycloakResilience.isUnavailable(ex)) {
+          // Reported as Keycloak being unavailable, like in every other operation
+          throw ex;
+        }
+        LOGGER.error(ex.getMessage() + '\n' + Arrays.toString(ex.getStackTrace()));
+        throw new OnPremUserManagementException("Error in getUser implementation", ex.getMessage());
+      }
 
       if (keycloakUser != null) {
-        return createSCIMUserFromKeycloakRepresentation(keycloakUser);
+        SCIMUser user = KeycloakMapper.createSCIMUserFromKeycloakRepresentation(keycloakUser);
+        userCache.put(user);
+        return user;
       } else {
         throw new EntityNotFoundException();
       }
-    } catch (javax.ws.rs.NotFoundException ex) {
-      throw new EntityNotFoundException();
-    } catch (Exception ex) {
-      LOGGER.error(ex.getMessage() + '\n' + Arrays.toString(ex.getStackTrace()));
-      throw new OnPremUserManagementException("Error in getUser implementation", ex.getMessage());
+    } catch (RuntimeException e) {
+      throw toScimFailure(e);
     }
   }
 
@@ -534,38 +1294,52 @@ public class SCIMServiceImpl implements SCIMService {
    */
   @Override
   public SCIMGroup createGroup(SCIMGroup group) throws OnPremUserManagementException, DuplicateGroupException {
-    LOGGER.debug("ENTERING createGroup");
-    GroupsResource groupsResource = keycloak.realm("master").groups();
-    String groupName = group.getDisplayName();
-
-    // TODO: litter this thing with good debug logs too
-    GroupRepresentation foundGroup = getKeycloakGroupByName(groupName);
-
-    if (foundGroup != null) {
-      throw new DuplicateGroupException();
-    }
-
-    String createdGroupId = createTheGroup(groupName);
-
-    Collection<Membership> memberships = group.getMembers();
-    if (memberships != null) {
-      addUsersToGroup(memberships, createdGroupId, groupName);
-    }
+    try (ConnectorMetrics.Request ignored = metrics.startRequest("createGroup")) {
+      LOGGER.debug("ENTERING createGroup");
+      String groupName = group.getDisplayName();
+
+      // TODO: litter this thing with good debug logs too
+      if (groupNameIndex.findId(groupName) != null) {
+        LOGGER.debug("  Group " + groupName + " already exists, throwing DuplicateGroupException");
+        throw new DuplicateGroupException();
+      }
 
-    // NOTE: if users are not found, what are we supposed to do?
-    group.setId(createdGroupId);
-    LOGGER.debug("Returning from createGroup");
-    return group;
-  }
+      String createdGroupId;
+      try {
+        createdGroupId = createTheGroup(groupName);
+      } catch (WebApplicationException ex) {
+        if (ex.getResponse() != null && ex.getResponse().getStatus() == Status.CONFLICT.getStatusCode()) {
+          // Created outside this connector since the index was last reconciled
+          LOGGER.debug("  Keycloak reported " + groupName + " as a duplicate, throwing DuplicateGroupException");
+          scheduler.execute(groupNameIndex::reconcileQuietly);
+          throw new DuplicateGroupException();
+        }
+        throw ex;
+      }
+      groupNameIndex.put(createdGroupId, groupName);
+      if (replica != null) {
+        replica.putGroup(createdGroupId, groupName, true);
+      }
 
-  private GroupRepresentation getKeycloakGroupByName(String name) {
-    for (GroupRepresentation groupRepresentation : groupsResource.groups()) {
-      if (name.equals(groupRepresentation.getName())) {
-        return groupRepresentation;
+      Collection<Membership> memberships = group.getMembers();
+      if (memberships != null) {
+        List<MembershipResult> results = addUsersToGroup(memberships, createdGroupId, groupName);
+        // A getGroups that listed the new group before its members were added may have cached it empty
+        memberCache.invalidate(createdGroupId);
+        if (replica != null) {
+          replica.applyMemberships(createdGroupId, results);
+        }
+        // Okta does not retry a push it was told succeeded
+        MembershipExecutor.throwFailure(results);
       }
-    }
 
-    return null;
+      // NOTE: if users are not found, what are we supposed to do?
+      group.setId(createdGroupId);
+      LOGGER.debug("Returning from createGroup");
+      return group;
+    } catch (RuntimeException e) {
+      throw toScimFailure(e);
+    }
   }
 
   private String createTheGroup(String groupName) {
@@ -573,42 +1347,24 @@ public class SCIMServiceImpl implements SCIMService {
     GroupRepresentation newGroup = new GroupRepresentation();
     newGroup.setName(groupName);
 
-    Response response = groupsResource.add(newGroup);
-    String createdGroupId = getCreatedId(response);
+    String createdGroupId = KeycloakGateway.await(gateway.createGroup(newGroup));
 
     LOGGER.debug("    keycloak id for new group: " + createdGroupId);
     return createdGroupId;
   }
 
-  private void addUsersToGroup(Iterable<Membership> memberships, String groupId, String groupName) {
+  private List<MembershipResult> addUsersToGroup(Iterable<Membership> memberships, String groupId, String groupName) {
+    List<String> userIds = new ArrayList<>();
     for (Membership membership : memberships) {
-      LOGGER.debug("    Adding " + membership.getDisplayName() + " to " + groupName);
-      String username = membership.getDisplayName();
-      UserResource resource = usersResource.get(membership.getId());
-      if (resource.toRepresentation() == null) {
-        LOGGER.debug(String.format("User %s with ID %s not found while attempting to add to group %s", username,
-          membership.getId(), groupName));
-      } else {
-        LOGGER.debug(String.format("Adding user %s to group %s", username, groupName));
-        resource.joinGroup(groupId);
-      }
+      LOGGER.debug("    Adding " + membership.getDisplayName() + " (id: " + membership.getId() + ") to " + groupName);
+      userIds.add(membership.getId());
     }
-  }
 
-  private static String getCreatedId(Response response) {
-    URI location = response.getLocation();
-    if (!response.getStatusInfo().equals(Status.CREATED)) {
-      StatusType statusInfo = response.getStatusInfo();
-      response.bufferEntity();
-      String body = response.readEntity(String.class);
-      throw new WebApplicationException("Create method returned status " + statusInfo.getReasonPhrase() + " (Code: "
-        + statusInfo.getStatusCode() + "); expected status: Created (201). Response body: " + body, response);
-    }
-    if (location == null) {
-      return null;
-    }
-    String path = location.getPath();
-    return path.substring(path.lastIndexOf('/') + 1);
+    // Users that do not exist come back as failed results from Keycloak's 404, no pre-fetch needed;
+    // the caller throws any other failure once the changes that were made are recorded
+    List<MembershipResult> results = membershipExecutor.apply(groupId, userIds, MembershipExecutor.Operation.JOIN);
+    MembershipExecutor.report(groupName, results);
+    return results;
   }
 
   /**
@@ -625,78 +1381,41 @@ public class SCIMServiceImpl implements SCIMService {
    */
   @Override
   public SCIMGroup updateGroup(String id, SCIMGroup group) throws OnPremUserManagementException {
-    // TODO: am I still getting a 500 when I remove all membership from group
-
-    LOGGER.debug("ENTERING updateGroup with ID " + id + "(incoming name: " + group.getDisplayName() + ")");
-
-    Collection<Membership> members = group.getMembers();
-
-    logDesiredGroupMembership(members);
-
-    GroupResource foundGroup = null;
-
-    try {
-      LOGGER.debug(" Attempting to find group with id " + id);
-      foundGroup = groupsResource.group(id);
-    } catch (javax.ws.rs.NotFoundException ex) {
-      LOGGER.debug("  Got a 404 not found while trying to find the group");
-      throw new EntityNotFoundException();
-    }
-
-    if (foundGroup == null) {
-      LOGGER.debug("  Did not find group with ID " + id);
-      throw new EntityNotFoundException();
-    }
+    try (ConnectorMetrics.Request ignored = metrics.startRequest("updateGroup")) {
+      LOGGER.debug("ENTERING updateGroup with ID " + id + "(incoming name: " + group.getDisplayName() + ")");
 
-    try {
-      LOGGER.debug("  Retrieving Keycloak group " + id);
-      GroupResource groupResource = groupsResource.group(id);
+      Collection<Membership> members = group.getMembers();
 
-      if (groupResource != null) {
-        LOGGER.debug("  Found group with ID " + id + "(name: " + groupResource.toRepresentation().getName() + ")");
+      logDesiredGroupMembership(members);
 
-        List<UserRepresentation> existingMembers = groupResource.members();
-        Collection<Membership> requestedMembers = group.getMembers() != null ? group.getMembers() : Collections.emptyList();
-
-        Set<String> existingIds = Sets.newHashSet(existingMembers.stream().map(u -> u.getId()).collect(Collectors.toList()));
-        Set<String> requestedIds = Sets.newHashSet(group.getMembers().stream().map(u -> u.getId()).collect(Collectors.toSet()));
-
-        // any user in existing, not in requested ... mark for removal
-        Set<String> idsToRemove = Sets.difference(existingIds, requestedIds);
-        // any user in requested, not in existing ... mark for addition
-        Set<String> idsToAdd = Sets.difference(requestedIds, existingIds);
-
-        LOGGER.debug("  Removing users no longer in the group");
-        for (String userId : idsToRemove) {
-          // TODO: should I get the users name that I'm removing????
-          LOGGER.debug("  Removing user with id: " + userId);
-          usersResource.get(userId).leaveGroup(id);
-
-
-          if (idsToAdd.size() > 0) {
-            LOGGER.debug("  Adding users to group");
-
-            Iterable<Membership> membersToAdd = Iterables.filter(requestedMembers, x -> idsToAdd.contains(x.getId()));
-            addUsersToGroup(membersToAdd, id, group.getDisplayName());
-          }
-
-          // TODO: do we need to update the group info here??? -
-          //    GroupRepresentation groupToUpdate = groupResource.toRepresentation();
-          //    groupToUpdate.setName(group.getDisplayName());
-          //    groupResource.update(groupToUpdate);
-          //    group.setId(createdGroupId);
-
-          return group;
+      try {
+        memberCache.invalidate(id);
+        // The first member page doubles as the existence check, so the group is not fetched separately
+        MembershipDiff.Result result = membershipDiff.apply(id, group.getDisplayName(),
+          members != null ? members : Collections.<Membership>emptyList());
+        MembershipExecutor.report(group.getDisplayName(), result.getChanges());
+        if (replica != null) {
+          replica.applyMemberships(id, result.getChanges());
         }
+        LOGGER.debug("  updated group " + id + ": " + result);
+        MembershipExecutor.throwFailure(result.getChanges());
+      } catch (javax.ws.rs.NotFoundException ex) {
+        LOGGER.debug("  Got a 404 not found while trying to find the group with ID " + id);
+        throw new EntityNotFoundException();
+      } finally {
+        // Again once the changes are made, so a getGroups read that overlapped them is not cached
+        memberCache.invalidate(id);
       }
-    }
-    catch(javax.ws.rs.NotFoundException ex){
-      // TODO: debug - find out why when groupResource is != null, there is no group to remove?????? - so it blows up????
-      LOGGER.debug("  Got a 404 not found while trying to remove the group");
-      LOGGER.debug("  Did not find group with ID " + id + ", so nothing to remove before re-creating");
-    }
 
-    throw new EntityNotFoundException();
+      // TODO: do we need to update the group info here??? -
+      //    GroupRepresentation groupToUpdate = groupResource.toRepresentation();
+      //    groupToUpdate.setName(group.getDisplayName());
+      //    groupResource.update(groupToUpdate);
+
+      return group;
+    } catch (RuntimeException e) {
+      throw toScimFailure(e);
+    }
   }
 
   /**
@@ -718,68 +1437,64 @@ public class SCIMServiceImpl implements SCIMService {
    */
   @Override
   public SCIMGroupQueryResponse getGroups(PaginationProperties pageProperties) throws OnPremUserManagementException {
-    // TODO: should we add the group membership here????
-
+    try (ConnectorMetrics.Request ignored = metrics.startRequest("getGroups")) {
+      LOGGER.debug("ENTERING getGroups");
+      if (isReplicaLoaded()) {
+        return replica.getGroups(pageProperties, groupsIncludeMembers);
+      }
+      // Callers asking for the same page at the same time share one count and one listing
+      String pageKey = pageProperties != null ? pageProperties.getStartIndex() + "+" + pageProperties.getCount() : "all";
+      return KeycloakGateway.await(read(groupPageReads, pageKey,
+        () -> CompletableFuture.completedFuture(readGroups(pageProperties))));
+    } catch (RuntimeException e) {
+      throw toScimFailure(e);
+    }
+  }
 
-    LOGGER.debug("ENTERING getGroups");
+  private SCIMGroupQueryResponse readGroups(PaginationProperties pageProperties) {
     SCIMGroupQueryResponse response = new SCIMGroupQueryResponse();
 
-    long groupCount = groupsResource.count(true).getOrDefault("count", (long) 0);
-    int totalResults = Math.toIntExact(groupCount);
-    response.setTotalResults(totalResults);
+    // The count and the page are independent, so both calls are in flight together
+    CompletableFuture<Long> groupCount = gateway.countGroups();
 
-    List<GroupRepresentation> groupRepresentations = new ArrayList<>();
+    CompletableFuture<List<GroupRepresentation>> pageOfGroups;
     if (pageProperties != null) {
       LOGGER.debug("pagination exists with start index " + pageProperties.getStartIndex() + " and count "
         + pageProperties.getCount());
       // Set the start index
       response.setStartIndex(pageProperties.getStartIndex());
-      groupRepresentations = groupsResource.groups(Math.toIntExact(pageProperties.getStartIndex()),
-        pageProperties.getCount());
+      KeycloakPage page = KeycloakPage.from(pageProperties);
+      pageOfGroups = page.isEmpty()
+        ? CompletableFuture.completedFuture(Collections.<GroupRepresentation>emptyList())
+        : gateway.listGroups(page.getFirst(), page.getMax());
     } else {
       LOGGER.debug("No Pagination - returning all groups");
-      groupRepresentations = groupsResource.groups();
+      pageOfGroups = gateway.listGroups();
     }
 
+    List<GroupRepresentation> groupRepresentations = KeycloakGateway.await(pageOfGroups);
+    response.setTotalResults(Math.toIntExact(KeycloakGateway.await(groupCount)));
+
     List<SCIMGroup> scimGroups = new ArrayList<>();
     for (GroupRepresentation groupRepresentation : groupRepresentations) {
-      scimGroups.add(createSCIMGroupFromKeycloakGroup(groupRepresentation));
+      scimGroups.add(KeycloakMapper.createSCIMGroupFromKeycloakGroup(groupRepresentation));
+    }
+    if (groupsIncludeMembers) {
+      // Okta then has the members without a getGroup per group
+      List<String> groupIds = new ArrayList<>(scimGroups.size());
+      for (SCIMGroup scimGroup : scimGroups) {
+        groupIds.add(scimGroup.getId());
+      }
+      Map<String, List<Membership>> members = memberCache.getAll(groupIds);
+      for (SCIMGroup scimGroup : scimGroups) {
+        scimGroup.setMembers(members.get(scimGroup.getId()));
+      }
     }
 
     response.setScimGroups(scimGroups);
     return response;
   }
 
-  private SCIMGroup createSCIMGroupFromKeycloakGroup2(GroupResource keycloakGroupResource) {
-    GroupRepresentation keycloakGroup = keycloakGroupResource.toRepresentation();
-
-    SCIMGroup scimGroup = new SCIMGroup();
-    scimGroup.setDisplayName(keycloakGroup.getName());
-    scimGroup.setId(keycloakGroup.getId());
-
-    ArrayList<Membership> memberList = new ArrayList<Membership>();
-
-    for(UserRepresentation user : keycloakGroupResource.members()) {
-      // TODO: should we add logs here???
-      Membership memHolder = new Membership(user.getId(), user.getUsername());
-      memberList.add(memHolder);
-    };
-
-    scimGroup.setMembers(memberList);
-
-    return scimGroup;
-  }
-
-  private SCIMGroup createSCIMGroupFromKeycloakGroup(GroupRepresentation keycloakGroup) {
-    SCIMGroup scimGroup = new SCIMGroup();
-    scimGroup.setDisplayName(keycloakGroup.getName());
-    scimGroup.setId(keycloakGroup.getId());
-
-    ArrayList<Membership> memberList = new ArrayList<Membership>();
-
-    return scimGroup;
-  }
-
   /**
    * Get a particular group.
    * <p>
@@ -791,24 +1506,55 @@ public class SCIMServiceImpl implements SCIMService {
    */
   @Override
   public SCIMGroup getGroup(String id) throws OnPremUserManagementException {
-    LOGGER.debug("ENTERING getGroup with ID " + id);
-    GroupResource groupResource = groupsResource.group(id);
-    if (groupResource != null) {
-      LOGGER.debug("  Found group " +  groupResource.toRepresentation().getName());
-
-      for(UserRepresentation user : groupResource.members()) {
-        // TODO for some reason the groups tied to the user are null
-        // now sure how to handle removal
-        LOGGER.debug("    found " + user.getUsername() + "(" + user.getId() + ") in group") ;
-      };
+    try (ConnectorMetrics.Request ignored = metrics.startRequest("getGroup")) {
+      LOGGER.debug("ENTERING getGroup with ID " + id);
+      if (isReplicaLoaded()) {
+        SCIMGroup replicated = replica.getGroup(id);
+        if (replicated != null) {
+          return replicated;
+        }
+        // Possibly created outside this connector since the last feed poll, so Keycloak decides
+        LOGGER.debug("  group " + id + " is not in the realm replica, reading it from Keycloak");
+      }
 
-      return createSCIMGroupFromKeycloakGroup2(groupResource);
-    } else {
-      // If you do not find a user/group by the ID, you can throw this exception.
-      throw new EntityNotFoundException();
+      try {
+        return KeycloakGateway.await(read(groupReads, id, () -> CompletableFuture.completedFuture(readGroup(id))));
+      } catch (javax.ws.rs.NotFoundException ex) {
+        // If you do not find a user/group by the ID, you can throw this exception.
+        throw new EntityNotFoundException();
+      }
+    } catch (RuntimeException e) {
+      throw toScimFailure(e);
     }
   }
 
+  /**
+   * @throws javax.ws.rs.NotFoundException if the group does not exist
+   */
+  private SCIMGroup readGroup(String id) {
+    // One representation call plus one call per member page, members go straight into Memberships.
+    // The representation is fetched while the members are being paged.
+    long memberGeneration = memberCache.generation();
+    CompletableFuture<GroupRepresentation> representation = gateway.getGroup(id);
+    List<Membership> memberList = new ArrayList<>();
+    int memberPages = memberPager.forEachMember(id, user -> {
+      LOGGER.debug("    found " + user.getUsername() + "(" + user.getId() + ") in group");
+      memberList.add(new Membership(user.getId(), user.getUsername()));
+    });
+    GroupRepresentation keycloakGroup = KeycloakGateway.await(representation);
+    LOGGER.debug("  Found group " + keycloakGroup.getName() + ", read " + memberList.size() + " members in "
+      + memberPages + " page(s)");
+
+    // Shared with getGroups, which then does not read this group's members again, and with every
+    // getGroup caller that joined this read
+    List<Membership> members = Collections.unmodifiableList(memberList);
+    memberCache.put(id, members, memberGeneration);
+
+    SCIMGroup scimGroup = KeycloakMapper.createSCIMGroupFromKeycloakGroup(keycloakGroup);
+    scimGroup.setMembers(members);
+    return scimGroup;
+  }
+
   /**
    * Delete a particular group.
    * <p>
@@ -819,13 +1565,21 @@ public class SCIMServiceImpl implements SCIMService {
    */
   @Override
   public void deleteGroup(String id) throws OnPremUserManagementException, EntityNotFoundException {
-    LOGGER.debug("ENTERING deleteGroup for group id: " + id);
-    GroupResource groupResource = groupsResource.group(id);
-    if (groupResource != null) {
-      groupResource.remove();
-    } else {
-      // If you do not find a user/group by the ID, you can throw this exception.
-      throw new EntityNotFoundException();
+    try (ConnectorMetrics.Request ignored = metrics.startRequest("deleteGroup")) {
+      LOGGER.debug("ENTERING deleteGroup for group id: " + id);
+      try {
+        KeycloakGateway.await(gateway.removeGroup(id));
+        groupNameIndex.remove(id);
+        memberCache.invalidate(id);
+        if (replica != null) {
+          replica.removeGroup(id);
+        }
+      } catch (javax.ws.rs.NotFoundException ex) {
+        // If you do not find a user/group by the ID, you can throw this exception.
+        throw new EntityNotFoundException();
+      }
+    } catch (RuntimeException e) {
+      throw toScimFailure(e);
     }
   }
 
@@ -850,6 +1604,31 @@ public class SCIMServiceImpl implements SCIMService {
     return UserManagementCapabilities.values();
   }
 
+  /**
+   * Start <code>read</code>, or join the identical read already in flight when single-flight reads
+   * are enabled. A read that blocks runs on the calling thread.
+   */
+  private <K, V> CompletableFuture<V> read(SingleFlight<K, V> reads, K key, Supplier<CompletableFuture<V>> read) {
+    return singleFlightReads ? reads.execute(key, read) : read.get();
+  }
+
+  /**
+   * @return the exception to report to Okta for a failed operation: Keycloak being unavailable when
+   * it did not answer, answered 429 or a 5xx, or the call was refused by the circuit breaker or
+   * the concurrency limiter; otherwise the failure itself
+   */
+  private static RuntimeException toScimFailure(RuntimeException failure) {
+    if (!KeycloakResilience.isUnavailable(failure)) {
+      return failure;
+    }
+    LOGGER.warn("Keycloak is unavailable: " + failure);
+    return new OnPremUserManagementException("503", "Keycloak is unavailable, try again later", failure);
+  }
+
+  private boolean isReplicaLoaded() {
+    return replica != null && replica.isLoaded();
+  }
+
   private void logDesiredGroupMembership(Collection<Membership> members) {
     if (members != null) {
       for(Membership membership : members) {
@@ -0,0 +1,77 @@
+package com.okta.scim.server.example;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Collapses concurrent identical reads into one.
+ * <p>
+ * The first caller for a key starts the read; callers that ask for the same key while it is in
+ * flight get the same future instead of starting their own, and are counted as collapsed. Once the
+ * read completes the key is released, so the next caller starts a new read: nothing is cached, a
+ * result is only shared by callers that overlapped with it.
+ * <p>
+ * A failed read fails the future of every caller that shared it, with the same exception. The
+ * result is shared too, so it must not be modified by the callers.
+ */
+final class SingleFlight<K, V> {
+  private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+  private final LongAdder reads = new LongAdder();
+  private final LongAdder collapsed = new LongAdder();
+
+  /**
+   * Return the read in flight for <code>key</code>, or start one with <code>read</code>. A read that
+   * blocks runs on the caller's thread, and the callers that join it wait for it.
+   *
+   * @param read starts the read; an exception it throws fails the future instead of being thrown
+   */
+  CompletableFuture<V> execute(K key, Supplier<CompletableFuture<V>> read) {
+    CompletableFuture<V> shared = new CompletableFuture<>();
+    CompletableFuture<V> existing = inFlight.putIfAbsent(key, shared);
+    if (existing != null) {
+      collapsed.increment();
+      return existing;
+    }
+
+    reads.increment();
+    CompletableFuture<V> started;
+    try {
+      started = read.get();
+    } catch (RuntimeException | Error e) {
+      inFlight.remove(key, shared);
+      shared.completeExceptionally(e);
+      return shared;
+    }
+    started.whenComplete((value, failure) -> {
+      // Released first, so no caller joins a read that has already completed
+      inFlight.remove(key, shared);
+      if (failure != null) {
+        shared.completeExceptionally(failure);
+      } else {
+        shared.complete(value);
+      }
+    });
+    return shared;
+  }
+
+  /**
+   * @return the reads that were started
+   */
+  long getReads() {
+    return reads.sum();
+  }
+
+  /**
+   * @return the callers that joined a read already in flight instead of starting one
+   */
+  long getCollapsed() {
+    return collapsed.sum();
+  }
+
+  int inFlight() {
+    return inFlight.size();
+  }
+}
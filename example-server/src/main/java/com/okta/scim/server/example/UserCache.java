@@ -0,0 +1,72 @@
+package com.okta.scim.server.example;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.okta.scim.util.model.SCIMUser;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded, read-through cache of mapped <code>SCIMUser</code> objects keyed by Keycloak id.
+ * <p>
+ * Entries expire a fixed time after they were written and the least recently used entries are
+ * evicted once the cache holds <code>maxSize</code> users, so memory use is capped by
+ * configuration. Hit, miss and eviction counts are recorded for every lookup.
+ * <p>
+ * Only users mapped from a Keycloak representation are cached. Those never carry a password.
+ * <p>
+ * As a {@link KeycloakChangeFeed.Listener}, a user changed outside this connector is dropped from
+ * the cache and read again on its next lookup, instead of being served until it expires.
+ */
+final class UserCache implements KeycloakChangeFeed.Listener {
+  private final Cache<String, SCIMUser> users;
+
+  UserCache(long maxSize, long ttlSeconds) {
+    users = CacheBuilder.newBuilder()
+      .maximumSize(Math.max(0, maxSize))
+      .expireAfterWrite(Math.max(0, ttlSeconds), TimeUnit.SECONDS)
+      .recordStats()
+      .build();
+  }
+
+  /**
+   * @param id the Keycloak id of the user
+   * @return the cached user, or null on a miss
+   */
+  SCIMUser get(String id) {
+    return users.getIfPresent(id);
+  }
+
+  void put(SCIMUser user) {
+    if (user.getId() != null) {
+      users.put(user.getId(), user);
+    }
+  }
+
+  void invalidate(String id) {
+    users.invalidate(id);
+  }
+
+  void invalidateAll() {
+    users.invalidateAll();
+  }
+
+  @Override
+  public void userChanged(String userId, boolean deleted) {
+    invalidate(userId);
+  }
+
+  @Override
+  public void reconcile() {
+    invalidateAll();
+  }
+
+  long size() {
+    return users.size();
+  }
+
+  CacheStats stats() {
+    return users.stats();
+  }
+}
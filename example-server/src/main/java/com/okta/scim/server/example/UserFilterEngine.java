@@ -0,0 +1,327 @@
+package com.okta.scim.server.example;
+
+import com.okta.scim.server.exception.OnPremUserManagementException;
+import com.okta.scim.util.model.SCIMFilter;
+import com.okta.scim.util.model.SCIMFilterAttribute;
+import com.okta.scim.util.model.SCIMFilterType;
+import org.keycloak.representations.idm.UserRepresentation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Evaluates SCIM user filters on userName, name.givenName, name.familyName, emails and id,
+ * combined with <code>and</code> and <code>or</code>.
+ * <p>
+ * A filter is rewritten as an <code>or</code> of terms, each an <code>and</code> of predicates, and
+ * every term is answered on its own. The first predicate of a term on each of userName, givenName,
+ * familyName and emails is pushed down to Keycloak, all of them together as the parameters of one
+ * user search. Keycloak only matches substrings, so the users it returns are then checked against
+ * every predicate of the term, which also evaluates the predicates that were not pushed down. A term
+ * with nothing to push down must name an id, and that user is read on its own.
+ * <p>
+ * When the realm replica is loaded, terms that do not involve emails, which the replica does not
+ * hold, are evaluated against the replica without calling Keycloak; an exact userName is found
+ * through its username table.
+ * <p>
+ * The users matched by the terms are returned once each, in the order the terms found them. Every
+ * filter is logged at debug level with where each predicate was evaluated, and the totals are
+ * counted for the metrics.
+ * <p>
+ * The SDK reports only <code>eq</code> and <code>or</code> by name: an <code>and</code> arrives as
+ * an unknown type with its operands, and every other operator as an unknown type with an
+ * attribute. Those are taken as a userName substring match, as before; on other attributes they
+ * are refused.
+ */
+final class UserFilterEngine {
+  private static final Logger LOGGER = LoggerFactory.getLogger(UserFilterEngine.class);
+
+  // Most terms an and of ors may expand to before the filter is refused
+  private static final int MAX_TERMS = 32;
+
+  /**
+   * The user attributes a filter can test.
+   */
+  enum Attribute {
+    USER_NAME("userName", null, true),
+    GIVEN_NAME("name", "givenName", true),
+    FAMILY_NAME("name", "familyName", true),
+    EMAIL("emails", "value", true),
+    ID("id", null, false);
+
+    private final String name;
+    private final String subAttributeName;
+    private final boolean searchable;
+
+    Attribute(String name, String subAttributeName, boolean searchable) {
+      this.name = name;
+      this.subAttributeName = subAttributeName;
+      this.searchable = searchable;
+    }
+
+    /**
+     * @return whether Keycloak's user search has a parameter for the attribute
+     */
+    boolean isSearchable() {
+      return searchable;
+    }
+
+    String valueOf(UserRepresentation user) {
+      switch (this) {
+        case USER_NAME:
+          return user.getUsername();
+        case GIVEN_NAME:
+          return user.getFirstName();
+        case FAMILY_NAME:
+          return user.getLastName();
+        case EMAIL:
+          return user.getEmail();
+        default:
+          return user.getId();
+      }
+    }
+
+    /**
+     * @return the attribute, or null if filters on it are not supported; emails may be given with
+     * or without its value sub-attribute
+     */
+    static Attribute of(SCIMFilterAttribute attribute) {
+      for (Attribute candidate : values()) {
+        if (candidate.name.equalsIgnoreCase(attribute.getAttributeName())
+          && (attribute.getSubAttributeName() == null ? candidate.subAttributeName == null || candidate == EMAIL
+          : attribute.getSubAttributeName().equalsIgnoreCase(candidate.subAttributeName))) {
+          return candidate;
+        }
+      }
+      return null;
+    }
+
+    @Override
+    public String toString() {
+      return subAttributeName != null && this != EMAIL ? name + "." + subAttributeName : name;
+    }
+  }
+
+  /**
+   * One comparison of an attribute with a value, ignoring case as SCIM does for these attributes.
+   */
+  static final class Predicate {
+    private final Attribute attribute;
+    private final String value;
+    // False for a substring match
+    private final boolean exact;
+
+    Predicate(Attribute attribute, String value, boolean exact) {
+      this.attribute = attribute;
+      this.value = value;
+      this.exact = exact;
+    }
+
+    Attribute getAttribute() {
+      return attribute;
+    }
+
+    String getValue() {
+      return value;
+    }
+
+    boolean isExact() {
+      return exact;
+    }
+
+    boolean matches(UserRepresentation user) {
+      String actual = attribute.valueOf(user);
+      if (actual == null) {
+        return false;
+      }
+      return exact
+        ? actual.equalsIgnoreCase(value)
+        : actual.toLowerCase(Locale.ROOT).contains(value.toLowerCase(Locale.ROOT));
+    }
+
+    @Override
+    public String toString() {
+      return attribute + (exact ? " eq \"" : " co \"") + value + "\"";
+    }
+  }
+
+  private final KeycloakGateway gateway;
+  private final KeycloakUserSearch userSearch;
+  // Null unless the connector keeps a realm replica
+  private final RealmReplica replica;
+
+  private final AtomicLong pushedDown = new AtomicLong();
+  private final AtomicLong evaluatedLocally = new AtomicLong();
+
+  UserFilterEngine(KeycloakGateway gateway, KeycloakUserSearch userSearch, RealmReplica replica) {
+    this.gateway = gateway;
+    this.userSearch = userSearch;
+    this.replica = replica;
+  }
+
+  /**
+   * Rewrite the filter as an <code>or</code> of <code>and</code> terms.
+   *
+   * @throws OnPremUserManagementException if the filter tests an attribute or uses an operator that
+   * is not supported, or expands to more than 32 terms
+   */
+  static List<List<Predicate>> parse(SCIMFilter filter) throws OnPremUserManagementException {
+    List<SCIMFilter> operands = filter.getFilterExpressions();
+    boolean hasOperands = operands != null && !operands.isEmpty();
+    if (filter.getFilterType() == SCIMFilterType.OR && hasOperands) {
+      List<List<Predicate>> terms = new ArrayList<>();
+      for (SCIMFilter operand : operands) {
+        terms.addAll(parse(operand));
+        checkTerms(filter, terms.size());
+      }
+      return terms;
+    }
+    if (filter.getFilterAttribute() == null && hasOperands) {
+      // An and: every term of one operand combined with every term of the others
+      List<List<Predicate>> terms = Collections.singletonList(Collections.<Predicate>emptyList());
+      for (SCIMFilter operand : operands) {
+        List<List<Predicate>> combined = new ArrayList<>();
+        for (List<Predicate> operandTerm : parse(operand)) {
+          for (List<Predicate> term : terms) {
+            List<Predicate> both = new ArrayList<>(term);
+            both.addAll(operandTerm);
+            combined.add(both);
+          }
+        }
+        checkTerms(filter, combined.size());
+        terms = combined;
+      }
+      return terms;
+    }
+
+    SCIMFilterAttribute filterAttribute = filter.getFilterAttribute();
+    Attribute attribute = filterAttribute != null ? Attribute.of(filterAttribute) : null;
+    boolean exact = filter.getFilterType() == SCIMFilterType.EQUALS;
+    if (attribute == null || filter.getFilterValue() == null || (!exact && attribute != Attribute.USER_NAME)) {
+      LOGGER.error("unsupported filter: " + filter);
+      throw new OnPremUserManagementException("filter not supported", "Filter: " + filter);
+    }
+    return Collections.singletonList(Collections.singletonList(
+      new Predicate(attribute, filter.getFilterValue(), exact)));
+  }
+
+  /**
+   * @return the users matching any of the terms, each once
+   */
+  List<UserRepresentation> find(List<List<Predicate>> terms) {
+    Map<String, UserRepresentation> found = new LinkedHashMap<>();
+    List<String> plan = new ArrayList<>(terms.size());
+    for (List<Predicate> term : terms) {
+      for (UserRepresentation user : find(term, plan)) {
+        found.putIfAbsent(user.getId(), user);
+      }
+    }
+    LOGGER.debug("  filter matched " + found.size() + " users: " + String.join(" or ", plan));
+    return new ArrayList<>(found.values());
+  }
+
+  /**
+   * @return predicates pushed down to Keycloak as search parameters
+   */
+  long getPushedDown() {
+    return pushedDown.get();
+  }
+
+  /**
+   * @return predicates evaluated by the connector, against the realm replica or the users read
+   */
+  long getEvaluatedLocally() {
+    return evaluatedLocally.get();
+  }
+
+  private List<UserRepresentation> find(List<Predicate> term, List<String> plan) {
+    java.util.function.Predicate<UserRepresentation> matchesAll = user -> {
+      for (Predicate predicate : term) {
+        if (!predicate.matches(user)) {
+          return false;
+        }
+      }
+      return true;
+    };
+
+    if (replica != null && replica.isLoaded()
+      && term.stream().noneMatch(predicate -> predicate.getAttribute() == Attribute.EMAIL)) {
+      evaluatedLocally.addAndGet(term.size());
+      plan.add("(" + describe(term) + " in the replica)");
+      return replica.findUsers(exactValue(term, Attribute.USER_NAME), matchesAll);
+    }
+
+    Map<Attribute, Predicate> searched = new EnumMap<>(Attribute.class);
+    for (Predicate predicate : term) {
+      if (predicate.getAttribute().isSearchable()) {
+        searched.putIfAbsent(predicate.getAttribute(), predicate);
+      }
+    }
+    List<Predicate> local = new ArrayList<>(term);
+    local.removeAll(searched.values());
+    pushedDown.addAndGet(searched.size());
+    evaluatedLocally.addAndGet(local.size());
+    plan.add("(" + (searched.isEmpty() ? "" : describe(searched.values()) + " in Keycloak")
+      + (searched.isEmpty() || local.isEmpty() ? "" : ", ")
+      + (local.isEmpty() ? "" : describe(local) + " locally") + ")");
+
+    if (searched.isEmpty()) {
+      // Only id predicates are left, and those are exact
+      return findById(exactValue(term, Attribute.ID), matchesAll);
+    }
+    if (searched.size() == 1 && local.isEmpty() && term.get(0).getAttribute() == Attribute.USER_NAME
+      && term.get(0).isExact()) {
+      // Usernames are unique, so the scan can stop at the first exact hit
+      UserRepresentation match = userSearch.findByUserName(term.get(0).getValue());
+      return match != null ? Collections.singletonList(match) : Collections.<UserRepresentation>emptyList();
+    }
+    return userSearch.findAll(searchValue(searched, Attribute.USER_NAME), searchValue(searched, Attribute.GIVEN_NAME),
+      searchValue(searched, Attribute.FAMILY_NAME), searchValue(searched, Attribute.EMAIL), matchesAll);
+  }
+
+  private List<UserRepresentation> findById(String id, java.util.function.Predicate<UserRepresentation> matches) {
+    try {
+      UserRepresentation user = KeycloakGateway.await(gateway.getUser(id));
+      return matches.test(user) ? Collections.singletonList(user) : Collections.<UserRepresentation>emptyList();
+    } catch (javax.ws.rs.NotFoundException e) {
+      return Collections.emptyList();
+    }
+  }
+
+  private static String exactValue(List<Predicate> term, Attribute attribute) {
+    for (Predicate predicate : term) {
+      if (predicate.getAttribute() == attribute && predicate.isExact()) {
+        return predicate.getValue();
+      }
+    }
+    return null;
+  }
+
+  private static String searchValue(Map<Attribute, Predicate> searched, Attribute attribute) {
+    Predicate predicate = searched.get(attribute);
+    return predicate != null ? predicate.getValue() : null;
+  }
+
+  private static String describe(Iterable<Predicate> predicates) {
+    List<String> described = new ArrayList<>();
+    for (Predicate predicate : predicates) {
+      described.add(predicate.toString());
+    }
+    return String.join(" and ", described);
+  }
+
+  private static void checkTerms(SCIMFilter filter, int terms) throws OnPremUserManagementException {
+    if (terms > MAX_TERMS) {
+      LOGGER.error("filter expands to more than " + MAX_TERMS + " terms: " + filter);
+      throw new OnPremUserManagementException("filter not supported", "Filter: " + filter);
+    }
+  }
+}
@@ -0,0 +1,28 @@
+package com.okta.scim.server.example;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
+
+/**
+ * The filtered form of <code>GET /admin/realms/{realm}/users/count</code>.
+ * <p>
+ * The Keycloak server accepts the same search parameters on the count endpoint as it does on the
+ * user listing, but the 8.x admin client only exposes the unfiltered <code>count()</code>. This
+ * interface is proxied onto the realm's <code>users</code> path from the connector's
+ * <code>ResteasyClient</code> in <code>SCIMServiceImpl.afterCreation</code>, with the
+ * {@link AccessTokenManager} registered, so it shares the connection pool and bearer token of the
+ * other admin resources.
+ */
+public interface UsersCountResource {
+
+  @GET
+  @Path("count")
+  @Produces(MediaType.APPLICATION_JSON)
+  Integer count(@QueryParam("username") String username,
+                @QueryParam("firstName") String firstName,
+                @QueryParam("lastName") String lastName,
+                @QueryParam("email") String email);
+}
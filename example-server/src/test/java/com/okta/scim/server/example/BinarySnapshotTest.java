@@ -0,0 +1,156 @@
+package com.okta.scim.server.example;
+
+import com.okta.scim.util.SCIMUtil;
+import com.okta.scim.util.model.Email;
+import com.okta.scim.util.model.Membership;
+import com.okta.scim.util.model.Name;
+import com.okta.scim.util.model.SCIMGroup;
+import com.okta.scim.util.model.SCIMUser;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.nullValue;
+
+public class BinarySnapshotTest {
+  private static final String CUSTOM_URN = "urn:okta:onprem_app:1.0:user:custom";
+
+  private Path directory;
+  private Path snapshot;
+
+  @BeforeMethod
+  public void create() throws Exception {
+    directory = Files.createTempDirectory("binary-snapshot");
+    snapshot = directory.resolve("users.snap");
+  }
+
+  @AfterMethod(alwaysRun = true)
+  public void delete() throws Exception {
+    SCIMConnectorUtil.closeJournals();
+    for (File file : directory.toFile().listFiles()) {
+      Files.delete(file.toPath());
+    }
+    Files.delete(directory);
+  }
+
+  @Test
+  public void usersAreReadBackWithEveryAttribute() throws Exception {
+    Map<String, SCIMUser> users = users(200);
+    BinarySnapshot.writeUsers(users, snapshot);
+
+    BinarySnapshot<SCIMUser> read = BinarySnapshot.openUsers(snapshot);
+    assertThat(read.size(), is(200));
+    for (SCIMUser user : users.values()) {
+      assertThat(SCIMUtil.marshalSCIMUser(read.get(user.getId())), is(SCIMUtil.marshalSCIMUser(user)));
+    }
+    assertThat(read.get("missing"), is(nullValue()));
+    assertThat(read.contains("u17"), is(true));
+    assertThat(read.contains("u"), is(false));
+  }
+
+  @Test
+  public void recordsAreInIdOrder() throws Exception {
+    BinarySnapshot.writeUsers(users(3), snapshot);
+
+    BinarySnapshot<SCIMUser> read = BinarySnapshot.openUsers(snapshot);
+    assertThat(Arrays.asList(read.getId(0), read.getId(1), read.getId(2)), contains("u0", "u1", "u2"));
+    assertThat(read.toMap().keySet(), contains("u0", "u1", "u2"));
+  }
+
+  @Test
+  public void lookupsWorkAcrossSegments() throws Exception {
+    Map<String, SCIMUser> users = users(50);
+    BinarySnapshot.writeUsers(users, snapshot);
+
+    BinarySnapshot<SCIMUser> read = BinarySnapshot.openUsers(snapshot, 100);
+    for (SCIMUser user : users.values()) {
+      assertThat(read.get(user.getId()).getUserName(), is(user.getUserName()));
+    }
+  }
+
+  @Test
+  public void snapshotIsSmallerThanTheJson() throws Exception {
+    Map<String, SCIMUser> users = users(200);
+    String usersFile = directory.resolve("users.json").toString();
+    SCIMConnectorUtil.saveUsersToFile(users, usersFile);
+    BinarySnapshot.writeUsers(users, snapshot);
+
+    assertThat(Files.size(snapshot) * 2, lessThan(Files.size(directory.resolve("users.json"))));
+  }
+
+  @Test
+  public void convertsFromAndToJson() throws Exception {
+    String usersFile = directory.resolve("users.json").toString();
+    String convertedFile = directory.resolve("users-converted.json").toString();
+    Map<String, SCIMUser> users = users(10);
+    SCIMConnectorUtil.saveUsersToFile(users, usersFile);
+
+    BinarySnapshot.convertUsersFromJson(usersFile, snapshot);
+    BinarySnapshot.convertUsersToJson(snapshot, convertedFile);
+
+    Map<String, SCIMUser> converted = new LinkedHashMap<>();
+    SCIMConnectorUtil.readUsersFromFile(converted, convertedFile);
+    assertThat(marshal(converted.values()), is(marshal(users.values())));
+  }
+
+  @Test
+  public void groupsAreReadBack() throws Exception {
+    Path groupsSnapshot = directory.resolve("groups.snap");
+    SCIMGroup group = new SCIMGroup();
+    group.setId("g1");
+    group.setDisplayName("admins");
+    group.setMembers(Arrays.asList(new Membership("u1", "user1"), new Membership("u2", "user2")));
+    BinarySnapshot.writeGroups(Collections.singletonMap("g1", group), groupsSnapshot);
+
+    assertThat(SCIMUtil.marshalSCIMGroup(BinarySnapshot.openGroups(groupsSnapshot).get("g1")),
+      is(SCIMUtil.marshalSCIMGroup(group)));
+  }
+
+  @Test(expectedExceptions = IOException.class)
+  public void usersSnapshotIsNotOpenedAsGroups() throws Exception {
+    BinarySnapshot.writeUsers(users(1), snapshot);
+    BinarySnapshot.openGroups(snapshot);
+  }
+
+  private static List<String> marshal(Iterable<SCIMUser> users) throws Exception {
+    List<String> marshalled = new ArrayList<>();
+    for (SCIMUser user : users) {
+      marshalled.add(SCIMUtil.marshalSCIMUser(user));
+    }
+    Collections.sort(marshalled);
+    return marshalled;
+  }
+
+  private static Map<String, SCIMUser> users(int count) {
+    Map<String, SCIMUser> users = new LinkedHashMap<>();
+    // Written out of id order
+    for (int i = count - 1; i >= 0; i--) {
+      SCIMUser user = new SCIMUser();
+      user.setId("u" + i);
+      user.setUserName("user" + i + "@example.com");
+      user.setName(new Name("John" + i + " Smith", "Smith", "John" + i));
+      user.setActive(i % 2 == 0);
+      user.setEmails(Collections.singletonList(new Email("user" + i + "@example.com", "work", true)));
+      user.setCustomStringValue(CUSTOM_URN, "department", i % 3 == 0 ? "Sales" : "Ünïcode");
+      user.setCustomIntValue(CUSTOM_URN, "level", i - 100);
+      user.setCustomDoubleValue(CUSTOM_URN, "score", i / 4.0);
+      users.put(user.getId(), user);
+    }
+    return users;
+  }
+}
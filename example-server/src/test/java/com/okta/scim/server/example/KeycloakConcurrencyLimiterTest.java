@@ -0,0 +1,186 @@
+package com.okta.scim.server.example;
+
+import com.okta.scim.server.example.KeycloakConcurrencyLimiter.Lane;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import javax.ws.rs.ServiceUnavailableException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.testng.Assert.fail;
+
+public class KeycloakConcurrencyLimiterTest {
+  private static final int PAGE = 500;
+
+  private KeycloakConcurrencyLimiter limiter;
+
+  @AfterMethod(alwaysRun = true)
+  public void stop() {
+    if (limiter != null) {
+      limiter.shutdown();
+    }
+  }
+
+  @Test
+  public void callsOverTheLimitWaitForASlot() {
+    limiter = new KeycloakConcurrencyLimiter(2, 2, 2, 2, 60_000);
+    CompletableFuture<String> first = new CompletableFuture<>();
+    CompletableFuture<String> second = new CompletableFuture<>();
+    List<String> started = Collections.synchronizedList(new ArrayList<>());
+
+    limiter.submit(Lane.READ, "users.get", 0, held(first, "first", started));
+    limiter.submit(Lane.READ, "users.get", 0, held(second, "second", started));
+    limiter.submit(Lane.READ, "users.get", 0, held(new CompletableFuture<>(), "third", started));
+
+    assertThat(started, contains("first", "second"));
+    assertThat(limiter.getQueued(Lane.READ), is(1L));
+    first.complete("done");
+    assertThat(started, contains("first", "second", "third"));
+    assertThat(limiter.getInFlight(), is(2L));
+  }
+
+  @Test
+  public void writesGoFirstButNoMoreThanFourInARowWhileAReadWaits() {
+    limiter = new KeycloakConcurrencyLimiter(1, 1, 1, 2, 60_000);
+    List<String> started = Collections.synchronizedList(new ArrayList<>());
+    Map<String, CompletableFuture<String>> calls = new HashMap<>();
+    limiter.submit(Lane.READ, "users.get", 0, held(track(calls, "blocking"), "blocking", started));
+    limiter.submit(Lane.READ, "users.get", 0, held(track(calls, "read"), "read", started));
+    for (int i = 1; i <= 6; i++) {
+      limiter.submit(Lane.WRITE, "users.update", 0, held(track(calls, "write" + i), "write" + i, started));
+    }
+
+    // One slot: answering the call in flight starts the next
+    for (int i = 0; i < 7; i++) {
+      calls.get(started.get(started.size() - 1)).complete("done");
+    }
+
+    assertThat(started, contains("blocking", "write1", "write2", "write3", "write4", "read", "write5", "write6"));
+  }
+
+  @Test
+  public void callThatWaitsTooLongIsRejected() throws Exception {
+    limiter = new KeycloakConcurrencyLimiter(1, 1, 1, 2, 20);
+    limiter.submit(Lane.READ, "users.get", 0, held(new CompletableFuture<>(), "blocking", new ArrayList<>()));
+
+    CompletableFuture<String> waiting = limiter.submit(Lane.WRITE, "users.update", 0,
+      held(new CompletableFuture<>(), "waiting", new ArrayList<>()));
+
+    assertThat(causeOf(waiting), is(instanceOf(RejectedExecutionException.class)));
+    assertThat(limiter.getRejected(), is(1L));
+  }
+
+  @Test
+  public void overloadedKeycloakLowersTheLimitByAQuarter() {
+    limiter = new KeycloakConcurrencyLimiter(8, 1, 8, 2, 60_000);
+
+    limiter.submit(Lane.READ, "users.get", 0, sent -> {
+      sent.run();
+      CompletableFuture<String> failed = new CompletableFuture<>();
+      failed.completeExceptionally(new ServiceUnavailableException());
+      return failed;
+    });
+
+    assertThat(limiter.getLimit(), is(6L));
+    assertThat(limiter.getDecreases(), is(1L));
+  }
+
+  @Test
+  public void largePagesAreNotComparedWithSmallOnes() {
+    limiter = new KeycloakConcurrencyLimiter(8, 1, 8, 2, 60_000);
+    limiter.submit(Lane.READ, "users.search", 1, answeredIn(0));
+
+    limiter.submit(Lane.READ, "users.search", PAGE, answeredIn(30));
+    limiter.submit(Lane.READ, "users.list", KeycloakConcurrencyLimiter.UNBOUNDED, answeredIn(30));
+    assertThat(limiter.getDecreases(), is(0L));
+
+    limiter.submit(Lane.READ, "users.search", 1, answeredIn(30));
+    assertThat(limiter.getDecreases(), is(1L));
+  }
+
+  @Test
+  public void timeBeforeTheCallIsSentIsNotLatency() {
+    limiter = new KeycloakConcurrencyLimiter(8, 1, 8, 2, 60_000);
+    limiter.submit(Lane.READ, "groups.get", 0, answeredIn(0));
+
+    // Queued on the executor for 30 ms, then answered at once
+    KeycloakGateway.await(limiter.submit(Lane.READ, "groups.get", 0, sent -> CompletableFuture.supplyAsync(() -> {
+      sleep(30);
+      sent.run();
+      return "done";
+    })));
+
+    assertThat(limiter.getDecreases(), is(0L));
+  }
+
+  @Test
+  public void pageSizesAreRoundedUpToAPowerOfTwo() {
+    assertThat(KeycloakConcurrencyLimiter.baselineKey("groups.get", KeycloakConcurrencyLimiter.NOT_PAGED),
+      is("groups.get"));
+    assertThat(KeycloakConcurrencyLimiter.baselineKey("users.search", 1), is("users.search[max<=1]"));
+    assertThat(KeycloakConcurrencyLimiter.baselineKey("users.search", 300), is("users.search[max<=512]"));
+    assertThat(KeycloakConcurrencyLimiter.baselineKey("users.search", 512), is("users.search[max<=512]"));
+    assertThat(KeycloakConcurrencyLimiter.baselineKey("groups.list", KeycloakConcurrencyLimiter.UNBOUNDED),
+      is("groups.list[unbounded]"));
+  }
+
+  private static Function<Runnable, CompletableFuture<String>> held(CompletableFuture<String> call, String name,
+                                                                    List<String> started) {
+    return sent -> {
+      started.add(name);
+      sent.run();
+      return call;
+    };
+  }
+
+  /**
+   * @return a call sent at once and answered <code>millis</code> later, on the caller's thread
+   */
+  private static Function<Runnable, CompletableFuture<String>> answeredIn(long millis) {
+    return sent -> {
+      sent.run();
+      sleep(millis);
+      return CompletableFuture.completedFuture("done");
+    };
+  }
+
+  private static CompletableFuture<String> track(Map<String, CompletableFuture<String>> calls, String name) {
+    CompletableFuture<String> call = new CompletableFuture<>();
+    calls.put(name, call);
+    return call;
+  }
+
+  private static void sleep(long millis) {
+    try {
+      TimeUnit.MILLISECONDS.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static Throwable causeOf(CompletableFuture<String> future) throws InterruptedException {
+    try {
+      future.get(5, TimeUnit.SECONDS);
+      fail("the call should have failed");
+      return null;
+    } catch (ExecutionException e) {
+      return e.getCause();
+    } catch (TimeoutException e) {
+      throw new AssertionError("the call neither failed nor completed", e);
+    }
+  }
+}
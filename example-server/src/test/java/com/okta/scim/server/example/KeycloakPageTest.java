@@ -0,0 +1,67 @@
+package com.okta.scim.server.example;
+
+import com.okta.scim.util.model.PaginationProperties;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+
+public class KeycloakPageTest {
+  private static final List<String> USERS = Arrays.asList("a", "b", "c", "d", "e");
+
+  @Test
+  public void startIndexOneIsTheFirstResource() {
+    KeycloakPage page = KeycloakPage.from(new PaginationProperties(1, 2));
+
+    assertThat(page.getFirst(), is(0));
+    assertThat(page.getMax(), is(2));
+    assertThat(page.slice(USERS), contains("a", "b"));
+  }
+
+  @Test
+  public void startIndexBelowOneIsTreatedAsOne() {
+    KeycloakPage page = KeycloakPage.from(new PaginationProperties(0, 2));
+
+    assertThat(page.getFirst(), is(0));
+    assertThat(page.slice(USERS), contains("a", "b"));
+  }
+
+  @Test
+  public void countZeroIsAnEmptyPage() {
+    KeycloakPage page = KeycloakPage.from(new PaginationProperties(1, 0));
+
+    assertThat(page.isEmpty(), is(true));
+    assertThat(page.slice(USERS), is(empty()));
+  }
+
+  @Test
+  public void negativeCountIsAnEmptyPage() {
+    KeycloakPage page = KeycloakPage.from(new PaginationProperties(3, -1));
+
+    assertThat(page.getMax(), is(0));
+    assertThat(page.isEmpty(), is(true));
+  }
+
+  @Test
+  public void lastPageIsPartial() {
+    KeycloakPage page = KeycloakPage.from(new PaginationProperties(4, 3));
+
+    assertThat(page.getFirst(), is(3));
+    assertThat(page.getMax(), is(3));
+    assertThat(page.slice(USERS), contains("d", "e"));
+  }
+
+  @Test
+  public void startIndexPastTheEndIsEmpty() {
+    KeycloakPage page = KeycloakPage.from(new PaginationProperties(6, 3));
+
+    assertThat(page.getFirst(), is(5));
+    assertThat(page.slice(USERS), is(empty()));
+    assertThat(KeycloakPage.from(new PaginationProperties(100, 3)).slice(USERS), is(empty()));
+  }
+}
@@ -0,0 +1,173 @@
+package com.okta.scim.server.example;
+
+import com.okta.scim.server.example.KeycloakResilience.CircuitState;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import javax.ws.rs.NotFoundException;
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.ServiceUnavailableException;
+import javax.ws.rs.WebApplicationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.testng.Assert.fail;
+
+public class KeycloakResilienceTest {
+  private KeycloakResilience resilience;
+  private final AtomicInteger sends = new AtomicInteger();
+
+  @AfterMethod(alwaysRun = true)
+  public void stop() {
+    if (resilience != null) {
+      resilience.shutdown();
+    }
+    sends.set(0);
+  }
+
+  @Test
+  public void circuitOpensAfterFailuresInARowAndRefusesCallsUnsent() {
+    resilience = new KeycloakResilience(0, 1, 1, 3, 60_000, 0);
+
+    for (int i = 0; i < 3; i++) {
+      failureOf(resilience.write(failing(new ServiceUnavailableException())));
+    }
+    Throwable refused = failureOf(resilience.write(failing(new ServiceUnavailableException())));
+
+    assertThat(resilience.getCircuitState(), is(CircuitState.OPEN));
+    assertThat(refused, is(instanceOf(RejectedExecutionException.class)));
+    assertThat(sends.get(), is(3));
+    assertThat(resilience.getCircuitOpens(), is(1L));
+    assertThat(resilience.getCircuitRejected(), is(1L));
+  }
+
+  @Test
+  public void answersThatAreNotKeycloakFailuresKeepTheCircuitClosed() {
+    resilience = new KeycloakResilience(0, 1, 1, 2, 60_000, 0);
+
+    failureOf(resilience.write(failing(new ServiceUnavailableException())));
+    failureOf(resilience.write(failing(new NotFoundException())));
+    failureOf(resilience.write(failing(new ServiceUnavailableException())));
+
+    assertThat(resilience.getCircuitState(), is(CircuitState.CLOSED));
+  }
+
+  @Test
+  public void oneTrialCallClosesTheCircuitOnceOpenTimeHasPassed() throws Exception {
+    resilience = new KeycloakResilience(0, 1, 1, 1, 20, 0);
+    failureOf(resilience.write(failing(new ProcessingException("refused"))));
+    TimeUnit.MILLISECONDS.sleep(40);
+
+    CompletableFuture<String> trialAnswer = new CompletableFuture<>();
+    CompletableFuture<String> trial = resilience.write(() -> {
+      sends.incrementAndGet();
+      return trialAnswer;
+    });
+    Throwable duringTrial = failureOf(resilience.write(answering("unsent")));
+    trialAnswer.complete("answered");
+
+    assertThat(trial.join(), is("answered"));
+    assertThat(duringTrial, is(instanceOf(RejectedExecutionException.class)));
+    assertThat(resilience.getCircuitState(), is(CircuitState.CLOSED));
+    assertThat(resilience.write(answering("next")).join(), is("next"));
+  }
+
+  @Test
+  public void failedTrialOpensTheCircuitAgain() throws Exception {
+    resilience = new KeycloakResilience(0, 1, 1, 1, 20, 0);
+    failureOf(resilience.write(failing(new ServiceUnavailableException())));
+    TimeUnit.MILLISECONDS.sleep(40);
+
+    failureOf(resilience.write(failing(new ServiceUnavailableException())));
+
+    assertThat(resilience.getCircuitState(), is(CircuitState.OPEN));
+    assertThat(resilience.getCircuitOpens(), is(2L));
+  }
+
+  @Test
+  public void readsAreRetriedAfterTransientFailures() {
+    resilience = new KeycloakResilience(2, 1, 2, 0, 60_000, 0);
+
+    String value = resilience.read("users.get", false, () -> sends.incrementAndGet() <= 2
+      ? failed(new WebApplicationException(429))
+      : CompletableFuture.completedFuture("answered")).join();
+
+    assertThat(value, is("answered"));
+    assertThat(resilience.getRetries(), is(2L));
+  }
+
+  @Test
+  public void notFoundIsNotRetriedAndWritesAreSentOnce() {
+    resilience = new KeycloakResilience(2, 1, 2, 0, 60_000, 0);
+
+    failureOf(resilience.read("users.get", false, failing(new NotFoundException())));
+    failureOf(resilience.write(failing(new ServiceUnavailableException())));
+
+    assertThat(sends.get(), is(2));
+    assertThat(resilience.getRetries(), is(0L));
+  }
+
+  @Test
+  public void hedgedReadTakesTheFirstAnswer() {
+    resilience = new KeycloakResilience(0, 1, 1, 0, 60_000, 10);
+    CompletableFuture<String> slow = new CompletableFuture<>();
+
+    CompletableFuture<String> read = resilience.read("groups.get", true, () -> sends.incrementAndGet() == 1
+      ? slow
+      : CompletableFuture.completedFuture("hedge"));
+    String value = read.join();
+    slow.complete("first");
+
+    assertThat(value, is("hedge"));
+    assertThat(read.join(), is("hedge"));
+    assertThat(resilience.getHedges(), is(1L));
+  }
+
+  @Test
+  public void unavailableMeansNoAnswerAnOverloadOrARefusedCall() {
+    assertThat(KeycloakResilience.isUnavailable(new RejectedExecutionException()), is(true));
+    assertThat(KeycloakResilience.isUnavailable(new CompletionException(new ProcessingException("reset"))), is(true));
+    assertThat(KeycloakResilience.isUnavailable(new WebApplicationException(429)), is(true));
+    assertThat(KeycloakResilience.isUnavailable(new WebApplicationException(500)), is(true));
+    assertThat(KeycloakResilience.isUnavailable(new WebApplicationException(409)), is(false));
+    assertThat(KeycloakResilience.isUnavailable(new NotFoundException()), is(false));
+    assertThat(KeycloakResilience.isUnavailable(new IllegalStateException()), is(false));
+  }
+
+  private Supplier<CompletableFuture<String>> failing(RuntimeException failure) {
+    return () -> {
+      sends.incrementAndGet();
+      return failed(failure);
+    };
+  }
+
+  private Supplier<CompletableFuture<String>> answering(String value) {
+    return () -> {
+      sends.incrementAndGet();
+      return CompletableFuture.completedFuture(value);
+    };
+  }
+
+  private static CompletableFuture<String> failed(RuntimeException failure) {
+    CompletableFuture<String> future = new CompletableFuture<>();
+    future.completeExceptionally(failure);
+    return future;
+  }
+
+  private static Throwable failureOf(CompletableFuture<String> future) {
+    try {
+      future.join();
+      fail("the call should have failed");
+      return null;
+    } catch (CompletionException e) {
+      return e.getCause();
+    }
+  }
+}
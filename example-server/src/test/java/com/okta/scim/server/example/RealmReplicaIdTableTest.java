@@ -0,0 +1,104 @@
+package com.okta.scim.server.example;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+/**
+ * {@link RealmReplica.IdTable} lookups after removals, which shift the rest of a probe run back.
+ */
+public class RealmReplicaIdTableTest {
+  private static final int INITIAL_MASK = 15;
+
+  private final List<String> keys = new ArrayList<>();
+  private final RealmReplica.IdTable table = new RealmReplica.IdTable(keys::get);
+
+  @Test
+  public void runThatWrapsAroundStaysReachableAfterItsHeadIsRemoved() {
+    int a = put(keyAt(INITIAL_MASK, 0));
+    int b = put(keyAt(INITIAL_MASK, 1));
+    int c = put(keyAt(0, 0));
+    int d = put(keyAt(INITIAL_MASK, 2));
+
+    table.remove(a);
+
+    assertThat(table.get(keys.get(a)), is(-1));
+    assertThat(table.get(keys.get(b)), is(b));
+    assertThat(table.get(keys.get(c)), is(c));
+    assertThat(table.get(keys.get(d)), is(d));
+  }
+
+  @Test
+  public void entryAtItsHomeSlotIsNotShiftedPastIt() {
+    int a = put(keyAt(3, 0));
+    int b = put(keyAt(3, 1));
+    int c = put(keyAt(4, 0));
+    int d = put(keyAt(6, 0));
+
+    table.remove(b);
+    table.remove(a);
+
+    assertThat(table.get(keys.get(b)), is(-1));
+    assertThat(table.get(keys.get(a)), is(-1));
+    assertThat(table.get(keys.get(c)), is(c));
+    assertThat(table.get(keys.get(d)), is(d));
+  }
+
+  @Test
+  public void removingAMissingSurrogateChangesNothing() {
+    int a = put(keyAt(5, 0));
+    keys.add(keyAt(5, 1));
+
+    table.remove(keys.size() - 1);
+
+    assertThat(table.get(keys.get(a)), is(a));
+  }
+
+  @Test
+  public void matchesAMapThroughPutsRemovesAndGrowth() {
+    Random random = new Random(42);
+    Map<String, Integer> expected = new HashMap<>();
+    List<Integer> live = new ArrayList<>();
+    for (int step = 0; step < 20_000; step++) {
+      if (live.isEmpty() || random.nextInt(3) > 0) {
+        int surrogate = put("key-" + step);
+        expected.put(keys.get(surrogate), surrogate);
+        live.add(surrogate);
+      } else {
+        int surrogate = live.remove(random.nextInt(live.size()));
+        table.remove(surrogate);
+        expected.put(keys.get(surrogate), -1);
+      }
+    }
+
+    for (Map.Entry<String, Integer> entry : expected.entrySet()) {
+      assertThat(entry.getKey(), table.get(entry.getKey()), is(entry.getValue()));
+    }
+  }
+
+  private int put(String key) {
+    keys.add(key);
+    table.put(keys.size() - 1);
+    return keys.size() - 1;
+  }
+
+  /**
+   * @return the <code>n</code>th key whose home is <code>slot</code> while the table has 16 slots
+   */
+  private static String keyAt(int slot, int n) {
+    int found = 0;
+    for (int i = 0; ; i++) {
+      String key = "k" + i;
+      if (RealmReplica.IdTable.index(key, INITIAL_MASK) == slot && found++ == n) {
+        return key;
+      }
+    }
+  }
+}
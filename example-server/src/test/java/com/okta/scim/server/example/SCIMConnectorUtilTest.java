@@ -0,0 +1,153 @@
+package com.okta.scim.server.example;
+
+import com.okta.scim.util.model.Membership;
+import com.okta.scim.util.model.Name;
+import com.okta.scim.util.model.SCIMGroup;
+import com.okta.scim.util.model.SCIMUser;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.is;
+
+public class SCIMConnectorUtilTest {
+  private Path directory;
+  private String usersFile;
+  private String groupsFile;
+
+  @BeforeMethod
+  public void create() throws Exception {
+    directory = Files.createTempDirectory("scim-connector-util");
+    usersFile = directory.resolve("users.json").toString();
+    groupsFile = directory.resolve("groups.json").toString();
+    SCIMConnectorUtil.configureJournals(1, 0, 0);
+  }
+
+  @AfterMethod(alwaysRun = true)
+  public void delete() throws Exception {
+    SCIMConnectorUtil.closeJournals();
+    for (File file : directory.toFile().listFiles()) {
+      Files.delete(file.toPath());
+    }
+    Files.delete(directory);
+  }
+
+  @Test
+  public void singleSavesAreJournaledAndReadBack() throws Exception {
+    SCIMConnectorUtil.saveUsersToFile(users(user("1", "Ann"), user("2", "Bob")), usersFile);
+    byte[] snapshot = Files.readAllBytes(directory.resolve("users.json"));
+
+    SCIMConnectorUtil.saveUserToFile(user("1", "Anna"), usersFile);
+    SCIMConnectorUtil.saveUserToFile(user("3", "Cy"), usersFile);
+    SCIMConnectorUtil.deleteUserFromFile("2", usersFile);
+
+    assertThat(Files.readAllBytes(directory.resolve("users.json")), is(snapshot));
+    assertThat(givenNames(readUsers()), containsInAnyOrder("1 Anna", "3 Cy"));
+    SCIMConnectorUtil.closeJournals();
+    assertThat(givenNames(readUsers()), containsInAnyOrder("1 Anna", "3 Cy"));
+  }
+
+  @Test
+  public void fullSaveReplacesTheJournal() throws Exception {
+    SCIMConnectorUtil.saveUserToFile(user("1", "Ann"), usersFile);
+
+    SCIMConnectorUtil.saveUsersToFile(users(user("2", "Bob")), usersFile);
+    assertThat(givenNames(readUsers()), containsInAnyOrder("2 Bob"));
+
+    SCIMConnectorUtil.closeJournals();
+    SCIMConnectorUtil.saveUsersToFile(users(user("3", "Cy")), usersFile);
+    assertThat(givenNames(readUsers()), containsInAnyOrder("3 Cy"));
+    assertThat(directory.toFile().list(), is(new String[]{"users.json"}));
+  }
+
+  @Test
+  public void incompleteLastRecordIsDroppedAndAppendsContinueAfterIt() throws Exception {
+    SCIMConnectorUtil.saveUserToFile(user("1", "Ann"), usersFile);
+    SCIMConnectorUtil.closeJournals();
+    Files.write(directory.resolve("users.json.journal.1"), "{\"op\":\"upd".getBytes(StandardCharsets.UTF_8),
+      StandardOpenOption.APPEND);
+
+    assertThat(givenNames(readUsers()), containsInAnyOrder("1 Ann"));
+    SCIMConnectorUtil.saveUserToFile(user("2", "Bob"), usersFile);
+    SCIMConnectorUtil.closeJournals();
+    assertThat(givenNames(readUsers()), containsInAnyOrder("1 Ann", "2 Bob"));
+  }
+
+  @Test
+  public void compactionRewritesTheFileAndStartsANewGeneration() throws Exception {
+    SCIMConnectorUtil.configureJournals(1, 0, 2);
+    SCIMConnectorUtil.saveUserToFile(user("1", "Ann"), usersFile);
+    SCIMConnectorUtil.saveUserToFile(user("2", "Bob"), usersFile);
+    SCIMConnectorUtil.closeJournals();
+
+    Map<String, SCIMUser> snapshot = new LinkedHashMap<>();
+    SCIMConnectorUtil.readUsersSnapshot(snapshot, usersFile, 1);
+    assertThat(givenNames(snapshot), containsInAnyOrder("1 Ann", "2 Bob"));
+    assertThat(Files.exists(directory.resolve("users.json.journal.1")), is(false));
+  }
+
+  @Test
+  public void groupsAreJournaledLikeUsers() throws Exception {
+    SCIMConnectorUtil.saveGroupToFile(group("1", "admins"), groupsFile);
+    SCIMConnectorUtil.saveGroupToFile(group("2", "staff"), groupsFile);
+    SCIMConnectorUtil.deleteGroupFromFile("1", groupsFile);
+    SCIMConnectorUtil.closeJournals();
+
+    Map<String, SCIMGroup> groups = new LinkedHashMap<>();
+    SCIMConnectorUtil.readGroupsFromFile(groups, groupsFile, 1);
+    assertThat(groups.keySet(), containsInAnyOrder("2"));
+    assertThat(groups.get("2").getDisplayName(), is("staff"));
+  }
+
+  private Map<String, SCIMUser> readUsers() throws Exception {
+    Map<String, SCIMUser> read = new LinkedHashMap<>();
+    SCIMConnectorUtil.readUsersFromFile(read, usersFile);
+    return read;
+  }
+
+  private static List<String> givenNames(Map<String, SCIMUser> users) {
+    List<String> names = new ArrayList<>();
+    for (SCIMUser user : users.values()) {
+      names.add(user.getId() + " " + user.getName().getFirstName());
+    }
+    return names;
+  }
+
+  private static Map<String, SCIMUser> users(SCIMUser... users) {
+    Map<String, SCIMUser> map = new LinkedHashMap<>();
+    for (SCIMUser user : users) {
+      map.put(user.getId(), user);
+    }
+    return map;
+  }
+
+  private static SCIMUser user(String id, String firstName) {
+    SCIMUser user = new SCIMUser();
+    user.setId(id);
+    user.setUserName("user" + id + "@example.com");
+    user.setName(new Name(firstName + " Smith", "Smith", firstName));
+    user.setActive(true);
+    return user;
+  }
+
+  private static SCIMGroup group(String id, String name) {
+    SCIMGroup group = new SCIMGroup();
+    group.setId(id);
+    group.setDisplayName(name);
+    group.setMembers(Collections.singletonList(new Membership("1", "user1")));
+    return group;
+  }
+}
@@ -0,0 +1,103 @@
+package com.okta.scim.server.example;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.testng.Assert.fail;
+
+public class SingleFlightTest {
+  private SingleFlight<String, String> flight;
+  private AtomicInteger started;
+
+  @BeforeMethod
+  public void create() {
+    flight = new SingleFlight<>();
+    started = new AtomicInteger();
+  }
+
+  @Test
+  public void callersOfAReadInFlightShareIt() throws Exception {
+    CompletableFuture<String> read = new CompletableFuture<>();
+
+    CompletableFuture<String> first = flight.execute("a", () -> start(read));
+    CompletableFuture<String> second = flight.execute("a", () -> start(new CompletableFuture<>()));
+    read.complete("value");
+
+    assertThat(second, is(sameInstance(first)));
+    assertThat(second.get(), is("value"));
+    assertThat(started.get(), is(1));
+    assertThat(flight.getReads(), is(1L));
+    assertThat(flight.getCollapsed(), is(1L));
+  }
+
+  @Test
+  public void differentKeysAreReadSeparately() {
+    CompletableFuture<String> a = flight.execute("a", () -> start(new CompletableFuture<>()));
+    CompletableFuture<String> b = flight.execute("b", () -> start(new CompletableFuture<>()));
+
+    assertThat(b, is(not(sameInstance(a))));
+    assertThat(started.get(), is(2));
+    assertThat(flight.inFlight(), is(2));
+  }
+
+  @Test
+  public void completedReadIsNotShared() throws Exception {
+    flight.execute("a", () -> start(CompletableFuture.completedFuture("old"))).get();
+
+    CompletableFuture<String> next = flight.execute("a", () -> start(CompletableFuture.completedFuture("new")));
+
+    assertThat(next.get(), is("new"));
+    assertThat(started.get(), is(2));
+    assertThat(flight.getCollapsed(), is(0L));
+    assertThat(flight.inFlight(), is(0));
+  }
+
+  @Test
+  public void failedReadFailsEveryCallerAndIsReleased() throws Exception {
+    CompletableFuture<String> read = new CompletableFuture<>();
+    CompletableFuture<String> first = flight.execute("a", () -> start(read));
+    CompletableFuture<String> second = flight.execute("a", () -> start(new CompletableFuture<>()));
+    IllegalStateException failure = new IllegalStateException("down");
+
+    read.completeExceptionally(failure);
+
+    assertThat(causeOf(first), is(sameInstance(failure)));
+    assertThat(causeOf(second), is(sameInstance(failure)));
+    assertThat(flight.inFlight(), is(0));
+  }
+
+  @Test
+  public void readThatThrowsFailsItsFutureAndIsReleased() throws Exception {
+    CompletableFuture<String> failed = flight.execute("a", () -> {
+      throw new IllegalArgumentException("bad");
+    });
+
+    assertThat(causeOf(failed), is(instanceOf(IllegalArgumentException.class)));
+    assertThat(flight.inFlight(), is(0));
+    assertThat(flight.execute("a", () -> start(CompletableFuture.completedFuture("ok"))).get(), is("ok"));
+  }
+
+  private CompletableFuture<String> start(CompletableFuture<String> read) {
+    started.incrementAndGet();
+    return read;
+  }
+
+  private static Throwable causeOf(CompletableFuture<String> future) throws InterruptedException {
+    try {
+      future.get();
+      fail("the read should have failed");
+      return null;
+    } catch (ExecutionException e) {
+      return e.getCause();
+    }
+  }
+}
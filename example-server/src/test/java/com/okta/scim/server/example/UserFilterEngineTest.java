@@ -0,0 +1,132 @@
+package com.okta.scim.server.example;
+
+import com.okta.scim.server.exception.OnPremUserManagementException;
+import com.okta.scim.util.model.SCIMFilter;
+import com.okta.scim.util.model.SCIMFilterAttribute;
+import com.okta.scim.util.model.SCIMFilterType;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+
+/**
+ * How {@link UserFilterEngine#parse(SCIMFilter)} rewrites filters built the way the SDK builds
+ * them, where an <code>and</code> has an unknown type and operands.
+ */
+public class UserFilterEngineTest {
+  // Schema of the standard attributes, which the SDK sets on every filter attribute
+  private static final String CORE_SCHEMA = "urn:scim:schemas:core:1.0";
+
+  @Test
+  public void equalityIsOneExactPredicate() throws Exception {
+    List<List<UserFilterEngine.Predicate>> terms = UserFilterEngine.parse(filter(SCIMFilterType.EQUALS,
+      "userName", null, "jdoe@example.com"));
+
+    assertThat(describe(terms), contains("userName eq \"jdoe@example.com\""));
+  }
+
+  @Test
+  public void unknownOperatorOnUserNameIsASubstringMatch() throws Exception {
+    List<List<UserFilterEngine.Predicate>> terms = UserFilterEngine.parse(filter(SCIMFilterType.UNKNOWN,
+      "userName", null, "jdoe"));
+
+    assertThat(describe(terms), contains("userName co \"jdoe\""));
+  }
+
+  @Test
+  public void andDistributesOverOr() throws Exception {
+    SCIMFilter filter = and(
+      or(eq("name", "familyName", "Doe"), eq("name", "familyName", "Roe")),
+      eq("emails", null, "jdoe@example.com"));
+
+    assertThat(describe(UserFilterEngine.parse(filter)), contains(
+      "name.familyName eq \"Doe\" and emails eq \"jdoe@example.com\"",
+      "name.familyName eq \"Roe\" and emails eq \"jdoe@example.com\""));
+  }
+
+  @Test
+  public void emailsWithValueSubAttributeIsAnEmailPredicate() throws Exception {
+    List<List<UserFilterEngine.Predicate>> terms = UserFilterEngine.parse(eq("emails", "value", "a@example.com"));
+
+    assertThat(terms.get(0).get(0).getAttribute(), is(UserFilterEngine.Attribute.EMAIL));
+  }
+
+  @Test
+  public void thirtyTwoTermsAreAccepted() throws Exception {
+    SCIMFilter[] ors = new SCIMFilter[5];
+    for (int i = 0; i < ors.length; i++) {
+      ors[i] = or(eq("name", "givenName", "a" + i), eq("name", "givenName", "b" + i));
+    }
+
+    assertThat(UserFilterEngine.parse(and(ors)), hasSize(32));
+  }
+
+  @Test(expectedExceptions = OnPremUserManagementException.class)
+  public void moreThanThirtyTwoTermsAreRefused() throws Exception {
+    SCIMFilter[] ors = new SCIMFilter[6];
+    for (int i = 0; i < ors.length; i++) {
+      ors[i] = or(eq("name", "givenName", "a" + i), eq("name", "givenName", "b" + i));
+    }
+
+    UserFilterEngine.parse(and(ors));
+  }
+
+  @Test(expectedExceptions = OnPremUserManagementException.class)
+  public void unknownOperatorOnAnotherAttributeIsRefused() throws Exception {
+    UserFilterEngine.parse(filter(SCIMFilterType.UNKNOWN, "name", "givenName", "Jo"));
+  }
+
+  @Test(expectedExceptions = OnPremUserManagementException.class)
+  public void unmappedAttributeIsRefused() throws Exception {
+    UserFilterEngine.parse(eq("externalId", null, "anything"));
+  }
+
+  private static List<String> describe(List<List<UserFilterEngine.Predicate>> terms) {
+    List<String> described = new ArrayList<>();
+    for (List<UserFilterEngine.Predicate> term : terms) {
+      List<String> predicates = new ArrayList<>();
+      for (UserFilterEngine.Predicate predicate : term) {
+        predicates.add(predicate.toString());
+      }
+      described.add(String.join(" and ", predicates));
+    }
+    return described;
+  }
+
+  private static SCIMFilter eq(String attributeName, String subAttributeName, String value) {
+    return filter(SCIMFilterType.EQUALS, attributeName, subAttributeName, value);
+  }
+
+  private static SCIMFilter filter(SCIMFilterType type, String attributeName, String subAttributeName, String value) {
+    SCIMFilterAttribute attribute = new SCIMFilterAttribute();
+    attribute.setAttributeName(attributeName);
+    attribute.setSubAttributeName(subAttributeName);
+    attribute.setSchema(CORE_SCHEMA);
+    SCIMFilter filter = new SCIMFilter();
+    filter.setFilterType(type);
+    filter.setFilterAttribute(attribute);
+    filter.setFilterValue(value);
+    return filter;
+  }
+
+  private static SCIMFilter and(SCIMFilter... operands) {
+    return combine(SCIMFilterType.UNKNOWN, operands);
+  }
+
+  private static SCIMFilter or(SCIMFilter... operands) {
+    return combine(SCIMFilterType.OR, operands);
+  }
+
+  private static SCIMFilter combine(SCIMFilterType type, SCIMFilter... operands) {
+    SCIMFilter filter = new SCIMFilter();
+    filter.setFilterType(type);
+    filter.setFilterExpressions(new ArrayList<>(Arrays.asList(operands)));
+    return filter;
+  }
+}
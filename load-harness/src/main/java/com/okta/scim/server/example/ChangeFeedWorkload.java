@@ -0,0 +1,126 @@
+package com.okta.scim.server.example;
+
+import com.okta.scim.server.exception.DuplicateGroupException;
+import com.okta.scim.util.model.SCIMGroup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Changes users and groups behind the connector's back, in the stub, and checks that the
+ * connector's change feed brings its caches up to date.
+ * <p>
+ * <code>sampleSize</code> users are read through getUser, which caches them, then renamed in the
+ * stub; every one must be served with its new last name within the timeout. The same is checked
+ * again after the stub's admin events are cleared, which the feed has to detect as a gap and
+ * recover from with a full reconcile. Finally a group created in the stub must be reported as a
+ * duplicate by createGroup without a create call reaching Keycloak.
+ */
+final class ChangeFeedWorkload {
+  private static final long POLL_INTERVAL_MILLIS = 50;
+
+  private final SCIMServiceImpl service;
+  private final LoadRecorder recorder;
+  private final KeycloakStub stub;
+  private final List<String> userIds;
+  private final long timeoutMillis;
+  private final List<String> failures = new ArrayList<>();
+
+  ChangeFeedWorkload(SCIMServiceImpl service, LoadRecorder recorder, KeycloakStub stub, List<String> userIds,
+                     int sampleSize, long timeoutMillis) {
+    this.service = service;
+    this.recorder = recorder;
+    this.stub = stub;
+    this.userIds = userIds.subList(0, Math.min(sampleSize, userIds.size()));
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  /**
+   * @return a description of every check that failed
+   */
+  List<String> run() throws Exception {
+    renameUsers("changed", false);
+    renameUsers("after-gap", true);
+    createGroupOutside();
+    return failures;
+  }
+
+  private void renameUsers(String lastNamePrefix, boolean clearEvents) throws Exception {
+    for (String id : userIds) {
+      recorder.time("getUser", () -> service.getUser(id));
+    }
+    long reconciles = gauge("keycloak_change_feed_reconciles");
+    for (int i = 0; i < userIds.size(); i++) {
+      stub.updateUserExternally(userIds.get(i), lastNamePrefix + i);
+    }
+    if (clearEvents) {
+      stub.clearAdminEvents();
+    }
+
+    long start = System.nanoTime();
+    List<String> stale = new ArrayList<>(userIds);
+    while (!stale.isEmpty() && System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(timeoutMillis)) {
+      List<String> stillStale = new ArrayList<>();
+      for (String id : stale) {
+        String expected = lastNamePrefix + userIds.indexOf(id);
+        if (!expected.equals(recorder.time("getUser", () -> service.getUser(id)).getName().getLastName())) {
+          stillStale.add(id);
+        }
+      }
+      stale = stillStale;
+      if (!stale.isEmpty()) {
+        TimeUnit.MILLISECONDS.sleep(POLL_INTERVAL_MILLIS);
+      }
+    }
+
+    long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    System.out.println("  " + userIds.size() + " users renamed in Keycloak" + (clearEvents ? " with the events cleared" : "")
+      + ": " + (userIds.size() - stale.size()) + " served with the new name within " + millis + "ms");
+    if (!stale.isEmpty()) {
+      failures.add(stale.size() + " renamed users still served with their old name after " + timeoutMillis + "ms"
+        + (clearEvents ? " with the admin events cleared" : ""));
+    }
+    if (clearEvents && gauge("keycloak_change_feed_reconciles") == reconciles) {
+      failures.add("clearing the admin events did not make the change feed reconcile");
+    }
+  }
+
+  private void createGroupOutside() throws Exception {
+    // Load the group name index first, so the new group can only reach it through the feed
+    SCIMGroup existing = new SCIMGroup();
+    existing.setDisplayName("seed-group-0");
+    try {
+      service.createGroup(existing);
+    } catch (DuplicateGroupException expected) {
+      // The seeded group
+    }
+
+    String name = "external-group-" + System.nanoTime();
+    stub.createGroupExternally(name);
+    long applied = gauge("keycloak_change_feed_events_applied");
+    long start = System.nanoTime();
+    while (gauge("keycloak_change_feed_events_applied") == applied
+      && System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(timeoutMillis)) {
+      TimeUnit.MILLISECONDS.sleep(POLL_INTERVAL_MILLIS);
+    }
+
+    long creates = stub.getRequestCounts().getOrDefault("groups.create", 0L);
+    SCIMGroup group = new SCIMGroup();
+    group.setDisplayName(name);
+    try {
+      recorder.time("createGroup", () -> service.createGroup(group));
+      failures.add("group " + name + " created outside the connector was created again");
+    } catch (DuplicateGroupException e) {
+      if (stub.getRequestCounts().getOrDefault("groups.create", 0L) != creates) {
+        failures.add("group " + name + " created outside the connector was only found a duplicate by Keycloak");
+      }
+    }
+  }
+
+  private long gauge(String name) {
+    Map<String, Long> gauges = service.getMetrics().getGauges();
+    return gauges.getOrDefault(name, 0L);
+  }
+}
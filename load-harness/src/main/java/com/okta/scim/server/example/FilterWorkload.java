@@ -0,0 +1,127 @@
+package com.okta.scim.server.example;
+
+import com.okta.scim.server.exception.OnPremUserManagementException;
+import com.okta.scim.util.model.SCIMFilter;
+import com.okta.scim.util.model.SCIMFilterAttribute;
+import com.okta.scim.util.model.SCIMFilterType;
+import com.okta.scim.util.model.SCIMUser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Looks users up the way Okta matching rules do, with getUsers filters on userName, given and
+ * family name, email and id, alone and combined with <code>and</code> and <code>or</code>.
+ * <p>
+ * For each of <code>sampleSize</code> seeded users, read first with getUser, every filter must
+ * return exactly the users it names: the seeded given and family names are unique, and the stub
+ * seeds every email equal to the username. Filters are built the way the SDK converts them, so an
+ * <code>and</code> has an unknown type and its operands. A filter on externalId must be refused.
+ */
+final class FilterWorkload {
+  // Schema of the standard attributes, which the SDK sets on every filter attribute
+  private static final String CORE_SCHEMA = "urn:scim:schemas:core:1.0";
+
+  private final SCIMServiceImpl service;
+  private final LoadRecorder recorder;
+  private final List<String> userIds;
+  private final List<String> failures = new ArrayList<>();
+
+  FilterWorkload(SCIMServiceImpl service, LoadRecorder recorder, List<String> userIds, int sampleSize) {
+    this.service = service;
+    this.recorder = recorder;
+    // Spread over the realm, one sample every userIds / sampleSize users
+    List<String> sample = new ArrayList<>();
+    int step = Math.max(1, userIds.size() / Math.max(1, sampleSize));
+    for (int i = 0; i < userIds.size() && sample.size() < sampleSize; i += step) {
+      sample.add(userIds.get(i));
+    }
+    this.userIds = sample;
+  }
+
+  /**
+   * @return a description of every check that failed
+   */
+  List<String> run() throws Exception {
+    Map<String, Long> before = service.getMetrics().getGauges();
+    for (int i = 0; i < userIds.size(); i++) {
+      SCIMUser user = service.getUser(userIds.get(i));
+      SCIMUser other = service.getUser(userIds.get((i + 1) % userIds.size()));
+      String givenName = user.getName().getFirstName();
+      String familyName = user.getName().getLastName();
+
+      check(eq("name", "givenName", givenName), user);
+      check(eq("emails", "value", user.getUserName()), user);
+      check(and(eq("name", "givenName", givenName), eq("name", "familyName", familyName)), user);
+      check(and(eq("name", "givenName", givenName), eq("name", "familyName", "no-such-name")));
+      check(or(eq("userName", null, user.getUserName()), eq("id", null, other.getId())), user, other);
+      check(and(eq("id", null, user.getId()), eq("userName", null, user.getUserName())), user);
+      check(and(or(eq("name", "familyName", familyName), eq("name", "familyName", other.getName().getLastName())),
+        eq("emails", null, other.getUserName())), other);
+    }
+    try {
+      service.getUsers(null, eq("externalId", null, "anything"));
+      failures.add("a filter on externalId was not refused");
+    } catch (OnPremUserManagementException expected) {
+      // Not an attribute the connector maps
+    }
+
+    Map<String, Long> after = service.getMetrics().getGauges();
+    System.out.println("  " + userIds.size() + " users looked up with 7 filters each: "
+      + delta(before, after, "user_filter_predicates_pushed_down") + " predicates pushed down to Keycloak, "
+      + delta(before, after, "user_filter_predicates_evaluated_locally") + " evaluated by the connector");
+    return failures;
+  }
+
+  private void check(SCIMFilter filter, SCIMUser... expected) throws Exception {
+    List<SCIMUser> found = recorder.time("getUsers", () -> service.getUsers(null, filter)).getScimUsers();
+    Set<String> foundIds = new TreeSet<>();
+    for (SCIMUser user : found) {
+      foundIds.add(user.getId());
+    }
+    Set<String> expectedIds = new TreeSet<>();
+    for (SCIMUser user : expected) {
+      expectedIds.add(user.getId());
+    }
+    if (!foundIds.equals(expectedIds) || found.size() != foundIds.size()) {
+      failures.add("filter " + filter + " returned " + foundIds + " (" + found.size() + " users), expected "
+        + expectedIds);
+    }
+  }
+
+  static SCIMFilter eq(String attributeName, String subAttributeName, String value) {
+    SCIMFilterAttribute attribute = new SCIMFilterAttribute();
+    attribute.setAttributeName(attributeName);
+    attribute.setSubAttributeName(subAttributeName);
+    attribute.setSchema(CORE_SCHEMA);
+    SCIMFilter filter = new SCIMFilter();
+    filter.setFilterType(SCIMFilterType.EQUALS);
+    filter.setFilterAttribute(attribute);
+    filter.setFilterValue(value);
+    return filter;
+  }
+
+  static SCIMFilter and(SCIMFilter... operands) {
+    // The SDK has no type for and
+    return combine(SCIMFilterType.UNKNOWN, operands);
+  }
+
+  static SCIMFilter or(SCIMFilter... operands) {
+    return combine(SCIMFilterType.OR, operands);
+  }
+
+  private static SCIMFilter combine(SCIMFilterType type, SCIMFilter... operands) {
+    SCIMFilter filter = new SCIMFilter();
+    filter.setFilterType(type);
+    filter.setFilterExpressions(new ArrayList<>(Arrays.asList(operands)));
+    return filter;
+  }
+
+  private static long delta(Map<String, Long> before, Map<String, Long> after, String gauge) {
+    return after.getOrDefault(gauge, 0L) - before.getOrDefault(gauge, 0L);
+  }
+}
@@ -0,0 +1,108 @@
+package com.okta.scim.server.example;
+
+import com.okta.scim.util.model.PaginationProperties;
+import com.okta.scim.util.model.SCIMGroup;
+import com.okta.scim.util.model.SCIMGroupQueryResponse;
+import com.okta.scim.util.model.SCIMUser;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Has every client read the same thing at the same moment, the way Okta agents fan out at the start
+ * of an import: in each round, all <code>threads</code> clients are released together to read the
+ * same user, which is not cached yet, the same group and the same groups page.
+ * <p>
+ * Every client must get the user and group it asked for. With the connector's single-flight reads
+ * enabled, some of the reads must have been collapsed into one Keycloak call.
+ */
+final class HerdWorkload {
+  private final SCIMServiceImpl service;
+  private final LoadRecorder recorder;
+  private final List<String> userIds;
+  private final int threads;
+  private final int rounds;
+  private final int pageSize;
+  private final List<String> failures = new ArrayList<>();
+
+  HerdWorkload(SCIMServiceImpl service, LoadRecorder recorder, List<String> userIds, int threads, int rounds,
+               int pageSize) {
+    this.service = service;
+    this.recorder = recorder;
+    // Read from the end, away from the users the other workloads cache
+    this.userIds = userIds.subList(Math.max(0, userIds.size() - rounds), userIds.size());
+    this.threads = threads;
+    this.rounds = Math.min(rounds, this.userIds.size());
+    this.pageSize = pageSize;
+  }
+
+  /**
+   * @return a description of every check that failed
+   */
+  List<String> run() throws Exception {
+    List<SCIMGroup> groups = service.getGroups(null).getScimGroups();
+    long collapsedBefore = collapsed();
+    CyclicBarrier start = new CyclicBarrier(threads);
+    ExecutorService clients = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<?>> pending = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        pending.add(clients.submit(() -> {
+          for (int round = 0; round < rounds; round++) {
+            start.await();
+            read(round, groups);
+          }
+          return null;
+        }));
+      }
+      for (Future<?> future : pending) {
+        future.get();
+      }
+    } finally {
+      clients.shutdownNow();
+    }
+
+    long collapsed = collapsed() - collapsedBefore;
+    System.out.println("  " + threads + " clients x " + rounds + " rounds: " + collapsed + " reads collapsed");
+    if (service.isSingleFlightReads() && collapsed == 0) {
+      failures.add("no concurrent identical read was collapsed");
+    }
+    return failures;
+  }
+
+  private void read(int round, List<SCIMGroup> groups) throws Exception {
+    String userId = userIds.get(round);
+    SCIMUser user = recorder.time("getUser", () -> service.getUser(userId));
+    if (!userId.equals(user.getId())) {
+      failed("getUser(" + userId + ") returned user " + user.getId());
+    }
+    if (!groups.isEmpty()) {
+      String groupId = groups.get(round % groups.size()).getId();
+      SCIMGroup group = recorder.time("getGroup", () -> service.getGroup(groupId));
+      if (!groupId.equals(group.getId())) {
+        failed("getGroup(" + groupId + ") returned group " + group.getId());
+      }
+    }
+    PaginationProperties page = new PaginationProperties(1 + round % 2 * pageSize, pageSize);
+    SCIMGroupQueryResponse response = recorder.time("getGroups", () -> service.getGroups(page));
+    if (response.getStartIndex() != page.getStartIndex()) {
+      failed("getGroups at " + page.getStartIndex() + " returned the page at " + response.getStartIndex());
+    }
+  }
+
+  private synchronized void failed(String failure) {
+    failures.add(failure);
+  }
+
+  private long collapsed() {
+    Map<String, Long> gauges = service.getMetrics().getGauges();
+    return gauges.getOrDefault("single_flight_get_user_collapsed", 0L)
+      + gauges.getOrDefault("single_flight_get_group_collapsed", 0L)
+      + gauges.getOrDefault("single_flight_get_groups_collapsed", 0L);
+  }
+}
@@ -0,0 +1,151 @@
+package com.okta.scim.server.example;
+
+import com.okta.scim.server.capabilities.UserManagementCapabilities;
+import com.okta.scim.server.service.SCIMService;
+import com.okta.scim.util.model.Membership;
+import com.okta.scim.util.model.PaginationProperties;
+import com.okta.scim.util.model.SCIMGroup;
+import com.okta.scim.util.model.SCIMGroupQueryResponse;
+import com.okta.scim.util.model.SCIMUser;
+import com.okta.scim.util.model.SCIMUserQueryResponse;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Replays an Okta import: every user page by page, then every group page by page followed by a
+ * getGroup of each group, the way Okta reads the members. When the groups pages include the members,
+ * only the first group of each page is read, and its members must be those the page returned.
+ * <p>
+ * Every page is checked: it must start where it was asked to, hold <code>count</code> entries
+ * until the last page, and no id may show up twice. At the end the number of entries seen must
+ * match <code>totalResults</code>.
+ */
+final class ImportWorkload {
+  private final SCIMService service;
+  private final LoadRecorder recorder;
+  private final int pageSize;
+  private final boolean groupsIncludeMembers;
+  private final List<String> failures = new ArrayList<>();
+
+  ImportWorkload(SCIMService service, LoadRecorder recorder, int pageSize, boolean groupsIncludeMembers) {
+    this.service = service;
+    this.recorder = recorder;
+    this.pageSize = pageSize;
+    this.groupsIncludeMembers = groupsIncludeMembers;
+  }
+
+  /**
+   * @return a description of every check that failed
+   */
+  List<String> run() throws Exception {
+    importUsers();
+    importGroups();
+    return failures;
+  }
+
+  private void importUsers() throws Exception {
+    Set<String> seen = new HashSet<>();
+    long startIndex = 1;
+    long totalResults;
+    do {
+      PaginationProperties page = new PaginationProperties(startIndex, pageSize);
+      SCIMUserQueryResponse response = recorder.time("getUsers", () -> service.getUsers(page, null));
+      totalResults = response.getTotalResults();
+      List<SCIMUser> users = response.getScimUsers();
+      checkPage("users", page, response.getStartIndex(), users.size(), totalResults);
+      for (SCIMUser user : users) {
+        if (!seen.add(user.getId())) {
+          failures.add("user " + user.getId() + " returned again on the page at " + startIndex);
+        }
+      }
+      if (users.isEmpty()) {
+        break;
+      }
+      startIndex += users.size();
+    } while (startIndex <= totalResults);
+
+    if (seen.size() != totalResults) {
+      failures.add("imported " + seen.size() + " users, totalResults was " + totalResults);
+    }
+  }
+
+  private void importGroups() throws Exception {
+    if (!isImplemented(UserManagementCapabilities.GROUP_PUSH)) {
+      return;
+    }
+    Set<String> seen = new HashSet<>();
+    long startIndex = 1;
+    long totalResults;
+    do {
+      PaginationProperties page = new PaginationProperties(startIndex, pageSize);
+      SCIMGroupQueryResponse response = recorder.time("getGroups", () -> service.getGroups(page));
+      totalResults = response.getTotalResults();
+      List<SCIMGroup> groups = response.getScimGroups();
+      checkPage("groups", page, response.getStartIndex(), groups.size(), totalResults);
+      for (SCIMGroup group : groups) {
+        if (!seen.add(group.getId())) {
+          failures.add("group " + group.getId() + " returned again on the page at " + startIndex);
+        }
+        if (!groupsIncludeMembers) {
+          recorder.time("getGroup", () -> service.getGroup(group.getId()));
+        } else if (group.getMembers() == null) {
+          failures.add("group " + group.getId() + " on the page at " + startIndex + " has no members list");
+        }
+      }
+      if (groupsIncludeMembers && !groups.isEmpty()) {
+        checkMembers(groups.get(0));
+      }
+      if (groups.isEmpty()) {
+        break;
+      }
+      startIndex += groups.size();
+    } while (startIndex <= totalResults);
+
+    if (seen.size() != totalResults) {
+      failures.add("imported " + seen.size() + " groups, totalResults was " + totalResults);
+    }
+  }
+
+  private void checkMembers(SCIMGroup listed) throws Exception {
+    SCIMGroup read = recorder.time("getGroup", () -> service.getGroup(listed.getId()));
+    Set<String> listedIds = memberIds(listed);
+    Set<String> readIds = memberIds(read);
+    if (!listedIds.equals(readIds)) {
+      failures.add("group " + listed.getId() + " was listed with " + listedIds.size() + " members, getGroup returned "
+        + readIds.size() + " different ones");
+    }
+  }
+
+  private static Set<String> memberIds(SCIMGroup group) {
+    Set<String> ids = new HashSet<>();
+    if (group.getMembers() != null) {
+      for (Membership member : group.getMembers()) {
+        ids.add(member.getId());
+      }
+    }
+    return ids;
+  }
+
+  private void checkPage(String resources, PaginationProperties page, long startIndex, int size, long totalResults) {
+    if (startIndex != page.getStartIndex()) {
+      failures.add(resources + " page asked for at " + page.getStartIndex() + " says it starts at " + startIndex);
+    }
+    long expectedSize = Math.max(0, Math.min(page.getCount(), totalResults - (page.getStartIndex() - 1)));
+    if (size != expectedSize) {
+      failures.add(resources + " page at " + page.getStartIndex() + " has " + size + " entries, expected "
+        + expectedSize + " of " + totalResults);
+    }
+  }
+
+  private boolean isImplemented(UserManagementCapabilities capability) {
+    for (UserManagementCapabilities implemented : service.getImplementedUserManagementCapabilities()) {
+      if (implemented == capability) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
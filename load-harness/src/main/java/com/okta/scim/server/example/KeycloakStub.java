@@ -0,0 +1,833 @@
+package com.okta.scim.server.example;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.keycloak.representations.idm.AdminEventRepresentation;
+import org.keycloak.representations.idm.AuthDetailsRepresentation;
+import org.keycloak.representations.idm.GroupRepresentation;
+import org.keycloak.representations.idm.PartialImportRepresentation;
+import org.keycloak.representations.idm.UserRepresentation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An in-process stand-in for the parts of the Keycloak admin API the connector uses.
+ * <p>
+ * Users, groups and memberships live in memory and behave like Keycloak 8: usernames are stored
+ * in lower case, user searches are case-insensitive substring matches, users and members are
+ * listed in username order, and user and member listings without <code>max</code> stop at 100
+ * results. Admin calls need a bearer token from the token endpoint.
+ * <p>
+ * Changes after {@link #seed(int, int, int)} are recorded as admin events, listed newest first
+ * like Keycloak's, so the connector's change feed can follow them. The stub's time zone is UTC.
+ * Access tokens are unsigned JWTs of one admin user, whom the events of admin calls name; changes
+ * made through the methods of the stub are recorded as made by another user, in the console.
+ * <p>
+ * Every request waits <code>latencyMillis</code> plus up to <code>jitterMillis</code> before it
+ * is answered, and is counted per endpoint under the same names the connector's metrics use.
+ * {@link #failRequests(String, int)} makes an endpoint answer with an error status instead.
+ */
+final class KeycloakStub {
+  private static final Logger LOGGER = LoggerFactory.getLogger(KeycloakStub.class);
+
+  // Keycloak's Constants.DEFAULT_MAX_RESULTS, applied to user and member listings without max
+  private static final int DEFAULT_MAX_RESULTS = 100;
+
+  private final String realm;
+  private final long latencyMillis;
+  private final long jitterMillis;
+  private final long tokenLifetimeSeconds;
+  private final ObjectMapper mapper = new ObjectMapper()
+    .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+    .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+  private final HttpServer server;
+  private final ExecutorService executor;
+  private final ConcurrentMap<String, LongAdder> requestCounts = new ConcurrentHashMap<>();
+  // Status answered to every request of an endpoint, before it is acted on
+  private final ConcurrentMap<String, Integer> failingEndpoints = new ConcurrentHashMap<>();
+  private final Map<String, Boolean> issuedTokens = new ConcurrentHashMap<>();
+  private final String adminUserId = UUID.randomUUID().toString();
+  private final String consoleUserId = UUID.randomUUID().toString();
+  // The user of the admin call being answered, unset for changes made through the stub's methods
+  private final ThreadLocal<String> callingUserId = new ThreadLocal<>();
+
+  // Guarded by this
+  private final TreeMap<String, UserRepresentation> usersByUsername = new TreeMap<>();
+  private final Map<String, UserRepresentation> usersById = new HashMap<>();
+  private final TreeMap<String, GroupRepresentation> groupsByName = new TreeMap<>();
+  private final Map<String, GroupRepresentation> groupsById = new HashMap<>();
+  // Member usernames of each group, by group id
+  private final Map<String, TreeSet<String>> membersByGroupId = new HashMap<>();
+  // Listings in order, rebuilt after a change so paging a large realm does not skip over a tree
+  private List<UserRepresentation> userList;
+  private List<GroupRepresentation> groupList;
+  // Oldest first
+  private final List<AdminEventRepresentation> adminEvents = new ArrayList<>();
+  // In the order seed created them
+  private final List<String> seededUserIds = new ArrayList<>();
+
+  /**
+   * @param threads              threads answering requests, which caps the requests in flight
+   * @param tokenLifetimeSeconds <code>expires_in</code> of the issued access tokens
+   */
+  KeycloakStub(String realm, long latencyMillis, long jitterMillis, int threads, long tokenLifetimeSeconds)
+    throws IOException {
+    this.realm = realm;
+    this.latencyMillis = latencyMillis;
+    this.jitterMillis = jitterMillis;
+    this.tokenLifetimeSeconds = tokenLifetimeSeconds;
+    // Without TCP_NODELAY the JDK server's separate header and body writes wait on delayed ACKs,
+    // adding tens of milliseconds to every response. Read once, when the first server is created.
+    if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+      System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+    this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+    this.executor = Executors.newFixedThreadPool(Math.max(1, threads));
+    server.setExecutor(executor);
+    server.createContext("/auth/", this::handle);
+  }
+
+  void start() {
+    server.start();
+    LOGGER.info("Keycloak stub listening on " + getServerUrl());
+  }
+
+  void stop() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  /**
+   * @return the URL to configure as the connector's Keycloak server URL
+   */
+  String getServerUrl() {
+    return "http://127.0.0.1:" + server.getAddress().getPort() + "/auth";
+  }
+
+  /**
+   * Create <code>users</code> users and <code>groups</code> groups. Group <code>g</code> gets
+   * <code>membersPerGroup</code> consecutive users starting at <code>g * membersPerGroup</code>,
+   * wrapping around.
+   */
+  synchronized void seed(int users, int groups, int membersPerGroup) {
+    List<String> usernames = new ArrayList<>(users);
+    for (int i = 0; i < users; i++) {
+      UserRepresentation user = new UserRepresentation();
+      user.setUsername("seed-user-" + i + "@example.com");
+      user.setFirstName("Seed" + i);
+      user.setLastName("User" + i);
+      user.setEmail("seed-user-" + i + "@example.com");
+      UserRepresentation added = addUser(user);
+      usernames.add(added.getUsername());
+      seededUserIds.add(added.getId());
+    }
+    for (int g = 0; g < groups; g++) {
+      GroupRepresentation group = new GroupRepresentation();
+      group.setName("seed-group-" + g);
+      TreeSet<String> members = membersByGroupId.get(addGroup(group).getId());
+      for (int m = 0; m < membersPerGroup && users > 0; m++) {
+        members.add(usernames.get((g * membersPerGroup + m) % users));
+      }
+    }
+  }
+
+  /**
+   * Change a user's last name the way an administrator would in the Keycloak console, bypassing
+   * the connector.
+   */
+  synchronized void updateUserExternally(String id, String lastName) {
+    UserRepresentation update = new UserRepresentation();
+    update.setLastName(lastName);
+    updateUser(id, update);
+  }
+
+  /**
+   * Create a group bypassing the connector.
+   *
+   * @return the id of the group
+   */
+  synchronized String createGroupExternally(String name) {
+    GroupRepresentation group = new GroupRepresentation();
+    group.setName(name);
+    GroupRepresentation created = addGroup(group);
+    recordEvent("CREATE", "GROUP", "groups/" + created.getId(), created);
+    return created.getId();
+  }
+
+  /**
+   * Delete every admin event, as their expiration or an administrator clearing them would.
+   */
+  synchronized void clearAdminEvents() {
+    adminEvents.clear();
+  }
+
+  /**
+   * @return the id of the user the access tokens belong to, as in their <code>sub</code> claim
+   */
+  String getAdminUserId() {
+    return adminUserId;
+  }
+
+  synchronized int getUserCount() {
+    return usersById.size();
+  }
+
+  synchronized int getGroupCount() {
+    return groupsById.size();
+  }
+
+  /**
+   * @return the ids of the users {@link #seed(int, int, int)} created, in the order it created them
+   */
+  synchronized List<String> getSeededUserIds() {
+    return new ArrayList<>(seededUserIds);
+  }
+
+  /**
+   * @return the ids of every user, in listing order
+   */
+  synchronized List<String> getUserIds() {
+    List<String> ids = new ArrayList<>(usersById.size());
+    for (UserRepresentation user : usersByUsername.values()) {
+      ids.add(user.getId());
+    }
+    return ids;
+  }
+
+  /**
+   * @return requests answered per endpoint since the last reset
+   */
+  Map<String, Long> getRequestCounts() {
+    Map<String, Long> counts = new TreeMap<>();
+    for (Map.Entry<String, LongAdder> entry : requestCounts.entrySet()) {
+      counts.put(entry.getKey(), entry.getValue().sum());
+    }
+    return counts;
+  }
+
+  long getTotalRequests() {
+    long total = 0;
+    for (LongAdder count : requestCounts.values()) {
+      total += count.sum();
+    }
+    return total;
+  }
+
+  void resetRequestCounts() {
+    requestCounts.clear();
+  }
+
+  /**
+   * Answer every later request to <code>endpoint</code> with <code>status</code> and an error
+   * message, without acting on it, until {@link #clearFailures()}. The request is still counted.
+   *
+   * @param endpoint an endpoint name as counted, like <code>users.joinGroup</code>
+   */
+  void failRequests(String endpoint, int status) {
+    failingEndpoints.put(endpoint, status);
+  }
+
+  void clearFailures() {
+    failingEndpoints.clear();
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try {
+      simulateLatency();
+      Reply reply = route(exchange);
+      send(exchange, reply);
+    } catch (InjectedFailure e) {
+      send(exchange, Reply.error(e.status, "Injected failure"));
+    } catch (IOException | RuntimeException e) {
+      LOGGER.warn("Keycloak stub failed on " + exchange.getRequestMethod() + " " + exchange.getRequestURI(), e);
+      send(exchange, Reply.error(500, e.toString()));
+    } finally {
+      callingUserId.remove();
+      exchange.close();
+    }
+  }
+
+  private Reply route(HttpExchange exchange) throws IOException {
+    String method = exchange.getRequestMethod();
+    String[] path = exchange.getRequestURI().getRawPath().substring("/auth/".length()).split("/");
+    Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+
+    // realms/{realm}/protocol/openid-connect/token
+    if (path.length == 5 && path[0].equals("realms") && path[4].equals("token") && method.equals("POST")) {
+      count("token");
+      return issueToken();
+    }
+
+    // admin/realms/{realm}/...
+    if (path.length < 4 || !path[0].equals("admin") || !path[1].equals("realms") || !path[2].equals(realm)) {
+      return Reply.error(404, "Not found");
+    }
+    String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+    if (authorization == null || !issuedTokens.containsKey(authorization.replaceFirst("^Bearer ", ""))) {
+      count("unauthorized");
+      return Reply.error(401, "HTTP 401 Unauthorized");
+    }
+    callingUserId.set(adminUserId);
+
+    String resource = path[3];
+    if (resource.equals("users")) {
+      return routeUsers(method, path, query, exchange);
+    }
+    if (resource.equals("groups")) {
+      return routeGroups(method, path, query, exchange);
+    }
+    if (resource.equals("partialImport") && path.length == 4 && method.equals("POST")) {
+      count("realm.partialImport");
+      return partialImport(read(exchange, PartialImportRepresentation.class));
+    }
+    if (resource.equals("admin-events") && path.length == 4 && method.equals("GET")) {
+      count("adminEvents.list");
+      return Reply.json(200, listAdminEvents(query));
+    }
+    return Reply.error(404, "Not found");
+  }
+
+  private Reply routeUsers(String method, String[] path, Map<String, String> query, HttpExchange exchange)
+    throws IOException {
+    if (path.length == 4 && method.equals("GET")) {
+      count(isSearch(query) ? "users.search" : "users.list");
+      return Reply.json(200, listUsers(query));
+    }
+    if (path.length == 4 && method.equals("POST")) {
+      count("users.create");
+      return createUser(read(exchange, UserRepresentation.class), exchange);
+    }
+    if (path.length == 5 && path[4].equals("count") && method.equals("GET")) {
+      count("users.count");
+      return Reply.json(200, countUsers(query));
+    }
+    if (path.length == 5 && method.equals("GET")) {
+      count("users.get");
+      UserRepresentation user = getUser(path[4]);
+      return user != null ? Reply.json(200, user) : Reply.error(404, "User not found");
+    }
+    if (path.length == 5 && method.equals("PUT")) {
+      count("users.update");
+      return updateUser(path[4], read(exchange, UserRepresentation.class));
+    }
+    if (path.length == 7 && path[5].equals("groups") && method.equals("PUT")) {
+      count("users.joinGroup");
+      return changeMembership(path[4], path[6], true);
+    }
+    if (path.length == 7 && path[5].equals("groups") && method.equals("DELETE")) {
+      count("users.leaveGroup");
+      return changeMembership(path[4], path[6], false);
+    }
+    return Reply.error(404, "Not found");
+  }
+
+  private Reply routeGroups(String method, String[] path, Map<String, String> query, HttpExchange exchange)
+    throws IOException {
+    if (path.length == 4 && method.equals("GET")) {
+      count("groups.list");
+      return Reply.json(200, listGroups(query));
+    }
+    if (path.length == 4 && method.equals("POST")) {
+      count("groups.create");
+      return createGroup(read(exchange, GroupRepresentation.class), exchange);
+    }
+    if (path.length == 5 && path[4].equals("count") && method.equals("GET")) {
+      count("groups.count");
+      return Reply.json(200, Collections.singletonMap("count", (long) getGroupCount()));
+    }
+    if (path.length == 5 && method.equals("GET")) {
+      count("groups.get");
+      GroupRepresentation group = getGroup(path[4]);
+      return group != null ? Reply.json(200, group) : Reply.error(404, "Could not find group by id");
+    }
+    if (path.length == 5 && method.equals("DELETE")) {
+      count("groups.remove");
+      return removeGroup(path[4]) ? Reply.empty(204) : Reply.error(404, "Could not find group by id");
+    }
+    if (path.length == 6 && path[5].equals("members") && method.equals("GET")) {
+      count("groups.members");
+      List<UserRepresentation> members = listMembers(path[4], query);
+      return members != null ? Reply.json(200, members) : Reply.error(404, "Could not find group by id");
+    }
+    return Reply.error(404, "Not found");
+  }
+
+  private Reply issueToken() {
+    Base64.Encoder base64 = Base64.getUrlEncoder().withoutPadding();
+    String claims = "{\"jti\":\"" + UUID.randomUUID() + "\",\"sub\":\"" + adminUserId + "\",\"azp\":\"admin-cli\"}";
+    String token = base64.encodeToString("{\"alg\":\"none\"}".getBytes(StandardCharsets.UTF_8)) + "."
+      + base64.encodeToString(claims.getBytes(StandardCharsets.UTF_8)) + ".";
+    issuedTokens.put(token, Boolean.TRUE);
+    Map<String, Object> response = new LinkedHashMap<>();
+    response.put("access_token", token);
+    response.put("expires_in", tokenLifetimeSeconds);
+    response.put("refresh_token", UUID.randomUUID().toString());
+    response.put("refresh_expires_in", tokenLifetimeSeconds * 6);
+    response.put("token_type", "bearer");
+    return Reply.json(200, response);
+  }
+
+  // Users
+
+  private synchronized List<UserRepresentation> listUsers(Map<String, String> query) {
+    int first = intParam(query, "first", 0);
+    int max = intParam(query, "max", DEFAULT_MAX_RESULTS);
+    List<UserRepresentation> page = new ArrayList<>();
+    if (isSearch(query)) {
+      int skipped = 0;
+      for (UserRepresentation user : usersByUsername.values()) {
+        if (page.size() >= max) {
+          break;
+        }
+        if (matches(user, query) && skipped++ >= first) {
+          page.add(user);
+        }
+      }
+      return page;
+    }
+    List<UserRepresentation> all = userList();
+    for (int i = first; i < all.size() && page.size() < max; i++) {
+      page.add(all.get(i));
+    }
+    return page;
+  }
+
+  private synchronized int countUsers(Map<String, String> query) {
+    if (!isSearch(query)) {
+      return usersById.size();
+    }
+    int count = 0;
+    for (UserRepresentation user : usersByUsername.values()) {
+      if (matches(user, query)) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private synchronized UserRepresentation getUser(String id) {
+    return usersById.get(id);
+  }
+
+  private synchronized Reply createUser(UserRepresentation user, HttpExchange exchange) {
+    if (user.getUsername() == null || usersByUsername.containsKey(user.getUsername().toLowerCase(Locale.ROOT))) {
+      return Reply.error(409, "User exists with same username");
+    }
+    UserRepresentation created = addUser(user);
+    recordEvent("CREATE", "USER", "users/" + created.getId(), null);
+    return Reply.created(location(exchange, created.getId()));
+  }
+
+  /**
+   * Import the users in one transaction, like Keycloak: a user without a username, or a username
+   * given twice, fails the whole import and nothing is created. Taken usernames are skipped when
+   * <code>ifResourceExists</code> is SKIP and fail the import otherwise. Keycloak records the import
+   * as one PARTIAL_IMPORT admin event, not as user events.
+   */
+  private synchronized Reply partialImport(PartialImportRepresentation partialImport) {
+    List<UserRepresentation> users = partialImport.getUsers() != null
+      ? partialImport.getUsers() : Collections.<UserRepresentation>emptyList();
+    boolean skip = "SKIP".equals(partialImport.getIfResourceExists());
+    Map<String, String> existingIds = new HashMap<>();
+    Set<String> userNames = new HashSet<>();
+    for (UserRepresentation user : users) {
+      if (user.getUsername() == null || !userNames.add(user.getUsername().toLowerCase(Locale.ROOT))) {
+        return Reply.error(400, "Invalid user");
+      }
+      UserRepresentation existing = usersByUsername.get(user.getUsername().toLowerCase(Locale.ROOT));
+      if (existing != null) {
+        if (!skip) {
+          return Reply.error(409, "User '" + user.getUsername() + "' already exists.");
+        }
+        existingIds.put(user.getUsername(), existing.getId());
+      }
+    }
+
+    List<Map<String, Object>> results = new ArrayList<>();
+    int added = 0;
+    for (UserRepresentation user : users) {
+      Map<String, Object> result = new LinkedHashMap<>();
+      String existingId = existingIds.get(user.getUsername());
+      result.put("action", existingId != null ? "SKIPPED" : "ADDED");
+      result.put("resourceType", "USER");
+      result.put("resourceName", user.getUsername());
+      result.put("id", existingId != null ? existingId : addUser(user).getId());
+      results.add(result);
+      added += existingId != null ? 0 : 1;
+    }
+    recordEvent("CREATE", "PARTIAL_IMPORT", "", null);
+
+    Map<String, Object> body = new LinkedHashMap<>();
+    body.put("overwritten", 0);
+    body.put("added", added);
+    body.put("skipped", users.size() - added);
+    body.put("results", results);
+    return Reply.json(200, body);
+  }
+
+  private synchronized Reply updateUser(String id, UserRepresentation update) {
+    UserRepresentation user = usersById.get(id);
+    if (user == null) {
+      return Reply.error(404, "User not found");
+    }
+    if (update.getUsername() != null && !update.getUsername().equalsIgnoreCase(user.getUsername())) {
+      String username = update.getUsername().toLowerCase(Locale.ROOT);
+      if (usersByUsername.containsKey(username)) {
+        return Reply.error(409, "User exists with same username");
+      }
+      usersByUsername.remove(user.getUsername());
+      for (TreeSet<String> members : membersByGroupId.values()) {
+        if (members.remove(user.getUsername())) {
+          members.add(username);
+        }
+      }
+      user.setUsername(username);
+      usersByUsername.put(username, user);
+      userList = null;
+    }
+    if (update.getFirstName() != null) {
+      user.setFirstName(update.getFirstName());
+    }
+    if (update.getLastName() != null) {
+      user.setLastName(update.getLastName());
+    }
+    if (update.getEmail() != null) {
+      user.setEmail(update.getEmail());
+    }
+    if (update.isEnabled() != null) {
+      user.setEnabled(update.isEnabled());
+    }
+    recordEvent("UPDATE", "USER", "users/" + id, null);
+    return Reply.empty(204);
+  }
+
+  private synchronized Reply changeMembership(String userId, String groupId, boolean join) {
+    UserRepresentation user = usersById.get(userId);
+    TreeSet<String> members = membersByGroupId.get(groupId);
+    if (user == null || members == null) {
+      return Reply.error(404, user == null ? "User not found" : "Could not find group by id");
+    }
+    if (join) {
+      members.add(user.getUsername());
+    } else {
+      members.remove(user.getUsername());
+    }
+    recordEvent(join ? "CREATE" : "DELETE", "GROUP_MEMBERSHIP", "users/" + userId + "/groups/" + groupId, null);
+    return Reply.empty(204);
+  }
+
+  private UserRepresentation addUser(UserRepresentation user) {
+    UserRepresentation stored = new UserRepresentation();
+    stored.setId(UUID.randomUUID().toString());
+    stored.setUsername(user.getUsername().toLowerCase(Locale.ROOT));
+    stored.setFirstName(user.getFirstName());
+    stored.setLastName(user.getLastName());
+    stored.setEmail(user.getEmail());
+    stored.setEnabled(user.isEnabled() == null || user.isEnabled());
+    stored.setCreatedTimestamp(System.currentTimeMillis());
+    usersByUsername.put(stored.getUsername(), stored);
+    usersById.put(stored.getId(), stored);
+    userList = null;
+    return stored;
+  }
+
+  private List<UserRepresentation> userList() {
+    if (userList == null) {
+      userList = new ArrayList<>(usersByUsername.values());
+    }
+    return userList;
+  }
+
+  private static boolean isSearch(Map<String, String> query) {
+    return query.containsKey("search") || query.containsKey("username") || query.containsKey("firstName")
+      || query.containsKey("lastName") || query.containsKey("email");
+  }
+
+  private static boolean matches(UserRepresentation user, Map<String, String> query) {
+    String search = query.get("search");
+    if (search != null) {
+      return contains(user.getUsername(), search) || contains(user.getEmail(), search)
+        || contains(user.getFirstName(), search) || contains(user.getLastName(), search);
+    }
+    return matchesIfPresent(user.getUsername(), query.get("username"))
+      && matchesIfPresent(user.getFirstName(), query.get("firstName"))
+      && matchesIfPresent(user.getLastName(), query.get("lastName"))
+      && matchesIfPresent(user.getEmail(), query.get("email"));
+  }
+
+  private static boolean matchesIfPresent(String value, String expected) {
+    return expected == null || contains(value, expected);
+  }
+
+  private static boolean contains(String value, String part) {
+    return value != null && value.toLowerCase(Locale.ROOT).contains(part.toLowerCase(Locale.ROOT));
+  }
+
+  // Groups
+
+  private synchronized List<GroupRepresentation> listGroups(Map<String, String> query) {
+    List<GroupRepresentation> all = groupList();
+    int first = intParam(query, "first", 0);
+    int max = intParam(query, "max", Integer.MAX_VALUE);
+    List<GroupRepresentation> page = new ArrayList<>();
+    for (int i = first; i < all.size() && page.size() < max; i++) {
+      page.add(all.get(i));
+    }
+    return page;
+  }
+
+  private synchronized GroupRepresentation getGroup(String id) {
+    return groupsById.get(id);
+  }
+
+  private synchronized List<UserRepresentation> listMembers(String groupId, Map<String, String> query) {
+    TreeSet<String> members = membersByGroupId.get(groupId);
+    if (members == null) {
+      return null;
+    }
+    int first = intParam(query, "first", 0);
+    int max = intParam(query, "max", DEFAULT_MAX_RESULTS);
+    List<UserRepresentation> page = new ArrayList<>();
+    int index = 0;
+    for (String username : members) {
+      if (page.size() >= max) {
+        break;
+      }
+      if (index++ >= first) {
+        page.add(usersByUsername.get(username));
+      }
+    }
+    return page;
+  }
+
+  private synchronized Reply createGroup(GroupRepresentation group, HttpExchange exchange) {
+    if (group.getName() == null || groupsByName.containsKey(group.getName())) {
+      return Reply.error(409, "Top level group named '" + group.getName() + "' already exists.");
+    }
+    GroupRepresentation created = addGroup(group);
+    recordEvent("CREATE", "GROUP", "groups/" + created.getId(), created);
+    return Reply.created(location(exchange, created.getId()));
+  }
+
+  private synchronized boolean removeGroup(String id) {
+    GroupRepresentation group = groupsById.remove(id);
+    if (group == null) {
+      return false;
+    }
+    groupsByName.remove(group.getName());
+    membersByGroupId.remove(id);
+    groupList = null;
+    recordEvent("DELETE", "GROUP", "groups/" + id, null);
+    return true;
+  }
+
+  private GroupRepresentation addGroup(GroupRepresentation group) {
+    GroupRepresentation stored = new GroupRepresentation();
+    stored.setId(UUID.randomUUID().toString());
+    stored.setName(group.getName());
+    stored.setPath("/" + group.getName());
+    stored.setSubGroups(Collections.<GroupRepresentation>emptyList());
+    groupsByName.put(stored.getName(), stored);
+    groupsById.put(stored.getId(), stored);
+    membersByGroupId.put(stored.getId(), new TreeSet<String>());
+    groupList = null;
+    return stored;
+  }
+
+  private List<GroupRepresentation> groupList() {
+    if (groupList == null) {
+      groupList = new ArrayList<>(groupsByName.values());
+    }
+    return groupList;
+  }
+
+  // Admin events
+
+  private void recordEvent(String operationType, String resourceType, String resourcePath, Object representation) {
+    AdminEventRepresentation event = new AdminEventRepresentation();
+    event.setTime(System.currentTimeMillis());
+    event.setRealmId(realm);
+    event.setOperationType(operationType);
+    event.setResourceType(resourceType);
+    event.setResourcePath(resourcePath);
+    AuthDetailsRepresentation authDetails = new AuthDetailsRepresentation();
+    authDetails.setRealmId(realm);
+    authDetails.setUserId(callingUserId.get() != null ? callingUserId.get() : consoleUserId);
+    event.setAuthDetails(authDetails);
+    if (representation != null) {
+      try {
+        event.setRepresentation(mapper.writeValueAsString(representation));
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+    adminEvents.add(event);
+  }
+
+  private synchronized List<AdminEventRepresentation> listAdminEvents(Map<String, String> query) {
+    String types = query.get("resourceTypes");
+    List<String> resourceTypes = types == null ? null : Arrays.asList(types.split(","));
+    String dateFrom = query.get("dateFrom");
+    long from = dateFrom == null ? 0 : LocalDate.parse(dateFrom).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+    int first = intParam(query, "first", 0);
+    int max = intParam(query, "max", DEFAULT_MAX_RESULTS);
+    List<AdminEventRepresentation> page = new ArrayList<>();
+    int skipped = 0;
+    for (int i = adminEvents.size() - 1; i >= 0 && page.size() < max; i--) {
+      AdminEventRepresentation event = adminEvents.get(i);
+      if (event.getTime() < from) {
+        break;
+      }
+      if ((resourceTypes == null || resourceTypes.contains(event.getResourceType())) && skipped++ >= first) {
+        page.add(event);
+      }
+    }
+    return page;
+  }
+
+  // HTTP plumbing
+
+  private void simulateLatency() {
+    long delay = latencyMillis + (jitterMillis > 0 ? ThreadLocalRandom.current().nextLong(jitterMillis + 1) : 0);
+    if (delay > 0) {
+      try {
+        TimeUnit.MILLISECONDS.sleep(delay);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private void count(String endpoint) {
+    requestCounts.computeIfAbsent(endpoint, name -> new LongAdder()).increment();
+    Integer status = failingEndpoints.get(endpoint);
+    if (status != null) {
+      throw new InjectedFailure(status);
+    }
+  }
+
+  private <T> T read(HttpExchange exchange, Class<T> type) throws IOException {
+    return mapper.readValue(exchange.getRequestBody().readAllBytes(), type);
+  }
+
+  private void send(HttpExchange exchange, Reply reply) throws IOException {
+    // The JDK server closes the connection after the response unless the request body was read to
+    // the end, without telling the client, which then fails on its next request over it
+    exchange.getRequestBody().readAllBytes();
+    if (reply.location != null) {
+      exchange.getResponseHeaders().set("Location", reply.location);
+    }
+    byte[] body = reply.body == null ? null : mapper.writeValueAsBytes(reply.body);
+    if (body == null) {
+      exchange.sendResponseHeaders(reply.status, -1);
+      return;
+    }
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+    exchange.sendResponseHeaders(reply.status, body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+
+  private static String location(HttpExchange exchange, String id) {
+    String host = exchange.getRequestHeaders().getFirst("Host");
+    return "http://" + host + exchange.getRequestURI().getRawPath() + "/" + id;
+  }
+
+  private static Map<String, String> parseQuery(String rawQuery) {
+    Map<String, String> query = new HashMap<>();
+    if (rawQuery == null || rawQuery.isEmpty()) {
+      return query;
+    }
+    for (String pair : rawQuery.split("&")) {
+      int equals = pair.indexOf('=');
+      String name = URLDecoder.decode(equals < 0 ? pair : pair.substring(0, equals), StandardCharsets.UTF_8);
+      String value = equals < 0 ? "" : URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8);
+      // A repeated parameter, such as resourceTypes, keeps every value, comma separated
+      query.merge(name, value, (previous, next) -> previous + "," + next);
+    }
+    return query;
+  }
+
+  private static int intParam(Map<String, String> query, String name, int defaultValue) {
+    String value = query.get(name);
+    return value == null || value.isEmpty() ? defaultValue : Integer.parseInt(value);
+  }
+
+  /**
+   * Status, optional JSON body and optional Location header of a stub response.
+   */
+  private static final class Reply {
+    private final int status;
+    private final Object body;
+    private final String location;
+
+    private Reply(int status, Object body, String location) {
+      this.status = status;
+      this.body = body;
+      this.location = location;
+    }
+
+    static Reply json(int status, Object body) {
+      return new Reply(status, body, null);
+    }
+
+    static Reply empty(int status) {
+      return new Reply(status, null, null);
+    }
+
+    static Reply created(String location) {
+      return new Reply(201, null, location);
+    }
+
+    static Reply error(int status, String message) {
+      return new Reply(status, Collections.singletonMap("errorMessage", message), null);
+    }
+  }
+
+  /**
+   * Thrown when a request is counted to answer it with the status set by
+   * {@link #failRequests(String, int)} instead.
+   */
+  private static final class InjectedFailure extends RuntimeException {
+    private final int status;
+
+    InjectedFailure(int status) {
+      super(null, null, false, false);
+      this.status = status;
+    }
+  }
+}
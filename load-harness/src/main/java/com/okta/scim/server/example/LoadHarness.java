@@ -0,0 +1,227 @@
+package com.okta.scim.server.example;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Runs Okta-like import and push workloads against {@link SCIMServiceImpl} talking to an
+ * in-process {@link KeycloakStub}, and prints throughput, latency percentiles and Keycloak calls
+ * per operation. Nothing leaves the machine.
+ * <p>
+ * Options are given as <code>--name=value</code>; see README.txt for the list. The exit status
+ * is 1 when a page boundary or push check failed.
+ */
+public final class LoadHarness {
+  private static final double NANOS_PER_MILLI = 1e6;
+  private static final int MAX_FAILURES_SHOWN = 20;
+  private static final long REPLICA_POLL_MILLIS = 20;
+
+  private final Map<String, String> options;
+
+  private LoadHarness(Map<String, String> options) {
+    this.options = options;
+  }
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> options = new HashMap<>();
+    for (String arg : args) {
+      if (!arg.startsWith("--") || !arg.contains("=")) {
+        throw new IllegalArgumentException("Options are given as --name=value, got " + arg);
+      }
+      options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+    }
+    System.exit(new LoadHarness(options).run() ? 0 : 1);
+  }
+
+  private boolean run() throws Exception {
+    String workload = option("workload", "all");
+    int users = intOption("users", 10000);
+    int groups = intOption("groups", 100);
+    int membersPerGroup = intOption("membersPerGroup", 50);
+    int pageSize = intOption("pageSize", 200);
+    int threads = intOption("threads", 16);
+    int operations = intOption("operations", 2000);
+    int groupEvery = intOption("groupEvery", 20);
+    PayloadTemplates templates = new PayloadTemplates(dataDirectory());
+
+    KeycloakStub stub = new KeycloakStub("master", intOption("latencyMillis", 5), intOption("jitterMillis", 5),
+      intOption("stubThreads", 64), intOption("tokenLifetimeSeconds", 60));
+    stub.start();
+    stub.seed(users, groups, membersPerGroup);
+    System.out.println("Seeded " + stub.getUserCount() + " users and " + stub.getGroupCount() + " groups");
+
+    SCIMServiceImpl service = new SCIMServiceImpl();
+    service.setKeycloakServerUrl(stub.getServerUrl());
+    service.setKeycloakRealm("master");
+    service.setKeycloakClientId("admin-cli");
+    service.setKeycloakUsername("admin");
+    service.setKeycloakPassword("admin");
+    service.setKeycloakVirtualThreads(Boolean.parseBoolean(option("virtualThreads", "true")));
+    service.setKeycloakThreads(intOption("keycloakThreads", 32));
+    service.setChangeFeedPollSeconds(intOption("changeFeedPollSeconds", 1));
+    boolean realmReplica = Boolean.parseBoolean(option("realmReplica", "false"));
+    service.setRealmReplica(realmReplica);
+    service.setBulkCreateUsers(Boolean.parseBoolean(option("bulkCreateUsers", "false")));
+    service.setBulkCreateWindowSize(intOption("bulkCreateWindowSize", 500));
+    service.setBulkCreateWindowMillis(intOption("bulkCreateWindowMillis", 50));
+    service.setSingleFlightReads(Boolean.parseBoolean(option("singleFlightReads", "true")));
+    service.setGroupsIncludeMembers(Boolean.parseBoolean(option("groupsIncludeMembers", "false")));
+    service.setGroupMemberFetchParallelism(intOption("groupMemberFetchParallelism", 8));
+    service.setKeycloakAdaptiveConcurrency(Boolean.parseBoolean(option("adaptiveConcurrency", "true")));
+    service.setKeycloakConcurrencyInitialLimit(intOption("concurrencyInitialLimit", 16));
+    service.setKeycloakConcurrencyMaxLimit(intOption("concurrencyMaxLimit", 64));
+    service.setKeycloakRetries(intOption("retries", 2));
+    service.setKeycloakHedgeDelayMillis(intOption("hedgeDelayMillis", 0));
+    service.afterCreation();
+    if (realmReplica) {
+      awaitReplica(service);
+    }
+
+    List<String> failures = new ArrayList<>();
+    try {
+      if (workload.equals("import") || workload.equals("all")) {
+        LoadRecorder recorder = new LoadRecorder();
+        stub.resetRequestCounts();
+        long start = System.nanoTime();
+        failures.addAll(new ImportWorkload(service, recorder, pageSize, service.isGroupsIncludeMembers()).run());
+        report("import", recorder, System.nanoTime() - start, stub);
+      }
+      if (workload.equals("push") || workload.equals("all")) {
+        LoadRecorder recorder = new LoadRecorder();
+        stub.resetRequestCounts();
+        long start = System.nanoTime();
+        failures.addAll(new PushWorkload(service, recorder, templates, stub.getUserIds(), threads, operations,
+          groupEvery, Math.min(membersPerGroup, 20)).run());
+        report("push", recorder, System.nanoTime() - start, stub);
+      }
+      if (workload.equals("changes") || workload.equals("all")) {
+        LoadRecorder recorder = new LoadRecorder();
+        stub.resetRequestCounts();
+        long start = System.nanoTime();
+        System.out.println();
+        failures.addAll(new ChangeFeedWorkload(service, recorder, stub, stub.getUserIds(),
+          intOption("changeSample", 100), intOption("changeTimeoutMillis", 10000)).run());
+        report("changes", recorder, System.nanoTime() - start, stub);
+      }
+      if (workload.equals("onboard") || workload.equals("all")) {
+        LoadRecorder recorder = new LoadRecorder();
+        stub.resetRequestCounts();
+        long start = System.nanoTime();
+        System.out.println();
+        failures.addAll(new OnboardWorkload(service, recorder, threads, intOption("onboardUsers", 5000)).run());
+        report("onboard", recorder, System.nanoTime() - start, stub);
+      }
+      if (workload.equals("herd") || workload.equals("all")) {
+        LoadRecorder recorder = new LoadRecorder();
+        stub.resetRequestCounts();
+        long start = System.nanoTime();
+        System.out.println();
+        failures.addAll(new HerdWorkload(service, recorder, stub.getUserIds(), threads, intOption("herdRounds", 50),
+          pageSize).run());
+        report("herd", recorder, System.nanoTime() - start, stub);
+      }
+      if (workload.equals("filters") || workload.equals("all")) {
+        LoadRecorder recorder = new LoadRecorder();
+        stub.resetRequestCounts();
+        long start = System.nanoTime();
+        System.out.println();
+        failures.addAll(new FilterWorkload(service, recorder, stub.getSeededUserIds(), intOption("filterSample", 50)).run());
+        report("filters", recorder, System.nanoTime() - start, stub);
+      }
+      reportKeycloakCalls(service.getMetrics());
+    } finally {
+      service.beforeDestruction();
+      stub.stop();
+    }
+
+    for (String failure : failures.subList(0, Math.min(failures.size(), MAX_FAILURES_SHOWN))) {
+      System.out.println("FAILED: " + failure);
+    }
+    System.out.println(failures.isEmpty() ? "All checks passed" : failures.size() + " check(s) failed");
+    return failures.isEmpty();
+  }
+
+  private static void awaitReplica(SCIMServiceImpl service) throws InterruptedException {
+    long start = System.nanoTime();
+    while (service.getMetrics().getGauges().getOrDefault("realm_replica_reloads", 0L) == 0) {
+      Thread.sleep(REPLICA_POLL_MILLIS);
+    }
+    Runtime runtime = Runtime.getRuntime();
+    System.gc();
+    System.out.println(String.format(Locale.ROOT, "Realm replica loaded in %.1fs, %d MB of heap in use",
+      (System.nanoTime() - start) / 1e9, (runtime.totalMemory() - runtime.freeMemory()) >> 20));
+  }
+
+  private static void report(String workload, LoadRecorder recorder, long nanos, KeycloakStub stub) {
+    double seconds = nanos / 1e9;
+    System.out.println();
+    System.out.println(String.format(Locale.ROOT, "== %s: %.1fs, %d Keycloak requests (%.0f/s)", workload, seconds,
+      stub.getTotalRequests(), stub.getTotalRequests() / seconds));
+    System.out.println(String.format(Locale.ROOT, "%-24s %8s %6s %9s %9s %9s %9s %9s", "operation", "count",
+      "errors", "ops/s", "p50 ms", "p90 ms", "p99 ms", "max ms"));
+    for (Map.Entry<String, Histogram> entry : recorder.getLatencies().entrySet()) {
+      Histogram latency = entry.getValue();
+      System.out.println(String.format(Locale.ROOT, "%-24s %8d %6d %9.1f %9.2f %9.2f %9.2f %9.2f", entry.getKey(),
+        latency.getCount(), recorder.getErrors(entry.getKey()), latency.getCount() / seconds,
+        latency.getPercentile(0.5) / NANOS_PER_MILLI, latency.getPercentile(0.9) / NANOS_PER_MILLI,
+        latency.getPercentile(0.99) / NANOS_PER_MILLI, latency.getMax() / NANOS_PER_MILLI));
+    }
+    System.out.println("Keycloak requests by endpoint: " + stub.getRequestCounts());
+  }
+
+  private static void reportKeycloakCalls(ConnectorMetrics metrics) {
+    System.out.println();
+    System.out.println("== Keycloak calls per SCIM operation, as counted by the connector");
+    System.out.println(String.format(Locale.ROOT, "%-24s %8s %9s %9s %9s", "operation", "count", "mean", "p99",
+      "max"));
+    for (Map.Entry<String, HistogramSnapshot> entry : metrics.getOperationKeycloakCalls().entrySet()) {
+      HistogramSnapshot calls = entry.getValue();
+      System.out.println(String.format(Locale.ROOT, "%-24s %8d %9.2f %9.0f %9.0f", entry.getKey(), calls.getCount(),
+        calls.getMean(), calls.getP99(), calls.getMax()));
+    }
+
+    System.out.println();
+    System.out.println("== Keycloak call latency, as measured by the connector");
+    System.out.println(String.format(Locale.ROOT, "%-24s %8s %9s %9s %9s %9s", "endpoint", "count", "p50 ms",
+      "p90 ms", "p99 ms", "max ms"));
+    for (Map.Entry<String, HistogramSnapshot> entry : metrics.getKeycloakCallLatencyMillis().entrySet()) {
+      HistogramSnapshot latency = entry.getValue();
+      System.out.println(String.format(Locale.ROOT, "%-24s %8d %9.2f %9.2f %9.2f %9.2f", entry.getKey(),
+        latency.getCount(), latency.getP50(), latency.getP90(), latency.getP99(), latency.getMax()));
+    }
+    System.out.println("Keycloak call errors: " + metrics.getKeycloakCallErrors());
+    Map<String, Long> gauges = metrics.getGauges();
+    if (gauges.containsKey("keycloak_concurrency_limit")) {
+      System.out.println("Keycloak concurrency limit: " + gauges.get("keycloak_concurrency_limit") + ", lowered "
+        + gauges.get("keycloak_concurrency_decreases") + " times, " + gauges.get("keycloak_concurrency_rejected")
+        + " calls timed out waiting for a slot");
+    }
+    System.out.println("Keycloak retries: " + gauges.get("keycloak_retries") + ", hedged reads: "
+      + gauges.get("keycloak_hedged_reads") + " (" + gauges.get("keycloak_hedge_wins") + " answered by the hedge)"
+      + ", circuit breaker opened " + gauges.get("keycloak_circuit_opens") + " times");
+  }
+
+  private Path dataDirectory() {
+    String configured = options.get("data");
+    if (configured != null) {
+      return Paths.get(configured);
+    }
+    // Run from the repository root or from load-harness
+    Path fromRoot = Paths.get("tester", "data");
+    return Files.isDirectory(fromRoot) ? fromRoot : Paths.get("..", "tester", "data");
+  }
+
+  private String option(String name, String defaultValue) {
+    return options.getOrDefault(name, defaultValue);
+  }
+
+  private int intOption(String name, int defaultValue) {
+    return Integer.parseInt(option(name, Integer.toString(defaultValue)));
+  }
+}
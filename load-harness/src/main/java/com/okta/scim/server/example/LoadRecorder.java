@@ -0,0 +1,47 @@
+package com.okta.scim.server.example;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Client-side latency and error counts of the SCIM calls made by the load harness, per
+ * SCIMService method.
+ */
+final class LoadRecorder {
+  // Latency buckets from 0.1ms doubling to about 107s
+  private static final long FIRST_BOUND_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+  private static final int BUCKETS = 21;
+
+  private final ConcurrentMap<String, Histogram> latencies = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, LongAdder> errors = new ConcurrentHashMap<>();
+
+  /**
+   * Run one SCIM call and record how long it took. A failure is counted and rethrown.
+   */
+  <T> T time(String operation, Callable<T> call) throws Exception {
+    long start = System.nanoTime();
+    try {
+      return call.call();
+    } catch (Exception e) {
+      errors.computeIfAbsent(operation, name -> new LongAdder()).increment();
+      throw e;
+    } finally {
+      latencies.computeIfAbsent(operation, name -> Histogram.exponential(FIRST_BOUND_NANOS, BUCKETS))
+        .record(System.nanoTime() - start);
+    }
+  }
+
+  Map<String, Histogram> getLatencies() {
+    return new TreeMap<>(latencies);
+  }
+
+  long getErrors(String operation) {
+    LongAdder count = errors.get(operation);
+    return count == null ? 0 : count.sum();
+  }
+}
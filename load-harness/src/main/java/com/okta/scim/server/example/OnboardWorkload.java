@@ -0,0 +1,118 @@
+package com.okta.scim.server.example;
+
+import com.okta.scim.server.exception.OnPremUserManagementException;
+import com.okta.scim.util.model.Name;
+import com.okta.scim.util.model.SCIMUser;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Replays an initial provisioning run: <code>threads</code> concurrent clients create
+ * <code>users</code> new users with createUser and nothing else, the way Okta onboards a directory.
+ * <p>
+ * Every create must return an id no other create returned, and getUser must read back the
+ * userName that was sent. Then every <code>DUPLICATE_EVERY</code>th user is created again, by the
+ * same concurrent clients, and every one of those creates must be refused as already existing.
+ */
+final class OnboardWorkload {
+  // Every this many users is created a second time
+  private static final int DUPLICATE_EVERY = 50;
+
+  private final SCIMServiceImpl service;
+  private final LoadRecorder recorder;
+  private final int threads;
+  private final int users;
+  private final String runId = Long.toString(System.currentTimeMillis(), 36);
+  private final Set<String> ids = Collections.synchronizedSet(new HashSet<>());
+  private final List<String> failures = Collections.synchronizedList(new ArrayList<>());
+
+  OnboardWorkload(SCIMServiceImpl service, LoadRecorder recorder, int threads, int users) {
+    this.service = service;
+    this.recorder = recorder;
+    this.threads = threads;
+    this.users = users;
+  }
+
+  /**
+   * @return a description of every check that failed
+   */
+  List<String> run() throws Exception {
+    createConcurrently(users, 1, false);
+    createConcurrently(users, DUPLICATE_EVERY, true);
+
+    Map<String, Long> gauges = service.getMetrics().getGauges();
+    System.out.println("  " + ids.size() + " users created" + (service.isBulkCreateUsers()
+      ? " in " + gauges.getOrDefault("bulk_create_imports", 0L) + " partial imports, "
+      + gauges.getOrDefault("bulk_create_fallback_users", 0L) + " created one at a time after a failed import"
+      : " one at a time"));
+    return failures;
+  }
+
+  /**
+   * Create users 0, <code>step</code>, 2 * <code>step</code> and so on up to <code>count</code>.
+   */
+  private void createConcurrently(int count, int step, boolean mustExist) throws Exception {
+    AtomicInteger sequence = new AtomicInteger();
+    ExecutorService clients = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<?>> running = new ArrayList<>(threads);
+      for (int i = 0; i < threads; i++) {
+        running.add(clients.submit(() -> {
+          int next;
+          while ((next = sequence.getAndAdd(step)) < count) {
+            try {
+              create(next, mustExist);
+            } catch (Exception e) {
+              failures.add("create " + next + " failed: " + e);
+            }
+          }
+        }));
+      }
+      for (Future<?> client : running) {
+        client.get();
+      }
+    } finally {
+      clients.shutdownNow();
+    }
+  }
+
+  private void create(int userNumber, boolean mustExist) throws Exception {
+    SCIMUser user = new SCIMUser();
+    user.setUserName("onboard-" + runId + "-" + userNumber + "@example.com");
+    user.setName(new Name("Onboard " + userNumber, "User" + userNumber, "Onboard"));
+    user.setActive(true);
+
+    SCIMUser created;
+    try {
+      created = recorder.time("createUser", () -> service.createUser(user));
+    } catch (OnPremUserManagementException e) {
+      if (!mustExist) {
+        failures.add("new user " + user.getUserName() + " was refused: " + e.getMessage());
+      }
+      return;
+    }
+    if (mustExist) {
+      failures.add("user " + user.getUserName() + " was created twice");
+      return;
+    }
+    if (created.getId() == null || !ids.add(created.getId())) {
+      failures.add("user " + user.getUserName() + " was created with the id " + created.getId()
+        + ", which is missing or was returned before");
+      return;
+    }
+    SCIMUser read = recorder.time("getUser", () -> service.getUser(created.getId()));
+    if (!user.getUserName().equals(read.getUserName())) {
+      failures.add("user " + created.getId() + " reads back as " + read.getUserName() + ", expected "
+        + user.getUserName());
+    }
+  }
+}
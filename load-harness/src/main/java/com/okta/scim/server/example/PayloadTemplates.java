@@ -0,0 +1,98 @@
+package com.okta.scim.server.example;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.okta.scim.util.SCIMUtil;
+import com.okta.scim.util.model.Membership;
+import com.okta.scim.util.model.Name;
+import com.okta.scim.util.model.SCIMGroup;
+import com.okta.scim.util.model.SCIMUser;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Builds SCIM payloads from the sample requests in <code>tester/data</code>, the same payloads
+ * the SCIM tester sends, made unique per operation.
+ * <p>
+ * Custom schema extensions such as <code>urn:okta:onprem_app:1.0:user:custom</code> are removed,
+ * since the SDK only parses them when they are configured for the app, and the connector
+ * ignores them anyway.
+ */
+final class PayloadTemplates {
+  private static final Set<String> STANDARD_SCHEMAS = new HashSet<>(Arrays.asList(
+    "urn:scim:schemas:core:1.0", "urn:scim:schemas:extension:enterprise:1.0"));
+
+  private final ObjectMapper mapper = new ObjectMapper();
+  private final String newUser;
+  private final String profileUpdate;
+  private final String newGroup;
+  private final String groupUpdate;
+
+  PayloadTemplates(Path dataDirectory) throws IOException {
+    newUser = read(dataDirectory, "createNewUser.json");
+    profileUpdate = read(dataDirectory, "pushProfileUpdate.json");
+    newGroup = read(dataDirectory, "createGroup.json");
+    groupUpdate = read(dataDirectory, "updateGroup.json");
+  }
+
+  /**
+   * @return the createNewUser payload with a userName unique to <code>sequence</code>
+   */
+  SCIMUser newUser(String runId, int sequence) throws Exception {
+    SCIMUser user = SCIMUtil.unMarshalSCIMUser(newUser);
+    user.setUserName("load-" + runId + "-" + sequence + "@example.com");
+    return user;
+  }
+
+  /**
+   * @return the pushProfileUpdate payload for an existing user
+   */
+  SCIMUser profileUpdate(SCIMUser existing, int sequence) throws Exception {
+    SCIMUser user = SCIMUtil.unMarshalSCIMUser(profileUpdate);
+    user.setId(existing.getId());
+    user.setUserName(existing.getUserName());
+    user.setName(new Name("Updated " + sequence, "Updated" + sequence, user.getName().getFirstName()));
+    return user;
+  }
+
+  /**
+   * @return the createGroup payload with a unique name and the given members
+   */
+  SCIMGroup newGroup(String runId, int sequence, List<Membership> members) throws Exception {
+    SCIMGroup group = SCIMUtil.unMarshalSCIMGroup(newGroup);
+    group.setId(null);
+    group.setDisplayName("load-" + runId + "-group-" + sequence);
+    group.setMembers(members);
+    return group;
+  }
+
+  /**
+   * @return the updateGroup payload for an existing group, keeping its name, with new members
+   */
+  SCIMGroup groupUpdate(SCIMGroup existing, List<Membership> members) throws Exception {
+    SCIMGroup group = SCIMUtil.unMarshalSCIMGroup(groupUpdate);
+    group.setId(existing.getId());
+    group.setDisplayName(existing.getDisplayName());
+    group.setMembers(members);
+    return group;
+  }
+
+  private String read(Path directory, String name) throws IOException {
+    ObjectNode payload = (ObjectNode) mapper.readTree(directory.resolve(name).toFile());
+    ArrayNode schemas = payload.withArray("schemas");
+    for (int i = schemas.size() - 1; i >= 0; i--) {
+      String schema = schemas.get(i).asText();
+      if (!STANDARD_SCHEMAS.contains(schema)) {
+        schemas.remove(i);
+        payload.remove(schema);
+      }
+    }
+    return mapper.writeValueAsString(payload);
+  }
+}
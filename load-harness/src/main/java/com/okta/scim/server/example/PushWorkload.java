@@ -0,0 +1,134 @@
+package com.okta.scim.server.example;
+
+import com.okta.scim.server.service.SCIMService;
+import com.okta.scim.util.model.Membership;
+import com.okta.scim.util.model.PaginationProperties;
+import com.okta.scim.util.model.SCIMFilter;
+import com.okta.scim.util.model.SCIMFilterAttribute;
+import com.okta.scim.util.model.SCIMFilterType;
+import com.okta.scim.util.model.SCIMGroup;
+import com.okta.scim.util.model.SCIMUser;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Replays Okta pushes from <code>threads</code> concurrent clients. Each push of a user is the
+ * sequence Okta sends: a <code>userName eq</code> lookup, createUser, a profile update and a
+ * getUser. Every <code>groupEvery</code>th push also creates a group of existing users and then
+ * replaces its members, like a group push.
+ */
+final class PushWorkload {
+  private static final String SCIM_CORE_SCHEMA = "urn:scim:schemas:core:1.0";
+
+  private final SCIMService service;
+  private final LoadRecorder recorder;
+  private final PayloadTemplates templates;
+  private final List<String> memberIds;
+  private final int threads;
+  private final int operations;
+  private final int groupEvery;
+  private final int membersPerGroup;
+  private final String runId = Long.toString(System.currentTimeMillis(), 36);
+  private final AtomicInteger sequence = new AtomicInteger();
+  private final List<String> failures = Collections.synchronizedList(new ArrayList<>());
+
+  /**
+   * @param memberIds ids of existing users to push as group members
+   */
+  PushWorkload(SCIMService service, LoadRecorder recorder, PayloadTemplates templates, List<String> memberIds,
+               int threads, int operations, int groupEvery, int membersPerGroup) {
+    this.service = service;
+    this.recorder = recorder;
+    this.templates = templates;
+    this.memberIds = memberIds;
+    this.threads = threads;
+    this.operations = operations;
+    this.groupEvery = groupEvery;
+    this.membersPerGroup = membersPerGroup;
+  }
+
+  /**
+   * @return a description of every push that failed
+   */
+  List<String> run() throws Exception {
+    ExecutorService clients = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<?>> running = new ArrayList<>(threads);
+      for (int i = 0; i < threads; i++) {
+        running.add(clients.submit(this::pushUntilDone));
+      }
+      for (Future<?> client : running) {
+        client.get();
+      }
+    } finally {
+      clients.shutdownNow();
+    }
+    return failures;
+  }
+
+  private void pushUntilDone() {
+    int next;
+    while ((next = sequence.getAndIncrement()) < operations) {
+      try {
+        pushUser(next);
+        if (groupEvery > 0 && next % groupEvery == 0) {
+          pushGroup(next);
+        }
+      } catch (Exception e) {
+        failures.add("push " + next + " failed: " + e);
+      }
+    }
+  }
+
+  private void pushUser(int next) throws Exception {
+    SCIMUser user = templates.newUser(runId, next);
+    SCIMFilter byUserName = userNameEquals(user.getUserName());
+    int existing = recorder.time("getUsers(userName eq)",
+      () -> service.getUsers(new PaginationProperties(1, 100), byUserName)).getScimUsers().size();
+    if (existing != 0) {
+      failures.add("new user " + user.getUserName() + " was found before it was created");
+    }
+
+    SCIMUser created = recorder.time("createUser", () -> service.createUser(user));
+    SCIMUser update = templates.profileUpdate(created, next);
+    recorder.time("updateUser", () -> service.updateUser(created.getId(), update));
+    SCIMUser read = recorder.time("getUser", () -> service.getUser(created.getId()));
+    if (!update.getName().getLastName().equals(read.getName().getLastName())) {
+      failures.add("user " + created.getId() + " reads back " + read.getName().getLastName() + ", expected "
+        + update.getName().getLastName());
+    }
+  }
+
+  private void pushGroup(int next) throws Exception {
+    SCIMGroup created = recorder.time("createGroup",
+      () -> service.createGroup(templates.newGroup(runId, next, members(next))));
+    SCIMGroup update = templates.groupUpdate(created, members(next + 1));
+    recorder.time("updateGroup", () -> service.updateGroup(created.getId(), update));
+  }
+
+  private List<Membership> members(int offset) {
+    List<Membership> members = new ArrayList<>(membersPerGroup);
+    for (int i = 0; i < membersPerGroup && !memberIds.isEmpty(); i++) {
+      String id = memberIds.get((offset * membersPerGroup + i) % memberIds.size());
+      members.add(new Membership(id, null));
+    }
+    return members;
+  }
+
+  private static SCIMFilter userNameEquals(String userName) {
+    SCIMFilterAttribute attribute = new SCIMFilterAttribute();
+    attribute.setSchema(SCIM_CORE_SCHEMA);
+    attribute.setAttributeName("userName");
+    SCIMFilter filter = new SCIMFilter();
+    filter.setFilterType(SCIMFilterType.EQUALS);
+    filter.setFilterAttribute(attribute);
+    filter.setFilterValue(userName);
+    return filter;
+  }
+}
@@ -0,0 +1,157 @@
+package com.okta.scim.server.example;
+
+import org.keycloak.representations.idm.UserRepresentation;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import javax.ws.rs.WebApplicationException;
+import java.util.concurrent.CompletableFuture;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.testng.Assert.fail;
+
+public class BulkUserImporterTest {
+  private static final long NEVER = 60_000;
+
+  private StubbedConnector connector;
+  private BulkUserImporter importer;
+
+  @BeforeMethod
+  public void start() throws Exception {
+    connector = new StubbedConnector(2, 0, 0);
+  }
+
+  @AfterMethod(alwaysRun = true)
+  public void stop() {
+    if (importer != null) {
+      importer.shutdown();
+    }
+    if (connector != null) {
+      connector.close();
+    }
+  }
+
+  @Test
+  public void fullWindowIsOnePartialImport() {
+    importer = importer(3, NEVER);
+
+    CompletableFuture<String> a = importer.create(user("a@example.com"));
+    CompletableFuture<String> b = importer.create(user("b@example.com"));
+    CompletableFuture<String> c = importer.create(user("C@example.com"));
+
+    assertThat(KeycloakGateway.await(a), is(notNullValue()));
+    assertThat(KeycloakGateway.await(b), is(not(KeycloakGateway.await(a))));
+    assertThat(KeycloakGateway.await(c), is(notNullValue()));
+    assertThat(requests("realm.partialImport"), is(1L));
+    assertThat(requests("users.create"), is(0L));
+    assertThat(importer.getImportedUsers(), is(3L));
+    assertThat(importer.getFallbackUsers(), is(0L));
+  }
+
+  @Test
+  public void windowThatDoesNotFillIsSentOnTimeout() {
+    importer = importer(10, 20);
+
+    CompletableFuture<String> a = importer.create(user("a@example.com"));
+    CompletableFuture<String> b = importer.create(user("b@example.com"));
+
+    assertThat(KeycloakGateway.await(a), is(notNullValue()));
+    assertThat(KeycloakGateway.await(b), is(notNullValue()));
+    assertThat(importer.getImports(), is(1L));
+  }
+
+  @Test
+  public void takenUsernameFailsOnlyItsOwnCaller() {
+    importer = importer(2, NEVER);
+
+    CompletableFuture<String> taken = importer.create(user("seed-user-0@example.com"));
+    CompletableFuture<String> added = importer.create(user("new@example.com"));
+
+    assertThat(statusOf(taken), is(409));
+    assertThat(KeycloakGateway.await(added), is(notNullValue()));
+    assertThat(importer.getImportedUsers(), is(1L));
+    assertThat(importer.getFallbackUsers(), is(0L));
+  }
+
+  @Test
+  public void repeatedUsernameIsCreatedOnItsOwnAfterTheImport() {
+    importer = importer(3, NEVER);
+
+    CompletableFuture<String> first = importer.create(user("twice@example.com"));
+    CompletableFuture<String> repeat = importer.create(user("Twice@example.com"));
+    CompletableFuture<String> other = importer.create(user("other@example.com"));
+
+    assertThat(KeycloakGateway.await(first), is(notNullValue()));
+    assertThat(KeycloakGateway.await(other), is(notNullValue()));
+    assertThat(statusOf(repeat), is(409));
+    assertThat(requests("realm.partialImport"), is(1L));
+    assertThat(requests("users.create"), is(1L));
+    assertThat(importer.getImportedUsers(), is(2L));
+    assertThat(importer.getFallbackUsers(), is(1L));
+  }
+
+  @Test
+  public void rejectedImportFallsBackToOneCreatePerUser() {
+    importer = importer(3, NEVER);
+
+    CompletableFuture<String> a = importer.create(user("a@example.com"));
+    // Keycloak refuses the whole import with a 400 on a user without a username
+    CompletableFuture<String> invalid = importer.create(user(null));
+    CompletableFuture<String> b = importer.create(user("b@example.com"));
+
+    assertThat(KeycloakGateway.await(a), is(notNullValue()));
+    assertThat(KeycloakGateway.await(b), is(notNullValue()));
+    assertThat(statusOf(invalid), is(409));
+    assertThat(requests("realm.partialImport"), is(1L));
+    assertThat(requests("users.create"), is(3L));
+    assertThat(importer.getImportedUsers(), is(0L));
+    assertThat(importer.getFallbackUsers(), is(3L));
+  }
+
+  @Test
+  public void unavailableKeycloakFailsTheWindowWithoutSingleCreates() {
+    importer = importer(3, NEVER);
+    connector.stub.failRequests("realm.partialImport", 503);
+
+    CompletableFuture<String> a = importer.create(user("a@example.com"));
+    CompletableFuture<String> repeat = importer.create(user("A@example.com"));
+    CompletableFuture<String> b = importer.create(user("b@example.com"));
+
+    assertThat(statusOf(a), is(503));
+    assertThat(statusOf(repeat), is(503));
+    assertThat(statusOf(b), is(503));
+    assertThat(requests("realm.partialImport"), is(1L));
+    assertThat(requests("users.create"), is(0L));
+    assertThat(importer.getFallbackUsers(), is(0L));
+  }
+
+  private BulkUserImporter importer(int windowSize, long windowMillis) {
+    connector.stub.resetRequestCounts();
+    return new BulkUserImporter(connector.service.getGateway(), windowSize, windowMillis);
+  }
+
+  private long requests(String endpoint) {
+    return connector.stub.getRequestCounts().getOrDefault(endpoint, 0L);
+  }
+
+  private static UserRepresentation user(String userName) {
+    UserRepresentation user = new UserRepresentation();
+    user.setUsername(userName);
+    user.setEnabled(true);
+    return user;
+  }
+
+  private static int statusOf(CompletableFuture<String> created) {
+    try {
+      KeycloakGateway.await(created);
+      fail("the create should have failed");
+      return 0;
+    } catch (WebApplicationException e) {
+      return e.getResponse().getStatus();
+    }
+  }
+}
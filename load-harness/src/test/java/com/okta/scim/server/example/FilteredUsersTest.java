@@ -0,0 +1,133 @@
+package com.okta.scim.server.example;
+
+import com.okta.scim.util.model.SCIMFilter;
+import com.okta.scim.util.model.SCIMUser;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static com.okta.scim.server.example.FilterWorkload.and;
+import static com.okta.scim.server.example.FilterWorkload.eq;
+import static com.okta.scim.server.example.FilterWorkload.or;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+
+/**
+ * getUsers filters answered by {@link UserFilterEngine}, through Keycloak searches or the realm
+ * replica.
+ */
+public class FilteredUsersTest {
+  private static final int USERS = 20;
+
+  private StubbedConnector connector;
+  private List<String> ids;
+
+  @AfterMethod(alwaysRun = true)
+  public void stop() {
+    if (connector != null) {
+      connector.close();
+    }
+  }
+
+  @Test
+  public void exactUserNameIsPushedDown() throws Exception {
+    start(service -> {
+    });
+    Map<String, Long> before = gauges();
+
+    assertThat(find(eq("userName", null, "SEED-USER-3@example.com")), contains(ids.get(3)));
+    assertThat(delta(before, "user_filter_predicates_pushed_down"), is(1L));
+    assertThat(delta(before, "user_filter_predicates_evaluated_locally"), is(0L));
+  }
+
+  @Test
+  public void givenAndFamilyNameArePushedDownTogether() throws Exception {
+    start(service -> {
+    });
+    Map<String, Long> before = gauges();
+
+    assertThat(find(and(eq("name", "givenName", "Seed3"), eq("name", "familyName", "User3"))), contains(ids.get(3)));
+    assertThat(find(and(eq("name", "givenName", "Seed3"), eq("name", "familyName", "User4"))), is(empty()));
+    assertThat(delta(before, "user_filter_predicates_pushed_down"), is(4L));
+    assertThat(delta(before, "user_filter_predicates_evaluated_locally"), is(0L));
+  }
+
+  @Test
+  public void substringMatchesFromKeycloakAreCheckedExactly() throws Exception {
+    start(service -> {
+    });
+
+    // Keycloak's search for Seed1 also returns Seed10 to Seed19
+    assertThat(find(eq("name", "givenName", "Seed1")), contains(ids.get(1)));
+  }
+
+  @Test
+  public void idIsReadAndOtherPredicatesAreCheckedLocally() throws Exception {
+    start(service -> {
+    });
+    Map<String, Long> before = gauges();
+
+    assertThat(find(and(eq("id", null, ids.get(5)), eq("name", "familyName", "User5"))), contains(ids.get(5)));
+    assertThat(find(and(eq("id", null, ids.get(5)), eq("emails", null, "seed-user-6@example.com"))), is(empty()));
+    assertThat(find(eq("id", null, "no-such-id")), is(empty()));
+    assertThat(delta(before, "user_filter_predicates_pushed_down"), is(2L));
+    assertThat(delta(before, "user_filter_predicates_evaluated_locally"), is(3L));
+  }
+
+  @Test
+  public void orReturnsEveryMatchedUserOnce() throws Exception {
+    start(service -> {
+    });
+
+    assertThat(find(or(eq("userName", null, "seed-user-7@example.com"), eq("id", null, ids.get(7)))),
+      contains(ids.get(7)));
+    assertThat(find(or(eq("userName", null, "seed-user-7@example.com"), eq("id", null, ids.get(8)))),
+      contains(ids.get(7), ids.get(8)));
+  }
+
+  @Test
+  public void replicaAnswersTermsWithoutEmails() throws Exception {
+    start(service -> service.setRealmReplica(true));
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (gauges().getOrDefault("realm_replica_users", 0L) < USERS && System.nanoTime() < deadline) {
+      TimeUnit.MILLISECONDS.sleep(20);
+    }
+    connector.stub.resetRequestCounts();
+    Map<String, Long> before = gauges();
+
+    assertThat(find(and(eq("name", "givenName", "Seed9"), eq("userName", null, "seed-user-9@example.com"))),
+      contains(ids.get(9)));
+    assertThat(connector.stub.getTotalRequests(), is(0L));
+    assertThat(find(eq("emails", "value", "seed-user-9@example.com")), contains(ids.get(9)));
+    assertThat(delta(before, "user_filter_predicates_evaluated_locally"), is(2L));
+    assertThat(delta(before, "user_filter_predicates_pushed_down"), is(1L));
+  }
+
+  private void start(Consumer<SCIMServiceImpl> configure) throws Exception {
+    connector = new StubbedConnector(USERS, 0, 0, configure);
+    ids = connector.stub.getSeededUserIds();
+  }
+
+  private List<String> find(SCIMFilter filter) throws Exception {
+    List<String> found = new ArrayList<>();
+    for (SCIMUser user : connector.service.getUsers(null, filter).getScimUsers()) {
+      found.add(user.getId());
+    }
+    return found;
+  }
+
+  private Map<String, Long> gauges() {
+    return connector.service.getMetrics().getGauges();
+  }
+
+  private long delta(Map<String, Long> before, String gauge) {
+    return gauges().getOrDefault(gauge, 0L) - before.getOrDefault(gauge, 0L);
+  }
+}
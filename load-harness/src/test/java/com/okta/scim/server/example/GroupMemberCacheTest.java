@@ -0,0 +1,137 @@
+package com.okta.scim.server.example;
+
+import com.okta.scim.util.model.Membership;
+import com.okta.scim.util.model.SCIMGroup;
+import org.keycloak.representations.idm.GroupRepresentation;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class GroupMemberCacheTest {
+  private static final int MEMBERS_PER_GROUP = 5;
+
+  private StubbedConnector connector;
+  private GroupMemberCache cache;
+  private List<String> groupIds;
+
+  @BeforeMethod
+  public void start() throws Exception {
+    connector = new StubbedConnector(12, 2, MEMBERS_PER_GROUP, service -> service.setGroupsIncludeMembers(true));
+    KeycloakGateway gateway = connector.service.getGateway();
+    cache = new GroupMemberCache(new GroupMemberPager(gateway, 2), 2, 100, 60);
+    groupIds = new ArrayList<>();
+    for (GroupRepresentation group : KeycloakGateway.await(gateway.listGroups())) {
+      groupIds.add(group.getId());
+    }
+  }
+
+  @AfterMethod(alwaysRun = true)
+  public void stop() {
+    if (connector != null) {
+      connector.close();
+    }
+  }
+
+  @Test
+  public void readsEveryPageOfTheGroupsNotCached() {
+    Map<String, List<Membership>> members = cache.getAll(groupIds);
+
+    assertThat(members.keySet(), contains(groupIds.toArray()));
+    assertThat(members.get(groupIds.get(0)), hasSize(MEMBERS_PER_GROUP));
+    assertThat(members.get(groupIds.get(1)), hasSize(MEMBERS_PER_GROUP));
+    assertThat(cache.size(), is(2L));
+  }
+
+  @Test
+  public void cachedGroupsAreNotReadAgain() {
+    Map<String, List<Membership>> first = cache.getAll(groupIds);
+    connector.stub.resetRequestCounts();
+
+    Map<String, List<Membership>> second = cache.getAll(groupIds);
+
+    assertThat(second.get(groupIds.get(0)), is(sameInstance(first.get(groupIds.get(0)))));
+    assertThat(connector.stub.getTotalRequests(), is(0L));
+    assertThat(cache.stats().hitCount(), is(2L));
+  }
+
+  @Test(expectedExceptions = UnsupportedOperationException.class)
+  public void membersReadOnAMissCannotBeModified() {
+    cache.getAll(groupIds).get(groupIds.get(0)).clear();
+  }
+
+  @Test
+  public void membershipChangeRereadsOnlyThatGroup() {
+    cache.getAll(groupIds);
+    String joining = connector.stub.getUserIds().get(11);
+    KeycloakGateway.await(connector.service.getGateway().joinGroup(joining, groupIds.get(0)));
+
+    cache.membershipChanged(joining, groupIds.get(0), true);
+    connector.stub.resetRequestCounts();
+    Map<String, List<Membership>> members = cache.getAll(groupIds);
+
+    assertThat(ids(members.get(groupIds.get(0))), hasItem(joining));
+    assertThat(members.get(groupIds.get(1)), hasSize(MEMBERS_PER_GROUP));
+    assertThat(cache.stats().hitCount(), is(1L));
+  }
+
+  @Test
+  public void readThatOverlapsAnInvalidationIsNotCached() {
+    long readGeneration = cache.generation();
+    cache.invalidate("another-group");
+
+    cache.put(groupIds.get(0), Collections.<Membership>emptyList(), readGeneration);
+
+    assertThat(cache.size(), is(0L));
+  }
+
+  @Test
+  public void deletedGroupHasNoMembers() {
+    Map<String, List<Membership>> members = cache.getAll(Arrays.asList("deleted-group", groupIds.get(0)));
+
+    assertThat(members.get("deleted-group"), is(empty()));
+    assertThat(members.get(groupIds.get(0)), hasSize(MEMBERS_PER_GROUP));
+  }
+
+  @Test
+  public void getGroupsReusesTheMembersGetGroupRead() throws Exception {
+    SCIMGroup group = connector.service.getGroup(groupIds.get(0));
+    connector.stub.resetRequestCounts();
+
+    SCIMGroup listed = null;
+    for (SCIMGroup candidate : connector.service.getGroups(null).getScimGroups()) {
+      if (candidate.getId().equals(group.getId())) {
+        listed = candidate;
+      }
+    }
+
+    assertThat(listed.getMembers(), is(sameInstance(group.getMembers())));
+    assertThat(connector.stub.getRequestCounts().getOrDefault("groups.members", 0L), is(1L));
+  }
+
+  @Test(expectedExceptions = UnsupportedOperationException.class)
+  public void membersOfAReadGroupCannotBeModified() throws Exception {
+    connector.service.getGroup(groupIds.get(0)).getMembers().clear();
+  }
+
+  private static List<String> ids(List<Membership> members) {
+    List<String> ids = new ArrayList<>();
+    for (Membership member : members) {
+      ids.add(member.getId());
+    }
+    return ids;
+  }
+}
@@ -0,0 +1,90 @@
+package com.okta.scim.server.example;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+
+public class GroupNameIndexTest {
+  private StubbedConnector connector;
+  private GroupNameIndex index;
+
+  @BeforeMethod
+  public void start() throws Exception {
+    connector = new StubbedConnector(0, 2, 0);
+    index = new GroupNameIndex(connector.service.getGateway());
+  }
+
+  @AfterMethod(alwaysRun = true)
+  public void stop() {
+    if (connector != null) {
+      connector.close();
+    }
+  }
+
+  @Test
+  public void loadsEveryGroupOnFirstLookup() {
+    assertThat(index.findId("seed-group-0"), is(notNullValue()));
+    assertThat(index.findId("seed-group-1"), is(notNullValue()));
+    assertThat(index.findId("seed-group-2"), is(nullValue()));
+    assertThat(index.size(), is(2));
+  }
+
+  @Test
+  public void firstGroupWithANameWins() {
+    String topLevel = index.findId("seed-group-0");
+
+    index.groupChanged("subgroup", "seed-group-0", false);
+
+    assertThat(index.findId("seed-group-0"), is(topLevel));
+  }
+
+  @Test
+  public void remainingDuplicateIsFoundAfterTheWinnerIsDeleted() {
+    String topLevel = index.findId("seed-group-0");
+    index.groupChanged("subgroup", "seed-group-0", false);
+
+    index.groupChanged(topLevel, null, true);
+
+    assertThat(index.findId("seed-group-0"), is("subgroup"));
+  }
+
+  @Test
+  public void remainingDuplicateIsFoundAfterTheWinnerIsRenamed() {
+    String topLevel = index.findId("seed-group-0");
+    index.groupChanged("subgroup", "seed-group-0", false);
+
+    index.put(topLevel, "renamed");
+
+    assertThat(index.findId("seed-group-0"), is("subgroup"));
+    assertThat(index.findId("renamed"), is(topLevel));
+  }
+
+  @Test
+  public void nameIsGoneOnceEveryGroupWithItIsRemoved() {
+    String topLevel = index.findId("seed-group-0");
+    index.put("subgroup", "seed-group-0");
+
+    index.remove("subgroup");
+    index.remove(topLevel);
+
+    assertThat(index.findId("seed-group-0"), is(nullValue()));
+    assertThat(index.size(), is(1));
+  }
+
+  @Test
+  public void reconcileDropsGroupsKeycloakNoLongerHas() {
+    String topLevel = index.findId("seed-group-0");
+    index.put("deleted-elsewhere", "seed-group-0");
+    index.remove(topLevel);
+
+    index.reconcile();
+
+    assertThat(index.findId("seed-group-0"), is(topLevel));
+    assertThat(index.size(), is(2));
+  }
+}
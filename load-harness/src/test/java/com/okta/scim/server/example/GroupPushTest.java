@@ -0,0 +1,96 @@
+package com.okta.scim.server.example;
+
+import com.okta.scim.server.exception.OnPremUserManagementException;
+import com.okta.scim.util.model.Membership;
+import com.okta.scim.util.model.SCIMGroup;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.is;
+import static org.testng.Assert.fail;
+
+public class GroupPushTest {
+  private StubbedConnector connector;
+  private List<String> userIds;
+
+  @BeforeMethod
+  public void start() throws Exception {
+    connector = new StubbedConnector(4, 0, 0);
+    userIds = connector.stub.getSeededUserIds();
+  }
+
+  @AfterMethod(alwaysRun = true)
+  public void stop() {
+    if (connector != null) {
+      connector.close();
+    }
+  }
+
+  @Test
+  public void createGroupFailsWhenAJoinFails() throws Exception {
+    connector.stub.failRequests("users.joinGroup", 500);
+
+    OnPremUserManagementException failure = failureOf(() ->
+      connector.service.createGroup(group("pushed", userIds.get(0), userIds.get(1))));
+
+    assertThat(failure.getInternalCode(), is("503"));
+  }
+
+  @Test
+  public void updateGroupFailsWhenAJoinFails() throws Exception {
+    String groupId = connector.service.createGroup(group("pushed", userIds.get(0))).getId();
+    connector.stub.failRequests("users.joinGroup", 500);
+
+    OnPremUserManagementException failure = failureOf(() ->
+      connector.service.updateGroup(groupId, group("pushed", userIds.get(0), userIds.get(1))));
+
+    assertThat(failure.getInternalCode(), is("503"));
+    connector.stub.clearFailures();
+    assertThat(memberIds(groupId), containsInAnyOrder(userIds.get(0)));
+  }
+
+  @Test
+  public void missingUsersAreSkipped() throws Exception {
+    String groupId = connector.service.createGroup(group("pushed", userIds.get(0), "no-such-user")).getId();
+
+    connector.service.updateGroup(groupId, group("pushed", userIds.get(1), "no-such-user"));
+
+    assertThat(memberIds(groupId), containsInAnyOrder(userIds.get(1)));
+  }
+
+  private List<String> memberIds(String groupId) throws Exception {
+    List<String> ids = new ArrayList<>();
+    for (Membership member : connector.service.getGroup(groupId).getMembers()) {
+      ids.add(member.getId());
+    }
+    return ids;
+  }
+
+  private static SCIMGroup group(String name, String... memberIds) {
+    SCIMGroup group = new SCIMGroup();
+    group.setDisplayName(name);
+    List<Membership> members = new ArrayList<>();
+    for (String memberId : memberIds) {
+      members.add(new Membership(memberId, memberId));
+    }
+    group.setMembers(members);
+    return group;
+  }
+
+  private static OnPremUserManagementException failureOf(Callable<?> call) throws Exception {
+    try {
+      call.call();
+    } catch (OnPremUserManagementException e) {
+      return e;
+    }
+    fail("the call should have failed");
+    return null;
+  }
+}
@@ -0,0 +1,129 @@
+package com.okta.scim.server.example;
+
+import com.okta.scim.util.model.SCIMGroup;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+
+public class KeycloakChangeFeedTest {
+  private StubbedConnector connector;
+
+  @AfterMethod(alwaysRun = true)
+  public void stop() {
+    if (connector != null) {
+      connector.close();
+    }
+  }
+
+  @Test
+  public void appliesChangesMadeOutsideTheConnector() throws Exception {
+    connector = new StubbedConnector(5, 1, 0);
+    RecordingListener listener = new RecordingListener();
+    KeycloakChangeFeed feed = feed(10, 5, listener);
+    feed.poll();
+
+    String groupId = connector.stub.createGroupExternally("outside");
+    connector.stub.updateUserExternally(connector.stub.getUserIds().get(0), "Renamed");
+    feed.poll();
+
+    assertThat(listener.changes, contains("group " + groupId + " outside",
+      "user " + connector.stub.getUserIds().get(0)));
+    assertThat(feed.getEventsApplied(), is(2L));
+    assertThat(feed.getReconciles(), is(0L));
+  }
+
+  @Test
+  public void skipsTheConnectorsOwnChanges() throws Exception {
+    connector = new StubbedConnector(5, 1, 0);
+    RecordingListener listener = new RecordingListener();
+    KeycloakChangeFeed feed = feed(10, 5, listener);
+    feed.poll();
+
+    connector.service.createGroup(group("pushed"));
+    feed.poll();
+
+    assertThat(listener.changes, is(empty()));
+    assertThat(feed.getOwnEventsSkipped(), is(1L));
+    assertThat(feed.getReconciles(), is(0L));
+  }
+
+  @Test
+  public void reconcilesWhenAPollWouldReadTooManyPages() throws Exception {
+    connector = new StubbedConnector(5, 1, 0);
+    RecordingListener listener = new RecordingListener();
+    KeycloakChangeFeed feed = feed(2, 2, listener);
+    feed.poll();
+
+    for (int i = 0; i < 5; i++) {
+      connector.stub.createGroupExternally("outside-" + i);
+    }
+    feed.poll();
+
+    assertThat(listener.changes, contains("reconcile"));
+    assertThat(feed.getReconciles(), is(1L));
+  }
+
+  @Test
+  public void connectorRecognizesItsOwnEventsByItsToken() throws Exception {
+    connector = new StubbedConnector(5, 1, 0, service -> service.setChangeFeedPollSeconds(1));
+
+    connector.service.createGroup(group("pushed"));
+
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (gauge("keycloak_change_feed_own_events_skipped") == 0 && System.nanoTime() < deadline) {
+      TimeUnit.MILLISECONDS.sleep(50);
+    }
+    assertThat(gauge("keycloak_change_feed_own_events_skipped"), greaterThan(0L));
+    assertThat(gauge("keycloak_change_feed_events_applied"), is(0L));
+  }
+
+  private KeycloakChangeFeed feed(int pageSize, int maxPagesPerPoll, RecordingListener listener) {
+    KeycloakChangeFeed feed = new KeycloakChangeFeed(connector.service.getGateway(), pageSize, maxPagesPerPoll,
+      connector.stub::getAdminUserId);
+    feed.addListener(listener);
+    return feed;
+  }
+
+  private long gauge(String name) {
+    return connector.service.getMetrics().getGauges().getOrDefault(name, 0L);
+  }
+
+  private static SCIMGroup group(String name) {
+    SCIMGroup group = new SCIMGroup();
+    group.setDisplayName(name);
+    return group;
+  }
+
+  private static final class RecordingListener implements KeycloakChangeFeed.Listener {
+    private final List<String> changes = new ArrayList<>();
+
+    @Override
+    public void userChanged(String userId, boolean deleted) {
+      changes.add("user " + userId + (deleted ? " deleted" : ""));
+    }
+
+    @Override
+    public void groupChanged(String groupId, String name, boolean deleted) {
+      changes.add("group " + groupId + " " + (deleted ? "deleted" : name));
+    }
+
+    @Override
+    public void membershipChanged(String userId, String groupId, boolean joined) {
+      changes.add((joined ? "join " : "leave ") + userId + " " + groupId);
+    }
+
+    @Override
+    public void reconcile() {
+      changes.add("reconcile");
+    }
+  }
+}
@@ -0,0 +1,84 @@
+package com.okta.scim.server.example;
+
+import org.keycloak.representations.idm.AdminEventRepresentation;
+import org.keycloak.representations.idm.UserRepresentation;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+
+/**
+ * The Keycloak behavior the stub imitates, as the connector sees it.
+ */
+public class KeycloakStubTest {
+  private StubbedConnector connector;
+  private KeycloakGateway gateway;
+
+  @BeforeClass
+  public void start() throws Exception {
+    connector = new StubbedConnector(150, 3, 10);
+    gateway = connector.service.getGateway();
+  }
+
+  @AfterClass(alwaysRun = true)
+  public void stop() {
+    if (connector != null) {
+      connector.close();
+    }
+  }
+
+  @Test
+  public void adminCallsNeedAToken() throws Exception {
+    HttpURLConnection connection = (HttpURLConnection) new URL(connector.stub.getServerUrl()
+      + "/admin/realms/master/users").openConnection();
+    try {
+      assertThat(connection.getResponseCode(), is(401));
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  @Test
+  public void listingsWithoutMaxStopAtOneHundred() {
+    assertThat(KeycloakGateway.await(gateway.listUsers()), hasSize(100));
+    assertThat(KeycloakGateway.await(gateway.countUsers()) >= 150, is(true));
+  }
+
+  @Test
+  public void usernamesAreLowerCaseAndSearchesIgnoreCase() {
+    UserRepresentation user = new UserRepresentation();
+    user.setUsername("Mixed.Case@Example.com");
+    user.setEnabled(true);
+    String id = KeycloakGateway.await(gateway.createUser(user));
+
+    assertThat(KeycloakGateway.await(gateway.getUser(id)).getUsername(), is("mixed.case@example.com"));
+    List<UserRepresentation> found = KeycloakGateway.await(gateway.searchUsers("MIXED.case"));
+    assertThat(found, hasSize(1));
+    assertThat(found.get(0).getId(), is(id));
+  }
+
+  @Test
+  public void changesAfterTheSeedAreAdminEventsNewestFirst() {
+    String userId = connector.stub.getUserIds().get(0);
+    String groupId = connector.stub.createGroupExternally("stub-test-group");
+    connector.stub.updateUserExternally(userId, "Renamed");
+
+    List<AdminEventRepresentation> events = KeycloakGateway.await(gateway.adminEvents(
+      Arrays.asList(KeycloakChangeFeed.USER, KeycloakChangeFeed.GROUP), null, 0, 2));
+
+    assertThat(events, hasSize(2));
+    assertThat(Arrays.asList(events.get(0).getResourcePath(), events.get(1).getResourcePath()),
+      contains("users/" + userId, "groups/" + groupId));
+    assertThat(events.get(0).getOperationType(), is("UPDATE"));
+    assertThat(events.get(1).getOperationType(), is("CREATE"));
+  }
+}
@@ -0,0 +1,102 @@
+package com.okta.scim.server.example;
+
+import com.okta.scim.server.exception.OnPremUserManagementException;
+import com.okta.scim.util.model.Name;
+import com.okta.scim.util.model.SCIMGroup;
+import com.okta.scim.util.model.SCIMUser;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.Callable;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.testng.Assert.fail;
+
+public class KeycloakUnavailableTest {
+  private StubbedConnector connector;
+
+  @AfterMethod(alwaysRun = true)
+  public void stop() {
+    if (connector != null) {
+      connector.close();
+    }
+  }
+
+  @Test
+  public void takenUsernameIsReportedAsAnExistingUser() throws Exception {
+    connector = new StubbedConnector(3, 0, 0);
+    String takenUserName = connector.service.getUser(connector.stub.getSeededUserIds().get(0)).getUserName();
+
+    OnPremUserManagementException failure = failureOf(() -> connector.service.createUser(user(takenUserName)));
+
+    assertThat(failure.getInternalCode(), is("409"));
+  }
+
+  @Test
+  public void unansweredCallsAreReportedAsKeycloakBeingUnavailable() throws Exception {
+    connector = new StubbedConnector(3, 1, 1, service -> service.setKeycloakRetries(0));
+    String userId = connector.stub.getSeededUserIds().get(0);
+    connector.stub.stop();
+
+    assertThat(failureOf(() -> connector.service.createUser(user("new@example.com"))).getInternalCode(), is("503"));
+    assertThat(failureOf(() -> connector.service.getUser(userId)).getInternalCode(), is("503"));
+    assertThat(failureOf(() -> connector.service.getUsers(null, null)).getInternalCode(), is("503"));
+    assertThat(failureOf(() -> connector.service.createGroup(group("new"))).getInternalCode(), is("503"));
+    assertThat(failureOf(() -> connector.service.getGroups(null)).getInternalCode(), is("503"));
+  }
+
+  @Test
+  public void callsRefusedByTheOpenCircuitAreReportedAsKeycloakBeingUnavailable() throws Exception {
+    connector = new StubbedConnector(3, 0, 0, service -> {
+      service.setKeycloakRetries(0);
+      service.setKeycloakCircuitFailureThreshold(1);
+      service.setKeycloakCircuitOpenMillis(60_000);
+    });
+    String userId = connector.stub.getSeededUserIds().get(0);
+    connector.stub.stop();
+    failureOf(() -> connector.service.getUsers(null, null));
+
+    assertThat(failureOf(() -> connector.service.getUser(userId)).getInternalCode(), is("503"));
+    assertThat(failureOf(() -> connector.service.createUser(user("new@example.com"))).getInternalCode(), is("503"));
+    assertThat(connector.service.getMetrics().getGauges().get("keycloak_circuit_rejected"), is(2L));
+  }
+
+  @Test
+  public void everyRetryIsARoundTripOfTheRequest() throws Exception {
+    connector = new StubbedConnector(3, 0, 0, service -> {
+      service.setKeycloakRetries(2);
+      service.setKeycloakRetryBaseMillis(1);
+    });
+    String userId = connector.stub.getSeededUserIds().get(0);
+    connector.stub.failRequests("users.get", 503);
+
+    assertThat(failureOf(() -> connector.service.getUser(userId)).getInternalCode(), is("503"));
+    assertThat(connector.stub.getRequestCounts().get("users.get"), is(3L));
+    assertThat(connector.service.getMetrics().getOperationKeycloakCalls().get("getUser").getMax(), is(3.0));
+  }
+
+  private static SCIMUser user(String userName) {
+    SCIMUser user = new SCIMUser();
+    user.setUserName(userName);
+    user.setName(new Name("New User", "User", "New"));
+    user.setActive(true);
+    return user;
+  }
+
+  private static SCIMGroup group(String name) {
+    SCIMGroup group = new SCIMGroup();
+    group.setDisplayName(name);
+    return group;
+  }
+
+  private static OnPremUserManagementException failureOf(Callable<?> call) throws Exception {
+    try {
+      call.call();
+    } catch (OnPremUserManagementException e) {
+      return e;
+    }
+    fail("the call should have failed");
+    return null;
+  }
+}
@@ -0,0 +1,130 @@
+package com.okta.scim.server.example;
+
+import com.okta.scim.util.model.PaginationProperties;
+import com.okta.scim.util.model.SCIMGroup;
+import com.okta.scim.util.model.SCIMGroupQueryResponse;
+import com.okta.scim.util.model.SCIMUser;
+import com.okta.scim.util.model.SCIMUserQueryResponse;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+/**
+ * <code>getUsers</code> and <code>getGroups</code> pages, checked against the order Keycloak
+ * lists users and groups in.
+ */
+public class PagingTest {
+  private static final int USERS = 23;
+  private static final int GROUPS = 11;
+
+  private StubbedConnector connector;
+
+  @BeforeClass
+  public void start() throws Exception {
+    connector = new StubbedConnector(USERS, GROUPS, 2);
+  }
+
+  @AfterClass(alwaysRun = true)
+  public void stop() {
+    if (connector != null) {
+      connector.close();
+    }
+  }
+
+  @Test
+  public void firstUsersPage() throws Exception {
+    SCIMUserQueryResponse response = connector.service.getUsers(new PaginationProperties(1, 5), null);
+
+    assertThat(userIds(response), equalTo(connector.stub.getUserIds().subList(0, 5)));
+    assertThat(response.getTotalResults(), is((long) USERS));
+    assertThat(response.getStartIndex(), is(1L));
+  }
+
+  @Test
+  public void lastUsersPageIsPartial() throws Exception {
+    SCIMUserQueryResponse response = connector.service.getUsers(new PaginationProperties(21, 5), null);
+
+    assertThat(userIds(response), equalTo(connector.stub.getUserIds().subList(20, USERS)));
+    assertThat(response.getTotalResults(), is((long) USERS));
+  }
+
+  @Test
+  public void usersPagePastTheEndIsEmpty() throws Exception {
+    SCIMUserQueryResponse response = connector.service.getUsers(new PaginationProperties(USERS + 1, 5), null);
+
+    assertThat(response.getScimUsers(), is(empty()));
+    assertThat(response.getTotalResults(), is((long) USERS));
+  }
+
+  @Test
+  public void usersPageOfZeroOnlyCounts() throws Exception {
+    SCIMUserQueryResponse response = connector.service.getUsers(new PaginationProperties(1, 0), null);
+
+    assertThat(response.getScimUsers(), is(empty()));
+    assertThat(response.getTotalResults(), is((long) USERS));
+  }
+
+  @Test
+  public void walkingUsersPagesListsEveryUserOnce() throws Exception {
+    List<String> walked = new ArrayList<>();
+    for (int startIndex = 1; startIndex <= USERS; startIndex += 4) {
+      walked.addAll(userIds(connector.service.getUsers(new PaginationProperties(startIndex, 4), null)));
+    }
+
+    assertThat(walked, equalTo(connector.stub.getUserIds()));
+  }
+
+  @Test
+  public void groupsPages() throws Exception {
+    List<String> names = new ArrayList<>(new TreeSet<>(groupNames(connector.service.getGroups(null))));
+
+    SCIMGroupQueryResponse first = connector.service.getGroups(new PaginationProperties(1, 4));
+    assertThat(groupNames(first), equalTo(names.subList(0, 4)));
+    assertThat(first.getTotalResults(), is((long) GROUPS));
+
+    SCIMGroupQueryResponse last = connector.service.getGroups(new PaginationProperties(9, 4));
+    assertThat(groupNames(last), contains(names.get(8), names.get(9), names.get(10)));
+    assertThat(last.getTotalResults(), is((long) GROUPS));
+
+    assertThat(connector.service.getGroups(new PaginationProperties(GROUPS + 1, 4)).getScimGroups(), is(empty()));
+    assertThat(connector.service.getGroups(new PaginationProperties(1, 0)).getScimGroups(), is(empty()));
+  }
+
+  @Test
+  public void walkingGroupsPagesListsEveryGroupOnce() throws Exception {
+    List<String> all = groupNames(connector.service.getGroups(null));
+    List<String> walked = new ArrayList<>();
+    for (int startIndex = 1; startIndex <= GROUPS; startIndex += 3) {
+      walked.addAll(groupNames(connector.service.getGroups(new PaginationProperties(startIndex, 3))));
+    }
+
+    assertThat(all.size(), is(GROUPS));
+    assertThat(walked, equalTo(all));
+  }
+
+  private static List<String> userIds(SCIMUserQueryResponse response) {
+    List<String> ids = new ArrayList<>();
+    for (SCIMUser user : response.getScimUsers()) {
+      ids.add(user.getId());
+    }
+    return ids;
+  }
+
+  private static List<String> groupNames(SCIMGroupQueryResponse response) {
+    List<String> names = new ArrayList<>();
+    for (SCIMGroup group : response.getScimGroups()) {
+      names.add(group.getDisplayName());
+    }
+    return names;
+  }
+}
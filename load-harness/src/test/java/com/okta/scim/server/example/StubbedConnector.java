@@ -0,0 +1,55 @@
+package com.okta.scim.server.example;
+
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * A {@link SCIMServiceImpl} connected to a seeded {@link KeycloakStub} that answers at once.
+ * <p>
+ * The change feed and the scheduled reconciles are off unless <code>configure</code> turns them
+ * on, so a test only sees the Keycloak calls it causes.
+ */
+final class StubbedConnector implements AutoCloseable {
+  final KeycloakStub stub;
+  final SCIMServiceImpl service;
+
+  StubbedConnector(int users, int groups, int membersPerGroup) throws IOException {
+    this(users, groups, membersPerGroup, service -> {
+    });
+  }
+
+  /**
+   * @param configure changes the connector's settings before it starts
+   */
+  StubbedConnector(int users, int groups, int membersPerGroup, Consumer<SCIMServiceImpl> configure)
+    throws IOException {
+    stub = new KeycloakStub("master", 0, 0, 16, 60);
+    stub.start();
+    stub.seed(users, groups, membersPerGroup);
+
+    service = new SCIMServiceImpl();
+    service.setKeycloakServerUrl(stub.getServerUrl());
+    service.setKeycloakRealm("master");
+    service.setKeycloakClientId("admin-cli");
+    service.setKeycloakUsername("admin");
+    service.setKeycloakPassword("admin");
+    service.setChangeFeedPollSeconds(0);
+    service.setGroupIndexReconcileSeconds(0);
+    configure.accept(service);
+    try {
+      service.afterCreation();
+    } catch (RuntimeException e) {
+      stub.stop();
+      throw e;
+    }
+  }
+
+  @Override
+  public void close() {
+    try {
+      service.beforeDestruction();
+    } finally {
+      stub.stop();
+    }
+  }
+}